@@ -0,0 +1,50 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+/**
+ * The payloads used by the benchmarks, as returned by the EU services.
+ */
+final class CannedPayloads {
+
+    private CannedPayloads() {
+    }
+
+    static String get(String name) {
+        switch (name) {
+            case "vatValid":
+                return StubFetcher.vatValid("IT", "00950501007", "BANCA D'ITALIA", "VIA NAZIONALE 91 \n00184 ROMA RM\n");
+            case "vatInvalid":
+                return StubFetcher.vatInvalid("IT", "00950501006");
+            case "vatFault":
+                return StubFetcher.fault("MS_MAX_CONCURRENT_REQ");
+            case "vatApprox":
+                return StubFetcher.vatApprox("IT", "00950501007", "WAPIAAAAX1234567", "1", "3");
+            case "restValid":
+                return StubFetcher.restValid("IT", "00950501007", "BANCA D'ITALIA", "VIA NAZIONALE 91 \\n00184 ROMA RM\\n");
+            case "restInvalid":
+                return StubFetcher.restInvalid("IT", "00950501006");
+            case "restFault":
+                return StubFetcher.restError("MS_MAX_CONCURRENT_REQ");
+            case "tinValid":
+                return StubFetcher.tin("BE", "00012511119", true, true);
+            case "tinFault":
+                return StubFetcher.fault("SERVER_BUSY");
+            default:
+                throw new IllegalArgumentException("Unknown payload " + name);
+        }
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * End to end checks (request rendering, fetch, parsing, response mapping) against an in-memory fetcher.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CheckBenchmark {
+
+    private static final EUVatApproxCheckRequest APPROX_REQUEST = EUVatApproxCheckRequest.of("IT", "00950501007")
+            .withTraderName("BANCA D'ITALIA")
+            .withTraderCity("ROMA")
+            .withRequester("EL", "094014201");
+
+    @Param({"valid", "fault"})
+    public String outcome;
+
+    private BiFunction<String, String, InputStream> vatFetcher;
+    private BiFunction<String, String, CompletableFuture<InputStream>> asyncVatFetcher;
+    private BiFunction<String, String, InputStream> tinFetcher;
+    private BiFunction<String, String, InputStream> vatApproxFetcher;
+    private EUVatChecker checker;
+    private EUVatChecker checkerWithStatistics;
+
+    @Setup
+    public void setup() {
+        byte[] vat = CannedPayloads.get("vat" + capitalize(outcome)).getBytes(StandardCharsets.UTF_8);
+        byte[] tin = CannedPayloads.get("tin" + capitalize(outcome)).getBytes(StandardCharsets.UTF_8);
+        vatFetcher = (url, document) -> new ByteArrayInputStream(vat);
+        asyncVatFetcher = (url, document) -> CompletableFuture.completedFuture(new ByteArrayInputStream(vat));
+        tinFetcher = (url, document) -> new ByteArrayInputStream(tin);
+        byte[] vatApprox = CannedPayloads.get("valid".equals(outcome) ? "vatApprox" : "vatFault").getBytes(StandardCharsets.UTF_8);
+        vatApproxFetcher = (url, document) -> new ByteArrayInputStream(vatApprox);
+        checker = new EUVatChecker(vatFetcher);
+        checkerWithStatistics = checker.withListener(new CheckStatistics());
+    }
+
+    @Benchmark
+    public EUVatCheckResponse vatDoCheck() {
+        return EUVatChecker.doCheck("IT", "00950501007", vatFetcher);
+    }
+
+    @Benchmark
+    public EUVatCheckResponse vatDoCheckAsync() {
+        return EUVatChecker.doCheckAsync("IT", "00950501007", asyncVatFetcher).join();
+    }
+
+    // to be compared with vatDoCheck
+    @Benchmark
+    public EUVatApproxCheckResponse vatDoCheckApprox() {
+        return EUVatChecker.doCheckApprox(APPROX_REQUEST, vatApproxFetcher);
+    }
+
+    // the cost of the measurements, compared to checkerCheck
+    @Benchmark
+    public EUVatCheckResponse checkerCheckWithStatistics() {
+        return checkerWithStatistics.check("IT", "00950501007");
+    }
+
+    @Benchmark
+    public EUVatCheckResponse checkerCheck() {
+        return checker.check("IT", "00950501007");
+    }
+
+    @Benchmark
+    public EUTinCheckResponse tinDoCheck() {
+        return EUTinChecker.doCheck("BE", "00012511119", tinFetcher);
+    }
+
+    private static String capitalize(String s) {
+        return Character.toUpperCase(s.charAt(0)) + s.substring(1);
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Lookup latency of the persistent store, with millions of entries.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResultStoreBenchmark {
+
+    @Param({"100000", "1000000", "3000000"})
+    public int entries;
+
+    private Path directory;
+    private ResultStore store;
+    private CheckKey[] keys;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("vatchecker-store");
+        store = new ResultStore(directory, Duration.ofDays(30), Duration.ofDays(1));
+        EUVatCheckResponse response = new EUVatCheckResponse(true, "BANCA D'ITALIA", "VIA NAZIONALE 91\n00184 ROMA RM", false, null);
+        for (int i = 0; i < entries; i++) {
+            store.put(EUVatChecker.KIND, CheckKey.vat("IT", String.format("%011d", i)), response);
+        }
+        // restart, as after a deploy
+        store.close();
+        store = new ResultStore(directory, Duration.ofDays(30), Duration.ofDays(1));
+        keys = new CheckKey[4096];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = CheckKey.vat("IT", String.format("%011d", ThreadLocalRandom.current().nextInt(entries)));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(p -> p.toFile().delete());
+        }
+    }
+
+    @Benchmark
+    public Object hit() {
+        return store.get(EUVatChecker.KIND, keys[ThreadLocalRandom.current().nextInt(keys.length)]);
+    }
+
+    @Benchmark
+    public Object miss() {
+        return store.get(EUVatChecker.KIND, CheckKey.vat("DE", "136695976"));
+    }
+}
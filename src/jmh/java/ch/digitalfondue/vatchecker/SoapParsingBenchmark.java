@@ -0,0 +1,104 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * Fetch and extraction of a canned response, without any network: measures the parsing path of
+ * {@link Utils#doCallAndExtract(String, String, BiFunction, ResponseExtractor)}.
+ * <p>
+ * The garbage per response is the gc.alloc.rate.norm of <code>-prof gc</code>: extractFromBytes is the path used by
+ * the library, extractFromReader the previous one, decoding the whole body with an InputStreamReader first.
+ * <p>
+ * concurrentPooledFactories and concurrentNewFactory compare the throughput under concurrency of the pooled parser
+ * factories against creating one per call, the correctness being checked by ConcurrencyStressTest.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SoapParsingBenchmark {
+
+    @Param({"vatValid", "vatInvalid", "vatFault", "tinValid", "tinFault"})
+    public String payload;
+
+    private byte[] response;
+    private BiFunction<String, String, InputStream> fetcher;
+    private XMLInputFactory factory;
+    private SoapResponseExtractor extractor;
+    private String body;
+
+    @Setup
+    public void setup() {
+        response = CannedPayloads.get(payload).getBytes(StandardCharsets.UTF_8);
+        factory = Utils.newXMLInputFactory();
+        fetcher = (url, document) -> new ByteArrayInputStream(response);
+        if (payload.startsWith("vat")) {
+            extractor = new SoapResponseExtractor("checkVatResponse", "valid", "name", "address");
+            body = new SoapRequestTemplate("checkVat", "urn:ec.europa.eu:taxud:vies:services:checkVat:types", "countryCode", "vatNumber")
+                    .render("IT", "00950501007");
+        } else {
+            extractor = new SoapResponseExtractor("checkTinResponse", "validSyntax", "validStructure");
+            body = new SoapRequestTemplate("checkTin", "urn:ec.europa.eu:taxud:tin:services:checkTin:types", "countryCode", "tinNumber")
+                    .render("BE", "00012511119");
+        }
+    }
+
+    @Benchmark
+    public Object doCallAndExtract() {
+        return Utils.doCallAndExtract(body, "http://localhost/", fetcher, extractor);
+    }
+
+    /**
+     * The extraction with the pooled parser factories, from concurrent threads.
+     */
+    @Benchmark
+    @Threads(8)
+    public Object concurrentPooledFactories() {
+        return Utils.doCallAndExtract(body, "http://localhost/", fetcher, extractor);
+    }
+
+    /**
+     * The extraction with a new parser factory per call, as before the pooling, from concurrent threads.
+     */
+    @Benchmark
+    @Threads(8)
+    public Object concurrentNewFactory() throws XMLStreamException {
+        return extractor.extract(Utils.newXMLInputFactory().createXMLStreamReader(new ByteArrayInputStream(response)), 0, null);
+    }
+
+    @Benchmark
+    public Object extractFromBytes() throws XMLStreamException {
+        return extractor.extract(factory.createXMLStreamReader(new ByteArrayInputStream(response)), 0, null);
+    }
+
+    @Benchmark
+    public Object extractFromReader() throws XMLStreamException {
+        return extractor.extract(factory.createXMLStreamReader(new InputStreamReader(new ByteArrayInputStream(response), StandardCharsets.UTF_8)), 0, null);
+    }
+}
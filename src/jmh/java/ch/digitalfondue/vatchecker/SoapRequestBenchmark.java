@@ -0,0 +1,47 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendering of the soap request bodies.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SoapRequestBenchmark {
+
+    private final SoapRequestTemplate vatTemplate = new SoapRequestTemplate("checkVat",
+            "urn:ec.europa.eu:taxud:vies:services:checkVat:types", "countryCode", "vatNumber");
+    private final SoapRequestTemplate tinTemplate = new SoapRequestTemplate("checkTin",
+            "urn:ec.europa.eu:taxud:tin:services:checkTin:types", "countryCode", "tinNumber");
+
+    @Benchmark
+    public String renderVat() {
+        return vatTemplate.render("IT", "00950501007");
+    }
+
+    @Benchmark
+    public String renderTin() {
+        return tinTemplate.render("BE", "00012511119");
+    }
+}
@@ -0,0 +1,57 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * The same checkVat outcomes over the SOAP and the REST transports, without any network: compares the cost of the
+ * request rendering and of the response extraction of the two protocols.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class TransportParsingBenchmark {
+
+    @Param({"SOAP", "REST"})
+    public VatTransport transport;
+
+    @Param({"Valid", "Invalid", "Fault"})
+    public String outcome;
+
+    private BiFunction<String, String, InputStream> fetcher;
+
+    @Setup
+    public void setup() {
+        String payload = CannedPayloads.get((transport == VatTransport.SOAP ? "vat" : "rest") + outcome);
+        byte[] response = payload.getBytes(StandardCharsets.UTF_8);
+        fetcher = (url, document) -> new ByteArrayInputStream(response);
+    }
+
+    @Benchmark
+    public Object doCheck() {
+        return EUVatChecker.doCheck("IT", "00950501007", fetcher, null, transport);
+    }
+}
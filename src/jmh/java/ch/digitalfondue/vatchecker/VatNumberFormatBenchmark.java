@@ -0,0 +1,49 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Offline validation, expected to not allocate for the compact inputs: check gc.alloc.rate.norm with "-prof gc".
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VatNumberFormatBenchmark {
+
+    @Param({"IT00950501007", "DE136695976", "FR40303265045", "NL004495445B01", "ESA28015865", "IT009 505 010 07"})
+    public String vat;
+
+    private String countryCode;
+    private String number;
+
+    @Setup
+    public void setup() {
+        countryCode = vat.substring(0, 2);
+        number = vat.substring(2);
+    }
+
+    @Benchmark
+    public boolean isValid() {
+        return VatNumberFormat.isValid(countryCode, number);
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * Many concurrent checks with a blocking fetcher waiting 50ms for each response, run on a pool of 200 platform threads
+ * or with {@link EUVatChecker#withVirtualThreads()}. Run on Java 21 from the packaged multi-release jar for measuring
+ * the virtual threads, otherwise both modes use platform threads.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class VirtualThreadsBenchmark {
+
+    @Param({"PLATFORM", "VIRTUAL"})
+    public String mode;
+
+    @Param({"1000", "10000"})
+    public int calls;
+
+    private ExecutorService platform;
+    private EUVatChecker checker;
+    private List<VatId> ids;
+
+    @Setup
+    public void setup() {
+        byte[] vat = CannedPayloads.get("vatValid").getBytes(StandardCharsets.UTF_8);
+        BiFunction<String, String, InputStream> blocking = (url, document) -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            }
+            return new ByteArrayInputStream(vat);
+        };
+        if ("VIRTUAL".equals(mode)) {
+            checker = new EUVatChecker(blocking).withVirtualThreads();
+        } else {
+            platform = Executors.newFixedThreadPool(200);
+            checker = new EUVatChecker(blocking, Utils.toAsync(blocking, platform));
+        }
+        ids = new ArrayList<>(calls);
+        for (int i = 0; i < calls; i++) {
+            ids.add(VatId.of("IT", Integer.toString(i)));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (platform != null) {
+            platform.shutdownNow();
+        }
+    }
+
+    @Benchmark
+    public void checkAll() {
+        checker.checkAll(ids, calls, calls, (id, response) -> {
+        }).join();
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Run a call for each item of a (potentially huge) iterator, with at most <code>maxConcurrency</code> calls in flight
+ * and at most <code>maxConcurrencyPerCountry</code> calls in flight for the same country.
+ * <p>
+ * The items are pulled lazily: an item whose country is already saturated is parked, and no more items are pulled
+ * once too many are parked, so the memory usage is bounded whatever the size and the order of the input.
+ */
+final class BulkDispatcher<K, R> {
+
+    private final int maxConcurrency;
+    private final int maxConcurrencyPerCountry;
+    private final int maxParked;
+    private final Function<K, String> countryCode;
+    private final Function<K, CompletableFuture<R>> call;
+    private final Function<Throwable, R> errorMapper;
+
+    BulkDispatcher(int maxConcurrency,
+                   int maxConcurrencyPerCountry,
+                   Function<K, String> countryCode,
+                   Function<K, CompletableFuture<R>> call,
+                   Function<Throwable, R> errorMapper) {
+        if (maxConcurrency < 1 || maxConcurrencyPerCountry < 1) {
+            throw new IllegalArgumentException("maxConcurrency and maxConcurrencyPerCountry must be at least 1");
+        }
+        this.maxConcurrency = maxConcurrency;
+        this.maxConcurrencyPerCountry = maxConcurrencyPerCountry;
+        this.maxParked = Math.max(64, maxConcurrency * 4);
+        this.countryCode = countryCode;
+        this.call = call;
+        this.errorMapper = errorMapper;
+    }
+
+    /**
+     * @param items    the items to process
+     * @param consumer receive each item with its result, may be called concurrently from different threads
+     * @return a future completed when all the items have been processed
+     */
+    CompletableFuture<Void> run(Iterator<K> items, BiConsumer<K, R> consumer) {
+        Run run = new Run(items, consumer);
+        run.drain();
+        return run.done;
+    }
+
+    private final class Run {
+        private final Iterator<K> items;
+        private final BiConsumer<K, R> consumer;
+        private final CompletableFuture<Void> done = new CompletableFuture<>();
+        // drain loop guard: only one thread dispatches at a time, a synchronous completion just asks for another round
+        private final AtomicInteger wip = new AtomicInteger();
+
+        // guarded by this
+        private final Map<String, Integer> inFlightPerCountry = new HashMap<>();
+        private final Map<String, ArrayDeque<K>> parked = new LinkedHashMap<>();
+        private int inFlight;
+        private int parkedCount;
+        private boolean exhausted;
+
+        Run(Iterator<K> items, BiConsumer<K, R> consumer) {
+            this.items = items;
+            this.consumer = consumer;
+        }
+
+        void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            do {
+                List<K> toStart;
+                try {
+                    toStart = nextBatch();
+                } catch (RuntimeException e) {
+                    done.completeExceptionally(e);
+                    return;
+                }
+                for (K item : toStart) {
+                    start(item);
+                }
+            } while (wip.decrementAndGet() != 0);
+        }
+
+        private synchronized List<K> nextBatch() {
+            if (done.isDone()) {
+                return Collections.emptyList();
+            }
+            List<K> toStart = new ArrayList<>();
+            // first the parked items whose country has some capacity again
+            for (Iterator<Map.Entry<String, ArrayDeque<K>>> it = parked.entrySet().iterator(); it.hasNext() && inFlight < maxConcurrency; ) {
+                Map.Entry<String, ArrayDeque<K>> e = it.next();
+                ArrayDeque<K> queue = e.getValue();
+                while (!queue.isEmpty() && inFlight < maxConcurrency && acquire(e.getKey())) {
+                    toStart.add(queue.poll());
+                    parkedCount--;
+                }
+                if (queue.isEmpty()) {
+                    it.remove();
+                }
+            }
+            while (!exhausted && inFlight < maxConcurrency && parkedCount < maxParked) {
+                if (!items.hasNext()) {
+                    exhausted = true;
+                    break;
+                }
+                K item = items.next();
+                String country = countryCode.apply(item);
+                if (acquire(country)) {
+                    toStart.add(item);
+                } else {
+                    parked.computeIfAbsent(country, k -> new ArrayDeque<>()).add(item);
+                    parkedCount++;
+                }
+            }
+            if (exhausted && inFlight == 0 && parkedCount == 0) {
+                done.complete(null);
+            }
+            return toStart;
+        }
+
+        private boolean acquire(String country) {
+            int count = inFlightPerCountry.getOrDefault(country, 0);
+            if (count >= maxConcurrencyPerCountry) {
+                return false;
+            }
+            inFlightPerCountry.put(country, count + 1);
+            inFlight++;
+            return true;
+        }
+
+        private synchronized void release(String country) {
+            inFlight--;
+            int count = inFlightPerCountry.get(country) - 1;
+            if (count == 0) {
+                inFlightPerCountry.remove(country);
+            } else {
+                inFlightPerCountry.put(country, count);
+            }
+        }
+
+        private void start(K item) {
+            CompletableFuture<R> res;
+            try {
+                res = call.apply(item);
+            } catch (RuntimeException e) {
+                res = CompletableFuture.failedFuture(e);
+            }
+            res.whenComplete((r, t) -> {
+                try {
+                    consumer.accept(item, t == null ? r : errorMapper.apply(t));
+                } catch (RuntimeException e) {
+                    done.completeExceptionally(e);
+                }
+                release(countryCode.apply(item));
+                drain();
+            });
+        }
+    }
+}
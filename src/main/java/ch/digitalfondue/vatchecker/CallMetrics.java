@@ -0,0 +1,168 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+/**
+ * The timings and sizes of a single call to the service, see {@link CheckListener}.
+ * <p>
+ * The phases are measured in nanoseconds, -1 if they are not known: the connect and first byte timings are only
+ * reported by the default document fetchers (and the connect one only by the blocking fetcher), as a custom
+ * document fetcher is opaque.
+ */
+public final class CallMetrics {
+
+    private final String operation;
+    private final String countryCode;
+    final long start;
+
+    long serializeNanos;
+    long connectNanos = -1;
+    long firstByteNanos = -1;
+    long fetchNanos = -1;
+    long parseNanos = -1;
+    long extractNanos = -1;
+    long totalNanos;
+    long requestBytes;
+    long responseBytes = -1;
+    String faultType;
+    Throwable failure;
+
+    CallMetrics(String operation, String countryCode, long start) {
+        this.operation = operation;
+        this.countryCode = countryCode;
+        this.start = start;
+    }
+
+    /**
+     * @return the name of the soap operation: checkVat or checkTin
+     */
+    public String getOperation() {
+        return operation;
+    }
+
+    /**
+     * @return the normalized country code
+     */
+    public String getCountryCode() {
+        return countryCode;
+    }
+
+    /**
+     * @return the fault type name of the response (e.g. MS_UNAVAILABLE, TIMEOUT), null if successful or if the call failed with an exception
+     */
+    public String getFaultType() {
+        return faultType;
+    }
+
+    /**
+     * @return the exception that made the call fail, null if a response has been received
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     * @return the time spent building the request envelope
+     */
+    public long getSerializeNanos() {
+        return serializeNanos;
+    }
+
+    /**
+     * @return the time spent establishing the connection, ~0 if a kept alive connection has been reused
+     */
+    public long getConnectNanos() {
+        return connectNanos;
+    }
+
+    /**
+     * @return the time from the start of the fetch to the reception of the response headers
+     */
+    public long getFirstByteNanos() {
+        return firstByteNanos;
+    }
+
+    /**
+     * @return the time spent by the document fetcher, up to the whole response being received by the default ones
+     */
+    public long getFetchNanos() {
+        return fetchNanos;
+    }
+
+    /**
+     * @return the time spent streaming the response up to the soap response or fault element
+     */
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    /**
+     * @return the time spent reading the values of the response and building the result
+     */
+    public long getExtractNanos() {
+        return extractNanos;
+    }
+
+    /**
+     * @return the duration of the whole call, from serializing the request to having the result
+     */
+    public long getTotalNanos() {
+        return totalNanos;
+    }
+
+    /**
+     * @return the size of the request body, in bytes
+     */
+    public long getRequestBytes() {
+        return requestBytes;
+    }
+
+    /**
+     * @return the size of the response body, in bytes, -1 if it has not been read
+     */
+    public long getResponseBytes() {
+        return responseBytes;
+    }
+
+    long elapsed(long since) {
+        return System.nanoTime() - since;
+    }
+
+    void complete(String faultType, Throwable failure) {
+        this.faultType = faultType;
+        this.failure = failure;
+        this.totalNanos = elapsed(start);
+    }
+
+    @Override
+    public String toString() {
+        return "CallMetrics{" +
+                "operation='" + operation + '\'' +
+                ", countryCode='" + countryCode + '\'' +
+                ", faultType=" + faultType +
+                ", failure=" + failure +
+                ", serializeNanos=" + serializeNanos +
+                ", connectNanos=" + connectNanos +
+                ", firstByteNanos=" + firstByteNanos +
+                ", fetchNanos=" + fetchNanos +
+                ", parseNanos=" + parseNanos +
+                ", extractNanos=" + extractNanos +
+                ", totalNanos=" + totalNanos +
+                ", requestBytes=" + requestBytes +
+                ", responseBytes=" + responseBytes +
+                '}';
+    }
+}
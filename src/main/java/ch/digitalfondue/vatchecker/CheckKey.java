@@ -0,0 +1,129 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The canonical identity of a check, used by the cache and by the coalescing: normalized country code and number,
+ * with the hash computed once.
+ * <p>
+ * The normalization:
+ * <ul>
+ *     <li>country code: trimmed, upper case, GR is mapped to EL, the known codes are interned</li>
+ *     <li>number: without spaces, dots and dashes, upper case</li>
+ *     <li>vat number only: without the country prefix, when repeated (e.g. "IT IT00950501007")</li>
+ * </ul>
+ * The already normalized values are returned as is, without allocating.
+ */
+final class CheckKey {
+
+    private static final Map<String, String> COUNTRY_CODES = new HashMap<>();
+
+    static {
+        for (String cc : new String[]{"AT", "BE", "BG", "CY", "CZ", "DE", "DK", "EE", "EL", "ES", "FI", "FR", "HR",
+                "HU", "IE", "IT", "LT", "LU", "LV", "MT", "NL", "PL", "PT", "RO", "SE", "SI", "SK", "XI"}) {
+            COUNTRY_CODES.put(cc, cc);
+        }
+        COUNTRY_CODES.put("GR", "EL");
+    }
+
+    final String countryCode;
+    final String number;
+    private final int hash;
+
+    private CheckKey(String countryCode, String number) {
+        this.countryCode = countryCode;
+        this.number = number;
+        this.hash = 31 * countryCode.hashCode() + number.hashCode();
+    }
+
+    static CheckKey vat(String countryCode, String vatNumber) {
+        String cc = countryCode(countryCode);
+        return new CheckKey(cc, vatNumber(cc, vatNumber));
+    }
+
+    static CheckKey tin(String countryCode, String tinNumber) {
+        return new CheckKey(countryCode(countryCode), number(tinNumber));
+    }
+
+    static String countryCode(String countryCode) {
+        String cc = countryCode.trim().toUpperCase(Locale.ROOT);
+        String known = COUNTRY_CODES.get(cc);
+        return known != null ? known : cc;
+    }
+
+    /**
+     * @param countryCode the normalized country code
+     */
+    static String vatNumber(String countryCode, String vatNumber) {
+        String nr = number(vatNumber);
+        String prefix = "EL".equals(countryCode) && nr.startsWith("GR") ? "GR" : countryCode;
+        // a french number may start with a 2 letters key: the prefix is removed only when followed by a full number
+        while (nr.length() > prefix.length() && nr.startsWith(prefix) && (!"FR".equals(countryCode) || nr.length() == 13)) {
+            nr = nr.substring(prefix.length());
+        }
+        return nr;
+    }
+
+    static String number(String number) {
+        int length = number.length();
+        boolean compact = true;
+        for (int i = 0; i < length && compact; i++) {
+            char c = number.charAt(i);
+            compact = !isSeparator(c) && !(c >= 'a' && c <= 'z');
+        }
+        if (compact) {
+            return number;
+        }
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            char c = number.charAt(i);
+            if (!isSeparator(c)) {
+                sb.append(c >= 'a' && c <= 'z' ? (char) (c - ('a' - 'A')) : c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == '.' || c == '-' || Character.isWhitespace(c);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CheckKey)) {
+            return false;
+        }
+        CheckKey other = (CheckKey) o;
+        return hash == other.hash && countryCode.equals(other.countryCode) && number.equals(other.number);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return countryCode + number;
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+/**
+ * Receive the metrics of each call to the service, see {@link EUVatChecker#withListener(CheckListener)}.
+ * <p>
+ * The listener is called once per call to the service: the checks answered by a cache or a store, or rejected before
+ * any call (e.g. RATE_LIMITED, CIRCUIT_OPEN), are not reported, while each attempt of a retried check is. It may be
+ * called concurrently from different threads, on the thread that completed the call: it must be fast and not block.
+ * An exception thrown by the listener is ignored.
+ * <p>
+ * See {@link CheckStatistics} for a ready to use implementation.
+ */
+@FunctionalInterface
+public interface CheckListener {
+
+    /**
+     * @param metrics the metrics of the completed call
+     */
+    void onCall(CallMetrics metrics);
+}
@@ -0,0 +1,400 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+import java.util.function.BiPredicate;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * The optional stages that an {@link EUVatChecker} or {@link EUTinChecker} instance runs around the remote call:
+ * <ol>
+ *     <li>normalization of the country code and of the number, see {@link CheckKey}</li>
+ *     <li>offline validation of the number</li>
+ *     <li>cache lookup, serving the stale results while refreshing them in the background if enabled</li>
+ *     <li>persistent store lookup</li>
+ *     <li>coalescing of the identical concurrent checks</li>
+ *     <li>retry</li>
+ *     <li>hedging, for each attempt</li>
+ *     <li>rate limiter, for each attempt</li>
+ *     <li>circuit breaker, for each attempt</li>
+ * </ol>
+ * Instances are immutable once published: each "with" method returns a modified copy.
+ */
+final class CheckPipeline<R> {
+
+    private final ResponseKind<R> kind;
+    // null if the responses cannot be stored
+    private final StoreCodec<R> codec;
+    private BiPredicate<String, String> validator;
+    private String invalidFault;
+    private ResultCache<R> cache;
+    private StaleWhileRevalidate staleWhileRevalidate;
+    private ResultStore store;
+    private SingleFlight<CheckKey, R> singleFlight;
+    private RetryPolicy retryPolicy;
+    private Hedging hedging;
+    private RateLimiter rateLimiter;
+    private CircuitBreaker circuitBreaker;
+
+    CheckPipeline(ResponseKind<R> kind) {
+        this(kind, null);
+    }
+
+    /**
+     * @param codec how the responses are persisted by {@link #withStore(ResultStore)}
+     */
+    CheckPipeline(ResponseKind<R> kind, StoreCodec<R> codec) {
+        this.kind = kind;
+        this.codec = codec;
+    }
+
+    private CheckPipeline<R> copy() {
+        CheckPipeline<R> copy = new CheckPipeline<>(kind, codec);
+        copy.validator = validator;
+        copy.invalidFault = invalidFault;
+        copy.cache = cache;
+        copy.staleWhileRevalidate = staleWhileRevalidate;
+        copy.store = store;
+        copy.singleFlight = singleFlight;
+        copy.retryPolicy = retryPolicy;
+        copy.hedging = hedging;
+        copy.rateLimiter = rateLimiter;
+        copy.circuitBreaker = circuitBreaker;
+        return copy;
+    }
+
+    /**
+     * @return a pipeline for another response type of the same service, with only the stages that are about the calls:
+     * validation, retry, rate limiter and circuit breaker. The hedging is not kept, as each approx call returns its own
+     * consultation number. The state of the rate limiter and of the circuit breaker is shared.
+     */
+    <T> CheckPipeline<T> forCallStages(ResponseKind<T> otherKind) {
+        CheckPipeline<T> copy = new CheckPipeline<>(otherKind);
+        copy.validator = validator;
+        copy.invalidFault = invalidFault;
+        copy.retryPolicy = retryPolicy;
+        copy.rateLimiter = rateLimiter;
+        copy.circuitBreaker = circuitBreaker;
+        return copy;
+    }
+
+    /**
+     * @param validator    return false if the number cannot be valid
+     * @param invalidFault the fault of the error returned for the rejected numbers
+     */
+    CheckPipeline<R> withValidator(BiPredicate<String, String> validator, String invalidFault) {
+        CheckPipeline<R> copy = copy();
+        copy.validator = validator;
+        copy.invalidFault = invalidFault;
+        return copy;
+    }
+
+    CheckPipeline<R> withCache(ResultCache<R> cache) {
+        CheckPipeline<R> copy = copy();
+        copy.cache = cache;
+        return copy;
+    }
+
+    /**
+     * Only effective with a cache.
+     */
+    CheckPipeline<R> withStaleWhileRevalidate(StaleWhileRevalidate staleWhileRevalidate) {
+        CheckPipeline<R> copy = copy();
+        copy.staleWhileRevalidate = staleWhileRevalidate;
+        return copy;
+    }
+
+    CheckPipeline<R> withStore(ResultStore store) {
+        if (codec == null) {
+            throw new IllegalStateException("The responses cannot be stored");
+        }
+        CheckPipeline<R> copy = copy();
+        copy.store = store;
+        return copy;
+    }
+
+    CheckPipeline<R> withRequestCoalescing() {
+        CheckPipeline<R> copy = copy();
+        copy.singleFlight = new SingleFlight<>();
+        return copy;
+    }
+
+    CheckPipeline<R> withRetry(RetryPolicy retryPolicy) {
+        CheckPipeline<R> copy = copy();
+        copy.retryPolicy = retryPolicy;
+        return copy;
+    }
+
+    CheckPipeline<R> withHedging(Hedging hedging) {
+        CheckPipeline<R> copy = copy();
+        copy.hedging = hedging;
+        return copy;
+    }
+
+    CheckPipeline<R> withRateLimiter(RateLimiter rateLimiter) {
+        CheckPipeline<R> copy = copy();
+        copy.rateLimiter = rateLimiter;
+        return copy;
+    }
+
+    CheckPipeline<R> withCircuitBreaker(CircuitBreaker circuitBreaker) {
+        CheckPipeline<R> copy = copy();
+        copy.circuitBreaker = circuitBreaker;
+        return copy;
+    }
+
+    /**
+     * @return true if there is no stage: the remote call can be done directly
+     */
+    boolean isEmpty() {
+        return validator == null && !hasCallStages();
+    }
+
+    private boolean hasCallStages() {
+        return cache != null || store != null || singleFlight != null || retryPolicy != null || hedging != null || rateLimiter != null || circuitBreaker != null;
+    }
+
+    /**
+     * @param remote the call to the web service, it may complete synchronously
+     */
+    CompletableFuture<R> run(String countryCode, String number, BiFunction<String, String, CompletableFuture<R>> remote) {
+        return run(countryCode, number, Utils.NO_DEADLINE, remote);
+    }
+
+    /**
+     * @param deadline absolute {@link System#nanoTime()} value after which no retry is attempted, or {@link Utils#NO_DEADLINE}
+     * @param remote   the call to the web service, it may complete synchronously
+     */
+    CompletableFuture<R> run(String countryCode, String number, long deadline, BiFunction<String, String, CompletableFuture<R>> remote) {
+        return run(countryCode, number, deadline, remote, Timer.SCHEDULED);
+    }
+
+    /**
+     * Run the pipeline on the calling thread, for the blocking api.
+     */
+    R runBlocking(String countryCode, String number, BiFunction<String, String, R> remote) {
+        return runBlocking(countryCode, number, Utils.NO_DEADLINE, remote);
+    }
+
+    /**
+     * Run the pipeline on the calling thread, for the blocking api.
+     *
+     * @return the response, or a TIMEOUT error if the deadline expires while waiting for a coalesced call
+     */
+    R runBlocking(String countryCode, String number, long deadline, BiFunction<String, String, R> remote) {
+        CompletableFuture<R> res = run(countryCode, number, deadline, (c, n) -> CompletableFuture.completedFuture(remote.apply(c, n)), Timer.SLEEPING);
+        if (deadline == Utils.NO_DEADLINE || res.isDone()) {
+            return Utils.join(res);
+        }
+        // a coalesced call may have been started by a caller with a later deadline
+        return Utils.join(res.completeOnTimeout(kind.error(Utils.CLIENT_FAULT_CODE, "TIMEOUT"), Math.max(0, Utils.remainingNanos(deadline)), TimeUnit.NANOSECONDS));
+    }
+
+    private CompletableFuture<R> run(String countryCode, String number, long deadline, BiFunction<String, String, CompletableFuture<R>> remote, Timer timer) {
+        CheckKey key = kind.key(countryCode, number);
+        if (validator != null && !validator.test(key.countryCode, key.number)) {
+            return CompletableFuture.completedFuture(kind.error(Utils.CLIENT_FAULT_CODE, invalidFault));
+        }
+        if (!hasCallStages()) {
+            return remote.apply(key.countryCode, key.number);
+        }
+        if (cache != null) {
+            R cached = staleWhileRevalidate == null ? cache.get(key) : getOrRevalidate(key, remote, timer);
+            if (cached != null) {
+                return CompletableFuture.completedFuture(cached);
+            }
+        }
+        if (store != null) {
+            R stored = storeGet(key);
+            if (stored != null) {
+                if (cache != null) {
+                    cache.put(key, stored, kind);
+                }
+                return CompletableFuture.completedFuture(stored);
+            }
+        }
+        Supplier<CompletableFuture<R>> call = () -> callAndStore(key, deadline, remote, timer);
+        return singleFlight != null ? singleFlight.run(key, call) : call.get();
+    }
+
+    /**
+     * @return the cached response, null if absent or expired since more than maxStale. An expired response triggers a
+     * background refresh.
+     */
+    private R getOrRevalidate(CheckKey key, BiFunction<String, String, CompletableFuture<R>> remote, Timer timer) {
+        ResultCache.CachedResponse<R> entry = cache.getEntry(key, staleWhileRevalidate.getMaxStale());
+        if (entry == null || !cache.isExpired(entry)) {
+            return entry != null ? entry.response : null;
+        }
+        if (kind.isError(entry.response) && !kind.isTerminalError(entry.response)) {
+            // an expired transient fault is not worth serving
+            return null;
+        }
+        if (staleWhileRevalidate.tryStart(key)) {
+            CompletableFuture<CompletableFuture<R>> refresh;
+            try {
+                refresh = CompletableFuture.supplyAsync(() -> callWithRetry(key, Utils.NO_DEADLINE, remote, timer), staleWhileRevalidate.executor());
+            } catch (RejectedExecutionException e) {
+                // e.g. a saturated or shut down executor: keep serving the stale entry, a later check will try again
+                staleWhileRevalidate.onKeptStale();
+                staleWhileRevalidate.finish(key);
+                return entry.response;
+            }
+            refresh.thenCompose(Function.identity())
+                    .whenComplete((response, throwable) -> {
+                        try {
+                            if (throwable == null && (!kind.isError(response) || kind.isTerminalError(response))) {
+                                store(key, response);
+                            } else {
+                                staleWhileRevalidate.onKeptStale();
+                            }
+                        } finally {
+                            staleWhileRevalidate.finish(key);
+                        }
+                    });
+        }
+        return entry.response;
+    }
+
+    private CompletableFuture<R> callAndStore(CheckKey key, long deadline, BiFunction<String, String, CompletableFuture<R>> remote, Timer timer) {
+        CompletableFuture<R> res = callWithRetry(key, deadline, remote, timer);
+        if (cache == null && store == null) {
+            return res;
+        }
+        return res.thenApply(response -> {
+            store(key, response);
+            return response;
+        });
+    }
+
+    private CompletableFuture<R> callWithRetry(CheckKey key, long deadline, BiFunction<String, String, CompletableFuture<R>> remote, Timer timer) {
+        if (retryPolicy != null) {
+            Timer t = retryPolicy.timer(timer);
+            return attempt(key, deadline, remote, t, t.nanoTime(), 1);
+        }
+        return hedgedCall(key, deadline, remote, timer);
+    }
+
+    private void store(CheckKey key, R response) {
+        if (kind.isLocalRejection(response)) {
+            return;
+        }
+        if (cache != null) {
+            cache.put(key, response, kind);
+        }
+        if (store != null && !kind.isError(response)) {
+            try {
+                store.put(codec, key, response);
+            } catch (RuntimeException e) {
+                // the response is still good: only the warm restart loses it
+                store.onError();
+            }
+        }
+    }
+
+    /**
+     * @return the stored response, null if absent or if the store failed
+     */
+    private R storeGet(CheckKey key) {
+        try {
+            return store.get(codec, key);
+        } catch (RuntimeException e) {
+            store.onError();
+            return null;
+        }
+    }
+
+    private CompletableFuture<R> attempt(CheckKey key, long deadline, BiFunction<String, String, CompletableFuture<R>> remote, Timer timer, long start, int attempt) {
+        return hedgedCall(key, deadline, remote, timer).handle((response, throwable) -> {
+            boolean retryable = throwable != null ? retryPolicy.isRetryOnException() : retryPolicy.isRetryable(kind.faultType(response));
+            if (retryable && attempt < retryPolicy.getMaxAttempts()) {
+                long delay = retryPolicy.backoff(attempt);
+                if (timer.nanoTime() + delay - start <= retryPolicy.getDeadline() && delay < Utils.remainingNanos(deadline)) {
+                    return timer.delay(delay).thenCompose(v -> attempt(key, deadline, remote, timer, start, attempt + 1));
+                }
+            }
+            return throwable != null ? CompletableFuture.<R>failedFuture(Utils.unwrap(throwable)) : CompletableFuture.completedFuture(response);
+        }).thenCompose(Function.identity());
+    }
+
+    private CompletableFuture<R> hedgedCall(CheckKey key, long deadline, BiFunction<String, String, CompletableFuture<R>> remote, Timer timer) {
+        if (hedging == null) {
+            return call(key, deadline, remote, timer);
+        }
+        return hedging.run(() -> call(key, deadline, remote, timer), () -> hedge(key, remote),
+                response -> !kind.isError(response) || kind.isTerminalError(response));
+    }
+
+    /**
+     * @return the hedge call, null if the rate limiter has no permit available now
+     */
+    private CompletableFuture<R> hedge(CheckKey key, BiFunction<String, String, CompletableFuture<R>> remote) {
+        if (rateLimiter == null) {
+            return guardedCall(key, remote);
+        }
+        if (!rateLimiter.tryReserve(key.countryCode)) {
+            return null;
+        }
+        return withRateLimiterFeedback(key, guardedCall(key, remote));
+    }
+
+    private CompletableFuture<R> call(CheckKey key, long deadline, BiFunction<String, String, CompletableFuture<R>> remote, Timer timer) {
+        if (rateLimiter == null) {
+            return guardedCall(key, remote);
+        }
+        long wait = rateLimiter.reserve(key.countryCode, deadline);
+        if (wait == RateLimiter.DEADLINE_EXCEEDED) {
+            return CompletableFuture.completedFuture(kind.error(Utils.CLIENT_FAULT_CODE, "TIMEOUT"));
+        } else if (wait < 0) {
+            return CompletableFuture.completedFuture(kind.error(Utils.CLIENT_FAULT_CODE, "RATE_LIMITED"));
+        }
+        CompletableFuture<R> res = wait == 0 ? guardedCall(key, remote) : rateLimiter.timer(timer).delay(wait).thenCompose(v -> guardedCall(key, remote));
+        return withRateLimiterFeedback(key, res);
+    }
+
+    private CompletableFuture<R> withRateLimiterFeedback(CheckKey key, CompletableFuture<R> res) {
+        return res.whenComplete((response, throwable) -> {
+            if (response != null) {
+                rateLimiter.onResult(key.countryCode, kind.faultType(response));
+            }
+        });
+    }
+
+    private CompletableFuture<R> guardedCall(CheckKey key, BiFunction<String, String, CompletableFuture<R>> remote) {
+        if (circuitBreaker == null) {
+            return callRemote(key, remote);
+        }
+        long ticket = circuitBreaker.tryAcquire(key.countryCode);
+        if (ticket == CircuitBreaker.REJECTED) {
+            return CompletableFuture.completedFuture(kind.error(Utils.CLIENT_FAULT_CODE, "CIRCUIT_OPEN"));
+        }
+        return callRemote(key, remote).whenComplete((response, throwable) ->
+                circuitBreaker.onResult(key.countryCode, ticket, throwable != null || (kind.isError(response) && !kind.isTerminalError(response))));
+    }
+
+    private static <R> CompletableFuture<R> callRemote(CheckKey key, BiFunction<String, String, CompletableFuture<R>> remote) {
+        try {
+            return remote.apply(key.countryCode, key.number);
+        } catch (RuntimeException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+}
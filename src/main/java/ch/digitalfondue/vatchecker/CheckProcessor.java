@@ -0,0 +1,354 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * A {@link Flow.Processor} running a call for each item published upstream, with at most <code>maxConcurrency</code>
+ * calls in flight and at most <code>maxConcurrencyPerCountry</code> calls in flight for the same country, like
+ * {@link BulkDispatcher}.
+ * <p>
+ * The items are requested upstream in batches, only while less than <code>2 * maxConcurrency</code> items are held:
+ * requested and not received yet, in flight, parked because their country is saturated, or waiting for the demand of
+ * the downstream subscriber. A slow service or a slow subscriber thus slows down the upstream, nothing is queued
+ * without bound.
+ * <p>
+ * A failed call is emitted as an error response, it does not terminate the stream. The completion and the error of the
+ * upstream are forwarded once all the received items have been emitted.
+ * <p>
+ * A processor can be subscribed to a single publisher and have a single subscriber.
+ */
+final class CheckProcessor<T, R> implements Flow.Processor<T, R> {
+
+    private final int maxConcurrency;
+    private final int maxConcurrencyPerCountry;
+    private final boolean ordered;
+    private final int window;
+    private final int batch;
+    private final Function<T, String> countryCode;
+    private final Function<T, CompletableFuture<R>> call;
+    private final Function<Throwable, R> errorMapper;
+
+    // drain loop guard: only one thread starts the calls and signals downstream at a time
+    private final AtomicInteger wip = new AtomicInteger();
+
+    // guarded by this
+    private Flow.Subscription upstream;
+    private Flow.Subscriber<? super R> downstream;
+    private long demand;
+    // requested upstream and not emitted yet
+    private int held;
+    private final ArrayDeque<Item> received = new ArrayDeque<>();
+    private final Map<String, ArrayDeque<Item>> parked = new LinkedHashMap<>();
+    private final Map<String, Integer> inFlightPerCountry = new HashMap<>();
+    private int inFlight;
+    private int parkedCount;
+    // completed items in emission order; when ordered, all the items in input order, completed or not
+    private final ArrayDeque<Item> results = new ArrayDeque<>();
+    private boolean upstreamDone;
+    private Throwable upstreamError;
+    private Throwable subscriptionError;
+    private boolean cancelled;
+    private boolean terminated;
+
+    private final class Item {
+        final T value;
+        final String country;
+        R result;
+        boolean completed;
+
+        Item(T value, String country) {
+            this.value = value;
+            this.country = country;
+        }
+    }
+
+    CheckProcessor(int maxConcurrency,
+                   int maxConcurrencyPerCountry,
+                   boolean ordered,
+                   Function<T, String> countryCode,
+                   Function<T, CompletableFuture<R>> call,
+                   Function<Throwable, R> errorMapper) {
+        if (maxConcurrency < 1 || maxConcurrencyPerCountry < 1) {
+            throw new IllegalArgumentException("maxConcurrency and maxConcurrencyPerCountry must be at least 1");
+        }
+        this.maxConcurrency = maxConcurrency;
+        this.maxConcurrencyPerCountry = maxConcurrencyPerCountry;
+        this.ordered = ordered;
+        this.window = (int) Math.min(Integer.MAX_VALUE, 2L * maxConcurrency);
+        this.batch = Math.max(1, maxConcurrency / 2);
+        this.countryCode = countryCode;
+        this.call = call;
+        this.errorMapper = errorMapper;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super R> subscriber) {
+        Objects.requireNonNull(subscriber, "subscriber cannot be null");
+        boolean accepted;
+        synchronized (this) {
+            accepted = downstream == null;
+            if (accepted) {
+                downstream = subscriber;
+            }
+        }
+        if (!accepted) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    // nothing to emit
+                }
+
+                @Override
+                public void cancel() {
+                    // nothing to cancel
+                }
+            });
+            subscriber.onError(new IllegalStateException("A processor can have a single subscriber"));
+            return;
+        }
+        subscriber.onSubscribe(new Flow.Subscription() {
+            @Override
+            public void request(long n) {
+                synchronized (CheckProcessor.this) {
+                    if (n <= 0) {
+                        // rule 3.9
+                        subscriptionError = subscriptionError == null ? new IllegalArgumentException("non-positive request: " + n) : subscriptionError;
+                    } else {
+                        demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                    }
+                }
+                drain();
+            }
+
+            @Override
+            public void cancel() {
+                Flow.Subscription s;
+                synchronized (CheckProcessor.this) {
+                    cancelled = true;
+                    s = upstream;
+                }
+                if (s != null) {
+                    s.cancel();
+                }
+            }
+        });
+        drain();
+    }
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        Objects.requireNonNull(subscription, "subscription cannot be null");
+        boolean accepted;
+        synchronized (this) {
+            accepted = upstream == null && !cancelled;
+            if (accepted) {
+                upstream = subscription;
+            }
+        }
+        if (!accepted) {
+            subscription.cancel();
+            return;
+        }
+        drain();
+    }
+
+    @Override
+    public void onNext(T item) {
+        Objects.requireNonNull(item, "item cannot be null");
+        synchronized (this) {
+            if (upstreamDone || cancelled) {
+                return;
+            }
+            Item i = new Item(item, countryCode.apply(item));
+            received.add(i);
+            if (ordered) {
+                results.add(i);
+            }
+        }
+        drain();
+    }
+
+    @Override
+    public void onError(Throwable throwable) {
+        Objects.requireNonNull(throwable, "throwable cannot be null");
+        synchronized (this) {
+            upstreamDone = true;
+            upstreamError = throwable;
+        }
+        drain();
+    }
+
+    @Override
+    public void onComplete() {
+        synchronized (this) {
+            upstreamDone = true;
+        }
+        drain();
+    }
+
+    private void drain() {
+        if (wip.getAndIncrement() != 0) {
+            return;
+        }
+        do {
+            List<Item> toStart;
+            List<R> toEmit;
+            Flow.Subscriber<? super R> subscriber;
+            Flow.Subscription subscription;
+            long toRequest = 0;
+            Throwable error = null;
+            boolean complete = false;
+            boolean cancelUpstream = false;
+            synchronized (this) {
+                subscriber = downstream;
+                subscription = upstream;
+                if (terminated || cancelled || subscriber == null) {
+                    continue;
+                }
+                if (subscriptionError != null) {
+                    terminated = true;
+                    cancelled = true;
+                    cancelUpstream = true;
+                    error = subscriptionError;
+                    toStart = Collections.emptyList();
+                    toEmit = Collections.emptyList();
+                } else {
+                    toStart = nextBatch();
+                    toEmit = new ArrayList<>();
+                    while (demand > 0 && !results.isEmpty() && results.peek().completed) {
+                        toEmit.add(results.poll().result);
+                        demand--;
+                        held--;
+                    }
+                    if (!upstreamDone && subscription != null && window - held >= Math.min(batch, window)) {
+                        toRequest = window - held;
+                        held = window;
+                    }
+                    if (upstreamDone && received.isEmpty() && parkedCount == 0 && inFlight == 0 && results.isEmpty()) {
+                        terminated = true;
+                        error = upstreamError;
+                        complete = error == null;
+                    }
+                }
+            }
+            if (cancelUpstream && subscription != null) {
+                subscription.cancel();
+            }
+            for (Item item : toStart) {
+                start(item);
+            }
+            try {
+                for (R r : toEmit) {
+                    subscriber.onNext(r);
+                }
+            } catch (RuntimeException e) {
+                // rule 2.13 violated by the subscriber: the subscription is considered cancelled
+                synchronized (this) {
+                    terminated = true;
+                    cancelled = true;
+                }
+                if (subscription != null) {
+                    subscription.cancel();
+                }
+                continue;
+            }
+            if (toRequest > 0) {
+                subscription.request(toRequest);
+            }
+            if (error != null) {
+                subscriber.onError(error);
+            } else if (complete) {
+                subscriber.onComplete();
+            }
+        } while (wip.decrementAndGet() != 0);
+    }
+
+    // first the parked items whose country has some capacity again, then the received ones
+    private List<Item> nextBatch() {
+        List<Item> toStart = new ArrayList<>();
+        for (Iterator<Map.Entry<String, ArrayDeque<Item>>> it = parked.entrySet().iterator(); it.hasNext() && inFlight < maxConcurrency; ) {
+            Map.Entry<String, ArrayDeque<Item>> e = it.next();
+            ArrayDeque<Item> queue = e.getValue();
+            while (!queue.isEmpty() && inFlight < maxConcurrency && acquire(e.getKey())) {
+                toStart.add(queue.poll());
+                parkedCount--;
+            }
+            if (queue.isEmpty()) {
+                it.remove();
+            }
+        }
+        while (!received.isEmpty() && inFlight < maxConcurrency) {
+            Item item = received.poll();
+            if (acquire(item.country)) {
+                toStart.add(item);
+            } else {
+                parked.computeIfAbsent(item.country, k -> new ArrayDeque<>()).add(item);
+                parkedCount++;
+            }
+        }
+        return toStart;
+    }
+
+    private boolean acquire(String country) {
+        int count = inFlightPerCountry.getOrDefault(country, 0);
+        if (count >= maxConcurrencyPerCountry) {
+            return false;
+        }
+        inFlightPerCountry.put(country, count + 1);
+        inFlight++;
+        return true;
+    }
+
+    private void start(Item item) {
+        CompletableFuture<R> res;
+        try {
+            res = call.apply(item.value);
+        } catch (RuntimeException e) {
+            res = CompletableFuture.failedFuture(e);
+        }
+        res.whenComplete((r, t) -> {
+            R result;
+            try {
+                result = t == null ? r : errorMapper.apply(t);
+            } catch (RuntimeException e) {
+                result = errorMapper.apply(e);
+            }
+            completed(item, result);
+            drain();
+        });
+    }
+
+    private synchronized void completed(Item item, R result) {
+        item.result = result;
+        item.completed = true;
+        if (!ordered) {
+            results.add(item);
+        }
+        inFlight--;
+        int count = inFlightPerCountry.get(item.country) - 1;
+        if (count == 0) {
+            inFlightPerCountry.remove(item.country);
+        } else {
+            inFlightPerCountry.put(item.country, count);
+        }
+    }
+}
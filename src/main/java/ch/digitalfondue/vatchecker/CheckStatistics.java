@@ -0,0 +1,147 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link CheckListener} aggregating the calls: a {@link LatencyHistogram} for each phase, the number of calls by
+ * country code and by fault type, and the transferred bytes.
+ * <p>
+ * It can be shared between multiple checkers, and read while the calls are running.
+ */
+public final class CheckStatistics implements CheckListener {
+
+    public enum Phase {
+        SERIALIZE,
+        CONNECT,
+        FIRST_BYTE,
+        FETCH,
+        PARSE,
+        EXTRACT,
+        TOTAL
+    }
+
+    private final EnumMap<Phase, LatencyHistogram> latencies = new EnumMap<>(Phase.class);
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+    private final LongAdder requestBytes = new LongAdder();
+    private final LongAdder responseBytes = new LongAdder();
+    private final ConcurrentHashMap<String, LongAdder> callsByCountry = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, LongAdder> faults = new ConcurrentHashMap<>();
+
+    public CheckStatistics() {
+        for (Phase phase : Phase.values()) {
+            latencies.put(phase, new LatencyHistogram());
+        }
+    }
+
+    @Override
+    public void onCall(CallMetrics metrics) {
+        calls.increment();
+        record(Phase.SERIALIZE, metrics.getSerializeNanos());
+        record(Phase.CONNECT, metrics.getConnectNanos());
+        record(Phase.FIRST_BYTE, metrics.getFirstByteNanos());
+        record(Phase.FETCH, metrics.getFetchNanos());
+        record(Phase.PARSE, metrics.getParseNanos());
+        record(Phase.EXTRACT, metrics.getExtractNanos());
+        record(Phase.TOTAL, metrics.getTotalNanos());
+        requestBytes.add(metrics.getRequestBytes());
+        if (metrics.getResponseBytes() > 0) {
+            responseBytes.add(metrics.getResponseBytes());
+        }
+        increment(callsByCountry, metrics.getCountryCode());
+        if (metrics.getFailure() != null) {
+            failures.increment();
+        } else if (metrics.getFaultType() != null) {
+            increment(faults, metrics.getFaultType());
+        }
+    }
+
+    private void record(Phase phase, long nanos) {
+        if (nanos >= 0) {
+            latencies.get(phase).record(nanos);
+        }
+    }
+
+    private static void increment(ConcurrentHashMap<String, LongAdder> counters, String key) {
+        LongAdder counter = counters.get(key);
+        if (counter == null) {
+            counter = counters.computeIfAbsent(key, k -> new LongAdder());
+        }
+        counter.increment();
+    }
+
+    private static Map<String, Long> toMap(ConcurrentHashMap<String, LongAdder> counters) {
+        Map<String, Long> res = new TreeMap<>();
+        counters.forEach((k, v) -> res.put(k, v.sum()));
+        return res;
+    }
+
+    /**
+     * @param phase the phase
+     * @return the latencies of the given phase, in nanoseconds. The phases not measured for a call are not recorded.
+     */
+    public LatencyHistogram.Snapshot getLatency(Phase phase) {
+        return latencies.get(phase).snapshot();
+    }
+
+    /**
+     * @return the number of calls
+     */
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    /**
+     * @return the number of calls that failed with an exception
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return the number of calls by country code
+     */
+    public Map<String, Long> getCallsByCountry() {
+        return toMap(callsByCountry);
+    }
+
+    /**
+     * @return the number of error responses by fault type
+     */
+    public Map<String, Long> getFaults() {
+        return toMap(faults);
+    }
+
+    /**
+     * @return the total size of the request bodies, in bytes
+     */
+    public long getRequestBytes() {
+        return requestBytes.sum();
+    }
+
+    /**
+     * @return the total size of the response bodies, in bytes
+     */
+    public long getResponseBytes() {
+        return responseBytes.sum();
+    }
+}
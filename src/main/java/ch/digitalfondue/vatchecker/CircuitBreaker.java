@@ -0,0 +1,211 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * A circuit breaker per country code, see {@link EUVatChecker#withCircuitBreaker(CircuitBreaker)}.
+ * <p>
+ * For each country, the outcome of the last <code>windowSize</code> calls is recorded. A failure is an exception or
+ * an error response other than a fault about the input (INVALID_INPUT, NO_INFORMATION). When at least
+ * <code>minimumCalls</code> have been recorded and the failure rate reaches <code>failureRateThreshold</code>, the
+ * circuit of that country opens: the checks fail immediately with a fault of type CIRCUIT_OPEN, without calling the
+ * service. After <code>openDuration</code>, <code>halfOpenProbes</code> calls are let through: if they all succeed the
+ * circuit closes, otherwise it opens again.
+ * <p>
+ * Use a different instance for {@link EUVatChecker} and {@link EUTinChecker}, as they are different services.
+ */
+public final class CircuitBreaker {
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    /**
+     * The ticket of a call refused by {@link #tryAcquire(String)}.
+     */
+    static final long REJECTED = -1;
+
+    /**
+     * The ticket of a call that is not a half-open probe. The tickets of the probes are the (positive) generation of
+     * the half-open state that let them through.
+     */
+    static final long CALL = 0;
+
+    private final int windowSize;
+    private final int minimumCalls;
+    private final double failureRateThreshold;
+    private final long openDuration;
+    private final int halfOpenProbes;
+    private final LongSupplier nanoTime;
+    private final ConcurrentHashMap<String, Circuit> circuits = new ConcurrentHashMap<>();
+
+    /**
+     * A circuit breaker with a window of 20 calls, opening at 50% failures after at least 10 calls, for 30 seconds,
+     * with 2 probes.
+     */
+    public CircuitBreaker() {
+        this(20, 10, 0.5, Duration.ofSeconds(30), 2);
+    }
+
+    /**
+     * @param windowSize           the number of recent calls considered for each country
+     * @param minimumCalls         the minimum number of recorded calls before the circuit can open
+     * @param failureRateThreshold the failure rate (between 0 and 1) that opens the circuit
+     * @param openDuration         how long the circuit stays open before letting probes through
+     * @param halfOpenProbes       the number of successful probes needed for closing the circuit
+     */
+    public CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, Duration openDuration, int halfOpenProbes) {
+        this(windowSize, minimumCalls, failureRateThreshold, openDuration, halfOpenProbes, System::nanoTime);
+    }
+
+    CircuitBreaker(int windowSize, int minimumCalls, double failureRateThreshold, Duration openDuration, int halfOpenProbes, LongSupplier nanoTime) {
+        if (windowSize < 1 || minimumCalls < 1 || minimumCalls > windowSize || halfOpenProbes < 1) {
+            throw new IllegalArgumentException("windowSize, minimumCalls and halfOpenProbes must be at least 1, minimumCalls must not exceed windowSize");
+        }
+        if (failureRateThreshold <= 0.0 || failureRateThreshold > 1.0) {
+            throw new IllegalArgumentException("failureRateThreshold must be in ]0, 1]");
+        }
+        this.windowSize = windowSize;
+        this.minimumCalls = minimumCalls;
+        this.failureRateThreshold = failureRateThreshold;
+        this.openDuration = Objects.requireNonNull(openDuration, "openDuration cannot be null").toNanos();
+        this.halfOpenProbes = halfOpenProbes;
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * @param countryCode the country code
+     * @return the state of the circuit for the given country
+     */
+    public State getState(String countryCode) {
+        Circuit circuit = circuits.get(CheckKey.countryCode(countryCode));
+        return circuit == null ? State.CLOSED : circuit.state(nanoTime.getAsLong());
+    }
+
+    /**
+     * @return the state of all the circuits that have recorded at least a call, by country code
+     */
+    public Map<String, State> getStates() {
+        long now = nanoTime.getAsLong();
+        Map<String, State> res = new TreeMap<>();
+        circuits.forEach((countryCode, circuit) -> res.put(countryCode, circuit.state(now)));
+        return res;
+    }
+
+    /**
+     * @param countryCode the normalized country code
+     * @return {@link #REJECTED} if the call cannot be done, otherwise the ticket to pass to
+     * {@link #onResult(String, long, boolean)} once the call is completed
+     */
+    long tryAcquire(String countryCode) {
+        return circuits.computeIfAbsent(countryCode, k -> new Circuit()).tryAcquire(nanoTime.getAsLong());
+    }
+
+    void onResult(String countryCode, long ticket, boolean failure) {
+        circuits.get(countryCode).onResult(ticket, failure, nanoTime.getAsLong());
+    }
+
+    private final class Circuit {
+
+        // guarded by this
+        private final boolean[] outcomes = new boolean[windowSize];
+        private int recorded;
+        private int next;
+        private int failures;
+        private State state = State.CLOSED;
+        private long openedAt;
+        // incremented each time the circuit becomes half-open, identifies its probes
+        private long generation;
+        private int probesInFlight;
+        private int probesSucceeded;
+
+        synchronized State state(long now) {
+            return state == State.OPEN && now - openedAt >= openDuration ? State.HALF_OPEN : state;
+        }
+
+        synchronized long tryAcquire(long now) {
+            if (state == State.OPEN) {
+                if (now - openedAt < openDuration) {
+                    return REJECTED;
+                }
+                state = State.HALF_OPEN;
+                generation++;
+                probesInFlight = 0;
+                probesSucceeded = 0;
+            }
+            if (state == State.HALF_OPEN) {
+                if (probesInFlight + probesSucceeded >= halfOpenProbes) {
+                    return REJECTED;
+                }
+                probesInFlight++;
+                return generation;
+            }
+            return CALL;
+        }
+
+        synchronized void onResult(long ticket, boolean failure, long now) {
+            if (ticket != CALL) {
+                if (state == State.HALF_OPEN && ticket == generation) {
+                    probesInFlight--;
+                    if (failure) {
+                        open(now);
+                    } else if (++probesSucceeded >= halfOpenProbes) {
+                        close();
+                    }
+                }
+                // otherwise a probe of a previous half-open state
+                return;
+            }
+            if (state != State.CLOSED) {
+                // a call started before the circuit opened
+                return;
+            }
+            if (recorded == windowSize && outcomes[next]) {
+                failures--;
+            }
+            outcomes[next] = failure;
+            next = (next + 1) % windowSize;
+            recorded = Math.min(windowSize, recorded + 1);
+            if (failure) {
+                failures++;
+            }
+            if (recorded >= minimumCalls && failures >= failureRateThreshold * recorded) {
+                open(now);
+            }
+        }
+
+        private void open(long now) {
+            state = State.OPEN;
+            openedAt = now;
+        }
+
+        private void close() {
+            state = State.CLOSED;
+            recorded = 0;
+            next = 0;
+            failures = 0;
+        }
+    }
+}
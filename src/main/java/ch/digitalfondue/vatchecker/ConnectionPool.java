@@ -0,0 +1,286 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A bounded pool of persistent HTTP/1.1 connections, used by the blocking default fetcher, see
+ * {@link FetcherConfig#withConnectionPool(ConnectionPool)}. By default, all the checkers share {@link #shared()}.
+ * <p>
+ * At most <code>maxConnectionsPerRoute</code> connections, in use or idle, are open to the same host and port (and
+ * proxy): when they are all in use, a call waits for one to be released, until its deadline or at most the read
+ * timeout, as a slow response would. The idle connections are closed after <code>idleTimeout</code>, or earlier if the server announced a
+ * shorter keep alive timeout. They are evicted when the pool is used, there's no background thread.
+ * <p>
+ * A call failing on a reused connection before receiving any response (the server closed it while idle) is retried
+ * once on a new connection.
+ * <p>
+ * The async fetcher is based on {@link java.net.http.HttpClient}, which has its own pool.
+ */
+public final class ConnectionPool {
+
+    // margin for not reusing a connection the server is about to close
+    private static final long KEEP_ALIVE_MARGIN = TimeUnit.MILLISECONDS.toNanos(500);
+
+    private static final ConnectionPool SHARED = new ConnectionPool(20, Duration.ofSeconds(30));
+
+    private final int maxConnectionsPerRoute;
+    private final long idleTimeout;
+    private final Timer timer;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+    private final Map<HttpConnection.Route, RouteConnections> routes = new HashMap<>();
+
+    private final LongAdder handshakes = new LongAdder();
+    private final LongAdder leases = new LongAdder();
+    private final LongAdder reused = new LongAdder();
+
+    private static final class RouteConnections {
+        // the most recently used first
+        final ArrayDeque<HttpConnection> idle = new ArrayDeque<>();
+        int leased;
+    }
+
+    /**
+     * @param maxConnectionsPerRoute the maximum number of connections to the same host
+     * @param idleTimeout            the time after which an unused connection is closed
+     */
+    public ConnectionPool(int maxConnectionsPerRoute, Duration idleTimeout) {
+        this(maxConnectionsPerRoute, idleTimeout, Timer.SLEEPING);
+    }
+
+    ConnectionPool(int maxConnectionsPerRoute, Duration idleTimeout, Timer timer) {
+        if (maxConnectionsPerRoute < 1) {
+            throw new IllegalArgumentException("maxConnectionsPerRoute must be at least 1");
+        }
+        Objects.requireNonNull(idleTimeout, "idleTimeout cannot be null");
+        if (idleTimeout.isNegative()) {
+            throw new IllegalArgumentException("idleTimeout cannot be negative");
+        }
+        this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+        this.idleTimeout = idleTimeout.toNanos();
+        this.timer = timer;
+    }
+
+    /**
+     * @return the pool of {@link FetcherConfig#defaultConfig()}: 20 connections per host, closed after 30 seconds idle.
+     * More concurrent blocking checks to the same service wait for a connection: use a dedicated pool for a higher
+     * limit, see {@link FetcherConfig#withConnectionPool(ConnectionPool)}
+     */
+    public static ConnectionPool shared() {
+        return SHARED;
+    }
+
+    /**
+     * Take an idle connection to the route, or open a new one if the limit allows it, otherwise wait for one.
+     *
+     * @param maxWaitNanos the maximum wait for a connection to be released
+     * @param deadline     an absolute {@link System#nanoTime()} value bounding the wait, or {@link Utils#NO_DEADLINE}
+     */
+    HttpConnection lease(HttpConnection.Route route, int connectTimeoutMillis, long maxWaitNanos, long deadline) throws IOException {
+        long waitUntil = System.nanoTime() + maxWaitNanos;
+        if (deadline != Utils.NO_DEADLINE && deadline - waitUntil < 0) {
+            waitUntil = deadline;
+        }
+        List<HttpConnection> expired = new ArrayList<>();
+        HttpConnection connection = null;
+        lock.lock();
+        try {
+            RouteConnections connections = routes.computeIfAbsent(route, k -> new RouteConnections());
+            while (true) {
+                evictExpired(connections, expired);
+                connection = connections.idle.pollFirst();
+                if (connection != null || connections.leased + connections.idle.size() < maxConnectionsPerRoute) {
+                    connections.leased++;
+                    break;
+                }
+                long remaining = waitUntil - System.nanoTime();
+                if (remaining <= 0) {
+                    throw new SocketTimeoutException("No connection available to " + route + " within the timeout");
+                }
+                try {
+                    released.awaitNanos(remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for a connection", e);
+                }
+            }
+        } finally {
+            lock.unlock();
+            expired.forEach(HttpConnection::close);
+        }
+        leases.increment();
+        if (connection != null) {
+            reused.increment();
+            connection.reused = true;
+            return connection;
+        }
+        // the slot is reserved, connecting is done outside the lock
+        try {
+            connection = HttpConnection.open(route, connectTimeoutMillis);
+        } catch (IOException | RuntimeException e) {
+            release(route, null);
+            throw e;
+        }
+        handshakes.increment();
+        return connection;
+    }
+
+    /**
+     * Give back a leased connection: it's kept idle if it can be reused, closed otherwise.
+     */
+    void release(HttpConnection connection, boolean reusable) {
+        boolean keep = reusable && connection.isReusable() && idleTimeout > 0;
+        if (keep) {
+            connection.idleSince = timer.nanoTime();
+        }
+        release(connection.route, keep ? connection : null);
+        if (!keep) {
+            connection.close();
+        }
+    }
+
+    private void release(HttpConnection.Route route, HttpConnection idle) {
+        lock.lock();
+        try {
+            RouteConnections connections = routes.get(route);
+            connections.leased--;
+            if (idle != null) {
+                connections.idle.addFirst(idle);
+            }
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Close the idle connections to the route, e.g. when one of them was found closed by the server.
+     */
+    void evictIdle(HttpConnection.Route route) {
+        List<HttpConnection> evicted;
+        lock.lock();
+        try {
+            RouteConnections connections = routes.get(route);
+            if (connections == null) {
+                return;
+            }
+            evicted = new ArrayList<>(connections.idle);
+            connections.idle.clear();
+            released.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        evicted.forEach(HttpConnection::close);
+    }
+
+    // the oldest connections are at the end
+    private void evictExpired(RouteConnections connections, List<HttpConnection> expired) {
+        long now = timer.nanoTime();
+        Iterator<HttpConnection> it = connections.idle.descendingIterator();
+        while (it.hasNext()) {
+            HttpConnection connection = it.next();
+            long timeout = Math.min(idleTimeout, connection.keepAliveNanos - KEEP_ALIVE_MARGIN);
+            if (now - connection.idleSince < timeout) {
+                break;
+            }
+            it.remove();
+            expired.add(connection);
+        }
+        if (!expired.isEmpty()) {
+            released.signalAll();
+        }
+    }
+
+    /**
+     * @return the maximum number of connections to the same host
+     */
+    public int getMaxConnectionsPerRoute() {
+        return maxConnectionsPerRoute;
+    }
+
+    /**
+     * @return the number of connections in use
+     */
+    public int getActive() {
+        lock.lock();
+        try {
+            int active = 0;
+            for (RouteConnections connections : routes.values()) {
+                active += connections.leased;
+            }
+            return active;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of idle connections, after having closed the expired ones
+     */
+    public int getIdle() {
+        List<HttpConnection> expired = new ArrayList<>();
+        lock.lock();
+        try {
+            int idle = 0;
+            for (RouteConnections connections : routes.values()) {
+                evictExpired(connections, expired);
+                idle += connections.idle.size();
+            }
+            return idle;
+        } finally {
+            lock.unlock();
+            expired.forEach(HttpConnection::close);
+        }
+    }
+
+    /**
+     * @return the number of connections opened, each with a TLS handshake for https
+     */
+    public long getHandshakes() {
+        return handshakes.sum();
+    }
+
+    /**
+     * @return the number of requests sent on an already open connection
+     */
+    public long getReused() {
+        return reused.sum();
+    }
+
+    /**
+     * @return the share of the requests sent on an already open connection, between 0 and 1
+     */
+    public double getReuseRatio() {
+        long total = leases.sum();
+        return total == 0 ? 0 : (double) reused.sum() / total;
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.function.BiFunction;
+
+/**
+ * A document fetcher that can enforce a deadline on the call and report its timings, implemented by the default
+ * fetchers. The custom fetchers are called as plain {@link BiFunction}.
+ */
+@FunctionalInterface
+interface DeadlineAwareFetcher<T> extends BiFunction<String, String, T> {
+
+    /**
+     * @param deadline an absolute {@link System#nanoTime()} value, or {@link Utils#NO_DEADLINE}
+     * @param metrics  where to report the connect and first byte timings and the response size, null if not needed
+     */
+    T apply(String endpointUrl, String document, long deadline, CallMetrics metrics);
+
+    default T apply(String endpointUrl, String document, long deadline) {
+        return apply(endpointUrl, document, deadline, null);
+    }
+
+    @Override
+    default T apply(String endpointUrl, String document) {
+        return apply(endpointUrl, document, Utils.NO_DEADLINE, null);
+    }
+}
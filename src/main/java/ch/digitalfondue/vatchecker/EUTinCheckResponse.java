@@ -57,6 +57,18 @@ public class EUTinCheckResponse {
         NO_INFORMATION,
         SERVICE_UNAVAILABLE,
         SERVER_BUSY,
+        /**
+         * Not returned by the service: the call did not complete in time, see {@link FetcherConfig}.
+         */
+        TIMEOUT,
+        /**
+         * Not returned by the service: the call has not been done as no permit was available in time, see {@link RateLimiter}.
+         */
+        RATE_LIMITED,
+        /**
+         * Not returned by the service: the call has not been done as the circuit of the country is open, see {@link CircuitBreaker}.
+         */
+        CIRCUIT_OPEN,
         OTHER
     }
 }
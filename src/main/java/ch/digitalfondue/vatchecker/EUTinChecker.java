@@ -15,62 +15,252 @@
  */
 package ch.digitalfondue.vatchecker;
 
-import org.w3c.dom.Document;
-
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringReader;
-import java.util.HashMap;
-import java.util.Map;
+import java.time.Duration;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiFunction;
 
 /**
  * A small utility for calling the TIN webservice. See https://ec.europa.eu/taxation_customs/tin/ .
  * <p>
  * The main entry points are {@link #doCheck(String, String)} and if more customization is needed {@link #doCheck(String, String, BiFunction)}.
+ * <p>
+ * For a non blocking variant, see {@link #doCheckAsync(String, String)} and {@link #checkAsync(String, String)}.
  */
 public class EUTinChecker {
 
     private static final String ENDPOINT = "https://ec.europa.eu/taxation_customs/tin/services/checkTinService";
-    private final BiFunction<String, String, InputStream> documentFetcher;
+    static final Kind KIND = new Kind();
+
+    static final class Kind implements ResponseKind<EUTinCheckResponse>, StoreCodec<EUTinCheckResponse> {
+        @Override
+        public boolean isError(EUTinCheckResponse response) {
+            return response.isError();
+        }
+
+        @Override
+        public boolean isValid(EUTinCheckResponse response) {
+            return response.isValidSyntax() && response.isValidStructure();
+        }
+
+        @Override
+        public BaseFault<?> getFault(EUTinCheckResponse response) {
+            return response.getFault();
+        }
+
+        @Override
+        public EUTinCheckResponse error(String faultCode, String fault) {
+            return new EUTinCheckResponse(false, false, true, new EUTinCheckResponse.Fault(faultCode, fault));
+        }
+
+        @Override
+        public CheckKey key(String countryCode, String number) {
+            return CheckKey.tin(countryCode, number);
+        }
+
+        @Override
+        public byte storeId() {
+            return 2;
+        }
+
+        @Override
+        public void write(EUTinCheckResponse response, DataOutput out) throws IOException {
+            out.writeBoolean(response.isValidSyntax());
+            out.writeBoolean(response.isValidStructure());
+        }
 
-    private static final Document BASE_DOCUMENT_TEMPLATE;
-    private static final XPathExpression VALID_ELEMENT_MATCHER;
-    private static final XPathExpression[] VALID_EXTRACTORS;
-
-    static {
-        String soapCallTemplate = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
-                "<soapenv:Header/>" +
-                "<soapenv:Body>" +
-                "<checkTin xmlns=\"urn:ec.europa.eu:taxud:tin:services:checkTin:types\">" +
-                "<countryCode></countryCode><tinNumber></tinNumber>" +
-                "</checkTin>" +
-                "</soapenv:Body>" +
-                "</soapenv:Envelope>";
-
-        BASE_DOCUMENT_TEMPLATE = Utils.toDocument(new StringReader(soapCallTemplate));
-        XPath xPath = XPathFactory.newInstance().newXPath();
-        try {
-            VALID_ELEMENT_MATCHER = xPath.compile("//*[local-name()='checkTinResponse']");
-            VALID_EXTRACTORS = new XPathExpression[]{
-                    xPath.compile("//*[local-name()='checkTinResponse']/*[local-name()='validSyntax']"),
-                    xPath.compile("//*[local-name()='checkTinResponse']/*[local-name()='validStructure']")
-            };
-        } catch (XPathExpressionException e) {
-            throw new IllegalStateException(e);
+        @Override
+        public EUTinCheckResponse read(DataInput in) throws IOException {
+            return new EUTinCheckResponse(in.readBoolean(), in.readBoolean(), false, null);
         }
     }
 
+    private final BiFunction<String, String, InputStream> documentFetcher;
+    private final BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher;
+    private final CheckPipeline<EUTinCheckResponse> pipeline;
+    private final CheckListener listener;
+
+    private static final String OPERATION = "checkTin";
+    private static final SoapRequestTemplate REQUEST_TEMPLATE = new SoapRequestTemplate(OPERATION,
+            "urn:ec.europa.eu:taxud:tin:services:checkTin:types", "countryCode", "tinNumber");
+    private static final SoapResponseExtractor RESPONSE_EXTRACTOR = new SoapResponseExtractor("checkTinResponse", "validSyntax", "validStructure");
+
     public EUTinChecker() {
-        this(Utils::doCall);
+        this(HttpFetcher.DEFAULT.blocking(), HttpFetcher.DEFAULT.async());
     }
 
+    /**
+     * @param config the configuration of the default http fetchers, e.g. for the timeouts or a proxy
+     */
+    public EUTinChecker(FetcherConfig config) {
+        this(new HttpFetcher(Objects.requireNonNull(config, "config cannot be null")).blocking(), new HttpFetcher(config).async());
+    }
+
+    /**
+     * Note: {@link #checkAsync(String, String)} will run the given documentFetcher in a thread of its own, from the
+     * shared {@link VirtualThreads#executor()}, not in the common fork join pool. Use
+     * {@link #EUTinChecker(BiFunction, BiFunction)} for providing a non blocking variant.
+     *
+     * @param documentFetcher the function that, given the url of the web service and the body to post, return the resulting body as InputStream
+     */
     public EUTinChecker(BiFunction<String, String, InputStream> documentFetcher) {
-        this.documentFetcher = documentFetcher;
+        this(documentFetcher, Utils.toAsync(documentFetcher, VirtualThreads.executor()));
+    }
+
+    /**
+     * @param documentFetcher      the function that, given the url of the web service and the body to post, return the resulting body as InputStream
+     * @param asyncDocumentFetcher the non blocking variant of documentFetcher, used by {@link #checkAsync(String, String)}
+     */
+    public EUTinChecker(BiFunction<String, String, InputStream> documentFetcher, BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher) {
+        this(documentFetcher, asyncDocumentFetcher, new CheckPipeline<>(KIND, KIND), null);
+    }
+
+    private EUTinChecker(BiFunction<String, String, InputStream> documentFetcher, BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher, CheckPipeline<EUTinCheckResponse> pipeline, CheckListener listener) {
+        this.documentFetcher = Objects.requireNonNull(documentFetcher, "documentFetcher cannot be null");
+        this.asyncDocumentFetcher = Objects.requireNonNull(asyncDocumentFetcher, "asyncDocumentFetcher cannot be null");
+        this.pipeline = pipeline;
+        this.listener = listener;
+    }
+
+    /**
+     * Return a copy of this checker that first look in the given cache, and store the responses in it.
+     * <p>
+     * The cache can be shared between multiple checkers.
+     *
+     * @param cache the cache
+     * @return a new checker instance
+     */
+    public EUTinChecker withCache(ResultCache<EUTinCheckResponse> cache) {
+        return new EUTinChecker(documentFetcher, asyncDocumentFetcher, pipeline.withCache(Objects.requireNonNull(cache, "cache cannot be null")), listener);
+    }
+
+    /**
+     * Return a copy of this checker that serves the recently expired results of the cache immediately, while refreshing
+     * them in the background. See {@link StaleWhileRevalidate}.
+     * <p>
+     * Only effective with {@link #withCache(ResultCache)}.
+     *
+     * @param staleWhileRevalidate the configuration
+     * @return a new checker instance
+     */
+    public EUTinChecker withStaleWhileRevalidate(StaleWhileRevalidate staleWhileRevalidate) {
+        return new EUTinChecker(documentFetcher, asyncDocumentFetcher, pipeline.withStaleWhileRevalidate(Objects.requireNonNull(staleWhileRevalidate, "staleWhileRevalidate cannot be null")), listener);
+    }
+
+    /**
+     * Return a copy of this checker that looks in the given persistent store after the cache, and writes the results
+     * in it: the known numbers survive a restart. See {@link ResultStore}.
+     *
+     * @param store the store
+     * @return a new checker instance
+     */
+    public EUTinChecker withStore(ResultStore store) {
+        return new EUTinChecker(documentFetcher, asyncDocumentFetcher, pipeline.withStore(Objects.requireNonNull(store, "store cannot be null")), listener);
+    }
+
+    /**
+     * Return a copy of this checker where concurrent checks of the same number are coalesced: only one call is in
+     * flight for a given country code and number, and all the callers receive its response.
+     * <p>
+     * Cancelling the future returned by {@link #checkAsync(String, String)} only detaches the caller, the shared call
+     * is not cancelled.
+     *
+     * @return a new checker instance
+     */
+    public EUTinChecker withRequestCoalescing() {
+        return new EUTinChecker(documentFetcher, asyncDocumentFetcher, pipeline.withRequestCoalescing(), listener);
+    }
+
+    /**
+     * Return a copy of this checker that retries the checks failing with a transient fault, see {@link RetryPolicy}.
+     * <p>
+     * With {@link #checkAsync(String, String)} no thread is blocked while waiting for the next attempt, with
+     * {@link #check(String, String)} the calling thread sleeps.
+     *
+     * @param retryPolicy the policy
+     * @return a new checker instance
+     */
+    public EUTinChecker withRetry(RetryPolicy retryPolicy) {
+        return new EUTinChecker(documentFetcher, asyncDocumentFetcher, pipeline.withRetry(Objects.requireNonNull(retryPolicy, "retryPolicy cannot be null")), listener);
+    }
+
+    /**
+     * Return a copy of this checker where the slow calls of {@link #checkAsync(String, String)} are hedged: a second
+     * identical call is sent after a delay learned from the recent latencies, and the first response wins. See
+     * {@link Hedging}.
+     * <p>
+     * When combined with {@link #withRetry(RetryPolicy)}, each attempt can be hedged. The hedges take a permit of the
+     * rate limiter, if any, only when it's available immediately.
+     *
+     * @param hedging the hedging configuration
+     * @return a new checker instance
+     */
+    public EUTinChecker withHedging(Hedging hedging) {
+        return new EUTinChecker(documentFetcher, asyncDocumentFetcher, pipeline.withHedging(Objects.requireNonNull(hedging, "hedging cannot be null")), listener);
+    }
+
+    /**
+     * Return a copy of this checker where the calls are throttled by the given rate limiter, for staying within the
+     * quotas of the service. See {@link RateLimiter}.
+     * <p>
+     * When combined with {@link #withRetry(RetryPolicy)}, each attempt takes a permit.
+     *
+     * @param rateLimiter the rate limiter
+     * @return a new checker instance
+     */
+    public EUTinChecker withRateLimiter(RateLimiter rateLimiter) {
+        return new EUTinChecker(documentFetcher, asyncDocumentFetcher, pipeline.withRateLimiter(Objects.requireNonNull(rateLimiter, "rateLimiter cannot be null")), listener);
+    }
+
+    /**
+     * Return a copy of this checker where the calls go through the given per country circuit breaker: when a
+     * country fails too often, its checks fail immediately with a fault of type CIRCUIT_OPEN. See {@link CircuitBreaker}.
+     * <p>
+     * When combined with {@link #withRetry(RetryPolicy)}, each attempt goes through the circuit breaker.
+     *
+     * @param circuitBreaker the circuit breaker
+     * @return a new checker instance
+     */
+    public EUTinChecker withCircuitBreaker(CircuitBreaker circuitBreaker) {
+        return new EUTinChecker(documentFetcher, asyncDocumentFetcher, pipeline.withCircuitBreaker(Objects.requireNonNull(circuitBreaker, "circuitBreaker cannot be null")), listener);
+    }
+
+    /**
+     * Return a copy of this checker where the asynchronous checks run the blocking fetcher in a thread of their own:
+     * a virtual thread on Java 21 and later, a platform thread otherwise. See {@link VirtualThreads}.
+     * <p>
+     * This is useful for checking many numbers concurrently with a blocking (e.g. custom) fetcher, without sizing a
+     * thread pool: a call waiting for the service costs only a virtual thread.
+     *
+     * @return a new checker instance
+     */
+    public EUTinChecker withVirtualThreads() {
+        return new EUTinChecker(documentFetcher, Utils.toAsync(documentFetcher, VirtualThreads.executor()), pipeline, listener);
+    }
+
+    /**
+     * Return a copy of this checker reporting the timings, sizes and outcome of each call to the service to the given
+     * listener, in addition to the already registered ones. See {@link CheckListener} and {@link CheckStatistics}.
+     * <p>
+     * Without listener, nothing is measured.
+     *
+     * @param listener the listener
+     * @return a new checker instance
+     */
+    public EUTinChecker withListener(CheckListener listener) {
+        Objects.requireNonNull(listener, "listener cannot be null");
+        CheckListener current = this.listener;
+        CheckListener combined = current == null ? listener : metrics -> {
+            Utils.notify(current, metrics);
+            Utils.notify(listener, metrics);
+        };
+        return new EUTinChecker(documentFetcher, asyncDocumentFetcher, pipeline, combined);
     }
 
     /**
@@ -81,7 +271,81 @@ public class EUTinChecker {
      * @return the response, see {@link EUTinCheckResponse}
      */
     public EUTinCheckResponse check(String countryCode, String tinNr) {
-        return doCheck(countryCode, tinNr, this.documentFetcher);
+        if (pipeline.isEmpty()) {
+            return doCheck(countryCode, tinNr, this.documentFetcher, listener);
+        }
+        return pipeline.runBlocking(countryCode, tinNr, (c, n) -> doCheck(c, n, this.documentFetcher, listener));
+    }
+
+    /**
+     * See {@link #doCheckAsync(String, String)}.
+     *
+     * @param countryCode 2 character ISO country code. Note: Greece is EL, not GR.
+     * @param tinNr       TIN number
+     * @return the future response, see {@link EUTinCheckResponse}
+     */
+    public CompletableFuture<EUTinCheckResponse> checkAsync(String countryCode, String tinNr) {
+        return pipeline.run(countryCode, tinNr, (c, n) -> doCheckAsync(c, n, this.asyncDocumentFetcher, listener));
+    }
+
+    /**
+     * See {@link #check(String, String)}, bounded by the given deadline: when it expires, the response is an error
+     * with a fault of type TIMEOUT. The deadline covers the whole check, including the retries.
+     * <p>
+     * Note: the deadline is enforced on the network call only by the default document fetchers, a custom blocking
+     * fetcher is called as is.
+     *
+     * @param countryCode 2 character ISO country code. Note: Greece is EL, not GR.
+     * @param tinNr       TIN number
+     * @param deadline    the maximum duration of the check
+     * @return the response, see {@link EUTinCheckResponse}
+     */
+    public EUTinCheckResponse check(String countryCode, String tinNr, Duration deadline) {
+        long d = Utils.deadlineAfter(Objects.requireNonNull(deadline, "deadline cannot be null"));
+        BiFunction<String, String, InputStream> fetcher = Utils.withDeadline(this.documentFetcher, d);
+        return pipeline.runBlocking(countryCode, tinNr, d, (c, n) -> doCheck(c, n, fetcher, listener));
+    }
+
+    /**
+     * See {@link #checkAsync(String, String)}, bounded by the given deadline: when it expires, the future is completed
+     * with an error response with a fault of type TIMEOUT. The deadline covers the whole check, including the retries.
+     *
+     * @param countryCode 2 character ISO country code. Note: Greece is EL, not GR.
+     * @param tinNr       TIN number
+     * @param deadline    the maximum duration of the check
+     * @return the future response, see {@link EUTinCheckResponse}
+     */
+    public CompletableFuture<EUTinCheckResponse> checkAsync(String countryCode, String tinNr, Duration deadline) {
+        long d = Utils.deadlineAfter(Objects.requireNonNull(deadline, "deadline cannot be null"));
+        BiFunction<String, String, CompletableFuture<InputStream>> fetcher = Utils.withDeadlineAsync(this.asyncDocumentFetcher, d);
+        // a coalesced call may have been started by a caller with a later deadline
+        return pipeline.run(countryCode, tinNr, d, (c, n) -> doCheckAsync(c, n, fetcher, listener))
+                .completeOnTimeout(KIND.error(Utils.CLIENT_FAULT_CODE, "TIMEOUT"), Math.max(0, Utils.remainingNanos(d)), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Return a {@link Flow.Processor} checking each TIN published upstream with {@link #checkAsync(String, String)}.
+     * <p>
+     * At most <code>maxConcurrency</code> calls are in flight, and <code>maxConcurrencyPerCountry</code> for a given
+     * country code. The TINs are requested upstream in batches, only while less than <code>2 * maxConcurrency</code>
+     * of them are being held (in flight, or checked and waiting for the demand of the subscriber).
+     * <p>
+     * A failed check is emitted as an error response, the stream is not terminated. The responses don't contain the
+     * TIN: for correlating them, use the ordered mode.
+     * <p>
+     * The processor can be subscribed to a single publisher and have a single subscriber.
+     *
+     * @param maxConcurrency           the maximum number of calls in flight
+     * @param maxConcurrencyPerCountry the maximum number of calls in flight for a given country code
+     * @param ordered                  if true, the responses are emitted in the order of the TINs, otherwise as soon as
+     *                                 they are available
+     * @return a new processor
+     */
+    public Flow.Processor<TinId, EUTinCheckResponse> processor(int maxConcurrency, int maxConcurrencyPerCountry, boolean ordered) {
+        return new CheckProcessor<>(maxConcurrency, maxConcurrencyPerCountry, ordered,
+                TinId::getCountryCode,
+                id -> checkAsync(id.getCountryCode(), id.getTinNumber()),
+                KIND::error);
     }
 
     /**
@@ -105,15 +369,65 @@ public class EUTinChecker {
      * @return the response, see {@link EUTinCheckResponse}
      */
     public static EUTinCheckResponse doCheck(String countryCode, String tinNumber, BiFunction<String, String, InputStream> documentFetcher) {
+        return doCheck(countryCode, tinNumber, documentFetcher, null);
+    }
+
+    static EUTinCheckResponse doCheck(String countryCode, String tinNumber, BiFunction<String, String, InputStream> documentFetcher, CheckListener listener) {
         Objects.requireNonNull(countryCode, "countryCode cannot be null");
         Objects.requireNonNull(tinNumber, "tinNumber cannot be null");
-        Map<String, String> params = new HashMap<>();
-        params.put("countryCode", countryCode);
-        params.put("tinNumber", tinNumber);
-        Utils.ExtractionResult res = Utils.doCallAndExtract(BASE_DOCUMENT_TEMPLATE, params, ENDPOINT, documentFetcher, VALID_ELEMENT_MATCHER, VALID_EXTRACTORS);
-        if (res.validNode != null) {
+        long start = listener != null ? System.nanoTime() : 0;
+        String cc = CheckKey.countryCode(countryCode);
+        String body = REQUEST_TEMPLATE.render(cc, CheckKey.number(tinNumber));
+        if (listener == null) {
+            return toResponse(Utils.doCallAndExtract(body, ENDPOINT, documentFetcher, RESPONSE_EXTRACTOR));
+        }
+        CallMetrics metrics = new CallMetrics(OPERATION, cc, start);
+        metrics.serializeNanos = metrics.elapsed(start);
+        return Utils.measure(listener, metrics, KIND, () -> toResponse(Utils.doCallAndExtract(body, ENDPOINT, documentFetcher, RESPONSE_EXTRACTOR, metrics)));
+    }
+
+    /**
+     * Do a non blocking call to the EU tin checker web service, using a shared {@link java.net.http.HttpClient}.
+     *
+     * @param countryCode 2 character ISO country code. Note: Greece is EL, not GR.
+     * @param tinNr       the tin number to check
+     * @return the future response, see {@link EUTinCheckResponse}
+     */
+    public static CompletableFuture<EUTinCheckResponse> doCheckAsync(String countryCode, String tinNr) {
+        return doCheckAsync(countryCode, tinNr, Utils::doCallAsync);
+    }
+
+    /**
+     * See {@link #doCheckAsync(String, String)}. This method accept an asyncDocumentFetcher if you need to customize the
+     * http client.
+     *
+     * @param countryCode          2 character ISO country code. Note: Greece is EL, not GR.
+     * @param tinNumber            TIN number
+     * @param asyncDocumentFetcher the function that, given the url of the web service and the body to post, return the future resulting body as InputStream
+     * @return the future response, see {@link EUTinCheckResponse}
+     */
+    public static CompletableFuture<EUTinCheckResponse> doCheckAsync(String countryCode, String tinNumber, BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher) {
+        return doCheckAsync(countryCode, tinNumber, asyncDocumentFetcher, null);
+    }
+
+    static CompletableFuture<EUTinCheckResponse> doCheckAsync(String countryCode, String tinNumber, BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher, CheckListener listener) {
+        Objects.requireNonNull(countryCode, "countryCode cannot be null");
+        Objects.requireNonNull(tinNumber, "tinNumber cannot be null");
+        long start = listener != null ? System.nanoTime() : 0;
+        String cc = CheckKey.countryCode(countryCode);
+        String body = REQUEST_TEMPLATE.render(cc, CheckKey.number(tinNumber));
+        if (listener == null) {
+            return Utils.doCallAndExtractAsync(body, ENDPOINT, asyncDocumentFetcher, RESPONSE_EXTRACTOR).thenApply(EUTinChecker::toResponse);
+        }
+        CallMetrics metrics = new CallMetrics(OPERATION, cc, start);
+        metrics.serializeNanos = metrics.elapsed(start);
+        return Utils.measureAsync(listener, metrics, KIND, () -> Utils.doCallAndExtractAsync(body, ENDPOINT, asyncDocumentFetcher, RESPONSE_EXTRACTOR, metrics).thenApply(EUTinChecker::toResponse));
+    }
+
+    private static EUTinCheckResponse toResponse(Utils.ExtractionResult res) {
+        if (res.valid) {
             return new EUTinCheckResponse("true".equals(res.extracted.get(0)), "true".equals(res.extracted.get(1)), false, null);
-        } else if (res.faultNode != null) {
+        } else if (res.fault) {
             return new EUTinCheckResponse(false, false, true, new EUTinCheckResponse.Fault(res.extracted.get(0), res.extracted.get(1)));
         } else {
             return new EUTinCheckResponse(false, false, true, null); // should not enter here in theory
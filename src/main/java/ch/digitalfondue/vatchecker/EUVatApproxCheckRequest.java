@@ -0,0 +1,129 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.Objects;
+
+/**
+ * The parameters of a checkVatApprox call, see {@link EUVatChecker#checkApprox(EUVatApproxCheckRequest)}.
+ * <p>
+ * The trader fields are optional: when given, VIES reports if they match its data. With a requester, VIES returns a
+ * consultation number ({@link EUVatApproxCheckResponse#getRequestIdentifier()}) that can be used as a proof of the check.
+ * <p>
+ * Instances are immutable.
+ */
+public final class EUVatApproxCheckRequest {
+
+    private final String countryCode;
+    private final String vatNumber;
+    private final String traderName;
+    private final String traderCompanyType;
+    private final String traderStreet;
+    private final String traderPostcode;
+    private final String traderCity;
+    private final String requesterCountryCode;
+    private final String requesterVatNumber;
+
+    private EUVatApproxCheckRequest(String countryCode, String vatNumber, String traderName, String traderCompanyType,
+                                    String traderStreet, String traderPostcode, String traderCity,
+                                    String requesterCountryCode, String requesterVatNumber) {
+        this.countryCode = countryCode;
+        this.vatNumber = vatNumber;
+        this.traderName = traderName;
+        this.traderCompanyType = traderCompanyType;
+        this.traderStreet = traderStreet;
+        this.traderPostcode = traderPostcode;
+        this.traderCity = traderCity;
+        this.requesterCountryCode = requesterCountryCode;
+        this.requesterVatNumber = requesterVatNumber;
+    }
+
+    /**
+     * @param countryCode 2 character ISO country code. Note: Greece is EL, not GR.
+     * @param vatNumber   the vat number to check
+     */
+    public static EUVatApproxCheckRequest of(String countryCode, String vatNumber) {
+        Objects.requireNonNull(countryCode, "countryCode cannot be null");
+        Objects.requireNonNull(vatNumber, "vatNumber cannot be null");
+        return new EUVatApproxCheckRequest(countryCode, vatNumber, null, null, null, null, null, null, null);
+    }
+
+    public EUVatApproxCheckRequest withTraderName(String traderName) {
+        return new EUVatApproxCheckRequest(countryCode, vatNumber, traderName, traderCompanyType, traderStreet, traderPostcode, traderCity, requesterCountryCode, requesterVatNumber);
+    }
+
+    public EUVatApproxCheckRequest withTraderCompanyType(String traderCompanyType) {
+        return new EUVatApproxCheckRequest(countryCode, vatNumber, traderName, traderCompanyType, traderStreet, traderPostcode, traderCity, requesterCountryCode, requesterVatNumber);
+    }
+
+    public EUVatApproxCheckRequest withTraderStreet(String traderStreet) {
+        return new EUVatApproxCheckRequest(countryCode, vatNumber, traderName, traderCompanyType, traderStreet, traderPostcode, traderCity, requesterCountryCode, requesterVatNumber);
+    }
+
+    public EUVatApproxCheckRequest withTraderPostcode(String traderPostcode) {
+        return new EUVatApproxCheckRequest(countryCode, vatNumber, traderName, traderCompanyType, traderStreet, traderPostcode, traderCity, requesterCountryCode, requesterVatNumber);
+    }
+
+    public EUVatApproxCheckRequest withTraderCity(String traderCity) {
+        return new EUVatApproxCheckRequest(countryCode, vatNumber, traderName, traderCompanyType, traderStreet, traderPostcode, traderCity, requesterCountryCode, requesterVatNumber);
+    }
+
+    /**
+     * @param requesterCountryCode the country code of the requester
+     * @param requesterVatNumber   the vat number of the requester
+     */
+    public EUVatApproxCheckRequest withRequester(String requesterCountryCode, String requesterVatNumber) {
+        Objects.requireNonNull(requesterCountryCode, "requesterCountryCode cannot be null");
+        Objects.requireNonNull(requesterVatNumber, "requesterVatNumber cannot be null");
+        return new EUVatApproxCheckRequest(countryCode, vatNumber, traderName, traderCompanyType, traderStreet, traderPostcode, traderCity, requesterCountryCode, requesterVatNumber);
+    }
+
+    public String getCountryCode() {
+        return countryCode;
+    }
+
+    public String getVatNumber() {
+        return vatNumber;
+    }
+
+    public String getTraderName() {
+        return traderName;
+    }
+
+    public String getTraderCompanyType() {
+        return traderCompanyType;
+    }
+
+    public String getTraderStreet() {
+        return traderStreet;
+    }
+
+    public String getTraderPostcode() {
+        return traderPostcode;
+    }
+
+    public String getTraderCity() {
+        return traderCity;
+    }
+
+    public String getRequesterCountryCode() {
+        return requesterCountryCode;
+    }
+
+    public String getRequesterVatNumber() {
+        return requesterVatNumber;
+    }
+}
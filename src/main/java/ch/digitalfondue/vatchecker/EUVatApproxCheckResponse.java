@@ -0,0 +1,166 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+/**
+ * The response of a checkVatApprox call, see {@link EUVatChecker#checkApprox(EUVatApproxCheckRequest)}.
+ * <p>
+ * The faults are the same as {@link EUVatCheckResponse}.
+ */
+public class EUVatApproxCheckResponse {
+
+    /**
+     * The outcome of the comparison of a trader field with the data of VIES.
+     */
+    public enum Match {
+        VALID,
+        INVALID,
+        NOT_PROCESSED;
+
+        // 1, 2 and 3 on the wire, null if the field has not been returned
+        static Match parse(String value) {
+            if (value == null) {
+                return null;
+            }
+            switch (value.trim()) {
+                case "1":
+                    return VALID;
+                case "2":
+                    return INVALID;
+                case "3":
+                    return NOT_PROCESSED;
+                default:
+                    return null;
+            }
+        }
+    }
+
+    private final boolean valid;
+    private final String requestDate;
+    private final String requestIdentifier;
+    private final String traderName;
+    private final String traderCompanyType;
+    private final String traderAddress;
+    private final String traderStreet;
+    private final String traderPostcode;
+    private final String traderCity;
+    private final Match traderNameMatch;
+    private final Match traderCompanyTypeMatch;
+    private final Match traderStreetMatch;
+    private final Match traderPostcodeMatch;
+    private final Match traderCityMatch;
+
+    private final boolean error;
+    private final EUVatCheckResponse.Fault fault;
+
+    EUVatApproxCheckResponse(boolean valid, String requestDate, String requestIdentifier,
+                             String traderName, String traderCompanyType, String traderAddress,
+                             String traderStreet, String traderPostcode, String traderCity,
+                             Match traderNameMatch, Match traderCompanyTypeMatch, Match traderStreetMatch,
+                             Match traderPostcodeMatch, Match traderCityMatch,
+                             boolean error, EUVatCheckResponse.Fault fault) {
+        this.valid = valid;
+        this.requestDate = requestDate;
+        this.requestIdentifier = requestIdentifier;
+        this.traderName = traderName;
+        this.traderCompanyType = traderCompanyType;
+        this.traderAddress = traderAddress;
+        this.traderStreet = traderStreet;
+        this.traderPostcode = traderPostcode;
+        this.traderCity = traderCity;
+        this.traderNameMatch = traderNameMatch;
+        this.traderCompanyTypeMatch = traderCompanyTypeMatch;
+        this.traderStreetMatch = traderStreetMatch;
+        this.traderPostcodeMatch = traderPostcodeMatch;
+        this.traderCityMatch = traderCityMatch;
+        this.error = error;
+        this.fault = fault;
+    }
+
+    static EUVatApproxCheckResponse error(EUVatCheckResponse.Fault fault) {
+        return new EUVatApproxCheckResponse(false, null, null, null, null, null, null, null, null, null, null, null, null, null, true, fault);
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @return the date of the check, as returned by VIES (e.g. 2024-01-01+01:00)
+     */
+    public String getRequestDate() {
+        return requestDate;
+    }
+
+    /**
+     * @return the consultation number, only returned when a requester has been given
+     */
+    public String getRequestIdentifier() {
+        return requestIdentifier;
+    }
+
+    public String getTraderName() {
+        return traderName;
+    }
+
+    public String getTraderCompanyType() {
+        return traderCompanyType;
+    }
+
+    public String getTraderAddress() {
+        return traderAddress;
+    }
+
+    public String getTraderStreet() {
+        return traderStreet;
+    }
+
+    public String getTraderPostcode() {
+        return traderPostcode;
+    }
+
+    public String getTraderCity() {
+        return traderCity;
+    }
+
+    public Match getTraderNameMatch() {
+        return traderNameMatch;
+    }
+
+    public Match getTraderCompanyTypeMatch() {
+        return traderCompanyTypeMatch;
+    }
+
+    public Match getTraderStreetMatch() {
+        return traderStreetMatch;
+    }
+
+    public Match getTraderPostcodeMatch() {
+        return traderPostcodeMatch;
+    }
+
+    public Match getTraderCityMatch() {
+        return traderCityMatch;
+    }
+
+    public boolean isError() {
+        return error;
+    }
+
+    public EUVatCheckResponse.Fault getFault() {
+        return fault;
+    }
+}
@@ -64,7 +64,23 @@ public class EUVatCheckResponse {
         MS_MAX_CONCURRENT_REQ,
         SERVICE_UNAVAILABLE,
         MS_UNAVAILABLE,
+        /**
+         * Only returned by checkVatApprox: the requester country code or vat number is not valid.
+         */
+        INVALID_REQUESTER_INFO,
         TIMEOUT,
+        /**
+         * Not returned by the service: the number has been rejected by the offline validation, see {@link VatNumberFormat}.
+         */
+        INVALID_FORMAT,
+        /**
+         * Not returned by the service: the call has not been done as no permit was available in time, see {@link RateLimiter}.
+         */
+        RATE_LIMITED,
+        /**
+         * Not returned by the service: the call has not been done as the circuit of the country is open, see {@link CircuitBreaker}.
+         */
+        CIRCUIT_OPEN,
         OTHER
     }
 }
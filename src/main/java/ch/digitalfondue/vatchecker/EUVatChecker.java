@@ -15,47 +15,323 @@
  */
 package ch.digitalfondue.vatchecker;
 
-import org.w3c.dom.Document;
-
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathExpression;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.StringReader;
-import java.util.HashMap;
-import java.util.Map;
+import java.time.Duration;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
 import java.util.function.BiFunction;
 
 /**
  * A small utility for calling the VIES webservice. See https://ec.europa.eu/taxation_customs/vies/ .
  * <p>
  * The main entry points are {@link #doCheck(String, String)} and if more customization is needed {@link #doCheck(String, String, BiFunction)}.
+ * <p>
+ * For a non blocking variant, see {@link #doCheckAsync(String, String)} and {@link #checkAsync(String, String)}.
  */
 public class EUVatChecker {
 
-    private static final Document BASE_DOCUMENT_TEMPLATE;
+    private static final String OPERATION = "checkVat";
+
+    static final String ENDPOINT = "https://ec.europa.eu/taxation_customs/vies/services/checkVatService";
+
+    private static final String APPROX_OPERATION = "checkVatApprox";
+    private static final SoapRequestTemplate APPROX_REQUEST_TEMPLATE = new SoapRequestTemplate(APPROX_OPERATION,
+            "urn:ec.europa.eu:taxud:vies:services:checkVat:types", "countryCode", "vatNumber",
+            "traderName", "traderCompanyType", "traderStreet", "traderPostcode", "traderCity",
+            "requesterCountryCode", "requesterVatNumber");
+    private static final SoapResponseExtractor APPROX_RESPONSE_EXTRACTOR = new SoapResponseExtractor("checkVatApproxResponse",
+            "valid", "requestDate", "requestIdentifier",
+            "traderName", "traderCompanyType", "traderAddress", "traderStreet", "traderPostcode", "traderCity",
+            "traderNameMatch", "traderCompanyTypeMatch", "traderStreetMatch", "traderPostcodeMatch", "traderCityMatch");
+
+    static final Kind KIND = new Kind();
+
+    static final class Kind implements ResponseKind<EUVatCheckResponse>, StoreCodec<EUVatCheckResponse> {
+        @Override
+        public boolean isError(EUVatCheckResponse response) {
+            return response.isError();
+        }
+
+        @Override
+        public boolean isValid(EUVatCheckResponse response) {
+            return response.isValid();
+        }
+
+        @Override
+        public BaseFault<?> getFault(EUVatCheckResponse response) {
+            return response.getFault();
+        }
+
+        @Override
+        public EUVatCheckResponse error(String faultCode, String fault) {
+            return new EUVatCheckResponse(false, null, null, true, new EUVatCheckResponse.Fault(faultCode, fault));
+        }
+
+        @Override
+        public CheckKey key(String countryCode, String number) {
+            return CheckKey.vat(countryCode, number);
+        }
+
+        @Override
+        public byte storeId() {
+            return 1;
+        }
+
+        @Override
+        public void write(EUVatCheckResponse response, DataOutput out) throws IOException {
+            out.writeBoolean(response.isValid());
+            ResultStore.writeString(out, response.getName());
+            ResultStore.writeString(out, response.getAddress());
+        }
+
+        @Override
+        public EUVatCheckResponse read(DataInput in) throws IOException {
+            return new EUVatCheckResponse(in.readBoolean(), ResultStore.readString(in), ResultStore.readString(in), false, null);
+        }
+    }
+
+    // the approx results are never cached: the consultation number is specific to each call
+    static final ResponseKind<EUVatApproxCheckResponse> APPROX_KIND = new ResponseKind<EUVatApproxCheckResponse>() {
+        @Override
+        public boolean isError(EUVatApproxCheckResponse response) {
+            return response.isError();
+        }
+
+        @Override
+        public boolean isValid(EUVatApproxCheckResponse response) {
+            return response.isValid();
+        }
+
+        @Override
+        public BaseFault<?> getFault(EUVatApproxCheckResponse response) {
+            return response.getFault();
+        }
 
-    private static final String ENDPOINT = "https://ec.europa.eu/taxation_customs/vies/services/checkVatService";
-    private static final XPathExpression VALID_ELEMENT_MATCHER;
-    private static final XPathExpression[] VALID_EXTRACTORS;
+        @Override
+        public EUVatApproxCheckResponse error(String faultCode, String fault) {
+            return EUVatApproxCheckResponse.error(new EUVatCheckResponse.Fault(faultCode, fault));
+        }
+
+        @Override
+        public CheckKey key(String countryCode, String number) {
+            return CheckKey.vat(countryCode, number);
+        }
+    };
 
     private final BiFunction<String, String, InputStream> documentFetcher;
+    private final BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher;
+    private final CheckPipeline<EUVatCheckResponse> pipeline;
+    private final CheckPipeline<EUVatApproxCheckResponse> approxPipeline;
+    private final CheckListener listener;
+    private final VatTransport transport;
 
 
     /**
      *
      */
     public EUVatChecker() {
-        this(Utils::doCall);
+        this(HttpFetcher.DEFAULT.blocking(), HttpFetcher.DEFAULT.async());
     }
 
     /**
+     * @param config the configuration of the default http fetchers, e.g. for the timeouts or a proxy
+     */
+    public EUVatChecker(FetcherConfig config) {
+        this(new HttpFetcher(Objects.requireNonNull(config, "config cannot be null")).blocking(), new HttpFetcher(config).async());
+    }
+
+    /**
+     * Note: {@link #checkAsync(String, String)} will run the given documentFetcher in a thread of its own, from the
+     * shared {@link VirtualThreads#executor()}, not in the common fork join pool. Use
+     * {@link #EUVatChecker(BiFunction, BiFunction)} for providing a non blocking variant.
+     *
      * @param documentFetcher the function that, given the url of the web service and the body to post, return the resulting body as InputStream
      */
     public EUVatChecker(BiFunction<String, String, InputStream> documentFetcher) {
-        this.documentFetcher = documentFetcher;
+        this(documentFetcher, Utils.toAsync(documentFetcher, VirtualThreads.executor()));
+    }
+
+    /**
+     * @param documentFetcher      the function that, given the url of the web service and the body to post, return the resulting body as InputStream
+     * @param asyncDocumentFetcher the non blocking variant of documentFetcher, used by {@link #checkAsync(String, String)}
+     */
+    public EUVatChecker(BiFunction<String, String, InputStream> documentFetcher, BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher) {
+        this(documentFetcher, asyncDocumentFetcher, new CheckPipeline<>(KIND, KIND), null, VatTransport.SOAP);
+    }
+
+    private EUVatChecker(BiFunction<String, String, InputStream> documentFetcher, BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher, CheckPipeline<EUVatCheckResponse> pipeline, CheckListener listener, VatTransport transport) {
+        this.documentFetcher = Objects.requireNonNull(documentFetcher, "documentFetcher cannot be null");
+        this.asyncDocumentFetcher = Objects.requireNonNull(asyncDocumentFetcher, "asyncDocumentFetcher cannot be null");
+        this.pipeline = pipeline;
+        this.approxPipeline = pipeline.forCallStages(APPROX_KIND);
+        this.listener = listener;
+        this.transport = transport;
+    }
+
+    /**
+     * Return a copy of this checker that first validates the number offline with {@link VatNumberFormat}: a number
+     * that cannot be valid is answered immediately with an error with a fault of type
+     * {@link EUVatCheckResponse.FaultType#INVALID_FORMAT}, without calling VIES.
+     *
+     * @return a new checker instance
+     */
+    public EUVatChecker withFormatValidation() {
+        return new EUVatChecker(documentFetcher, asyncDocumentFetcher, pipeline.withValidator(VatNumberFormat::isValid, "INVALID_FORMAT"), listener, transport);
+    }
+
+    /**
+     * Return a copy of this checker that first look in the given cache, and store the responses in it.
+     * <p>
+     * The cache can be shared between multiple checkers.
+     *
+     * @param cache the cache
+     * @return a new checker instance
+     */
+    public EUVatChecker withCache(ResultCache<EUVatCheckResponse> cache) {
+        return new EUVatChecker(documentFetcher, asyncDocumentFetcher, pipeline.withCache(Objects.requireNonNull(cache, "cache cannot be null")), listener, transport);
+    }
+
+    /**
+     * Return a copy of this checker that serves the recently expired results of the cache immediately, while refreshing
+     * them in the background. See {@link StaleWhileRevalidate}.
+     * <p>
+     * Only effective with {@link #withCache(ResultCache)}.
+     *
+     * @param staleWhileRevalidate the configuration
+     * @return a new checker instance
+     */
+    public EUVatChecker withStaleWhileRevalidate(StaleWhileRevalidate staleWhileRevalidate) {
+        return new EUVatChecker(documentFetcher, asyncDocumentFetcher, pipeline.withStaleWhileRevalidate(Objects.requireNonNull(staleWhileRevalidate, "staleWhileRevalidate cannot be null")), listener, transport);
+    }
+
+    /**
+     * Return a copy of this checker that looks in the given persistent store after the cache, and writes the results
+     * in it: the known numbers survive a restart. See {@link ResultStore}.
+     *
+     * @param store the store
+     * @return a new checker instance
+     */
+    public EUVatChecker withStore(ResultStore store) {
+        return new EUVatChecker(documentFetcher, asyncDocumentFetcher, pipeline.withStore(Objects.requireNonNull(store, "store cannot be null")), listener, transport);
+    }
+
+    /**
+     * Return a copy of this checker where concurrent checks of the same number are coalesced: only one call is in
+     * flight for a given country code and number, and all the callers receive its response.
+     * <p>
+     * Cancelling the future returned by {@link #checkAsync(String, String)} only detaches the caller, the shared call
+     * is not cancelled.
+     *
+     * @return a new checker instance
+     */
+    public EUVatChecker withRequestCoalescing() {
+        return new EUVatChecker(documentFetcher, asyncDocumentFetcher, pipeline.withRequestCoalescing(), listener, transport);
+    }
+
+    /**
+     * Return a copy of this checker that retries the checks failing with a transient fault, see {@link RetryPolicy}.
+     * <p>
+     * With {@link #checkAsync(String, String)} no thread is blocked while waiting for the next attempt, with
+     * {@link #check(String, String)} the calling thread sleeps.
+     *
+     * @param retryPolicy the policy
+     * @return a new checker instance
+     */
+    public EUVatChecker withRetry(RetryPolicy retryPolicy) {
+        return new EUVatChecker(documentFetcher, asyncDocumentFetcher, pipeline.withRetry(Objects.requireNonNull(retryPolicy, "retryPolicy cannot be null")), listener, transport);
+    }
+
+    /**
+     * Return a copy of this checker where the slow calls of {@link #checkAsync(String, String)} are hedged: a second
+     * identical call is sent after a delay learned from the recent latencies, and the first response wins. See
+     * {@link Hedging}.
+     * <p>
+     * When combined with {@link #withRetry(RetryPolicy)}, each attempt can be hedged. The hedges take a permit of the
+     * rate limiter, if any, only when it's available immediately.
+     *
+     * @param hedging the hedging configuration
+     * @return a new checker instance
+     */
+    public EUVatChecker withHedging(Hedging hedging) {
+        return new EUVatChecker(documentFetcher, asyncDocumentFetcher, pipeline.withHedging(Objects.requireNonNull(hedging, "hedging cannot be null")), listener, transport);
+    }
+
+    /**
+     * Return a copy of this checker where the calls are throttled by the given rate limiter, for staying within the
+     * quotas of the service. See {@link RateLimiter}.
+     * <p>
+     * When combined with {@link #withRetry(RetryPolicy)}, each attempt takes a permit.
+     *
+     * @param rateLimiter the rate limiter
+     * @return a new checker instance
+     */
+    public EUVatChecker withRateLimiter(RateLimiter rateLimiter) {
+        return new EUVatChecker(documentFetcher, asyncDocumentFetcher, pipeline.withRateLimiter(Objects.requireNonNull(rateLimiter, "rateLimiter cannot be null")), listener, transport);
+    }
+
+    /**
+     * Return a copy of this checker where the calls go through the given per country circuit breaker: when a
+     * country fails too often, its checks fail immediately with a fault of type CIRCUIT_OPEN. See {@link CircuitBreaker}.
+     * <p>
+     * When combined with {@link #withRetry(RetryPolicy)}, each attempt goes through the circuit breaker.
+     *
+     * @param circuitBreaker the circuit breaker
+     * @return a new checker instance
+     */
+    public EUVatChecker withCircuitBreaker(CircuitBreaker circuitBreaker) {
+        return new EUVatChecker(documentFetcher, asyncDocumentFetcher, pipeline.withCircuitBreaker(Objects.requireNonNull(circuitBreaker, "circuitBreaker cannot be null")), listener, transport);
+    }
+
+    /**
+     * Return a copy of this checker where the asynchronous checks run the blocking fetcher in a thread of their own:
+     * a virtual thread on Java 21 and later, a platform thread otherwise. See {@link VirtualThreads}.
+     * <p>
+     * This is useful for checking many numbers concurrently with a blocking (e.g. custom) fetcher, without sizing a
+     * thread pool: a call waiting for the service costs only a virtual thread.
+     *
+     * @return a new checker instance
+     */
+    public EUVatChecker withVirtualThreads() {
+        return new EUVatChecker(documentFetcher, Utils.toAsync(documentFetcher, VirtualThreads.executor()), pipeline, listener, transport);
+    }
+
+    /**
+     * Return a copy of this checker reporting the timings, sizes and outcome of each call to the service to the given
+     * listener, in addition to the already registered ones. See {@link CheckListener} and {@link CheckStatistics}.
+     * <p>
+     * Without listener, nothing is measured.
+     *
+     * @param listener the listener
+     * @return a new checker instance
+     */
+    public EUVatChecker withListener(CheckListener listener) {
+        Objects.requireNonNull(listener, "listener cannot be null");
+        CheckListener current = this.listener;
+        CheckListener combined = current == null ? listener : metrics -> {
+            Utils.notify(current, metrics);
+            Utils.notify(listener, metrics);
+        };
+        return new EUVatChecker(documentFetcher, asyncDocumentFetcher, pipeline, combined, transport);
+    }
+
+    /**
+     * Return a copy of this checker that calls VIES with the given protocol for {@link #check(String, String)},
+     * {@link #checkAsync(String, String)} and {@link #checkAll(Iterable, int, int, BiConsumer)}. See {@link VatTransport}.
+     * <p>
+     * The approximate checks always use SOAP.
+     *
+     * @param transport the transport
+     * @return a new checker instance
+     */
+    public EUVatChecker withTransport(VatTransport transport) {
+        return new EUVatChecker(documentFetcher, asyncDocumentFetcher, pipeline, listener, Objects.requireNonNull(transport, "transport cannot be null"));
     }
 
     /**
@@ -66,33 +342,135 @@ public class EUVatChecker {
      * @return the response, see {@link EUVatCheckResponse}
      */
     public EUVatCheckResponse check(String countryCode, String vatNr) {
-        return doCheck(countryCode, vatNr, this.documentFetcher);
+        if (pipeline.isEmpty()) {
+            return doCheck(countryCode, vatNr, this.documentFetcher, listener, transport);
+        }
+        return pipeline.runBlocking(countryCode, vatNr, (c, n) -> doCheck(c, n, this.documentFetcher, listener, transport));
     }
 
-    static {
-        XPath xPath = XPathFactory.newInstance().newXPath();
-        try {
-            VALID_ELEMENT_MATCHER = xPath.compile("//*[local-name()='checkVatResponse']/*[local-name()='valid']");
-            VALID_EXTRACTORS = new XPathExpression[]{
-                    VALID_ELEMENT_MATCHER,
-                    xPath.compile("//*[local-name()='checkVatResponse']/*[local-name()='name']"),
-                    xPath.compile("//*[local-name()='checkVatResponse']/*[local-name()='address']")
-            };
+    /**
+     * See {@link #doCheckAsync(String, String)}.
+     *
+     * @param countryCode 2 character ISO country code. Note: Greece is EL, not GR. See http://ec.europa.eu/taxation_customs/vies/faq.html#item_11
+     * @param vatNr       vat number
+     * @return the future response, see {@link EUVatCheckResponse}
+     */
+    public CompletableFuture<EUVatCheckResponse> checkAsync(String countryCode, String vatNr) {
+        return pipeline.run(countryCode, vatNr, (c, n) -> doCheckAsync(c, n, this.asyncDocumentFetcher, listener, transport));
+    }
 
-            String soapCallTemplate = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
-                    "<soapenv:Header/>" +
-                    "<soapenv:Body>" +
-                    "<checkVat xmlns=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">" +
-                    "<countryCode></countryCode><vatNumber></vatNumber>" +
-                    "</checkVat>" +
-                    "</soapenv:Body>" +
-                    "</soapenv:Envelope>";
+    /**
+     * See {@link #check(String, String)}, bounded by the given deadline: when it expires, the response is an error
+     * with a fault of type TIMEOUT. The deadline covers the whole check, including the retries.
+     * <p>
+     * Note: the deadline is enforced on the network call only by the default document fetchers, a custom blocking
+     * fetcher is called as is.
+     *
+     * @param countryCode 2 character ISO country code. Note: Greece is EL, not GR. See http://ec.europa.eu/taxation_customs/vies/faq.html#item_11
+     * @param vatNr       vat number
+     * @param deadline    the maximum duration of the check
+     * @return the response, see {@link EUVatCheckResponse}
+     */
+    public EUVatCheckResponse check(String countryCode, String vatNr, Duration deadline) {
+        long d = Utils.deadlineAfter(Objects.requireNonNull(deadline, "deadline cannot be null"));
+        BiFunction<String, String, InputStream> fetcher = Utils.withDeadline(this.documentFetcher, d);
+        return pipeline.runBlocking(countryCode, vatNr, d, (c, n) -> doCheck(c, n, fetcher, listener, transport));
+    }
 
-            BASE_DOCUMENT_TEMPLATE = Utils.toDocument(new StringReader(soapCallTemplate));
+    /**
+     * See {@link #checkAsync(String, String)}, bounded by the given deadline: when it expires, the future is completed
+     * with an error response with a fault of type TIMEOUT. The deadline covers the whole check, including the retries.
+     *
+     * @param countryCode 2 character ISO country code. Note: Greece is EL, not GR. See http://ec.europa.eu/taxation_customs/vies/faq.html#item_11
+     * @param vatNr       vat number
+     * @param deadline    the maximum duration of the check
+     * @return the future response, see {@link EUVatCheckResponse}
+     */
+    public CompletableFuture<EUVatCheckResponse> checkAsync(String countryCode, String vatNr, Duration deadline) {
+        long d = Utils.deadlineAfter(Objects.requireNonNull(deadline, "deadline cannot be null"));
+        BiFunction<String, String, CompletableFuture<InputStream>> fetcher = Utils.withDeadlineAsync(this.asyncDocumentFetcher, d);
+        // a coalesced call may have been started by a caller with a later deadline
+        return pipeline.run(countryCode, vatNr, d, (c, n) -> doCheckAsync(c, n, fetcher, listener, transport))
+                .completeOnTimeout(KIND.error(Utils.CLIENT_FAULT_CODE, "TIMEOUT"), Math.max(0, Utils.remainingNanos(d)), TimeUnit.NANOSECONDS);
+    }
 
-        } catch (XPathExpressionException e) {
-            throw new IllegalStateException(e);
-        }
+    /**
+     * Do a checkVatApprox call: like {@link #check(String, String)}, but VIES also compares the given trader data and,
+     * if a requester is given, returns a consultation number. See {@link #doCheckApprox(EUVatApproxCheckRequest)}.
+     * <p>
+     * The format validation, retry, rate limiter and circuit breaker of this instance apply, the results are never
+     * cached nor stored.
+     *
+     * @param request the request
+     * @return the response, see {@link EUVatApproxCheckResponse}
+     */
+    public EUVatApproxCheckResponse checkApprox(EUVatApproxCheckRequest request) {
+        Objects.requireNonNull(request, "request cannot be null");
+        return approxPipeline.runBlocking(request.getCountryCode(), request.getVatNumber(), (c, n) -> doCheckApprox(request, c, n, this.documentFetcher, listener));
+    }
+
+    /**
+     * The non blocking variant of {@link #checkApprox(EUVatApproxCheckRequest)}.
+     *
+     * @param request the request
+     * @return the future response, see {@link EUVatApproxCheckResponse}
+     */
+    public CompletableFuture<EUVatApproxCheckResponse> checkApproxAsync(EUVatApproxCheckRequest request) {
+        Objects.requireNonNull(request, "request cannot be null");
+        return approxPipeline.run(request.getCountryCode(), request.getVatNumber(), (c, n) -> doCheckApproxAsync(request, c, n, this.asyncDocumentFetcher, listener));
+    }
+
+    /**
+     * Check all the given vat numbers, running the calls concurrently with {@link #checkAsync(String, String)}.
+     * <p>
+     * VIES answers with {@link EUVatCheckResponse.FaultType#GLOBAL_MAX_CONCURRENT_REQ} and {@link EUVatCheckResponse.FaultType#MS_MAX_CONCURRENT_REQ}
+     * when there are too many concurrent requests, thus the concurrency is capped globally and per country code.
+     * The ids are pulled lazily from the iterable, so it can be backed by a large data source.
+     * <p>
+     * A call that failed with an exception (e.g. a network error) is reported as an error response with a fault of
+     * type {@link EUVatCheckResponse.FaultType#OTHER}: a single failure does not stop the processing.
+     *
+     * @param ids                      the vat numbers to check
+     * @param maxConcurrency           the maximum number of calls in flight
+     * @param maxConcurrencyPerCountry the maximum number of calls in flight for a given country code
+     * @param consumer                 receive each id with its response, may be called concurrently from different threads
+     * @return a future completed when all the ids have been checked
+     */
+    public CompletableFuture<Void> checkAll(Iterable<VatId> ids, int maxConcurrency, int maxConcurrencyPerCountry, BiConsumer<VatId, EUVatCheckResponse> consumer) {
+        Objects.requireNonNull(ids, "ids cannot be null");
+        Objects.requireNonNull(consumer, "consumer cannot be null");
+        BulkDispatcher<VatId, EUVatCheckResponse> dispatcher = new BulkDispatcher<>(maxConcurrency, maxConcurrencyPerCountry,
+                VatId::getCountryCode,
+                id -> checkAsync(id.getCountryCode(), id.getVatNumber()),
+                KIND::error);
+        return dispatcher.run(ids.iterator(), consumer);
+    }
+
+    /**
+     * Return a {@link Flow.Processor} checking each vat number published upstream with {@link #checkAsync(String, String)},
+     * e.g. for validating a continuous feed of registrations.
+     * <p>
+     * The concurrency is capped globally and per country code like {@link #checkAll(Iterable, int, int, BiConsumer)}.
+     * The vat numbers are requested upstream in batches, only while less than <code>2 * maxConcurrency</code> of them
+     * are being held (in flight, or checked and waiting for the demand of the subscriber): the upstream goes as fast as
+     * VIES, the rate limiter (see {@link #withRateLimiter(RateLimiter)}) and the subscriber allow.
+     * <p>
+     * A failed check is emitted as an error response, e.g. with a fault of type MS_UNAVAILABLE or OTHER, the stream
+     * is not terminated. The responses don't contain the vat number: for correlating them, use the ordered mode.
+     * <p>
+     * The processor can be subscribed to a single publisher and have a single subscriber.
+     *
+     * @param maxConcurrency           the maximum number of calls in flight
+     * @param maxConcurrencyPerCountry the maximum number of calls in flight for a given country code
+     * @param ordered                  if true, the responses are emitted in the order of the vat numbers, otherwise as
+     *                                 soon as they are available
+     * @return a new processor
+     */
+    public Flow.Processor<VatId, EUVatCheckResponse> processor(int maxConcurrency, int maxConcurrencyPerCountry, boolean ordered) {
+        return new CheckProcessor<>(maxConcurrency, maxConcurrencyPerCountry, ordered,
+                VatId::getCountryCode,
+                id -> checkAsync(id.getCountryCode(), id.getVatNumber()),
+                KIND::error);
     }
 
     /**
@@ -116,15 +494,160 @@ public class EUVatChecker {
      * @return the response, see {@link EUVatCheckResponse}
      */
     public static EUVatCheckResponse doCheck(String countryCode, String vatNumber, BiFunction<String, String, InputStream> documentFetcher) {
+        return doCheck(countryCode, vatNumber, documentFetcher, null, VatTransport.SOAP);
+    }
+
+    static EUVatCheckResponse doCheck(String countryCode, String vatNumber, BiFunction<String, String, InputStream> documentFetcher, CheckListener listener, VatTransport transport) {
+        Objects.requireNonNull(countryCode, "countryCode cannot be null");
+        Objects.requireNonNull(vatNumber, "vatNumber cannot be null");
+        long start = listener != null ? System.nanoTime() : 0;
+        String cc = CheckKey.countryCode(countryCode);
+        String body = transport.render(cc, CheckKey.vatNumber(cc, vatNumber));
+        if (listener == null) {
+            return toResponse(Utils.doCallAndExtract(body, transport.endpoint(), documentFetcher, transport.extractor()));
+        }
+        CallMetrics metrics = new CallMetrics(OPERATION, cc, start);
+        metrics.serializeNanos = metrics.elapsed(start);
+        return Utils.measure(listener, metrics, KIND, () -> toResponse(Utils.doCallAndExtract(body, transport.endpoint(), documentFetcher, transport.extractor(), metrics)));
+    }
+
+    /**
+     * Do a non blocking call to the EU vat checker web service, using a shared {@link java.net.http.HttpClient}.
+     *
+     * @param countryCode 2 character ISO country code. Note: Greece is EL, not GR. See http://ec.europa.eu/taxation_customs/vies/faq.html#item_11
+     * @param vatNumber   the vat number to check
+     * @return the future response, see {@link EUVatCheckResponse}
+     */
+    public static CompletableFuture<EUVatCheckResponse> doCheckAsync(String countryCode, String vatNumber) {
+        return doCheckAsync(countryCode, vatNumber, Utils::doCallAsync);
+    }
+
+    /**
+     * See {@link #doCheckAsync(String, String)}. This method accept an asyncDocumentFetcher if you need to customize the
+     * http client.
+     *
+     * @param countryCode          2 character ISO country code. Note: Greece is EL, not GR. See http://ec.europa.eu/taxation_customs/vies/faq.html#item_11
+     * @param vatNumber            the vat number to check
+     * @param asyncDocumentFetcher the function that, given the url of the web service and the body to post, return the future resulting body as InputStream
+     * @return the future response, see {@link EUVatCheckResponse}
+     */
+    public static CompletableFuture<EUVatCheckResponse> doCheckAsync(String countryCode, String vatNumber, BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher) {
+        return doCheckAsync(countryCode, vatNumber, asyncDocumentFetcher, null, VatTransport.SOAP);
+    }
+
+    static CompletableFuture<EUVatCheckResponse> doCheckAsync(String countryCode, String vatNumber, BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher, CheckListener listener, VatTransport transport) {
         Objects.requireNonNull(countryCode, "countryCode cannot be null");
         Objects.requireNonNull(vatNumber, "vatNumber cannot be null");
-        Map<String, String> params = new HashMap<>();
-        params.put("countryCode", countryCode);
-        params.put("vatNumber", vatNumber);
-        Utils.ExtractionResult res = Utils.doCallAndExtract(BASE_DOCUMENT_TEMPLATE, params, ENDPOINT, documentFetcher, VALID_ELEMENT_MATCHER, VALID_EXTRACTORS);
-        if (res.validNode != null) {
+        long start = listener != null ? System.nanoTime() : 0;
+        String cc = CheckKey.countryCode(countryCode);
+        String body = transport.render(cc, CheckKey.vatNumber(cc, vatNumber));
+        if (listener == null) {
+            return Utils.doCallAndExtractAsync(body, transport.endpoint(), asyncDocumentFetcher, transport.extractor()).thenApply(EUVatChecker::toResponse);
+        }
+        CallMetrics metrics = new CallMetrics(OPERATION, cc, start);
+        metrics.serializeNanos = metrics.elapsed(start);
+        return Utils.measureAsync(listener, metrics, KIND, () -> Utils.doCallAndExtractAsync(body, transport.endpoint(), asyncDocumentFetcher, transport.extractor(), metrics).thenApply(EUVatChecker::toResponse));
+    }
+
+    /**
+     * Do a checkVatApprox call to the EU vat checker web service.
+     *
+     * @param request the request
+     * @return the response, see {@link EUVatApproxCheckResponse}
+     */
+    public static EUVatApproxCheckResponse doCheckApprox(EUVatApproxCheckRequest request) {
+        return doCheckApprox(request, Utils::doCall);
+    }
+
+    /**
+     * See {@link #doCheckApprox(EUVatApproxCheckRequest)}. This method accept a documentFetcher if you need to customize
+     * the http client.
+     *
+     * @param request         the request
+     * @param documentFetcher the function that, given the url of the web service and the body to post, return the resulting body as InputStream
+     * @return the response, see {@link EUVatApproxCheckResponse}
+     */
+    public static EUVatApproxCheckResponse doCheckApprox(EUVatApproxCheckRequest request, BiFunction<String, String, InputStream> documentFetcher) {
+        Objects.requireNonNull(request, "request cannot be null");
+        String cc = CheckKey.countryCode(request.getCountryCode());
+        return doCheckApprox(request, cc, CheckKey.vatNumber(cc, request.getVatNumber()), documentFetcher, null);
+    }
+
+    /**
+     * Do a non blocking checkVatApprox call to the EU vat checker web service, using a shared {@link java.net.http.HttpClient}.
+     *
+     * @param request the request
+     * @return the future response, see {@link EUVatApproxCheckResponse}
+     */
+    public static CompletableFuture<EUVatApproxCheckResponse> doCheckApproxAsync(EUVatApproxCheckRequest request) {
+        return doCheckApproxAsync(request, Utils::doCallAsync);
+    }
+
+    /**
+     * See {@link #doCheckApproxAsync(EUVatApproxCheckRequest)}. This method accept an asyncDocumentFetcher if you need
+     * to customize the http client.
+     *
+     * @param request              the request
+     * @param asyncDocumentFetcher the function that, given the url of the web service and the body to post, return the future resulting body as InputStream
+     * @return the future response, see {@link EUVatApproxCheckResponse}
+     */
+    public static CompletableFuture<EUVatApproxCheckResponse> doCheckApproxAsync(EUVatApproxCheckRequest request, BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher) {
+        Objects.requireNonNull(request, "request cannot be null");
+        String cc = CheckKey.countryCode(request.getCountryCode());
+        return doCheckApproxAsync(request, cc, CheckKey.vatNumber(cc, request.getVatNumber()), asyncDocumentFetcher, null);
+    }
+
+    // cc and vatNumber are already normalized
+    private static EUVatApproxCheckResponse doCheckApprox(EUVatApproxCheckRequest request, String cc, String vatNumber, BiFunction<String, String, InputStream> documentFetcher, CheckListener listener) {
+        long start = listener != null ? System.nanoTime() : 0;
+        String body = renderApprox(request, cc, vatNumber);
+        if (listener == null) {
+            return toApproxResponse(Utils.doCallAndExtract(body, ENDPOINT, documentFetcher, APPROX_RESPONSE_EXTRACTOR));
+        }
+        CallMetrics metrics = new CallMetrics(APPROX_OPERATION, cc, start);
+        metrics.serializeNanos = metrics.elapsed(start);
+        return Utils.measure(listener, metrics, APPROX_KIND, () -> toApproxResponse(Utils.doCallAndExtract(body, ENDPOINT, documentFetcher, APPROX_RESPONSE_EXTRACTOR, metrics)));
+    }
+
+    private static CompletableFuture<EUVatApproxCheckResponse> doCheckApproxAsync(EUVatApproxCheckRequest request, String cc, String vatNumber, BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher, CheckListener listener) {
+        long start = listener != null ? System.nanoTime() : 0;
+        String body = renderApprox(request, cc, vatNumber);
+        if (listener == null) {
+            return Utils.doCallAndExtractAsync(body, ENDPOINT, asyncDocumentFetcher, APPROX_RESPONSE_EXTRACTOR).thenApply(EUVatChecker::toApproxResponse);
+        }
+        CallMetrics metrics = new CallMetrics(APPROX_OPERATION, cc, start);
+        metrics.serializeNanos = metrics.elapsed(start);
+        return Utils.measureAsync(listener, metrics, APPROX_KIND, () -> Utils.doCallAndExtractAsync(body, ENDPOINT, asyncDocumentFetcher, APPROX_RESPONSE_EXTRACTOR, metrics).thenApply(EUVatChecker::toApproxResponse));
+    }
+
+    private static String renderApprox(EUVatApproxCheckRequest request, String cc, String vatNumber) {
+        String requesterCountryCode = request.getRequesterCountryCode() != null ? CheckKey.countryCode(request.getRequesterCountryCode()) : null;
+        String requesterVatNumber = requesterCountryCode != null ? CheckKey.vatNumber(requesterCountryCode, request.getRequesterVatNumber()) : null;
+        return APPROX_REQUEST_TEMPLATE.render(cc, vatNumber,
+                request.getTraderName(), request.getTraderCompanyType(), request.getTraderStreet(), request.getTraderPostcode(), request.getTraderCity(),
+                requesterCountryCode, requesterVatNumber);
+    }
+
+    private static EUVatApproxCheckResponse toApproxResponse(Utils.ExtractionResult res) {
+        if (res.valid) {
+            List<String> e = res.extracted;
+            return new EUVatApproxCheckResponse("true".equals(e.get(0)), e.get(1), e.get(2),
+                    e.get(3), e.get(4), e.get(5), e.get(6), e.get(7), e.get(8),
+                    EUVatApproxCheckResponse.Match.parse(e.get(9)), EUVatApproxCheckResponse.Match.parse(e.get(10)),
+                    EUVatApproxCheckResponse.Match.parse(e.get(11)), EUVatApproxCheckResponse.Match.parse(e.get(12)),
+                    EUVatApproxCheckResponse.Match.parse(e.get(13)),
+                    false, null);
+        } else if (res.fault) {
+            return EUVatApproxCheckResponse.error(new EUVatCheckResponse.Fault(res.extracted.get(0), res.extracted.get(1)));
+        } else {
+            return EUVatApproxCheckResponse.error(null); // should not enter here in theory
+        }
+    }
+
+    private static EUVatCheckResponse toResponse(Utils.ExtractionResult res) {
+        if (res.valid) {
             return new EUVatCheckResponse("true".equals(res.extracted.get(0)), res.extracted.get(1), res.extracted.get(2), false, null);
-        } else if (res.faultNode != null) {
+        } else if (res.fault) {
             return new EUVatCheckResponse(false, null, null, true, new EUVatCheckResponse.Fault(res.extracted.get(0), res.extracted.get(1)));
         } else {
             return new EUVatCheckResponse(false, null, null, true, null); // should not enter here in theory
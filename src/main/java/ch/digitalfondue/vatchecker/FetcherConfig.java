@@ -0,0 +1,193 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.InputStream;
+import java.net.Proxy;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+
+/**
+ * The configuration of the default http document fetchers, see {@link EUVatChecker#EUVatChecker(FetcherConfig)}.
+ * <p>
+ * A timeout expiring is reported as an error response with the fault type TIMEOUT.
+ * <p>
+ * The blocking fetcher, also used by the static <code>doCheck</code> methods, is a minimal HTTP/1.1 client over a
+ * {@link ConnectionPool}, not {@link java.net.HttpURLConnection}: it follows only the 307 and 308 redirects, supports
+ * only the Basic authentication with a proxy, and no authentication with the server (401). For anything else, pass
+ * a custom document fetcher to the checker.
+ * <p>
+ * Instances are immutable.
+ */
+public final class FetcherConfig {
+
+    private final Duration connectTimeout;
+    private final Duration readTimeout;
+    private final Duration requestTimeout;
+    private final boolean keepAlive;
+    // null for the default ProxySelector
+    private final Proxy proxy;
+    private final ConnectionPool connectionPool;
+    private final SSLContext sslContext;
+    // created once, the pool reuses the connections only with the same factory
+    private final SSLSocketFactory sslSocketFactory;
+
+    private FetcherConfig(Duration connectTimeout, Duration readTimeout, Duration requestTimeout, boolean keepAlive, Proxy proxy, ConnectionPool connectionPool, SSLContext sslContext) {
+        this.connectTimeout = connectTimeout;
+        this.readTimeout = readTimeout;
+        this.requestTimeout = requestTimeout;
+        this.keepAlive = keepAlive;
+        this.proxy = proxy;
+        this.connectionPool = connectionPool;
+        this.sslContext = sslContext;
+        this.sslSocketFactory = sslContext != null ? sslContext.getSocketFactory() : null;
+    }
+
+    /**
+     * @return 10 seconds of connect timeout, 30 seconds of read timeout, no overall request timeout, keep alive,
+     * the proxy of the default {@link java.net.ProxySelector} (e.g. from the <code>https.proxyHost</code> system
+     * property) and the {@link ConnectionPool#shared()} connection pool, of 20 connections per host
+     */
+    public static FetcherConfig defaultConfig() {
+        return new FetcherConfig(Duration.ofSeconds(10), Duration.ofSeconds(30), null, true, null, ConnectionPool.shared(), null);
+    }
+
+    /**
+     * @param connectTimeout the maximum time for establishing the connection
+     */
+    public FetcherConfig withConnectTimeout(Duration connectTimeout) {
+        return new FetcherConfig(positive(connectTimeout, "connectTimeout"), readTimeout, requestTimeout, keepAlive, proxy, connectionPool, sslContext);
+    }
+
+    /**
+     * @param readTimeout the maximum time without receiving any data once connected
+     */
+    public FetcherConfig withReadTimeout(Duration readTimeout) {
+        return new FetcherConfig(connectTimeout, positive(readTimeout, "readTimeout"), requestTimeout, keepAlive, proxy, connectionPool, sslContext);
+    }
+
+    /**
+     * @param requestTimeout the maximum time for the whole request, from connecting to having received the full response.
+     *                       A shorter per call deadline can be given with {@link EUVatChecker#check(String, String, Duration)}.
+     */
+    public FetcherConfig withRequestTimeout(Duration requestTimeout) {
+        return new FetcherConfig(connectTimeout, readTimeout, positive(requestTimeout, "requestTimeout"), keepAlive, proxy, connectionPool, sslContext);
+    }
+
+    /**
+     * Note: the async fetcher is based on {@link java.net.http.HttpClient}, which always reuses the connections, thus
+     * this setting only applies to the blocking fetcher. Without keep alive, the connections still count in the limits
+     * of the {@link ConnectionPool} while in use.
+     *
+     * @param keepAlive if the connections are kept open for being reused
+     */
+    public FetcherConfig withKeepAlive(boolean keepAlive) {
+        return new FetcherConfig(connectTimeout, readTimeout, requestTimeout, keepAlive, proxy, connectionPool, sslContext);
+    }
+
+    /**
+     * @param proxy the proxy to use instead of the default {@link java.net.ProxySelector}, {@link Proxy#NO_PROXY} for
+     *              connecting directly. For the async fetcher only a {@link Proxy.Type#HTTP} proxy is supported
+     */
+    public FetcherConfig withProxy(Proxy proxy) {
+        Objects.requireNonNull(proxy, "proxy cannot be null");
+        return new FetcherConfig(connectTimeout, readTimeout, requestTimeout, keepAlive, proxy, connectionPool, sslContext);
+    }
+
+    /**
+     * Note: only the blocking fetcher uses it, see {@link #withKeepAlive(boolean)}. The pool limits the concurrent
+     * calls to the same service, the others wait for a connection: with the default {@link ConnectionPool#shared()}
+     * at most 20 blocking checks are in flight, whatever the concurrency of the bulk api or of the virtual threads.
+     *
+     * @param connectionPool the pool of the connections, e.g. for a different limit of connections per host
+     */
+    public FetcherConfig withConnectionPool(ConnectionPool connectionPool) {
+        Objects.requireNonNull(connectionPool, "connectionPool cannot be null");
+        return new FetcherConfig(connectTimeout, readTimeout, requestTimeout, keepAlive, proxy, connectionPool, sslContext);
+    }
+
+    /**
+     * @param sslContext the context of the https connections, e.g. for trusting a private certificate authority.
+     *                   By default, the one of {@link HttpsURLConnection#getDefaultSSLSocketFactory()} for the blocking
+     *                   fetcher and {@link SSLContext#getDefault()} for the async one.
+     */
+    public FetcherConfig withSslContext(SSLContext sslContext) {
+        Objects.requireNonNull(sslContext, "sslContext cannot be null");
+        return new FetcherConfig(connectTimeout, readTimeout, requestTimeout, keepAlive, proxy, connectionPool, sslContext);
+    }
+
+    Duration getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    Duration getReadTimeout() {
+        return readTimeout;
+    }
+
+    Duration getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    boolean isKeepAlive() {
+        return keepAlive;
+    }
+
+    /**
+     * @return null for the default {@link java.net.ProxySelector}
+     */
+    Proxy getProxy() {
+        return proxy;
+    }
+
+    ConnectionPool getConnectionPool() {
+        return connectionPool;
+    }
+
+    SSLContext getSslContext() {
+        return sslContext;
+    }
+
+    SSLSocketFactory getSslSocketFactory() {
+        return sslSocketFactory != null ? sslSocketFactory : HttpsURLConnection.getDefaultSSLSocketFactory();
+    }
+
+    /**
+     * @return a blocking document fetcher using this configuration
+     */
+    public BiFunction<String, String, InputStream> documentFetcher() {
+        return new HttpFetcher(this).blocking();
+    }
+
+    /**
+     * @return a non blocking document fetcher using this configuration
+     */
+    public BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher() {
+        return new HttpFetcher(this).async();
+    }
+
+    private static Duration positive(Duration duration, String name) {
+        Objects.requireNonNull(duration, name + " cannot be null");
+        if (duration.isNegative() || duration.isZero()) {
+            throw new IllegalArgumentException(name + " must be positive");
+        }
+        return duration;
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
+
+/**
+ * Hedged requests, for cutting the tail latency of the service, see {@link EUVatChecker#withHedging(Hedging)}.
+ * <p>
+ * When a call has not answered after a delay, a second identical call is sent: the first response that is successful
+ * or a terminal fault wins, the other call is cancelled (with the default fetchers the request is not aborted, its
+ * response is discarded). If both fail, the response of the first call is returned.
+ * <p>
+ * The delay is the given percentile of the latencies of the last 256 calls, bounded by <code>minDelay</code> and
+ * <code>maxDelay</code>: with a percentile of 95, about 5% of the calls are hedged. Until 20 calls have been observed,
+ * the delay is <code>maxDelay</code>.
+ * <p>
+ * The hedges must not trigger the concurrency faults of the service, thus a hedge is only sent if:
+ * <ul>
+ *     <li>less than <code>maxHedgesInFlight</code> hedges are running</li>
+ *     <li>the hedges don't exceed <code>maxHedgeRatio</code> of the calls (e.g. 0.1 for 10%), with a burst of 10</li>
+ *     <li>with a {@link RateLimiter}, a permit is available immediately</li>
+ * </ul>
+ * Otherwise the call just continues. With a {@link CircuitBreaker}, the hedge goes through it like any call.
+ * <p>
+ * Only the non blocking api is hedged: a blocking call has already completed when the delay would start. The instance
+ * can be shared between multiple checkers of the same service, the limits are then global.
+ */
+public final class Hedging {
+
+    private static final int WINDOW = 256;
+    private static final int MIN_SAMPLES = 20;
+    private static final int RECOMPUTE_EVERY = 16;
+    private static final long TOKEN = 1000;
+    private static final long MAX_TOKENS = 10 * TOKEN;
+
+    private final double percentile;
+    private final long minDelay;
+    private final long maxDelay;
+    private final int maxHedgesInFlight;
+    private final long tokensPerCall;
+    private final Timer timer;
+
+    private final AtomicLongArray latencies = new AtomicLongArray(WINDOW);
+    private final AtomicLong recorded = new AtomicLong();
+    private volatile long delay;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // the hedge budget, in thousandths of hedge
+    private final AtomicLong tokens = new AtomicLong(MAX_TOKENS);
+    private final LongAdder hedges = new LongAdder();
+    private final LongAdder hedgeWins = new LongAdder();
+    private final LongAdder skippedHedges = new LongAdder();
+
+    /**
+     * At most 10 hedges in flight, and 10% of the calls.
+     *
+     * @param percentile the percentile of the recent latencies after which a call is hedged, between 0 and 100 (exclusive)
+     * @param minDelay   the minimum delay before hedging
+     * @param maxDelay   the maximum delay before hedging
+     */
+    public Hedging(double percentile, Duration minDelay, Duration maxDelay) {
+        this(percentile, minDelay, maxDelay, 10, 0.1);
+    }
+
+    /**
+     * @param percentile        the percentile of the recent latencies after which a call is hedged, between 0 and 100 (exclusive)
+     * @param minDelay          the minimum delay before hedging
+     * @param maxDelay          the maximum delay before hedging
+     * @param maxHedgesInFlight the maximum number of hedges running at the same time
+     * @param maxHedgeRatio     the maximum ratio of hedges to calls, between 0 and 1
+     */
+    public Hedging(double percentile, Duration minDelay, Duration maxDelay, int maxHedgesInFlight, double maxHedgeRatio) {
+        this(percentile, minDelay, maxDelay, maxHedgesInFlight, maxHedgeRatio, null);
+    }
+
+    Hedging(double percentile, Duration minDelay, Duration maxDelay, int maxHedgesInFlight, double maxHedgeRatio, Timer timer) {
+        if (!(percentile > 0 && percentile < 100)) {
+            throw new IllegalArgumentException("percentile must be between 0 and 100");
+        }
+        Objects.requireNonNull(minDelay, "minDelay cannot be null");
+        Objects.requireNonNull(maxDelay, "maxDelay cannot be null");
+        if (minDelay.isNegative() || maxDelay.compareTo(minDelay) < 0) {
+            throw new IllegalArgumentException("invalid delays");
+        }
+        if (maxHedgesInFlight < 1) {
+            throw new IllegalArgumentException("maxHedgesInFlight must be at least 1");
+        }
+        if (!(maxHedgeRatio > 0 && maxHedgeRatio <= 1)) {
+            throw new IllegalArgumentException("maxHedgeRatio must be between 0 and 1");
+        }
+        this.percentile = percentile;
+        this.minDelay = minDelay.toNanos();
+        this.maxDelay = maxDelay.toNanos();
+        this.maxHedgesInFlight = maxHedgesInFlight;
+        this.tokensPerCall = Math.max(1, (long) (maxHedgeRatio * TOKEN));
+        this.timer = timer != null ? timer : Timer.SCHEDULED;
+        this.delay = this.maxDelay;
+    }
+
+    /**
+     * @return the current delay before hedging a call
+     */
+    public Duration getDelay() {
+        return Duration.ofNanos(delay);
+    }
+
+    /**
+     * @return the number of hedges sent
+     */
+    public long getHedges() {
+        return hedges.sum();
+    }
+
+    /**
+     * @return the number of hedges whose response has been returned
+     */
+    public long getHedgeWins() {
+        return hedgeWins.sum();
+    }
+
+    /**
+     * @return the number of hedges not sent because of the limits
+     */
+    public long getSkippedHedges() {
+        return skippedHedges.sum();
+    }
+
+    /**
+     * Run a call, hedging it if it's too slow.
+     *
+     * @param call    the call
+     * @param hedge   send the hedge, return null if it cannot be sent
+     * @param isFinal if a response can be returned, otherwise the other call is awaited
+     */
+    <R> CompletableFuture<R> run(Supplier<CompletableFuture<R>> call, Supplier<CompletableFuture<R>> hedge, Predicate<R> isFinal) {
+        addTokens();
+        long start = timer.nanoTime();
+        CompletableFuture<R> first = call.get();
+        if (first.isDone()) {
+            record(timer.nanoTime() - start);
+            return first;
+        }
+        Race<R> race = new Race<>(first, isFinal, start);
+        first.whenComplete((response, throwable) -> race.onComplete(first, response, throwable));
+        timer.delay(delay).thenRun(() -> {
+            CompletableFuture<R> second = race.startHedge(hedge);
+            if (second != null) {
+                second.whenComplete((response, throwable) -> {
+                    inFlight.decrementAndGet();
+                    race.onComplete(second, response, throwable);
+                });
+            }
+        });
+        return race.result;
+    }
+
+    private final class Race<R> {
+
+        private final CompletableFuture<R> first;
+        private final Predicate<R> isFinal;
+        private final long start;
+        private final CompletableFuture<R> result = new CompletableFuture<>();
+        // guarded by this
+        private CompletableFuture<R> second;
+        private boolean recorded;
+        private boolean done;
+        private R firstResponse;
+        private Throwable firstFailure;
+
+        Race(CompletableFuture<R> first, Predicate<R> isFinal, long start) {
+            this.first = first;
+            this.isFinal = isFinal;
+            this.start = start;
+        }
+
+        synchronized CompletableFuture<R> startHedge(Supplier<CompletableFuture<R>> hedge) {
+            if (done || first.isDone()) {
+                return null;
+            }
+            if (!tryStart()) {
+                skippedHedges.increment();
+                return null;
+            }
+            CompletableFuture<R> s;
+            try {
+                s = hedge.get();
+            } catch (RuntimeException e) {
+                s = null;
+            }
+            if (s == null) {
+                cancelStart();
+                skippedHedges.increment();
+                return null;
+            }
+            hedges.increment();
+            second = s;
+            return s;
+        }
+
+        void onComplete(CompletableFuture<R> source, R response, Throwable throwable) {
+            CompletableFuture<R> loser;
+            boolean ok;
+            synchronized (this) {
+                if (done) {
+                    return;
+                }
+                boolean fromFirst = source == first;
+                if (!recorded) {
+                    // when the hedge wins, the latency of the first call is at least the elapsed time
+                    recorded = true;
+                    record(timer.nanoTime() - start);
+                }
+                ok = throwable == null && isFinal.test(response);
+                if (fromFirst) {
+                    firstResponse = response;
+                    firstFailure = throwable;
+                }
+                CompletableFuture<R> other = fromFirst ? second : first;
+                if (!ok && other != null && !other.isDone()) {
+                    return;
+                }
+                done = true;
+                if (ok && !fromFirst) {
+                    hedgeWins.increment();
+                }
+                loser = other;
+            }
+            if (loser != null && !loser.isDone()) {
+                loser.cancel(false);
+            }
+            // the loser is cancelled first, so that it's not running anymore when the caller gets the response
+            if (ok) {
+                complete(response, null);
+            } else {
+                complete(firstResponse, firstFailure);
+            }
+        }
+
+        private void complete(R response, Throwable throwable) {
+            if (throwable != null) {
+                result.completeExceptionally(Utils.unwrap(throwable));
+            } else {
+                result.complete(response);
+            }
+        }
+    }
+
+    private void addTokens() {
+        while (true) {
+            long current = tokens.get();
+            if (current >= MAX_TOKENS || tokens.compareAndSet(current, Math.min(MAX_TOKENS, current + tokensPerCall))) {
+                return;
+            }
+        }
+    }
+
+    private boolean tryStart() {
+        while (true) {
+            long current = tokens.get();
+            if (current < TOKEN) {
+                return false;
+            }
+            if (tokens.compareAndSet(current, current - TOKEN)) {
+                break;
+            }
+        }
+        if (inFlight.incrementAndGet() > maxHedgesInFlight) {
+            cancelStart();
+            return false;
+        }
+        return true;
+    }
+
+    private void cancelStart() {
+        inFlight.decrementAndGet();
+        tokens.addAndGet(TOKEN);
+    }
+
+    void record(long latency) {
+        long n = recorded.getAndIncrement();
+        latencies.set((int) (n % WINDOW), Math.max(0, latency));
+        n++;
+        if (n == MIN_SAMPLES || (n > MIN_SAMPLES && n % RECOMPUTE_EVERY == 0)) {
+            int size = (int) Math.min(n, WINDOW);
+            long[] sorted = new long[size];
+            for (int i = 0; i < size; i++) {
+                sorted[i] = latencies.get(i);
+            }
+            Arrays.sort(sorted);
+            long value = sorted[Math.max(0, (int) Math.ceil(percentile / 100 * size) - 1)];
+            delay = Math.max(minDelay, Math.min(maxDelay, value));
+        }
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Authenticator;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.net.Proxy;
+import java.net.Socket;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A persistent HTTP/1.1 connection of a {@link ConnectionPool}, for posting the documents of the blocking fetcher.
+ * <p>
+ * The response body is always fully read, so the connection can be reused unless the server asked for closing it.
+ * Over a {@link Proxy.Type#HTTP} proxy, the https connections are tunneled with CONNECT. A proxy asking for
+ * authentication gets the Basic credentials of the default {@link Authenticator}, like with
+ * {@link java.net.HttpURLConnection}.
+ */
+final class HttpConnection {
+
+    private static final int MAX_LINE_LENGTH = 8192;
+
+    /**
+     * The destination of the connections: the pool reuses a connection only for the same route.
+     */
+    static final class Route {
+        final boolean https;
+        final String host;
+        final int port;
+        final Proxy proxy;
+        // null for http
+        final SSLSocketFactory sslSocketFactory;
+
+        Route(URL url, Proxy proxy, SSLSocketFactory sslSocketFactory) {
+            String protocol = url.getProtocol().toLowerCase(Locale.ROOT);
+            if (!"http".equals(protocol) && !"https".equals(protocol)) {
+                throw new IllegalArgumentException("Unsupported protocol: " + protocol);
+            }
+            this.https = "https".equals(protocol);
+            this.host = url.getHost();
+            this.port = url.getPort() != -1 ? url.getPort() : url.getDefaultPort();
+            this.proxy = proxy;
+            this.sslSocketFactory = https ? sslSocketFactory : null;
+        }
+
+        String hostHeader() {
+            return port == (https ? 443 : 80) ? host : host + ":" + port;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Route)) {
+                return false;
+            }
+            Route other = (Route) o;
+            return https == other.https && port == other.port && host.equals(other.host) && proxy.equals(other.proxy)
+                    && sslSocketFactory == other.sslSocketFactory;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(https, host, port, proxy, sslSocketFactory);
+        }
+
+        @Override
+        public String toString() {
+            return (https ? "https://" : "http://") + hostHeader() + (proxy.type() != Proxy.Type.DIRECT ? " via " + proxy : "");
+        }
+    }
+
+    static final class Response {
+        final int status;
+        final byte[] body;
+        // the Location and Proxy-Authenticate headers, if any
+        final String location;
+        final String proxyAuthenticate;
+
+        Response(int status, byte[] body, String location, String proxyAuthenticate) {
+            this.status = status;
+            this.body = body;
+            this.location = location;
+            this.proxyAuthenticate = proxyAuthenticate;
+        }
+    }
+
+    final Route route;
+    private final Socket socket;
+    private final InputStream in;
+    private final OutputStream out;
+
+    // managed by the pool
+    boolean reused;
+    long idleSince;
+    // the keep alive timeout announced by the last response, none by default
+    long keepAliveNanos = Long.MAX_VALUE;
+
+    // false once the server asked for closing, or the body was delimited by the end of the stream
+    private boolean reusable = true;
+    private boolean responseStarted;
+
+    private HttpConnection(Route route, Socket socket) throws IOException {
+        this.route = route;
+        this.socket = socket;
+        this.in = new BufferedInputStream(socket.getInputStream());
+        this.out = new BufferedOutputStream(socket.getOutputStream());
+    }
+
+    /**
+     * Connect, through the proxy if any, and do the TLS handshake for https.
+     */
+    static HttpConnection open(Route route, int connectTimeoutMillis) throws IOException {
+        Socket socket = connect(route, connectTimeoutMillis);
+        try {
+            if (route.https) {
+                if (route.proxy.type() == Proxy.Type.HTTP) {
+                    String challenge = tunnel(socket, route, null);
+                    if (challenge != null) {
+                        // the proxies usually close the connection after a 407: retry on a new one
+                        String authorization = proxyAuthorization(route, challenge);
+                        socket.close();
+                        socket = connect(route, connectTimeoutMillis);
+                        if (tunnel(socket, route, authorization) != null) {
+                            throw new IOException("Proxy authentication failed for " + route.proxy);
+                        }
+                    }
+                }
+                SSLSocket ssl = (SSLSocket) route.sslSocketFactory.createSocket(socket, route.host, route.port, true);
+                SSLParameters parameters = ssl.getSSLParameters();
+                parameters.setEndpointIdentificationAlgorithm("HTTPS");
+                ssl.setSSLParameters(parameters);
+                ssl.startHandshake();
+                socket = ssl;
+            }
+            return new HttpConnection(route, socket);
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private static Socket connect(Route route, int connectTimeoutMillis) throws IOException {
+        Proxy proxy = route.proxy;
+        Socket socket = proxy.type() == Proxy.Type.SOCKS ? new Socket(proxy) : new Socket();
+        try {
+            if (proxy.type() == Proxy.Type.HTTP) {
+                socket.connect(proxy.address(), connectTimeoutMillis);
+            } else if (proxy.type() == Proxy.Type.SOCKS) {
+                socket.connect(InetSocketAddress.createUnresolved(route.host, route.port), connectTimeoutMillis);
+            } else {
+                socket.connect(new InetSocketAddress(route.host, route.port), connectTimeoutMillis);
+            }
+            socket.setTcpNoDelay(true);
+            // the tunnel and the handshake are bounded by the connect timeout too
+            socket.setSoTimeout(connectTimeoutMillis);
+            return socket;
+        } catch (IOException | RuntimeException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return null if the tunnel is established, the Proxy-Authenticate challenge if the proxy answered 407
+     */
+    private static String tunnel(Socket socket, Route route, String proxyAuthorization) throws IOException {
+        String target = route.host + ":" + route.port;
+        StringBuilder request = new StringBuilder("CONNECT ").append(target).append(" HTTP/1.1\r\nHost: ").append(target).append("\r\n");
+        if (proxyAuthorization != null) {
+            request.append("Proxy-Authorization: ").append(proxyAuthorization).append("\r\n");
+        }
+        OutputStream os = socket.getOutputStream();
+        os.write(request.append("\r\n").toString().getBytes(StandardCharsets.ISO_8859_1));
+        os.flush();
+        // not buffered: nothing must be read past the headers, the TLS handshake follows
+        InputStream is = socket.getInputStream();
+        int status = parseStatus(readLine(is));
+        String challenge = "";
+        String line;
+        while (!(line = readLine(is)).isEmpty()) {
+            if (line.regionMatches(true, 0, "Proxy-Authenticate:", 0, 19)) {
+                challenge = line.substring(19).trim();
+            }
+        }
+        if (status == 407) {
+            return challenge;
+        } else if (status != 200) {
+            throw new IOException("Unable to tunnel through the proxy, status " + status);
+        }
+        return null;
+    }
+
+    /**
+     * Ask the default {@link Authenticator} for the credentials of the proxy.
+     *
+     * @param challenge the Proxy-Authenticate header, e.g. <code>Basic realm="proxy"</code>
+     * @return the Proxy-Authorization header
+     * @throws IOException if the scheme is not Basic, or there are no credentials
+     */
+    static String proxyAuthorization(Route route, String challenge) throws IOException {
+        if (challenge == null || !challenge.regionMatches(true, 0, "Basic", 0, 5)) {
+            throw new IOException("Proxy authentication required by " + route.proxy + ", only the Basic scheme is supported");
+        }
+        InetSocketAddress address = (InetSocketAddress) route.proxy.address();
+        PasswordAuthentication credentials = Authenticator.requestPasswordAuthentication(address.getHostString(),
+                address.getAddress(), address.getPort(), "http", realm(challenge), "Basic", null, Authenticator.RequestorType.PROXY);
+        if (credentials == null) {
+            throw new IOException("Proxy authentication required by " + route.proxy + ", no credentials from the default Authenticator");
+        }
+        String userPassword = credentials.getUserName() + ":" + new String(credentials.getPassword());
+        return "Basic " + Base64.getEncoder().encodeToString(userPassword.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // Basic realm="proxy"
+    private static String realm(String challenge) {
+        int start = challenge.indexOf("realm=\"");
+        int end = start >= 0 ? challenge.indexOf('"', start + 7) : -1;
+        return end >= 0 ? challenge.substring(start + 7, end) : "";
+    }
+
+    /**
+     * Post the document and read the whole response.
+     *
+     * @param proxyAuthorization the Proxy-Authorization header for a request through a http proxy, null if none
+     * @param metrics            where to report the first byte timing, null if not needed
+     * @param start              the {@link System#nanoTime()} when the call started, if measured
+     */
+    Response post(URL url, String contentType, byte[] document, boolean keepAlive, String proxyAuthorization, int readTimeoutMillis, CallMetrics metrics, long start) throws IOException {
+        socket.setSoTimeout(readTimeoutMillis);
+        responseStarted = false;
+        boolean absolute = route.proxy.type() == Proxy.Type.HTTP && !route.https;
+        String file = url.getFile().isEmpty() ? "/" : url.getFile();
+        StringBuilder head = new StringBuilder(256)
+                .append("POST ").append(absolute ? url.getProtocol() + "://" + route.hostHeader() + file : file).append(" HTTP/1.1\r\n")
+                .append("Host: ").append(route.hostHeader()).append("\r\n")
+                .append("Content-Type: ").append(contentType).append("\r\n")
+                .append("Content-Length: ").append(document.length).append("\r\n")
+                .append("Accept: */*\r\n");
+        if (absolute && proxyAuthorization != null) {
+            head.append("Proxy-Authorization: ").append(proxyAuthorization).append("\r\n");
+        }
+        if (!keepAlive) {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+        out.write(document);
+        out.flush();
+
+        int status;
+        long contentLength;
+        boolean chunked;
+        String location;
+        String proxyAuthenticate;
+        // skip the interim responses, e.g. 100 Continue
+        do {
+            String statusLine = readLine(in);
+            responseStarted = true;
+            status = parseStatus(statusLine);
+            if (metrics != null) {
+                metrics.firstByteNanos = metrics.elapsed(start);
+            }
+            boolean http10 = statusLine.startsWith("HTTP/1.0");
+            reusable = keepAlive && !http10;
+            contentLength = -1;
+            chunked = false;
+            location = null;
+            proxyAuthenticate = null;
+            keepAliveNanos = Long.MAX_VALUE;
+            String line;
+            while (!(line = readLine(in)).isEmpty()) {
+                int colon = line.indexOf(':');
+                if (colon <= 0) {
+                    continue;
+                }
+                String name = line.substring(0, colon).trim().toLowerCase(Locale.ROOT);
+                String value = line.substring(colon + 1).trim();
+                if ("content-length".equals(name)) {
+                    contentLength = parseLong(value);
+                } else if ("transfer-encoding".equals(name)) {
+                    chunked = value.toLowerCase(Locale.ROOT).endsWith("chunked");
+                } else if ("connection".equals(name)) {
+                    String v = value.toLowerCase(Locale.ROOT);
+                    reusable = reusable ? !v.contains("close") : http10 && keepAlive && v.contains("keep-alive");
+                } else if ("keep-alive".equals(name)) {
+                    keepAliveNanos = parseKeepAliveTimeout(value);
+                } else if ("location".equals(name)) {
+                    location = value;
+                } else if ("proxy-authenticate".equals(name)) {
+                    proxyAuthenticate = value;
+                }
+            }
+        } while (status >= 100 && status < 200);
+
+        byte[] body;
+        if (status == 204 || status == 304) {
+            body = new byte[0];
+        } else if (chunked) {
+            body = readChunked();
+        } else if (contentLength >= 0) {
+            if (contentLength > Integer.MAX_VALUE - 8) {
+                throw new IOException("Response too large");
+            }
+            body = in.readNBytes((int) contentLength);
+            if (body.length != contentLength) {
+                throw new EOFException("Truncated response");
+            }
+        } else {
+            // delimited by the end of the stream
+            reusable = false;
+            body = in.readAllBytes();
+        }
+        return new Response(status, body, location, proxyAuthenticate);
+    }
+
+    private byte[] readChunked() throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        while (true) {
+            String line = readLine(in);
+            int extension = line.indexOf(';');
+            long size;
+            try {
+                size = Long.parseLong((extension >= 0 ? line.substring(0, extension) : line).trim(), 16);
+            } catch (NumberFormatException e) {
+                throw new IOException("Invalid chunk size: " + line);
+            }
+            if (size == 0) {
+                // skip the trailers
+                while (!readLine(in).isEmpty()) {
+                    // nothing to do
+                }
+                return body.toByteArray();
+            }
+            if (size > Integer.MAX_VALUE - 8 - body.size()) {
+                throw new IOException("Response too large");
+            }
+            byte[] chunk = in.readNBytes((int) size);
+            if (chunk.length != size) {
+                throw new EOFException("Truncated response");
+            }
+            body.write(chunk);
+            if (!readLine(in).isEmpty()) {
+                throw new IOException("Invalid chunk");
+            }
+        }
+    }
+
+    /**
+     * @return true if the connection can be reused for another request
+     */
+    boolean isReusable() {
+        return reusable && !socket.isClosed();
+    }
+
+    /**
+     * @return true if the last request failed before receiving anything: on a reused connection, it was most likely
+     * closed by the server while idle
+     */
+    boolean isResponseStarted() {
+        return responseStarted;
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // nothing to do
+        }
+    }
+
+    // ISO-8859-1 line without the CRLF
+    private static String readLine(InputStream is) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            int c = is.read();
+            if (c == -1) {
+                throw new EOFException("Connection closed by the server");
+            } else if (c == '\n') {
+                int length = sb.length();
+                return length > 0 && sb.charAt(length - 1) == '\r' ? sb.substring(0, length - 1) : sb.toString();
+            } else if (sb.length() == MAX_LINE_LENGTH) {
+                throw new IOException("Header line too long");
+            }
+            sb.append((char) c);
+        }
+    }
+
+    private static int parseStatus(String statusLine) throws IOException {
+        // HTTP/1.1 200 OK
+        if (!statusLine.startsWith("HTTP/1.") || statusLine.length() < 12) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+        try {
+            return Integer.parseInt(statusLine.substring(9, 12));
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid status line: " + statusLine);
+        }
+    }
+
+    private static long parseLong(String value) throws IOException {
+        try {
+            long l = Long.parseLong(value);
+            if (l < 0) {
+                throw new IOException("Invalid Content-Length: " + value);
+            }
+            return l;
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid Content-Length: " + value);
+        }
+    }
+
+    // Keep-Alive: timeout=5, max=100
+    private static long parseKeepAliveTimeout(String value) {
+        for (String part : value.split(",")) {
+            String p = part.trim();
+            if (p.regionMatches(true, 0, "timeout=", 0, 8)) {
+                try {
+                    return TimeUnit.SECONDS.toNanos(Long.parseLong(p.substring(8).trim()));
+                } catch (NumberFormatException e) {
+                    return Long.MAX_VALUE;
+                }
+            }
+        }
+        return Long.MAX_VALUE;
+    }
+}
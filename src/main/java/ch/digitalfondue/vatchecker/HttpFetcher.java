@@ -0,0 +1,294 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The default document fetchers, configured by a {@link FetcherConfig}: the blocking one posts over the
+ * connections of the {@link ConnectionPool}, the async one uses {@link HttpClient}.
+ * <p>
+ * The deadlines are absolute {@link System#nanoTime()} values, or {@link Utils#NO_DEADLINE}.
+ */
+final class HttpFetcher {
+
+    static final HttpFetcher DEFAULT = new HttpFetcher(FetcherConfig.defaultConfig());
+
+    // like HttpClient
+    private static final int MAX_REDIRECTS = 5;
+
+    private final FetcherConfig config;
+    // lazily created, so the users of the blocking api only don't pay for it
+    private volatile HttpClient client;
+
+    HttpFetcher(FetcherConfig config) {
+        this.config = config;
+    }
+
+    DeadlineAwareFetcher<InputStream> blocking() {
+        return this::fetch;
+    }
+
+    DeadlineAwareFetcher<CompletableFuture<InputStream>> async() {
+        return this::fetchAsync;
+    }
+
+    InputStream fetch(String endpointUrl, String document, long deadline) {
+        return fetch(endpointUrl, document, deadline, null);
+    }
+
+    InputStream fetch(String endpointUrl, String document, long deadline, CallMetrics metrics) {
+        deadline = withRequestTimeout(deadline);
+        if (Utils.remainingNanos(deadline) <= 0) {
+            throw new IllegalStateException(deadlineExceeded());
+        }
+        long start = metrics != null ? System.nanoTime() : 0;
+        try {
+            URL url = new URL(endpointUrl);
+            byte[] body = document.getBytes(StandardCharsets.UTF_8);
+            ConnectionPool pool = config.getConnectionPool();
+            String proxyAuthorization = null;
+            int redirects = 0;
+            while (true) {
+                HttpConnection.Route route = new HttpConnection.Route(url, proxy(url), config.getSslSocketFactory());
+                HttpConnection connection = pool.lease(route, toMillis(config.getConnectTimeout(), Utils.remainingNanos(deadline)), config.getReadTimeout().toNanos(), deadline);
+                HttpConnection.Response response;
+                boolean reusable = false;
+                try {
+                    response = exchange(connection, url, document, body, proxyAuthorization, deadline, metrics, start);
+                    reusable = true;
+                } catch (IOException e) {
+                    // a reused connection failing before any response was most likely closed by the server while
+                    // idle, like the older idle ones: retry on a new connection. Not after a timeout, the request may
+                    // be processed
+                    if (!connection.reused || connection.isResponseStarted() || e instanceof SocketTimeoutException || Utils.remainingNanos(deadline) <= 0) {
+                        throw e;
+                    }
+                    pool.evictIdle(route);
+                    continue;
+                } finally {
+                    pool.release(connection, reusable);
+                }
+                if (response.status == 407) {
+                    if (proxyAuthorization != null || route.proxy.type() != Proxy.Type.HTTP) {
+                        throw new IOException("Proxy authentication failed for " + route.proxy);
+                    }
+                    proxyAuthorization = HttpConnection.proxyAuthorization(route, response.proxyAuthenticate);
+                } else if ((response.status == 307 || response.status == 308) && response.location != null && redirects < MAX_REDIRECTS) {
+                    redirects++;
+                    url = redirect(url, response.location);
+                } else {
+                    if (metrics != null) {
+                        metrics.responseBytes = response.body.length;
+                    }
+                    // the body is fully received here, so the deadline also covers it
+                    return new ByteArrayInputStream(responseBody(url, response));
+                }
+            }
+        } catch (IOException e) {
+            if (deadline != Utils.NO_DEADLINE && Utils.remainingNanos(deadline) <= 0) {
+                throw new IllegalStateException(deadlineExceeded());
+            }
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // the faults come with an error status: their body is parsed like the async fetcher does. Without a body, it's an
+    // error like with HttpURLConnection
+    private static byte[] responseBody(URL url, HttpConnection.Response response) throws IOException {
+        int status = response.status;
+        if (status >= 300 && status < 400) {
+            throw new IOException("Server returned HTTP response code: " + status + " for URL: " + url + ", redirecting to "
+                    + response.location + ": a POST is only redirected with 307 and 308");
+        }
+        if (status >= 400 && response.body.length == 0) {
+            throw new IOException("Server returned HTTP response code: " + status + " for URL: " + url);
+        }
+        return response.body;
+    }
+
+    // like HttpClient.Redirect.NORMAL, never from https to http
+    private static URL redirect(URL url, String location) throws IOException {
+        URL target = new URL(url, location);
+        if ("https".equalsIgnoreCase(url.getProtocol()) && !"https".equalsIgnoreCase(target.getProtocol())) {
+            throw new IOException("Redirect from " + url + " to " + target + " not followed");
+        }
+        return target;
+    }
+
+    private HttpConnection.Response exchange(HttpConnection connection, URL url, String document, byte[] body, String proxyAuthorization, long deadline, CallMetrics metrics, long start) throws IOException {
+        long remaining = Utils.remainingNanos(deadline);
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("deadline exceeded");
+        }
+        // the connect and read timeouts only bound each blocking operation: the connection is closed on expiry for
+        // enforcing the whole deadline
+        ScheduledFuture<?> watchdog = null;
+        if (deadline != Utils.NO_DEADLINE) {
+            watchdog = Timer.SchedulerHolder.SCHEDULER.schedule(connection::close, remaining, TimeUnit.NANOSECONDS);
+        }
+        try {
+            if (metrics != null) {
+                metrics.connectNanos = metrics.elapsed(start);
+            }
+            return connection.post(url, contentType(document), body, config.isKeepAlive(), proxyAuthorization, toMillis(config.getReadTimeout(), remaining), metrics, start);
+        } finally {
+            if (watchdog != null) {
+                watchdog.cancel(false);
+            }
+        }
+    }
+
+    CompletableFuture<InputStream> fetchAsync(String endpointUrl, String document, long deadline) {
+        return fetchAsync(endpointUrl, document, deadline, null);
+    }
+
+    CompletableFuture<InputStream> fetchAsync(String endpointUrl, String document, long deadline, CallMetrics metrics) {
+        deadline = withRequestTimeout(deadline);
+        long remaining = Utils.remainingNanos(deadline);
+        if (remaining <= 0) {
+            return CompletableFuture.failedFuture(new IllegalStateException(deadlineExceeded()));
+        }
+        // the request timeout covers the wait for the response headers
+        HttpRequest request = HttpRequest.newBuilder(URI.create(endpointUrl))
+                .timeout(Duration.ofNanos(Math.min(config.getReadTimeout().toNanos(), remaining)))
+                .header("Content-Type", contentType(document))
+                .POST(HttpRequest.BodyPublishers.ofString(document, StandardCharsets.UTF_8))
+                .build();
+        // the body is fully received before completing, so the parsing never blocks on the network
+        HttpResponse.BodyHandler<byte[]> bodyHandler = HttpResponse.BodyHandlers.ofByteArray();
+        if (metrics != null) {
+            long start = System.nanoTime();
+            HttpResponse.BodyHandler<byte[]> handler = bodyHandler;
+            // called when the response headers have been received
+            bodyHandler = info -> {
+                metrics.firstByteNanos = metrics.elapsed(start);
+                return handler.apply(info);
+            };
+        }
+        CompletableFuture<HttpResponse<byte[]>> response = client().sendAsync(request, bodyHandler);
+        if (deadline != Utils.NO_DEADLINE) {
+            response = response.orTimeout(remaining, TimeUnit.NANOSECONDS);
+        }
+        return response.handle((res, throwable) -> {
+            if (throwable != null) {
+                Throwable cause = Utils.unwrap(throwable);
+                throw new CompletionException(cause instanceof RuntimeException ? cause : new IllegalStateException(cause));
+            }
+            if (metrics != null) {
+                metrics.responseBytes = res.body().length;
+            }
+            return new ByteArrayInputStream(res.body());
+        });
+    }
+
+    /**
+     * The documents are either SOAP envelopes, or JSON objects for {@link VatTransport#REST}.
+     */
+    static String contentType(String document) {
+        return !document.isEmpty() && document.charAt(0) == '{' ? "application/json" : "text/xml;charset=UTF-8";
+    }
+
+    private HttpClient client() {
+        HttpClient c = client;
+        if (c == null) {
+            synchronized (this) {
+                c = client;
+                if (c == null) {
+                    HttpClient.Builder builder = HttpClient.newBuilder()
+                            .version(HttpClient.Version.HTTP_2)
+                            .followRedirects(HttpClient.Redirect.NORMAL)
+                            .connectTimeout(config.getConnectTimeout());
+                    if (config.getSslContext() != null) {
+                        builder.sslContext(config.getSslContext());
+                    }
+                    Proxy proxy = config.getProxy();
+                    if (proxy == null) {
+                        ProxySelector selector = ProxySelector.getDefault();
+                        if (selector != null) {
+                            builder.proxy(selector);
+                        }
+                    } else if (proxy.type() == Proxy.Type.HTTP) {
+                        builder.proxy(ProxySelector.of((InetSocketAddress) proxy.address()));
+                    } else if (proxy.type() == Proxy.Type.DIRECT) {
+                        builder.proxy(HttpClient.Builder.NO_PROXY);
+                    } else {
+                        throw new IllegalStateException("Unsupported proxy type for the async fetcher: " + proxy.type());
+                    }
+                    c = builder.build();
+                    client = c;
+                }
+            }
+        }
+        return c;
+    }
+
+    // the proxy of the configuration, otherwise the one of the default ProxySelector, like HttpURLConnection
+    private Proxy proxy(URL url) throws IOException {
+        Proxy proxy = config.getProxy();
+        if (proxy != null) {
+            return proxy;
+        }
+        ProxySelector selector = ProxySelector.getDefault();
+        if (selector == null) {
+            return Proxy.NO_PROXY;
+        }
+        try {
+            List<Proxy> proxies = selector.select(url.toURI());
+            return proxies == null || proxies.isEmpty() ? Proxy.NO_PROXY : proxies.get(0);
+        } catch (URISyntaxException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private long withRequestTimeout(long deadline) {
+        Duration requestTimeout = config.getRequestTimeout();
+        if (requestTimeout == null) {
+            return deadline;
+        }
+        long timeout = Utils.deadlineAfter(requestTimeout);
+        return deadline == Utils.NO_DEADLINE || timeout - deadline < 0 ? timeout : deadline;
+    }
+
+    private static int toMillis(Duration timeout, long remainingNanos) {
+        long millis = TimeUnit.NANOSECONDS.toMillis(Math.min(timeout.toNanos(), remainingNanos));
+        // 0 means no timeout for the sockets
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, millis));
+    }
+
+    private static SocketTimeoutException deadlineExceeded() {
+        return new SocketTimeoutException("deadline exceeded");
+    }
+}
@@ -0,0 +1,535 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A minimal streaming JSON tokenizer (RFC 8259), for the VIES REST api.
+ * <p>
+ * It's a pull parser: the caller asks for the next token it expects, nothing is materialized except the requested
+ * strings. The values that are not needed are skipped with {@link #skipValue()}. A malformed document fails with a
+ * {@link MalformedJsonException}.
+ * <p>
+ * The input is read as bytes: the document must be UTF-8, as required by the RFC. The structure is ASCII, only the
+ * strings that are returned are decoded, most of the time straight from the read buffer.
+ */
+final class JsonReader {
+
+    enum Token {
+        BEGIN_OBJECT,
+        END_OBJECT,
+        BEGIN_ARRAY,
+        END_ARRAY,
+        NAME,
+        STRING,
+        NUMBER,
+        BOOLEAN,
+        NULL,
+        END_DOCUMENT
+    }
+
+    // the kind of the enclosing containers
+    private static final byte EMPTY_OBJECT = 1;
+    private static final byte OBJECT = 2; // after the first member
+    private static final byte OBJECT_VALUE = 3; // after a name
+    private static final byte EMPTY_ARRAY = 4;
+    private static final byte ARRAY = 5;
+    private static final int MAX_DEPTH = 64;
+
+    private final InputStream in;
+    private final byte[] buffer = new byte[1024];
+    private int pos;
+    private int limit;
+
+    private final byte[] stack = new byte[MAX_DEPTH];
+    private int depth;
+    private boolean rootRead;
+    private final StringBuilder sb = new StringBuilder();
+    // the raw bytes of a string spanning several reads, not decoded yet
+    private byte[] pending = new byte[64];
+    private int pendingLength;
+
+    // the token returned by peek, not consumed yet
+    private Token peeked;
+
+    JsonReader(InputStream in) {
+        this.in = in;
+    }
+
+    static class MalformedJsonException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        MalformedJsonException(String message) {
+            super(message);
+        }
+    }
+
+    Token peek() throws IOException {
+        if (peeked == null) {
+            peeked = doPeek();
+        }
+        return peeked;
+    }
+
+    void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        push(EMPTY_OBJECT);
+    }
+
+    void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        depth--;
+    }
+
+    void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        push(EMPTY_ARRAY);
+    }
+
+    void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        depth--;
+    }
+
+    /**
+     * @return true if the current object or array has another member
+     */
+    boolean hasNext() throws IOException {
+        Token t = peek();
+        return t != Token.END_OBJECT && t != Token.END_ARRAY && t != Token.END_DOCUMENT;
+    }
+
+    String nextName() throws IOException {
+        expect(Token.NAME);
+        String name = readString();
+        stack[depth - 1] = OBJECT_VALUE;
+        return name;
+    }
+
+    String nextString() throws IOException {
+        Token t = peek();
+        if (t == Token.STRING) {
+            peeked = null;
+            return readString();
+        } else if (t == Token.NUMBER || t == Token.BOOLEAN) {
+            peeked = null;
+            return readLiteral();
+        }
+        throw unexpected(t, Token.STRING);
+    }
+
+    boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        return "true".equals(readLiteral());
+    }
+
+    void nextNull() throws IOException {
+        expect(Token.NULL);
+        readLiteral();
+    }
+
+    /**
+     * Skip the next value, including the nested objects and arrays.
+     */
+    void skipValue() throws IOException {
+        int level = 0;
+        do {
+            Token t = peek();
+            switch (t) {
+                case BEGIN_OBJECT:
+                    beginObject();
+                    level++;
+                    break;
+                case BEGIN_ARRAY:
+                    beginArray();
+                    level++;
+                    break;
+                case END_OBJECT:
+                    endObject();
+                    level--;
+                    break;
+                case END_ARRAY:
+                    endArray();
+                    level--;
+                    break;
+                case NAME:
+                    peeked = null;
+                    skipString();
+                    stack[depth - 1] = OBJECT_VALUE;
+                    break;
+                case STRING:
+                    peeked = null;
+                    skipString();
+                    break;
+                case NUMBER:
+                case BOOLEAN:
+                case NULL:
+                    peeked = null;
+                    readLiteral();
+                    break;
+                default:
+                    throw unexpected(t, null);
+            }
+        } while (level > 0);
+    }
+
+    private void expect(Token expected) throws IOException {
+        Token t = peek();
+        if (t != expected) {
+            throw unexpected(t, expected);
+        }
+        peeked = null;
+    }
+
+    private void push(byte kind) throws MalformedJsonException {
+        if (depth == MAX_DEPTH) {
+            throw new MalformedJsonException("nesting too deep");
+        }
+        stack[depth++] = kind;
+    }
+
+    private Token doPeek() throws IOException {
+        if (depth == 0) {
+            int c = nextNonWhitespace();
+            if (rootRead) {
+                if (c != -1) {
+                    throw syntaxError("unexpected content after the document");
+                }
+                return Token.END_DOCUMENT;
+            }
+            rootRead = true;
+            return valueToken(c);
+        }
+        byte kind = stack[depth - 1];
+        int c = nextNonWhitespace();
+        switch (kind) {
+            case EMPTY_OBJECT:
+            case OBJECT:
+                if (c == '}') {
+                    pos++;
+                    return Token.END_OBJECT;
+                }
+                if (kind == OBJECT) {
+                    if (c != ',') {
+                        throw syntaxError("expected ',' or '}'");
+                    }
+                    pos++;
+                    c = nextNonWhitespace();
+                }
+                if (c != '"') {
+                    throw syntaxError("expected a name");
+                }
+                pos++;
+                return Token.NAME;
+            case OBJECT_VALUE:
+                if (c != ':') {
+                    throw syntaxError("expected ':'");
+                }
+                pos++;
+                stack[depth - 1] = OBJECT;
+                return valueToken(nextNonWhitespace());
+            default: // arrays
+                if (c == ']') {
+                    pos++;
+                    return Token.END_ARRAY;
+                }
+                if (kind == ARRAY) {
+                    if (c != ',') {
+                        throw syntaxError("expected ',' or ']'");
+                    }
+                    pos++;
+                    c = nextNonWhitespace();
+                }
+                stack[depth - 1] = ARRAY;
+                return valueToken(c);
+        }
+    }
+
+    // c is the current, not consumed, character
+    private Token valueToken(int c) throws IOException {
+        switch (c) {
+            case '{':
+                pos++;
+                return Token.BEGIN_OBJECT;
+            case '[':
+                pos++;
+                return Token.BEGIN_ARRAY;
+            case '"':
+                pos++;
+                return Token.STRING;
+            case 't':
+            case 'f':
+                return Token.BOOLEAN;
+            case 'n':
+                return Token.NULL;
+            case -1:
+                throw syntaxError("unexpected end of document");
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) {
+                    return Token.NUMBER;
+                }
+                throw syntaxError("unexpected character '" + (char) c + "'");
+        }
+    }
+
+    /**
+     * @return the next non whitespace character, without consuming it, or -1 at the end of the input
+     */
+    private int nextNonWhitespace() throws IOException {
+        while (true) {
+            if (pos == limit && !fill()) {
+                return -1;
+            }
+            int c = buffer[pos] & 0xff;
+            if (c == ' ' || c == '\n' || c == '\r' || c == '\t') {
+                pos++;
+            } else {
+                return c;
+            }
+        }
+    }
+
+    private boolean fill() throws IOException {
+        int n = in.read(buffer, 0, buffer.length);
+        if (n <= 0) {
+            return false;
+        }
+        pos = 0;
+        limit = n;
+        return true;
+    }
+
+    private int read() throws IOException {
+        if (pos == limit && !fill()) {
+            throw syntaxError("unterminated string");
+        }
+        return buffer[pos++] & 0xff;
+    }
+
+    // the opening quote has been consumed
+    private String readString() throws IOException {
+        sb.setLength(0);
+        pendingLength = 0;
+        while (true) {
+            // the runs without escapes are decoded at once, the multi bytes sequences can't contain '"' or '\\'
+            int start = pos;
+            while (pos < limit) {
+                byte c = buffer[pos];
+                if (c == '"') {
+                    String value;
+                    if (sb.length() == 0 && pendingLength == 0) {
+                        value = new String(buffer, start, pos - start, StandardCharsets.UTF_8);
+                    } else {
+                        addPending(start, pos);
+                        flushPending();
+                        value = sb.toString();
+                    }
+                    pos++;
+                    return value;
+                } else if (c == '\\') {
+                    break;
+                } else if (c >= 0 && c < 0x20) {
+                    throw syntaxError("unescaped control character in string");
+                }
+                pos++;
+            }
+            addPending(start, pos);
+            if (pos < limit) {
+                pos++;
+                flushPending();
+                sb.append(readEscape());
+            } else if (!fill()) {
+                throw syntaxError("unterminated string");
+            }
+        }
+    }
+
+    private void addPending(int start, int end) {
+        int length = end - start;
+        if (pendingLength + length > pending.length) {
+            pending = Arrays.copyOf(pending, Math.max(pending.length * 2, pendingLength + length));
+        }
+        System.arraycopy(buffer, start, pending, pendingLength, length);
+        pendingLength += length;
+    }
+
+    private void flushPending() {
+        if (pendingLength > 0) {
+            sb.append(new String(pending, 0, pendingLength, StandardCharsets.UTF_8));
+            pendingLength = 0;
+        }
+    }
+
+    private void skipString() throws IOException {
+        while (true) {
+            int c = read();
+            if (c == '"') {
+                return;
+            } else if (c == '\\') {
+                readEscape();
+            }
+        }
+    }
+
+    private char readEscape() throws IOException {
+        int c = read();
+        switch (c) {
+            case '"':
+            case '\\':
+            case '/':
+                return (char) c;
+            case 'b':
+                return '\b';
+            case 'f':
+                return '\f';
+            case 'n':
+                return '\n';
+            case 'r':
+                return '\r';
+            case 't':
+                return '\t';
+            case 'u':
+                int value = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(read(), 16);
+                    if (digit < 0) {
+                        throw syntaxError("invalid unicode escape");
+                    }
+                    value = (value << 4) | digit;
+                }
+                return (char) value;
+            default:
+                throw syntaxError("invalid escape");
+        }
+    }
+
+    // numbers, true, false and null
+    private String readLiteral() throws IOException {
+        sb.setLength(0);
+        while (pos < limit || fill()) {
+            byte c = buffer[pos];
+            if ((c >= '0' && c <= '9') || (c >= 'a' && c <= 'z') || c == '-' || c == '+' || c == '.' || c == 'E') {
+                sb.append((char) c);
+                pos++;
+            } else {
+                break;
+            }
+        }
+        String literal = sb.toString();
+        if (!isLiteral(literal)) {
+            throw syntaxError("invalid literal '" + literal + "'");
+        }
+        return literal;
+    }
+
+    private static boolean isLiteral(String s) {
+        if ("true".equals(s) || "false".equals(s) || "null".equals(s)) {
+            return true;
+        }
+        // -?(0|[1-9][0-9]*)(\.[0-9]+)?([eE][+-]?[0-9]+)?
+        int i = 0;
+        int n = s.length();
+        if (i < n && s.charAt(i) == '-') {
+            i++;
+        }
+        if (i < n && s.charAt(i) == '0') {
+            i++;
+        } else {
+            int start = i;
+            while (i < n && isDigit(s.charAt(i))) {
+                i++;
+            }
+            if (i == start) {
+                return false;
+            }
+        }
+        if (i < n && s.charAt(i) == '.') {
+            int start = ++i;
+            while (i < n && isDigit(s.charAt(i))) {
+                i++;
+            }
+            if (i == start) {
+                return false;
+            }
+        }
+        if (i < n && (s.charAt(i) == 'e' || s.charAt(i) == 'E')) {
+            i++;
+            if (i < n && (s.charAt(i) == '+' || s.charAt(i) == '-')) {
+                i++;
+            }
+            int start = i;
+            while (i < n && isDigit(s.charAt(i))) {
+                i++;
+            }
+            if (i == start) {
+                return false;
+            }
+        }
+        return i == n;
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private MalformedJsonException unexpected(Token actual, Token expected) {
+        return new MalformedJsonException("unexpected " + actual + (expected != null ? ", expected " + expected : ""));
+    }
+
+    private MalformedJsonException syntaxError(String message) {
+        return new MalformedJsonException(message);
+    }
+
+    /**
+     * Append the value as a JSON string, with the quotes.
+     */
+    static void appendString(StringBuilder out, String value) {
+        out.append('"');
+        int length = value.length();
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"':
+                    out.append("\\\"");
+                    break;
+                case '\\':
+                    out.append("\\\\");
+                    break;
+                case '\n':
+                    out.append("\\n");
+                    break;
+                case '\r':
+                    out.append("\\r");
+                    break;
+                case '\t':
+                    out.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20 || c == 0x2028 || c == 0x2029) {
+                        out.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        out.append(c);
+                    }
+            }
+        }
+        out.append('"');
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+
+/**
+ * Single pass extractor over a JSON response of the VIES REST api.
+ * <p>
+ * The scalar members of the root object listed as fields are collected, everything else is skipped. An error is
+ * reported either in an errorWrappers array, e.g. <code>{"actionSucceed":false,"errorWrappers":[{"error":"MS_UNAVAILABLE"}]}</code>,
+ * or as a userError which is neither VALID nor INVALID: it's returned as a fault with the code {@link #FAULT_CODE} and
+ * the error as fault string, exactly like a SOAP fault.
+ * <p>
+ * The body must be UTF-8, see {@link JsonReader}.
+ */
+final class JsonResponseExtractor implements ResponseExtractor {
+
+    static final String FAULT_CODE = "rest:Server";
+
+    private final String[][] fields;
+
+    /**
+     * @param fields for each value to extract, in order, the names of the members holding it, by preference,
+     *               e.g. {"valid", "isValid"}
+     */
+    JsonResponseExtractor(String[]... fields) {
+        this.fields = fields;
+    }
+
+    @Override
+    public Utils.ExtractionResult extract(InputStream body, CallMetrics metrics) throws IOException {
+        long start = metrics != null ? System.nanoTime() : 0;
+        String[] values = new String[fields.length];
+        int[] priorities = new int[fields.length];
+        boolean found = false;
+        String error = null;
+        JsonReader json = new JsonReader(body);
+        json.beginObject();
+        while (json.hasNext()) {
+            String name = json.nextName();
+            if ("errorWrappers".equals(name) && json.peek() == JsonReader.Token.BEGIN_ARRAY) {
+                String e = readFirstError(json);
+                error = error == null ? e : error;
+            } else if ("userError".equals(name) && isScalar(json.peek())) {
+                String userError = json.nextString();
+                if (!"VALID".equals(userError) && !"INVALID".equals(userError) && error == null) {
+                    error = userError;
+                }
+            } else {
+                int idx = -1;
+                int priority = 0;
+                for (int i = 0; i < fields.length && idx < 0; i++) {
+                    priority = Arrays.asList(fields[i]).indexOf(name);
+                    idx = priority >= 0 ? i : -1;
+                }
+                if (idx >= 0 && isScalar(json.peek()) && (values[idx] == null || priority < priorities[idx])) {
+                    values[idx] = json.nextString();
+                    priorities[idx] = priority;
+                    found = true;
+                } else if (idx >= 0 && json.peek() == JsonReader.Token.NULL) {
+                    json.nextNull();
+                } else {
+                    json.skipValue();
+                }
+            }
+        }
+        json.endObject();
+        long parsed = metrics != null ? System.nanoTime() : 0;
+        Utils.ExtractionResult result;
+        if (error != null) {
+            result = new Utils.ExtractionResult(false, true, Arrays.asList(FAULT_CODE, error));
+        } else if (found) {
+            result = new Utils.ExtractionResult(true, false, Arrays.asList(values));
+        } else {
+            result = new Utils.ExtractionResult(false, false, Collections.emptyList());
+        }
+        if (metrics != null) {
+            metrics.parseNanos = parsed - start;
+            metrics.extractNanos = metrics.elapsed(parsed);
+        }
+        return result;
+    }
+
+    // the error of the first wrapper, the array is fully consumed
+    private static String readFirstError(JsonReader json) throws IOException {
+        String error = null;
+        json.beginArray();
+        while (json.hasNext()) {
+            if (error != null || json.peek() != JsonReader.Token.BEGIN_OBJECT) {
+                json.skipValue();
+                continue;
+            }
+            json.beginObject();
+            while (json.hasNext()) {
+                if ("error".equals(json.nextName()) && isScalar(json.peek())) {
+                    error = json.nextString();
+                } else {
+                    json.skipValue();
+                }
+            }
+            json.endObject();
+        }
+        json.endArray();
+        return error;
+    }
+
+    private static boolean isScalar(JsonReader.Token token) {
+        return token == JsonReader.Token.STRING || token == JsonReader.Token.BOOLEAN || token == JsonReader.Token.NUMBER;
+    }
+}
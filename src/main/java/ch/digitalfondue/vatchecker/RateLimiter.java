@@ -0,0 +1,253 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A client side rate limiter, with a global and a per country token bucket, see
+ * {@link EUVatChecker#withRateLimiter(RateLimiter)}.
+ * <p>
+ * Each call takes a permit from the bucket of its country and from the global one. When no permit is available the
+ * call waits for the next one (without blocking a thread with the async api), if it's within <code>maxWait</code>,
+ * otherwise the check fails immediately with a fault of type RATE_LIMITED. Use {@link Duration#ZERO} for never waiting.
+ * A check with a deadline that expires before its permit fails immediately with a fault of type TIMEOUT.
+ * <p>
+ * The rates adapt to the quotas of the service: a GLOBAL_MAX_CONCURRENT_REQ (or SERVER_BUSY for the TIN service) fault
+ * halves the global rate, a MS_MAX_CONCURRENT_REQ fault halves the rate of the country, at most once per second. After
+ * that, while the calls are successful, the rate is raised by 5% of the configured one every second, up to the
+ * configured one.
+ * <p>
+ * Use a different instance for {@link EUVatChecker} and {@link EUTinChecker}, as they are different services.
+ */
+public final class RateLimiter {
+
+    private static final double DECREASE_FACTOR = 0.5;
+    private static final double INCREASE_STEP = 0.05;
+    private static final double MIN_RATE = 0.05;
+    private static final long ADJUSTMENT_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    /**
+     * Returned by {@link #reserve(String, long)} when the permit comes after the deadline of the call.
+     */
+    static final long DEADLINE_EXCEEDED = -2;
+
+    private final double perCountryRate;
+    private final int burst;
+    private final long maxWait;
+    private final Timer timer;
+    private final Bucket global;
+    private final ConcurrentHashMap<String, Bucket> countries = new ConcurrentHashMap<>();
+
+    /**
+     * A rate limiter with a burst of 1 and a maximum wait of 30 seconds.
+     *
+     * @param globalPermitsPerSecond     the maximum rate of calls
+     * @param perCountryPermitsPerSecond the maximum rate of calls for a given country code
+     */
+    public RateLimiter(double globalPermitsPerSecond, double perCountryPermitsPerSecond) {
+        this(globalPermitsPerSecond, perCountryPermitsPerSecond, 1, Duration.ofSeconds(30));
+    }
+
+    /**
+     * @param globalPermitsPerSecond     the maximum rate of calls
+     * @param perCountryPermitsPerSecond the maximum rate of calls for a given country code
+     * @param burst                      the number of calls that can be done at once after an idle period
+     * @param maxWait                    the maximum wait for a permit, after that the check fails with RATE_LIMITED
+     */
+    public RateLimiter(double globalPermitsPerSecond, double perCountryPermitsPerSecond, int burst, Duration maxWait) {
+        this(globalPermitsPerSecond, perCountryPermitsPerSecond, burst, maxWait, null);
+    }
+
+    RateLimiter(double globalPermitsPerSecond, double perCountryPermitsPerSecond, int burst, Duration maxWait, Timer timer) {
+        if (!(globalPermitsPerSecond > 0) || !(perCountryPermitsPerSecond > 0)) {
+            throw new IllegalArgumentException("the rates must be positive");
+        }
+        if (burst < 1) {
+            throw new IllegalArgumentException("burst must be at least 1");
+        }
+        Objects.requireNonNull(maxWait, "maxWait cannot be null");
+        if (maxWait.isNegative()) {
+            throw new IllegalArgumentException("maxWait cannot be negative");
+        }
+        this.perCountryRate = perCountryPermitsPerSecond;
+        this.burst = burst;
+        this.maxWait = maxWait.toNanos();
+        this.timer = timer;
+        this.global = new Bucket(globalPermitsPerSecond, burst, nanoTime());
+    }
+
+    /**
+     * @return the current global rate, in permits per second
+     */
+    public double getGlobalRate() {
+        return global.rate;
+    }
+
+    /**
+     * @param countryCode the country code
+     * @return the current rate of the given country, in permits per second
+     */
+    public double getRate(String countryCode) {
+        Bucket bucket = countries.get(CheckKey.countryCode(countryCode));
+        return bucket != null ? bucket.rate : perCountryRate;
+    }
+
+    Timer timer(Timer defaultTimer) {
+        return timer != null ? timer : defaultTimer;
+    }
+
+    /**
+     * Take a permit.
+     *
+     * @return the nanoseconds to wait before doing the call, or -1 if the call must not be done
+     */
+    long reserve(String countryCode) {
+        return reserveWithin(countryCode, maxWait);
+    }
+
+    /**
+     * Take a permit, if it's available before the deadline.
+     *
+     * @param deadline an absolute {@link System#nanoTime()} value, or {@link Utils#NO_DEADLINE}
+     * @return the nanoseconds to wait before doing the call, -1 if the call must not be done, or
+     * {@link #DEADLINE_EXCEEDED} if the wait would go past the deadline. No permit is taken when negative.
+     */
+    long reserve(String countryCode, long deadline) {
+        long remaining = Utils.remainingNanos(deadline);
+        if (remaining >= maxWait) {
+            return reserveWithin(countryCode, maxWait);
+        }
+        long wait = reserveWithin(countryCode, Math.max(0, remaining));
+        return wait < 0 ? DEADLINE_EXCEEDED : wait;
+    }
+
+    /**
+     * Take a permit only if it's available now, for the optional calls.
+     *
+     * @return true if the call can be done immediately
+     */
+    boolean tryReserve(String countryCode) {
+        return reserveWithin(countryCode, 0) == 0;
+    }
+
+    private long reserveWithin(String countryCode, long maxWait) {
+        long now = nanoTime();
+        Bucket country = country(countryCode, now);
+        long countryWait = country.reserve(now, maxWait);
+        if (countryWait < 0) {
+            return -1;
+        }
+        long globalWait = global.reserve(now, maxWait);
+        if (globalWait < 0) {
+            country.release();
+            return -1;
+        }
+        return Math.max(countryWait, globalWait);
+    }
+
+    /**
+     * @param faultType the fault type of the response, null if successful
+     */
+    void onResult(String countryCode, String faultType) {
+        long now = nanoTime();
+        if (faultType == null) {
+            global.increase(now);
+            country(countryCode, now).increase(now);
+        } else if ("GLOBAL_MAX_CONCURRENT_REQ".equals(faultType) || "SERVER_BUSY".equals(faultType)) {
+            global.decrease(now);
+        } else if ("MS_MAX_CONCURRENT_REQ".equals(faultType)) {
+            country(countryCode, now).decrease(now);
+        }
+    }
+
+    private Bucket country(String countryCode, long now) {
+        Bucket bucket = countries.get(countryCode);
+        return bucket != null ? bucket : countries.computeIfAbsent(countryCode, cc -> new Bucket(perCountryRate, burst, now));
+    }
+
+    private long nanoTime() {
+        return timer != null ? timer.nanoTime() : System.nanoTime();
+    }
+
+    /**
+     * A token bucket as a generic cell rate algorithm: the state is the theoretical arrival time of the next call, a
+     * single CAS takes a permit.
+     */
+    private static final class Bucket {
+
+        private final double configuredRate;
+        private final int burst;
+        private final AtomicLong nextArrival;
+        private volatile double rate;
+        private volatile long interval;
+        private volatile long lastDecrease;
+        private volatile long lastIncrease;
+
+        Bucket(double configuredRate, int burst, long now) {
+            this.configuredRate = configuredRate;
+            this.burst = burst;
+            this.nextArrival = new AtomicLong(now);
+            this.lastDecrease = now - ADJUSTMENT_INTERVAL;
+            this.lastIncrease = now - ADJUSTMENT_INTERVAL;
+            setRate(configuredRate);
+        }
+
+        long reserve(long now, long maxWait) {
+            while (true) {
+                long i = interval;
+                long next = nextArrival.get();
+                long wait = Math.max(0, next - (burst - 1) * i - now);
+                if (wait > maxWait) {
+                    return -1;
+                }
+                if (nextArrival.compareAndSet(next, (next - now > 0 ? next : now) + i)) {
+                    return wait;
+                }
+            }
+        }
+
+        void release() {
+            nextArrival.addAndGet(-interval);
+        }
+
+        void decrease(long now) {
+            if (now - lastDecrease >= ADJUSTMENT_INTERVAL) {
+                lastDecrease = now;
+                setRate(Math.max(configuredRate * MIN_RATE, rate * DECREASE_FACTOR));
+            }
+        }
+
+        void increase(long now) {
+            double r = rate;
+            // a second without decrease and since the last increase
+            if (r < configuredRate && now - lastDecrease >= ADJUSTMENT_INTERVAL && now - lastIncrease >= ADJUSTMENT_INTERVAL) {
+                lastIncrease = now;
+                setRate(Math.min(configuredRate, r + configuredRate * INCREASE_STEP));
+            }
+        }
+
+        // the races between the updates only lose an adjustment
+        private void setRate(double r) {
+            rate = r;
+            interval = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / r));
+        }
+    }
+}
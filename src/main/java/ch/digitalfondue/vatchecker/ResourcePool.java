@@ -0,0 +1,67 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * A bounded pool for objects that are expensive to create and not guaranteed to be thread safe (e.g. the JAXP
+ * factories). Each instance is used by a single thread at a time: {@link #acquire()} never blocks and creates a new
+ * instance when the pool is empty, {@link #release(Object)} keeps at most <code>maxIdle</code> instances around.
+ * <p>
+ * No ThreadLocal is used, so the number of live instances is bounded by the concurrency and not by the number of
+ * threads that ever did a call.
+ */
+final class ResourcePool<T> {
+
+    private final Supplier<T> factory;
+    private final int maxIdle;
+    private final ConcurrentLinkedQueue<T> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    private final AtomicInteger created = new AtomicInteger();
+
+    ResourcePool(Supplier<T> factory, int maxIdle) {
+        this.factory = factory;
+        this.maxIdle = maxIdle;
+    }
+
+    T acquire() {
+        T res = idle.poll();
+        if (res != null) {
+            idleCount.decrementAndGet();
+            return res;
+        }
+        created.incrementAndGet();
+        return factory.get();
+    }
+
+    void release(T res) {
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offer(res);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * @return how many instances have been created since the pool exists
+     */
+    int created() {
+        return created.get();
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Extract the interesting values of a response body, see {@link SoapResponseExtractor} and {@link JsonResponseExtractor}.
+ * <p>
+ * The body is consumed as bytes, the extractors decode only the values they return.
+ */
+interface ResponseExtractor {
+
+    /**
+     * @param body    the response body
+     * @param metrics where to report the parse and extract timings, null if not needed
+     */
+    Utils.ExtractionResult extract(InputStream body, CallMetrics metrics) throws IOException, XMLStreamException;
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * What the generic parts (cache, retry, ...) need to know about {@link EUVatCheckResponse} and {@link EUTinCheckResponse}.
+ * The persistence in a {@link ResultStore} is described separately by a {@link StoreCodec}.
+ */
+interface ResponseKind<R> {
+
+    /**
+     * The fault types that are an answer about the checked number itself: the same call will fail the same way later.
+     */
+    Set<String> TERMINAL_FAULTS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "INVALID_INPUT",
+            "INVALID_REQUESTER_INFO",
+            "NO_INFORMATION")));
+
+    /**
+     * The fault types of the checks refused by the {@link RateLimiter} or the {@link CircuitBreaker}.
+     */
+    Set<String> LOCAL_REJECTIONS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "RATE_LIMITED",
+            "CIRCUIT_OPEN")));
+
+    boolean isError(R response);
+
+    /**
+     * @return true if the checked number is valid. Only meaningful if the response is not an error.
+     */
+    boolean isValid(R response);
+
+    BaseFault<?> getFault(R response);
+
+    /**
+     * Create an error response with the given fault.
+     */
+    R error(String faultCode, String fault);
+
+    /**
+     * @return the normalized identity of the check
+     */
+    CheckKey key(String countryCode, String number);
+
+    /**
+     * @return the fault type name (e.g. MS_UNAVAILABLE), or null if the response is not an error
+     */
+    default String faultType(R response) {
+        if (!isError(response)) {
+            return null;
+        }
+        BaseFault<?> fault = getFault(response);
+        return fault != null ? fault.getFaultType().name() : "OTHER";
+    }
+
+    /**
+     * @return true if the response is a soap fault that will not change if the call is repeated, see {@link #TERMINAL_FAULTS}
+     */
+    default boolean isTerminalError(R response) {
+        BaseFault<?> fault = isError(response) ? getFault(response) : null;
+        return fault != null && !Utils.CLIENT_FAULT_CODE.equals(fault.getFaultCode()) && TERMINAL_FAULTS.contains(fault.getFaultType().name());
+    }
+
+    /**
+     * @return true if the check was refused locally (RATE_LIMITED, CIRCUIT_OPEN) without calling the service: the
+     * response says nothing about the checked number and must be neither cached nor stored
+     */
+    default boolean isLocalRejection(R response) {
+        BaseFault<?> fault = isError(response) ? getFault(response) : null;
+        return fault != null && Utils.CLIENT_FAULT_CODE.equals(fault.getFaultCode()) && LOCAL_REJECTIONS.contains(fault.getFaultType().name());
+    }
+
+    default R error(Throwable t) {
+        return error(Utils.CLIENT_FAULT_CODE, String.valueOf(Utils.unwrap(t)));
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * An in memory cache of check results, see {@link EUVatChecker#withCache(ResultCache)}.
+ * <p>
+ * The time to live depends on the outcome of the check:
+ * <ul>
+ *     <li>validTtl: the number is valid</li>
+ *     <li>invalidTtl: the number is not valid, or the service answered with a fault about the input (INVALID_INPUT, NO_INFORMATION)</li>
+ *     <li>transientFaultTtl: any other error (MS_UNAVAILABLE, TIMEOUT, network errors, ...), use {@link Duration#ZERO} for not caching them</li>
+ * </ul>
+ * <p>
+ * The cache is bounded by <code>maxEntries</code>: it is split in segments, each one evicting its least recently used
+ * entry when full.
+ *
+ * @param <R> the response type, {@link EUVatCheckResponse} or {@link EUTinCheckResponse}
+ */
+public final class ResultCache<R> {
+
+    private static final int SEGMENTS = 16;
+
+    private final Segment<R>[] segments;
+    private final long validTtl;
+    private final long invalidTtl;
+    private final long transientFaultTtl;
+    private final LongSupplier nanoTime;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxEntries        the maximum number of cached results
+     * @param validTtl          how long a valid result is kept
+     * @param invalidTtl        how long an invalid result is kept
+     * @param transientFaultTtl how long a transient error is kept
+     */
+    public ResultCache(int maxEntries, Duration validTtl, Duration invalidTtl, Duration transientFaultTtl) {
+        this(maxEntries, validTtl, invalidTtl, transientFaultTtl, System::nanoTime);
+    }
+
+    @SuppressWarnings("unchecked")
+    ResultCache(int maxEntries, Duration validTtl, Duration invalidTtl, Duration transientFaultTtl, LongSupplier nanoTime) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("maxEntries must be at least 1");
+        }
+        this.validTtl = Objects.requireNonNull(validTtl, "validTtl cannot be null").toNanos();
+        this.invalidTtl = Objects.requireNonNull(invalidTtl, "invalidTtl cannot be null").toNanos();
+        this.transientFaultTtl = Objects.requireNonNull(transientFaultTtl, "transientFaultTtl cannot be null").toNanos();
+        this.nanoTime = nanoTime;
+        int segmentCount = Math.min(SEGMENTS, maxEntries);
+        this.segments = (Segment<R>[]) new Segment<?>[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            // distribute the remainder, so the total capacity is exactly maxEntries
+            segments[i] = new Segment<>(maxEntries / segmentCount + (i < maxEntries % segmentCount ? 1 : 0), evictions);
+        }
+    }
+
+    R get(CheckKey key) {
+        CachedResponse<R> entry = getEntry(key, 0);
+        return entry != null ? entry.response : null;
+    }
+
+    /**
+     * @param maxStale for how long, in nanoseconds, an expired entry is still returned
+     * @return the entry, null if absent or expired since more than maxStale
+     */
+    CachedResponse<R> getEntry(CheckKey key, long maxStale) {
+        CachedResponse<R> entry = segment(key).get(key, nanoTime.getAsLong(), maxStale);
+        if (entry == null) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry;
+    }
+
+    boolean isExpired(CachedResponse<R> entry) {
+        return entry.expiresAt - nanoTime.getAsLong() <= 0;
+    }
+
+    void put(CheckKey key, R response, ResponseKind<R> kind) {
+        long ttl = ttl(response, kind);
+        if (ttl > 0) {
+            segment(key).put(key, new CachedResponse<>(response, nanoTime.getAsLong() + ttl));
+        }
+    }
+
+    private long ttl(R response, ResponseKind<R> kind) {
+        if (!kind.isError(response)) {
+            return kind.isValid(response) ? validTtl : invalidTtl;
+        }
+        return kind.isTerminalError(response) ? invalidTtl : transientFaultTtl;
+    }
+
+    private Segment<R> segment(CheckKey key) {
+        int h = key.hashCode();
+        return segments[((h ^ (h >>> 16)) & 0x7fffffff) % segments.length];
+    }
+
+    /**
+     * Remove all the entries.
+     */
+    public void clear() {
+        for (Segment<R> segment : segments) {
+            segment.clear();
+        }
+    }
+
+    /**
+     * @return the number of entries, including the expired ones that have not been removed yet
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<R> segment : segments) {
+            size += segment.size();
+        }
+        return size;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return the number of entries removed because the cache was full
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    static final class CachedResponse<R> {
+        final R response;
+        final long expiresAt;
+
+        CachedResponse(R response, long expiresAt) {
+            this.response = response;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static final class Segment<R> {
+
+        private final LinkedHashMap<CheckKey, CachedResponse<R>> entries;
+
+        Segment(int capacity, LongAdder evictions) {
+            this.entries = new LinkedHashMap<CheckKey, CachedResponse<R>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<CheckKey, CachedResponse<R>> eldest) {
+                    if (size() > capacity) {
+                        evictions.increment();
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        }
+
+        synchronized CachedResponse<R> get(CheckKey key, long now, long maxStale) {
+            CachedResponse<R> entry = entries.get(key);
+            if (entry != null && entry.expiresAt + maxStale - now <= 0) {
+                entries.remove(key);
+                return null;
+            }
+            return entry;
+        }
+
+        synchronized void put(CheckKey key, CachedResponse<R> entry) {
+            entries.put(key, entry);
+        }
+
+        synchronized void clear() {
+            entries.clear();
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+}
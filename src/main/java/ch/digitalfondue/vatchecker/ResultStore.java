@@ -0,0 +1,630 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongSupplier;
+import java.util.zip.CRC32;
+
+/**
+ * A persistent store of check results, so that the known numbers survive a restart, see
+ * {@link EUVatChecker#withStore(ResultStore)}. Only the results are stored, not the errors.
+ * <p>
+ * The store is a directory with two files:
+ * <ul>
+ *     <li><code>results.log</code>: the append only log of the results, each record with its length, a checksum and
+ *     the time it was written</li>
+ *     <li><code>results.idx</code>: a memory mapped hash index, from the key of the check to the position of its latest
+ *     record in the log</li>
+ * </ul>
+ * The index is flagged as clean only by {@link #close()}: after a crash, the log is scanned, truncated after the last
+ * complete record, and the index rebuilt from it. The records are not forced to the disk on each write: a crash of
+ * the machine may lose the latest results, but never corrupts the store, use {@link #flush()} when needed.
+ * <p>
+ * The log grows with each new result, {@link #compact()} rewrites it with only the latest, not expired, records.
+ * <p>
+ * The store is only an optimization: its failures (a full disk, a closed store, ...) never fail a check, they are
+ * counted by {@link #getErrors()}.
+ * <p>
+ * A store can be shared by a {@link EUVatChecker} and a {@link EUTinChecker}, but not by multiple processes: the
+ * directory is locked while the store is open, opening it again fails until closed.
+ */
+public final class ResultStore implements Closeable {
+
+    private static final int INDEX_MAGIC = 0x56435831; // VCX1
+    private static final int INDEX_HEADER = 64;
+    private static final int SLOT = 16;
+    private static final int INITIAL_CAPACITY = 1024;
+    // the mapped index must stay below 2GB
+    private static final int MAX_CAPACITY = 1 << 26;
+    // record: int body length, int crc32 of the body, body
+    private static final int RECORD_HEADER = 8;
+    private static final int MAX_RECORD = 1 << 20;
+    private static final int TYPICAL_RECORD = 256;
+
+    private final Path directory;
+    private final Path logPath;
+    private final Path indexPath;
+    private final long validTtl;
+    private final long invalidTtl;
+    private final LongSupplier currentTimeMillis;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final LongAdder errors = new LongAdder();
+
+    private FileChannel log;
+    private long logEnd;
+    private FileChannel indexChannel;
+    private MappedByteBuffer index;
+    private int capacity;
+    private int count;
+    private boolean closed;
+
+    /**
+     * Open the store in the given directory, creating it if needed.
+     *
+     * @param directory  the directory of the store files
+     * @param validTtl   how long a valid result is used
+     * @param invalidTtl how long an invalid result is used
+     */
+    public ResultStore(Path directory, Duration validTtl, Duration invalidTtl) {
+        this(directory, validTtl, invalidTtl, System::currentTimeMillis);
+    }
+
+    ResultStore(Path directory, Duration validTtl, Duration invalidTtl, LongSupplier currentTimeMillis) {
+        this.directory = Objects.requireNonNull(directory, "directory cannot be null");
+        this.validTtl = Objects.requireNonNull(validTtl, "validTtl cannot be null").toMillis();
+        this.invalidTtl = Objects.requireNonNull(invalidTtl, "invalidTtl cannot be null").toMillis();
+        this.currentTimeMillis = currentTimeMillis;
+        this.logPath = directory.resolve("results.log");
+        this.indexPath = directory.resolve("results.idx");
+        try {
+            Files.createDirectories(directory);
+            log = FileChannel.open(logPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            indexChannel = FileChannel.open(indexPath, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            // the index channel is never reopened, unlike the log: its lock is held until closed
+            if (!tryLock(indexChannel)) {
+                closeQuietly();
+                throw new IllegalStateException("The store in " + directory + " is already open");
+            }
+            if (!openIndex()) {
+                logEnd = recoverLog();
+                rebuildIndex(INITIAL_CAPACITY);
+            }
+            // until closed, the index may be ahead of the log on the disk
+            index.put(16, (byte) 0);
+            index.force();
+        } catch (IOException e) {
+            closeQuietly();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // --- public api
+
+    /**
+     * @return the number of distinct checks in the store, including the expired ones not yet compacted
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return the number of failed reads and writes of the checkers: a failed read is handled as a missing result, a
+     * failed write is skipped, the check itself never fails because of the store
+     */
+    public long getErrors() {
+        return errors.sum();
+    }
+
+    void onError() {
+        errors.increment();
+    }
+
+    /**
+     * Force the written results to the disk.
+     */
+    public void flush() {
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            log.force(false);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrite the log with only the latest not expired result of each check.
+     */
+    public void compact() {
+        Path compacted = directory.resolve("results.log.compact");
+        lock.writeLock().lock();
+        try {
+            ensureOpen();
+            long now = currentTimeMillis.getAsLong();
+            try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                long position = 0;
+                for (int slot = 0; slot < capacity; slot++) {
+                    if (index.getLong(slotPosition(slot)) == 0) {
+                        continue;
+                    }
+                    ByteBuffer record = readRecord(index.getLong(slotPosition(slot) + 8));
+                    if (record == null || isExpired(record, now)) {
+                        continue;
+                    }
+                    record.rewind();
+                    position += writeFully(out, record, position);
+                }
+                out.force(false);
+            }
+            // the current log stays usable until the compacted one is in place and open
+            Files.move(compacted, logPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            FileChannel previous = log;
+            log = FileChannel.open(logPath, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            logEnd = log.size();
+            rebuildIndex(INITIAL_CAPACITY);
+            closeQuietly(previous);
+        } catch (IOException e) {
+            try {
+                Files.deleteIfExists(compacted);
+            } catch (IOException ignore) {
+                // overwritten by the next compaction
+            }
+            throw new IllegalStateException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Force the results to the disk and close the files. The store cannot be used anymore.
+     */
+    @Override
+    public void close() {
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            log.force(false);
+            writeIndexHeader(true);
+            index.force();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            closeQuietly();
+            closed = true;
+            lock.writeLock().unlock();
+        }
+    }
+
+    // --- used by the pipeline
+
+    <R> R get(StoreCodec<R> codec, CheckKey key) {
+        long hash = hash(codec, key);
+        lock.readLock().lock();
+        try {
+            if (closed) {
+                return null;
+            }
+            int mask = capacity - 1;
+            for (int slot = (int) (hash ^ (hash >>> 32)) & mask; ; slot = (slot + 1) & mask) {
+                long h = index.getLong(slotPosition(slot));
+                if (h == 0) {
+                    return null;
+                }
+                if (h == hash) {
+                    ByteBuffer record = readRecord(index.getLong(slotPosition(slot) + 8));
+                    if (record != null && matches(record, codec, key)) {
+                        return isExpired(record, currentTimeMillis.getAsLong()) ? null : decode(codec, record);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @param response a response that is not an error
+     */
+    <R> void put(StoreCodec<R> codec, CheckKey key, R response) {
+        ByteBuffer record = encode(codec, key, response, currentTimeMillis.getAsLong());
+        long hash = hash(codec, key);
+        lock.writeLock().lock();
+        try {
+            if (closed) {
+                return;
+            }
+            long offset = logEnd;
+            logEnd += writeFully(log, record, offset);
+            insert(hash, offset, codec, key);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // --- records
+
+    /*
+     * body: byte kind id, byte valid, long written at (epoch millis), utf country code, utf number, response payload
+     */
+    private static <R> ByteBuffer encode(StoreCodec<R> codec, CheckKey key, R response, long now) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(0);
+            out.writeInt(0);
+            out.writeByte(codec.storeId());
+            out.writeBoolean(codec.isValid(response));
+            out.writeLong(now);
+            out.writeUTF(key.countryCode);
+            out.writeUTF(key.number);
+            codec.write(response, out);
+            out.flush();
+            ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+            int bodyLength = record.limit() - RECORD_HEADER;
+            CRC32 crc = new CRC32();
+            crc.update(record.array(), RECORD_HEADER, bodyLength);
+            record.putInt(0, bodyLength);
+            record.putInt(4, (int) crc.getValue());
+            return record;
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the full record, positioned after the header, or null if incomplete or corrupted
+     */
+    private ByteBuffer readRecord(long offset) throws IOException {
+        // the records are small: usually a single read is enough
+        ByteBuffer record = ByteBuffer.allocate(TYPICAL_RECORD);
+        int read = readFully(log, record, offset);
+        if (read < RECORD_HEADER) {
+            return null;
+        }
+        int bodyLength = record.getInt(0);
+        if (bodyLength <= 0 || bodyLength > MAX_RECORD) {
+            return null;
+        }
+        int length = RECORD_HEADER + bodyLength;
+        if (length > read) {
+            if (read < TYPICAL_RECORD) {
+                return null;
+            }
+            ByteBuffer full = ByteBuffer.allocate(length);
+            full.put(record.array(), 0, read);
+            if (readFully(log, full, offset + read) < length - read) {
+                return null;
+            }
+            record = full;
+        } else {
+            record = ByteBuffer.wrap(record.array(), 0, length).slice();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), RECORD_HEADER, bodyLength);
+        if ((int) crc.getValue() != record.getInt(4)) {
+            return null;
+        }
+        record.position(RECORD_HEADER);
+        return record;
+    }
+
+    private static boolean matches(ByteBuffer record, StoreCodec<?> codec, CheckKey key) throws IOException {
+        DataInputStream in = body(record);
+        if (in.readByte() != codec.storeId()) {
+            return false;
+        }
+        in.readBoolean();
+        in.readLong();
+        return key.countryCode.equals(in.readUTF()) && key.number.equals(in.readUTF());
+    }
+
+    private boolean isExpired(ByteBuffer record, long now) {
+        boolean valid = record.get(RECORD_HEADER + 1) != 0;
+        long writtenAt = record.getLong(RECORD_HEADER + 2);
+        return now - writtenAt >= (valid ? validTtl : invalidTtl);
+    }
+
+    private static <R> R decode(StoreCodec<R> codec, ByteBuffer record) throws IOException {
+        DataInputStream in = body(record);
+        in.readByte();
+        in.readBoolean();
+        in.readLong();
+        in.readUTF();
+        in.readUTF();
+        return codec.read(in);
+    }
+
+    private static DataInputStream body(ByteBuffer record) {
+        return new DataInputStream(new ByteArrayInputStream(record.array(), RECORD_HEADER, record.capacity() - RECORD_HEADER));
+    }
+
+    private static long hash(StoreCodec<?> codec, CheckKey key) {
+        return hash(codec.storeId(), key.countryCode, key.number);
+    }
+
+    private static long hash(byte kindId, String countryCode, String number) {
+        // FNV-1a 64, 0 marks the empty slots
+        long h = 0xcbf29ce484222325L;
+        h = (h ^ kindId) * 0x100000001b3L;
+        h = fnv(h, countryCode);
+        h = (h ^ 0xff) * 0x100000001b3L;
+        h = fnv(h, number);
+        return h == 0 ? 1 : h;
+    }
+
+    private static long fnv(long h, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            h = (h ^ s.charAt(i)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Scan the log, and truncate it after the last complete record.
+     *
+     * @return the length of the valid part of the log
+     */
+    private long recoverLog() throws IOException {
+        long position = 0;
+        long size = log.size();
+        while (position < size) {
+            ByteBuffer record = readRecord(position);
+            if (record == null) {
+                break;
+            }
+            position += record.capacity();
+        }
+        if (position < size) {
+            log.truncate(position);
+            log.force(false);
+        }
+        return position;
+    }
+
+    // --- index
+
+    /**
+     * @return true if the index has been cleanly closed and matches the log
+     */
+    private boolean openIndex() throws IOException {
+        long size = indexChannel.size();
+        if (size < INDEX_HEADER) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(INDEX_HEADER);
+        readFully(indexChannel, header, 0);
+        int cap = header.getInt(4);
+        boolean clean = header.get(16) == 1;
+        long indexedLogLength = header.getLong(24);
+        if (header.getInt(0) != INDEX_MAGIC || !clean || Integer.bitCount(cap) != 1
+                || size < INDEX_HEADER + (long) cap * SLOT || indexedLogLength != log.size()) {
+            return false;
+        }
+        capacity = cap;
+        count = header.getInt(8);
+        logEnd = indexedLogLength;
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, INDEX_HEADER + (long) cap * SLOT);
+        return true;
+    }
+
+    private void rebuildIndex(int minCapacity) throws IOException {
+        mapIndex(minCapacity);
+        long position = 0;
+        while (position < logEnd) {
+            ByteBuffer record = readRecord(position);
+            if (record == null) {
+                break;
+            }
+            DataInputStream in = body(record);
+            byte kindId = in.readByte();
+            in.readBoolean();
+            in.readLong();
+            String countryCode = in.readUTF();
+            String number = in.readUTF();
+            insert(hash(kindId, countryCode, number), position, kindId, countryCode, number);
+            position += record.capacity();
+        }
+        writeIndexHeader(false);
+    }
+
+    private void mapIndex(int newCapacity) throws IOException {
+        long size = INDEX_HEADER + (long) newCapacity * SLOT;
+        // the file is never truncated, as it may still be mapped: a larger file is reused, and cleared
+        if (indexChannel.size() < size) {
+            indexChannel.write(ByteBuffer.allocate(1), size - 1);
+        }
+        index = indexChannel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        for (int position = INDEX_HEADER; position < size; position += 8) {
+            index.putLong(position, 0);
+        }
+        capacity = newCapacity;
+        count = 0;
+        writeIndexHeader(false);
+    }
+
+    private void writeIndexHeader(boolean clean) {
+        index.putInt(0, INDEX_MAGIC);
+        index.putInt(4, capacity);
+        index.putInt(8, count);
+        index.put(16, (byte) (clean ? 1 : 0));
+        index.putLong(24, logEnd);
+    }
+
+    private void insert(long hash, long offset, StoreCodec<?> codec, CheckKey key) throws IOException {
+        insert(hash, offset, codec.storeId(), key.countryCode, key.number);
+    }
+
+    private void insert(long hash, long offset, byte kindId, String countryCode, String number) throws IOException {
+        if ((count + 1) * 2L > capacity) {
+            grow();
+        }
+        int mask = capacity - 1;
+        for (int slot = (int) (hash ^ (hash >>> 32)) & mask; ; slot = (slot + 1) & mask) {
+            int position = slotPosition(slot);
+            long h = index.getLong(position);
+            if (h == 0) {
+                index.putLong(position, hash);
+                index.putLong(position + 8, offset);
+                count++;
+                return;
+            }
+            if (h == hash && sameKey(index.getLong(position + 8), kindId, countryCode, number)) {
+                index.putLong(position + 8, offset);
+                return;
+            }
+        }
+    }
+
+    private boolean sameKey(long offset, byte kindId, String countryCode, String number) throws IOException {
+        ByteBuffer record = readRecord(offset);
+        if (record == null) {
+            return false;
+        }
+        DataInputStream in = body(record);
+        if (in.readByte() != kindId) {
+            return false;
+        }
+        in.readBoolean();
+        in.readLong();
+        return countryCode.equals(in.readUTF()) && number.equals(in.readUTF());
+    }
+
+    private void grow() throws IOException {
+        if (capacity >= MAX_CAPACITY) {
+            throw new IllegalStateException("The store is full");
+        }
+        long[] hashes = new long[count];
+        long[] offsets = new long[count];
+        int n = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            long h = index.getLong(slotPosition(slot));
+            if (h != 0) {
+                hashes[n] = h;
+                offsets[n++] = index.getLong(slotPosition(slot) + 8);
+            }
+        }
+        mapIndex(capacity * 2);
+        int mask = capacity - 1;
+        for (int i = 0; i < n; i++) {
+            int slot = (int) (hashes[i] ^ (hashes[i] >>> 32)) & mask;
+            while (index.getLong(slotPosition(slot)) != 0) {
+                slot = (slot + 1) & mask;
+            }
+            index.putLong(slotPosition(slot), hashes[i]);
+            index.putLong(slotPosition(slot) + 8, offsets[i]);
+        }
+        count = n;
+    }
+
+    private static int slotPosition(int slot) {
+        return INDEX_HEADER + slot * SLOT;
+    }
+
+    // --- io
+
+    private static int readFully(FileChannel channel, ByteBuffer dst, long position) throws IOException {
+        int read = 0;
+        while (dst.hasRemaining()) {
+            int r = channel.read(dst, position + read);
+            if (r < 0) {
+                break;
+            }
+            read += r;
+        }
+        return read;
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer src, long position) throws IOException {
+        int written = 0;
+        while (src.hasRemaining()) {
+            written += channel.write(src, position + written);
+        }
+        return written;
+    }
+
+    private static boolean tryLock(FileChannel channel) throws IOException {
+        try {
+            return channel.tryLock() != null;
+        } catch (OverlappingFileLockException e) {
+            // already locked by this process
+            return false;
+        }
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("The store is closed");
+        }
+    }
+
+    /**
+     * Close the files without flagging the index as clean, releasing the lock: as if the process died.
+     */
+    void closeQuietly() {
+        closeQuietly(log);
+        closeQuietly(indexChannel);
+    }
+
+    private static void closeQuietly(Closeable c) {
+        try {
+            if (c != null) {
+                c.close();
+            }
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+
+    // --- helpers for the payload of the responses
+
+    static void writeString(DataOutput out, String s) throws IOException {
+        out.writeBoolean(s != null);
+        if (s != null) {
+            out.writeUTF(s);
+        }
+    }
+
+    static String readString(DataInput in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.DoubleSupplier;
+
+/**
+ * When and how often a check is repeated, see {@link EUVatChecker#withRetry(RetryPolicy)}.
+ * <p>
+ * A check is retried when the response is a fault with one of the retryable fault types (by default the transient
+ * ones: SERVER_BUSY, GLOBAL_MAX_CONCURRENT_REQ, MS_MAX_CONCURRENT_REQ, SERVICE_UNAVAILABLE, MS_UNAVAILABLE, TIMEOUT),
+ * or when the call failed with an exception (e.g. a network error). Any other response is returned as is.
+ * <p>
+ * The delay before the retry <code>n</code> is <code>min(maxBackoff, initialBackoff * multiplier^(n-1))</code>, reduced
+ * by a random amount up to <code>jitter</code> (a fraction between 0 and 1) so that concurrent callers don't retry in
+ * lockstep. No retry is attempted if it would start after the deadline, counted from the first attempt: the last
+ * response (or exception) is then returned.
+ * <p>
+ * Instances are immutable.
+ */
+public final class RetryPolicy {
+
+    private static final Set<String> DEFAULT_RETRYABLE_FAULTS = Collections.unmodifiableSet(new HashSet<>(Arrays.asList(
+            "SERVER_BUSY",
+            "GLOBAL_MAX_CONCURRENT_REQ",
+            "MS_MAX_CONCURRENT_REQ",
+            "SERVICE_UNAVAILABLE",
+            "MS_UNAVAILABLE",
+            "TIMEOUT")));
+
+    private final int maxAttempts;
+    private final long initialBackoff;
+    private final long maxBackoff;
+    private final double multiplier;
+    private final double jitter;
+    private final long deadline;
+    private final Set<String> retryableFaults;
+    private final boolean retryOnException;
+    // for the tests
+    private final Timer timer;
+    private final DoubleSupplier random;
+
+    private RetryPolicy(int maxAttempts, long initialBackoff, long maxBackoff, double multiplier, double jitter, long deadline,
+                        Set<String> retryableFaults, boolean retryOnException, Timer timer, DoubleSupplier random) {
+        this.maxAttempts = maxAttempts;
+        this.initialBackoff = initialBackoff;
+        this.maxBackoff = maxBackoff;
+        this.multiplier = multiplier;
+        this.jitter = jitter;
+        this.deadline = deadline;
+        this.retryableFaults = retryableFaults;
+        this.retryOnException = retryOnException;
+        this.timer = timer;
+        this.random = random;
+    }
+
+    /**
+     * @return 3 attempts, backoff starting at 500ms, doubling up to 5s, jitter of 0.5 and a deadline of 30s
+     */
+    public static RetryPolicy defaultPolicy() {
+        return new RetryPolicy(3, Duration.ofMillis(500).toNanos(), Duration.ofSeconds(5).toNanos(), 2.0, 0.5,
+                Duration.ofSeconds(30).toNanos(), DEFAULT_RETRYABLE_FAULTS, true, null, () -> ThreadLocalRandom.current().nextDouble());
+    }
+
+    /**
+     * @param maxAttempts the maximum number of attempts, including the first one
+     */
+    public RetryPolicy withMaxAttempts(int maxAttempts) {
+        if (maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, multiplier, jitter, deadline, retryableFaults, retryOnException, timer, random);
+    }
+
+    /**
+     * @param initialBackoff the delay before the first retry
+     * @param maxBackoff     the maximum delay between two attempts
+     * @param multiplier     the factor applied to the delay after each retry
+     */
+    public RetryPolicy withBackoff(Duration initialBackoff, Duration maxBackoff, double multiplier) {
+        if (initialBackoff.isNegative() || maxBackoff.compareTo(initialBackoff) < 0 || multiplier < 1.0) {
+            throw new IllegalArgumentException("invalid backoff");
+        }
+        return new RetryPolicy(maxAttempts, initialBackoff.toNanos(), maxBackoff.toNanos(), multiplier, jitter, deadline, retryableFaults, retryOnException, timer, random);
+    }
+
+    /**
+     * @param jitter between 0 (no jitter) and 1 (the delay can be anything between 0 and the computed backoff)
+     */
+    public RetryPolicy withJitter(double jitter) {
+        if (jitter < 0.0 || jitter > 1.0) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        }
+        return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, multiplier, jitter, deadline, retryableFaults, retryOnException, timer, random);
+    }
+
+    /**
+     * @param deadline no retry is started after this duration since the first attempt
+     */
+    public RetryPolicy withDeadline(Duration deadline) {
+        return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, multiplier, jitter, deadline.toNanos(), retryableFaults, retryOnException, timer, random);
+    }
+
+    /**
+     * @param faultTypes the {@link EUVatCheckResponse.FaultType} and/or {@link EUTinCheckResponse.FaultType} that are retried
+     */
+    public RetryPolicy withRetryableFaults(Enum<?>... faultTypes) {
+        Set<String> names = new HashSet<>();
+        for (Enum<?> faultType : faultTypes) {
+            names.add(faultType.name());
+        }
+        return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, multiplier, jitter, deadline, Collections.unmodifiableSet(names), retryOnException, timer, random);
+    }
+
+    /**
+     * @param retryOnException if the calls that failed with an exception are retried
+     */
+    public RetryPolicy withRetryOnException(boolean retryOnException) {
+        return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, multiplier, jitter, deadline, retryableFaults, retryOnException, timer, random);
+    }
+
+    RetryPolicy withTimer(Timer timer, DoubleSupplier random) {
+        return new RetryPolicy(maxAttempts, initialBackoff, maxBackoff, multiplier, jitter, deadline, retryableFaults, retryOnException, timer, random);
+    }
+
+    int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    long getDeadline() {
+        return deadline;
+    }
+
+    Timer timer(Timer defaultTimer) {
+        return timer != null ? timer : defaultTimer;
+    }
+
+    boolean isRetryable(String faultType) {
+        return faultType != null && retryableFaults.contains(faultType);
+    }
+
+    boolean isRetryOnException() {
+        return retryOnException;
+    }
+
+    /**
+     * @param retry 1 for the first retry
+     * @return the delay in nanoseconds
+     */
+    long backoff(int retry) {
+        double base = Math.min((double) maxBackoff, initialBackoff * Math.pow(multiplier, retry - 1));
+        return (long) (base - base * jitter * random.getAsDouble());
+    }
+}
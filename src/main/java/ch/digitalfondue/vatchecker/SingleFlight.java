@@ -0,0 +1,63 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+/**
+ * Coalesce concurrent calls with the same key: while a call is in flight, the callers with the same key wait for its
+ * result instead of doing their own call.
+ * <p>
+ * Each caller receives its own future: cancelling it only detaches that caller, the shared call keeps running for the
+ * others.
+ */
+final class SingleFlight<K, R> {
+
+    private final ConcurrentHashMap<K, CompletableFuture<R>> inFlight = new ConcurrentHashMap<>();
+
+    CompletableFuture<R> run(K key, Supplier<CompletableFuture<R>> call) {
+        CompletableFuture<R> promise = new CompletableFuture<>();
+        CompletableFuture<R> existing = inFlight.putIfAbsent(key, promise);
+        if (existing != null) {
+            return existing.copy();
+        }
+        CompletableFuture<R> res;
+        try {
+            res = call.get();
+        } catch (RuntimeException e) {
+            res = CompletableFuture.failedFuture(e);
+        }
+        res.whenComplete((r, t) -> {
+            // remove first: a caller arriving now starts a new call instead of receiving an already completed result
+            inFlight.remove(key, promise);
+            if (t != null) {
+                promise.completeExceptionally(Utils.unwrap(t));
+            } else {
+                promise.complete(r);
+            }
+        });
+        return promise.copy();
+    }
+
+    /**
+     * @return the number of distinct keys with a call in flight
+     */
+    int inFlight() {
+        return inFlight.size();
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Single pass extractor over a SOAP response.
+ * <p>
+ * The document is streamed until either the response element or the SOAP fault has been fully read: the direct
+ * children listed as fields are collected by local name, everything else is skipped without building a tree.
+ * <p>
+ * The parser reads the bytes and detects the encoding from the byte order mark and the XML declaration, UTF-8 by
+ * default.
+ */
+final class SoapResponseExtractor implements ResponseExtractor {
+
+    private static final String FAULT = "Fault";
+    private static final String[] FAULT_FIELDS = {"faultcode", "faultstring"};
+
+    private final ResourcePool<XMLInputFactory> factories;
+    private final String responseElement;
+    private final String[] fields;
+
+    /**
+     * @param responseElement the local name of the element wrapping a successful response, e.g. checkVatResponse
+     * @param fields          the local names of the children of the response element to extract, in order
+     */
+    SoapResponseExtractor(String responseElement, String... fields) {
+        this(Utils.XML_INPUT_FACTORIES, responseElement, fields);
+    }
+
+    /**
+     * @param factories where the parser factories are taken from
+     */
+    SoapResponseExtractor(ResourcePool<XMLInputFactory> factories, String responseElement, String... fields) {
+        this.factories = factories;
+        this.responseElement = responseElement;
+        this.fields = fields;
+    }
+
+    @Override
+    public Utils.ExtractionResult extract(InputStream body, CallMetrics metrics) throws XMLStreamException {
+        long start = metrics != null ? System.nanoTime() : 0;
+        XMLInputFactory factory = factories.acquire();
+        try {
+            return extract(factory.createXMLStreamReader(body), start, metrics);
+        } finally {
+            factories.release(factory);
+        }
+    }
+
+    /**
+     * @param start   the {@link System#nanoTime()} when the parsing started, if measured
+     * @param metrics where to report the parse and extract timings, null if not needed
+     */
+    Utils.ExtractionResult extract(XMLStreamReader xml, long start, CallMetrics metrics) throws XMLStreamException {
+        try {
+            while (xml.hasNext()) {
+                if (xml.next() == XMLStreamConstants.START_ELEMENT) {
+                    String localName = xml.getLocalName();
+                    boolean response = responseElement.equals(localName);
+                    if (response || FAULT.equals(localName)) {
+                        long found = metrics != null ? System.nanoTime() : 0;
+                        Utils.ExtractionResult result = response ?
+                                new Utils.ExtractionResult(true, false, readChildren(xml, fields)) :
+                                new Utils.ExtractionResult(false, true, readChildren(xml, FAULT_FIELDS));
+                        if (metrics != null) {
+                            metrics.parseNanos = found - start;
+                            metrics.extractNanos = metrics.elapsed(found);
+                        }
+                        return result;
+                    }
+                }
+            }
+            if (metrics != null) {
+                metrics.parseNanos = metrics.elapsed(start);
+            }
+            return new Utils.ExtractionResult(false, false, Collections.emptyList());
+        } finally {
+            xml.close();
+        }
+    }
+
+    // the reader is positioned on the start of the parent, stop at its end
+    private static List<String> readChildren(XMLStreamReader xml, String[] names) throws XMLStreamException {
+        String[] values = new String[names.length];
+        int depth = 0;
+        while (xml.hasNext()) {
+            int event = xml.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                int idx = depth == 0 ? indexOf(names, xml.getLocalName()) : -1;
+                if (idx >= 0 && values[idx] == null) {
+                    values[idx] = xml.getElementText();
+                } else {
+                    depth++;
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (depth == 0) {
+                    break;
+                }
+                depth--;
+            }
+        }
+        return Arrays.asList(values);
+    }
+
+    private static int indexOf(String[] names, String name) {
+        for (int i = 0; i < names.length; i++) {
+            if (names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.time.Duration;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Serve the expired cache entries while refreshing them in the background, see
+ * {@link EUVatChecker#withStaleWhileRevalidate(StaleWhileRevalidate)}.
+ * <p>
+ * A result that expired since less than <code>maxStale</code> is returned immediately, and a refresh of that number
+ * is started, unless one is already running or <code>maxConcurrentRefreshes</code> are already running: in that case
+ * a later check will try again. The refresh replaces the cached result with the new one, except when it fails with a
+ * transient fault (MS_UNAVAILABLE, SERVICE_UNAVAILABLE, TIMEOUT, a network error, ...) or is rejected by the
+ * executor: the stale result is kept.
+ * The expired transient faults are never served.
+ * <p>
+ * The instance can be shared between multiple checkers, the limit is then global.
+ */
+public final class StaleWhileRevalidate {
+
+    private final long maxStale;
+    private final int maxConcurrentRefreshes;
+    private final Executor executor;
+    private final ConcurrentHashMap<Object, Boolean> refreshing = new ConcurrentHashMap<>();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final LongAdder staleHits = new LongAdder();
+    private final LongAdder refreshes = new LongAdder();
+    private final LongAdder skippedRefreshes = new LongAdder();
+    private final LongAdder keptStale = new LongAdder();
+
+    /**
+     * The refreshes are started in the common fork join pool.
+     *
+     * @param maxStale               for how long after its expiration a result can still be served
+     * @param maxConcurrentRefreshes the maximum number of refreshes running at the same time
+     */
+    public StaleWhileRevalidate(Duration maxStale, int maxConcurrentRefreshes) {
+        this(maxStale, maxConcurrentRefreshes, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param maxStale               for how long after its expiration a result can still be served
+     * @param maxConcurrentRefreshes the maximum number of refreshes running at the same time
+     * @param executor               where the refreshes are started, with the blocking api the whole call runs in it
+     */
+    public StaleWhileRevalidate(Duration maxStale, int maxConcurrentRefreshes, Executor executor) {
+        Objects.requireNonNull(maxStale, "maxStale cannot be null");
+        if (maxStale.isNegative()) {
+            throw new IllegalArgumentException("maxStale cannot be negative");
+        }
+        if (maxConcurrentRefreshes < 1) {
+            throw new IllegalArgumentException("maxConcurrentRefreshes must be at least 1");
+        }
+        this.maxStale = maxStale.toNanos();
+        this.maxConcurrentRefreshes = maxConcurrentRefreshes;
+        this.executor = Objects.requireNonNull(executor, "executor cannot be null");
+    }
+
+    long getMaxStale() {
+        return maxStale;
+    }
+
+    Executor executor() {
+        return executor;
+    }
+
+    /**
+     * Register a stale hit, and try to start a refresh of the given key.
+     *
+     * @return true if the caller must run the refresh, and then call {@link #finish(Object)}
+     */
+    boolean tryStart(Object key) {
+        staleHits.increment();
+        if (refreshing.containsKey(key)) {
+            return false;
+        }
+        while (true) {
+            int current = inFlight.get();
+            if (current >= maxConcurrentRefreshes) {
+                skippedRefreshes.increment();
+                return false;
+            }
+            if (inFlight.compareAndSet(current, current + 1)) {
+                break;
+            }
+        }
+        if (refreshing.putIfAbsent(key, Boolean.TRUE) != null) {
+            inFlight.decrementAndGet();
+            return false;
+        }
+        refreshes.increment();
+        return true;
+    }
+
+    void onKeptStale() {
+        keptStale.increment();
+    }
+
+    void finish(Object key) {
+        refreshing.remove(key);
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * @return the number of refreshes currently running
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    /**
+     * @return the number of expired results that have been served
+     */
+    public long getStaleHits() {
+        return staleHits.sum();
+    }
+
+    /**
+     * @return the number of started refreshes
+     */
+    public long getRefreshes() {
+        return refreshes.sum();
+    }
+
+    /**
+     * @return the number of refreshes not started because <code>maxConcurrentRefreshes</code> were already running
+     */
+    public long getSkippedRefreshes() {
+        return skippedRefreshes.sum();
+    }
+
+    /**
+     * @return the number of refreshes that failed with a transient fault, keeping the stale result
+     */
+    public long getKeptStale() {
+        return keptStale.sum();
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * How a {@link ResultStore} persists a response type. Only the responses that are not errors are stored.
+ */
+interface StoreCodec<R> {
+
+    /**
+     * @return the identifier of the response type in a {@link ResultStore}
+     */
+    byte storeId();
+
+    /**
+     * @return true if the checked number is valid, the stored results have a different time to live
+     */
+    boolean isValid(R response);
+
+    /**
+     * Write the payload of a response that is not an error.
+     */
+    void write(R response, DataOutput out) throws IOException;
+
+    R read(DataInput in) throws IOException;
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time source and delays for the stages that wait (e.g. retry). Replaced by a virtual clock in the tests.
+ */
+interface Timer {
+
+    long nanoTime();
+
+    /**
+     * @return a future completed after the given delay
+     */
+    CompletableFuture<Void> delay(long nanos);
+
+    /**
+     * For the async api: the delays are handled by a shared scheduler thread, no thread is blocked while waiting.
+     */
+    Timer SCHEDULED = new Timer() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public CompletableFuture<Void> delay(long nanos) {
+            CompletableFuture<Void> res = new CompletableFuture<>();
+            SchedulerHolder.SCHEDULER.schedule(() -> res.complete(null), nanos, TimeUnit.NANOSECONDS);
+            return res;
+        }
+    };
+
+    /**
+     * For the blocking api: the calling thread sleeps, so the next attempt runs on the calling thread too.
+     */
+    Timer SLEEPING = new Timer() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public CompletableFuture<Void> delay(long nanos) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(nanos);
+                return CompletableFuture.completedFuture(null);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return CompletableFuture.failedFuture(new IllegalStateException(e));
+            }
+        }
+    };
+
+    final class SchedulerHolder {
+        static final ScheduledExecutorService SCHEDULER;
+
+        static {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, r -> {
+                Thread t = new Thread(r, "vatchecker-scheduler");
+                t.setDaemon(true);
+                return t;
+            });
+            scheduler.setRemoveOnCancelPolicy(true);
+            SCHEDULER = scheduler;
+        }
+
+        private SchedulerHolder() {
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.Objects;
+
+/**
+ * A TIN with its country code, as used by {@link EUTinChecker#processor(int, int, boolean)}.
+ */
+public final class TinId {
+
+    private final String countryCode;
+    private final String tinNumber;
+    private final int hash;
+
+    private TinId(String countryCode, String tinNumber) {
+        this.countryCode = Objects.requireNonNull(countryCode, "countryCode cannot be null");
+        this.tinNumber = Objects.requireNonNull(tinNumber, "tinNumber cannot be null");
+        this.hash = 31 * countryCode.hashCode() + tinNumber.hashCode();
+    }
+
+    /**
+     * @param countryCode 2 character ISO country code. Note: Greece is EL, not GR.
+     * @param tinNumber   the TIN
+     * @return the id
+     */
+    public static TinId of(String countryCode, String tinNumber) {
+        return new TinId(countryCode, tinNumber);
+    }
+
+    public String getCountryCode() {
+        return countryCode;
+    }
+
+    public String getTinNumber() {
+        return tinNumber;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof TinId)) {
+            return false;
+        }
+        TinId other = (TinId) o;
+        return hash == other.hash && countryCode.equals(other.countryCode) && tinNumber.equals(other.tinNumber);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return countryCode + tinNumber;
+    }
+}
@@ -15,182 +15,368 @@
  */
 package ch.digitalfondue.vatchecker;
 
-import org.w3c.dom.Document;
-import org.w3c.dom.Node;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
-
 import javax.xml.XMLConstants;
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.parsers.ParserConfigurationException;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerConfigurationException;
-import javax.xml.transform.TransformerException;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMResult;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.*;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamException;
 import java.io.*;
-import java.net.HttpURLConnection;
-import java.net.URL;
-import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
+import java.net.SocketTimeoutException;
+import java.net.http.HttpTimeoutException;
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.function.BiFunction;
+import java.util.function.Supplier;
 
 class Utils {
 
-    private static final XPathExpression SOAP_FAULT_MATCHER;
-    private static final XPathExpression SOAP_FAULT_CODE_MATCHER;
-    private static final XPathExpression SOAP_FAULT_STRING_MATCHER;
+    /**
+     * The fault code used for the errors that happened on our side (e.g. a network failure), as opposed to the soap faults
+     * returned by the services.
+     */
+    static final String CLIENT_FAULT_CODE = "vatchecker:Client";
+
+    // XMLInputFactory.newInstance() does a service lookup on each call, and the factories are not specified as thread safe.
+    // The calls are I/O bound, so the concurrency is usually higher than the number of cores.
+    static final ResourcePool<XMLInputFactory> XML_INPUT_FACTORIES = new ResourcePool<>(Utils::newXMLInputFactory,
+            Math.max(32, Runtime.getRuntime().availableProcessors() * 4));
+
+    static XMLInputFactory newXMLInputFactory() {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        setProperty(factory, XMLInputFactory.IS_NAMESPACE_AWARE, true);
+        //
+        setProperty(factory, XMLInputFactory.SUPPORT_DTD, false);
+        setProperty(factory, XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        setProperty(factory, XMLConstants.ACCESS_EXTERNAL_DTD, "");
+        //
+        setProperty(factory, XMLInputFactory.IS_COALESCING, true);
+        return factory;
+    }
 
-    static {
-        XPath xPath = XPathFactory.newInstance().newXPath();
+    private static void setProperty(XMLInputFactory factory, String key, Object value) {
         try {
-            SOAP_FAULT_MATCHER = xPath.compile("//*[local-name()='Fault']");
-            SOAP_FAULT_CODE_MATCHER = xPath.compile("//*[local-name()='Fault']/*[local-name()='faultcode']");
-            SOAP_FAULT_STRING_MATCHER = xPath.compile("//*[local-name()='Fault']/*[local-name()='faultstring']");
-        } catch (XPathExpressionException e) {
-            throw new IllegalStateException(e);
+            factory.setProperty(key, value);
+        } catch (IllegalArgumentException e) {
+            // ignore
         }
     }
 
-    private static Document copyDocument(Document document) {
-        try {
-            Transformer tx = getTransformer();
-            DOMSource source = new DOMSource(document);
-            DOMResult result = new DOMResult();
-            tx.transform(source, result);
-            return (Document) result.getNode();
-        } catch (TransformerException e) {
-            throw new IllegalStateException(e);
+    static InputStream doCall(String endpointUrl, String document) {
+        return HttpFetcher.DEFAULT.fetch(endpointUrl, document, NO_DEADLINE);
+    }
+
+    static CompletableFuture<InputStream> doCallAsync(String endpointUrl, String document) {
+        return HttpFetcher.DEFAULT.fetchAsync(endpointUrl, document, NO_DEADLINE);
+    }
+
+    /**
+     * Marker for "no deadline", the deadlines are otherwise absolute {@link System#nanoTime()} values.
+     */
+    static final long NO_DEADLINE = Long.MAX_VALUE;
+
+    static long deadlineAfter(Duration timeout) {
+        return timeout == null ? NO_DEADLINE : System.nanoTime() + timeout.toNanos();
+    }
+
+    static long remainingNanos(long deadline) {
+        return deadline == NO_DEADLINE ? Long.MAX_VALUE : deadline - System.nanoTime();
+    }
+
+    /**
+     * Bind the deadline to the fetcher. Only the default fetchers can enforce it, the custom ones are returned as is.
+     */
+    static BiFunction<String, String, InputStream> withDeadline(BiFunction<String, String, InputStream> documentFetcher, long deadline) {
+        if (deadline != NO_DEADLINE && documentFetcher instanceof DeadlineAwareFetcher) {
+            DeadlineAwareFetcher<InputStream> fetcher = (DeadlineAwareFetcher<InputStream>) documentFetcher;
+            DeadlineAwareFetcher<InputStream> bound = (endpointUrl, document, ignored, metrics) -> fetcher.apply(endpointUrl, document, deadline, metrics);
+            return bound;
+        }
+        return documentFetcher;
+    }
+
+    /**
+     * Bind the deadline to the fetcher: the custom fetchers can't be interrupted, but their result is no more awaited
+     * once the deadline has expired.
+     */
+    static BiFunction<String, String, CompletableFuture<InputStream>> withDeadlineAsync(BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher, long deadline) {
+        if (deadline == NO_DEADLINE) {
+            return asyncDocumentFetcher;
         }
+        if (asyncDocumentFetcher instanceof DeadlineAwareFetcher) {
+            DeadlineAwareFetcher<CompletableFuture<InputStream>> fetcher = (DeadlineAwareFetcher<CompletableFuture<InputStream>>) asyncDocumentFetcher;
+            DeadlineAwareFetcher<CompletableFuture<InputStream>> bound = (endpointUrl, document, ignored, metrics) -> fetcher.apply(endpointUrl, document, deadline, metrics);
+            return bound;
+        }
+        return (endpointUrl, document) -> {
+            long remaining = remainingNanos(deadline);
+            if (remaining <= 0) {
+                return CompletableFuture.failedFuture(new TimeoutException("deadline exceeded"));
+            }
+            return asyncDocumentFetcher.apply(endpointUrl, document).orTimeout(remaining, TimeUnit.NANOSECONDS);
+        };
     }
 
-    private static Transformer getTransformer() throws TransformerConfigurationException {
-        TransformerFactory tf = TransformerFactory.newInstance();
-        setAttribute(tf, XMLConstants.FEATURE_SECURE_PROCESSING, true);
-        setAttribute(tf, XMLConstants.ACCESS_EXTERNAL_DTD, "");
-        setAttribute(tf, XMLConstants.ACCESS_EXTERNAL_STYLESHEET, "");
-        return tf.newTransformer();
+    /**
+     * @return true if the failure has been caused by a timeout or an expired deadline
+     */
+    static boolean isTimeout(Throwable t) {
+        for (int i = 0; t != null && i < 16; i++, t = t.getCause()) {
+            if (t instanceof SocketTimeoutException || t instanceof HttpTimeoutException || t instanceof TimeoutException) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    private static void setAttribute(TransformerFactory tf, String key, Object value) {
-        try {
-            tf.setAttribute(key, value);
-        } catch (IllegalArgumentException e) {
-            // ignore
+    /**
+     * Run the blocking fetcher in the given executor, e.g. for the users that only provided the blocking variant. The
+     * executor must not be the common fork join pool, which the blocking calls would starve. The default fetchers keep
+     * enforcing the deadline and reporting their timings.
+     */
+    static BiFunction<String, String, CompletableFuture<InputStream>> toAsync(BiFunction<String, String, InputStream> documentFetcher, Executor executor) {
+        if (documentFetcher instanceof DeadlineAwareFetcher) {
+            DeadlineAwareFetcher<InputStream> fetcher = (DeadlineAwareFetcher<InputStream>) documentFetcher;
+            DeadlineAwareFetcher<CompletableFuture<InputStream>> async = (endpointUrl, document, deadline, metrics) -> CompletableFuture.supplyAsync(() -> fetcher.apply(endpointUrl, document, deadline, metrics), executor);
+            return async;
         }
+        return (endpointUrl, document) -> CompletableFuture.supplyAsync(() -> documentFetcher.apply(endpointUrl, document), executor);
     }
 
-    static Document toDocument(Reader reader) {
+    /**
+     * Wait for the future, rethrowing the original exception if it's unchecked.
+     */
+    static <T> T join(CompletableFuture<T> future) {
         try {
-            DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-            dbFactory.setNamespaceAware(true);
-            //
-            setFeature(dbFactory, "http://apache.org/xml/features/disallow-doctype-decl", true);
-            setFeature(dbFactory,"http://xml.org/sax/features/external-general-entities", false);
-            setFeature(dbFactory,"http://xml.org/sax/features/external-parameter-entities", false);
-            setFeature(dbFactory,"http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
-            dbFactory.setXIncludeAware(false);
-            dbFactory.setExpandEntityReferences(false);
-            //
-            DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-            return dBuilder.parse(new InputSource(reader));
-        } catch (ParserConfigurationException | IOException | SAXException e) {
-            throw new IllegalStateException(e);
+            return future.join();
+        } catch (CompletionException e) {
+            Throwable cause = unwrap(e);
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw e;
         }
     }
 
-    private static void setFeature(DocumentBuilderFactory dbFactory, String feature, boolean value) {
-        try {
-            dbFactory.setFeature(feature, value);
-        } catch (ParserConfigurationException e) {
-            // ignore
+    static Throwable unwrap(Throwable t) {
+        while (t instanceof CompletionException && t.getCause() != null) {
+            t = t.getCause();
         }
+        return t;
+    }
+
+    static class ExtractionResult {
+        final boolean valid;
+        final boolean fault;
+        final List<String> extracted;
+
+        ExtractionResult(boolean valid, boolean fault, List<String> extracted) {
+            this.valid = valid;
+            this.fault = fault;
+            this.extracted = extracted;
+        }
+    }
+
+    static final ExtractionResult TIMEOUT = new ExtractionResult(false, true, Arrays.asList(CLIENT_FAULT_CODE, "TIMEOUT"));
+
+    static ExtractionResult doCallAndExtract(String body,
+                                  String endpointUrl,
+                                  BiFunction<String, String, InputStream> documentFetcher,
+                                  ResponseExtractor extractor) {
+        return doCallAndExtract(body, endpointUrl, documentFetcher, extractor, null);
     }
 
-    private static String fromDocument(Document doc) {
+    /**
+     * @param metrics where to report the timings of the call, null if not needed
+     */
+    static ExtractionResult doCallAndExtract(String body,
+                                  String endpointUrl,
+                                  BiFunction<String, String, InputStream> documentFetcher,
+                                  ResponseExtractor extractor,
+                                  CallMetrics metrics) {
         try {
-            DOMSource domSource = new DOMSource(doc);
-            Transformer transformer = getTransformer();
-            StringWriter sw = new StringWriter();
-            StreamResult sr = new StreamResult(sw);
-            transformer.transform(domSource, sr);
-            return sw.toString();
-        } catch (TransformerException e) {
-            throw new IllegalStateException(e);
+            if (metrics == null) {
+                return extract(documentFetcher.apply(endpointUrl, body), extractor, null);
+            }
+            long start = System.nanoTime();
+            InputStream response = fetch(documentFetcher, endpointUrl, body, metrics);
+            metrics.fetchNanos = metrics.elapsed(start);
+            return extract(response, extractor, metrics);
+        } catch (RuntimeException e) {
+            if (isTimeout(e)) {
+                return TIMEOUT;
+            }
+            throw e;
         }
     }
 
-    static InputStream doCall(String endpointUrl, String document) {
+    static CompletableFuture<ExtractionResult> doCallAndExtractAsync(String body,
+                                                                    String endpointUrl,
+                                                                    BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher,
+                                                                    ResponseExtractor extractor) {
+        return doCallAndExtractAsync(body, endpointUrl, asyncDocumentFetcher, extractor, null);
+    }
+
+    /**
+     * @param metrics where to report the timings of the call, null if not needed
+     */
+    static CompletableFuture<ExtractionResult> doCallAndExtractAsync(String body,
+                                                                    String endpointUrl,
+                                                                    BiFunction<String, String, CompletableFuture<InputStream>> asyncDocumentFetcher,
+                                                                    ResponseExtractor extractor,
+                                                                    CallMetrics metrics) {
+        CompletableFuture<InputStream> response;
+        long start = metrics != null ? System.nanoTime() : 0;
         try {
-            URL url = new URL(endpointUrl);
-            HttpURLConnection conn = (HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Content-Type", "text/xml;charset=UTF-8");
-            conn.setDoOutput(true);
-            try (OutputStream os = conn.getOutputStream()) {
-                os.write(document.getBytes(StandardCharsets.UTF_8));
-                os.flush();
+            response = fetch(asyncDocumentFetcher, endpointUrl, body, metrics);
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        return response.thenApply(is -> {
+            if (metrics != null) {
+                metrics.fetchNanos = metrics.elapsed(start);
+            }
+            return extract(is, extractor, metrics);
+        }).handle((result, throwable) -> {
+            if (throwable == null) {
+                return result;
             }
-            return conn.getInputStream();
-        } catch (IOException e) {
+            Throwable cause = unwrap(throwable);
+            if (isTimeout(cause)) {
+                return TIMEOUT;
+            }
+            throw new CompletionException(cause);
+        });
+    }
+
+    private static <T> T fetch(BiFunction<String, String, T> fetcher, String endpointUrl, String body, CallMetrics metrics) {
+        if (metrics == null) {
+            return fetcher.apply(endpointUrl, body);
+        }
+        metrics.requestBytes = utf8Length(body);
+        if (fetcher instanceof DeadlineAwareFetcher) {
+            return ((DeadlineAwareFetcher<T>) fetcher).apply(endpointUrl, body, NO_DEADLINE, metrics);
+        }
+        return fetcher.apply(endpointUrl, body);
+    }
+
+    private static ExtractionResult extract(InputStream response, ResponseExtractor extractor, CallMetrics metrics) {
+        // the default fetchers report the size, the custom ones are counted while parsing
+        CountingInputStream counting = metrics != null && metrics.responseBytes < 0 ? new CountingInputStream(response) : null;
+        try (InputStream is = counting != null ? counting : response) {
+            return extractor.extract(is, metrics);
+        } catch (IOException | XMLStreamException e) {
             throw new IllegalStateException(e);
+        } finally {
+            if (counting != null) {
+                metrics.responseBytes = counting.count;
+            }
         }
     }
 
-    private static String prepareTemplate(Document document, Map<String, String> data) {
-        Document doc = copyDocument(document);
-        for (Map.Entry<String, String> kv : data.entrySet()) {
-            doc.getElementsByTagName(kv.getKey()).item(0).setTextContent(kv.getValue());
+    /**
+     * Run a measured call, then report it to the listener.
+     */
+    static <R> R measure(CheckListener listener, CallMetrics metrics, ResponseKind<R> kind, Supplier<R> call) {
+        R response;
+        try {
+            response = call.get();
+        } catch (RuntimeException e) {
+            notify(listener, metrics, null, e);
+            throw e;
         }
-        return fromDocument(doc);
+        notify(listener, metrics, kind.faultType(response), null);
+        return response;
     }
 
-    private static String textNode(Node node) {
-        return node != null ? node.getTextContent() : null;
+    /**
+     * Run a measured non blocking call, then report it to the listener.
+     */
+    static <R> CompletableFuture<R> measureAsync(CheckListener listener, CallMetrics metrics, ResponseKind<R> kind, Supplier<CompletableFuture<R>> call) {
+        CompletableFuture<R> response;
+        try {
+            response = call.get();
+        } catch (RuntimeException e) {
+            response = CompletableFuture.failedFuture(e);
+        }
+        return response.whenComplete((res, throwable) -> {
+            if (throwable != null) {
+                notify(listener, metrics, null, unwrap(throwable));
+            } else {
+                notify(listener, metrics, kind.faultType(res), null);
+            }
+        });
     }
 
-    static class ExtractionResult {
-        final Node validNode;
-        final Node faultNode;
-        final List<String> extracted;
+    private static void notify(CheckListener listener, CallMetrics metrics, String faultType, Throwable failure) {
+        metrics.complete(faultType, failure);
+        notify(listener, metrics);
+    }
 
-        ExtractionResult(Node validNode, Node faultNode, List<String> extracted) {
-            this.validNode = validNode;
-            this.faultNode = faultNode;
-            this.extracted = extracted;
+    static void notify(CheckListener listener, CallMetrics metrics) {
+        try {
+            listener.onCall(metrics);
+        } catch (RuntimeException e) {
+            // a failing listener must not fail the check
         }
     }
 
-    static ExtractionResult doCallAndExtract(Document document,
-                                  Map<String, String> params,
-                                  String endpointUrl,
-                                  BiFunction<String, String, InputStream> documentFetcher,
-                                  XPathExpression validElementMatcher,
-                                  XPathExpression[] validElementExtractors) {
-        String body = Utils.prepareTemplate(document, params);
-        try (InputStream is = documentFetcher.apply(endpointUrl, body); Reader isr = new InputStreamReader(is, StandardCharsets.UTF_8)) {
-            Document result = Utils.toDocument(isr);
-
-            Node validNode = (Node) validElementMatcher.evaluate(result, XPathConstants.NODE);
-            Node faultNode = (Node) SOAP_FAULT_MATCHER.evaluate(result, XPathConstants.NODE);
-            List<String> extracted = new ArrayList<>(validElementExtractors.length);
-            if (validNode != null) {
-                for (XPathExpression exp : validElementExtractors) {
-                    extracted.add(textNode((Node) exp.evaluate(result, XPathConstants.NODE)));
+    static int utf8Length(String s) {
+        int length = s.length();
+        int bytes = length;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80) {
+                if (c < 0x800) {
+                    bytes++;
+                } else if (Character.isHighSurrogate(c)) {
+                    // 4 bytes for the pair
+                    bytes += 2;
+                    i++;
+                } else {
+                    bytes += 2;
                 }
-            } else if (faultNode != null) {
-                extracted.add(textNode((Node) Utils.SOAP_FAULT_CODE_MATCHER.evaluate(result, XPathConstants.NODE)));
-                extracted.add(textNode((Node) Utils.SOAP_FAULT_STRING_MATCHER.evaluate(result, XPathConstants.NODE)));
             }
-            return new ExtractionResult(validNode, faultNode, extracted);
-        } catch (IOException | XPathExpressionException e) {
-            throw new IllegalStateException(e);
+        }
+        return bytes;
+    }
+
+    private static final class CountingInputStream extends FilterInputStream {
+
+        private long count;
+
+        CountingInputStream(InputStream in) {
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b >= 0) {
+                count++;
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            int n = super.read(b, off, len);
+            if (n > 0) {
+                count += n;
+            }
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long skipped = super.skip(n);
+            count += skipped;
+            return skipped;
         }
     }
 }
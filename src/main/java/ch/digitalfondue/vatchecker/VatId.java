@@ -0,0 +1,92 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.Objects;
+
+/**
+ * A vat number with its country code, as used by the bulk api of {@link EUVatChecker}.
+ */
+public final class VatId {
+
+    private final String countryCode;
+    private final String vatNumber;
+    private final int hash;
+
+    private VatId(String countryCode, String vatNumber) {
+        this.countryCode = Objects.requireNonNull(countryCode, "countryCode cannot be null");
+        this.vatNumber = Objects.requireNonNull(vatNumber, "vatNumber cannot be null");
+        this.hash = 31 * countryCode.hashCode() + vatNumber.hashCode();
+    }
+
+    /**
+     * @param countryCode 2 character ISO country code. Note: Greece is EL, not GR.
+     * @param vatNumber   the vat number
+     * @return the id
+     */
+    public static VatId of(String countryCode, String vatNumber) {
+        return new VatId(countryCode, vatNumber);
+    }
+
+    /**
+     * Return the canonical form of the given vat number, so that the variants of the same number are equal:
+     * the country code is upper case and GR is mapped to EL, the spaces, dots and dashes are removed from the
+     * number, as is the country prefix when repeated. E.g. <code>normalized("gr", "EL 094.014.201")</code> is
+     * equal to <code>of("EL", "094014201")</code>.
+     * <p>
+     * The checks of an {@link EUVatChecker} instance are always normalized this way.
+     *
+     * @param countryCode 2 character ISO country code
+     * @param vatNumber   the vat number
+     * @return the normalized id
+     */
+    public static VatId normalized(String countryCode, String vatNumber) {
+        Objects.requireNonNull(countryCode, "countryCode cannot be null");
+        Objects.requireNonNull(vatNumber, "vatNumber cannot be null");
+        String cc = CheckKey.countryCode(countryCode);
+        return new VatId(cc, CheckKey.vatNumber(cc, vatNumber));
+    }
+
+    public String getCountryCode() {
+        return countryCode;
+    }
+
+    public String getVatNumber() {
+        return vatNumber;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof VatId)) {
+            return false;
+        }
+        VatId other = (VatId) o;
+        return hash == other.hash && countryCode.equals(other.countryCode) && vatNumber.equals(other.vatNumber);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return countryCode + vatNumber;
+    }
+}
@@ -0,0 +1,503 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.Locale;
+
+/**
+ * Offline check of the structure and of the check digits of the vat numbers of the EU member states (and of Northern
+ * Ireland, XI), so that the numbers that cannot be valid are rejected without calling VIES.
+ * <p>
+ * The number is given without the country prefix. Spaces, dots and dashes are ignored. When a rule is not known for
+ * sure (e.g. the personal numbers of some member states, or an unknown country code) the number is accepted: a
+ * number rejected here is never valid, but a number accepted here may still be unknown to VIES.
+ * <p>
+ * The common case, an upper case number without separators, does not allocate.
+ */
+public final class VatNumberFormat {
+
+    private VatNumberFormat() {
+    }
+
+    /**
+     * @param countryCode 2 character ISO country code. Note: Greece is EL, not GR.
+     * @param vatNumber   the vat number, without the country prefix
+     * @return false if the number cannot be valid
+     */
+    public static boolean isValid(String countryCode, String vatNumber) {
+        if (countryCode == null || vatNumber == null) {
+            return false;
+        }
+        if (!isCompact(countryCode) || !isCompact(vatNumber)) {
+            return isValid(compact(countryCode), compact(vatNumber));
+        }
+        String n = vatNumber;
+        switch (countryCode) {
+            case "AT": return at(n);
+            case "BE": return be(n);
+            case "BG": return bg(n);
+            case "CY": return cy(n);
+            case "CZ": return cz(n);
+            case "DE": return de(n);
+            case "DK": return dk(n);
+            case "EE": return ee(n);
+            case "EL": return el(n);
+            case "ES": return es(n);
+            case "FI": return fi(n);
+            case "FR": return fr(n);
+            case "HR": return hr(n);
+            case "HU": return hu(n);
+            case "IE": return ie(n);
+            case "IT": return it(n);
+            case "LT": return lt(n);
+            case "LU": return lu(n);
+            case "LV": return lv(n);
+            case "MT": return mt(n);
+            case "NL": return nl(n);
+            case "PL": return pl(n);
+            case "PT": return pt(n);
+            case "RO": return ro(n);
+            case "SE": return se(n);
+            case "SI": return si(n);
+            case "SK": return sk(n);
+            case "XI": return xi(n);
+            default: return true;
+        }
+    }
+
+    // --- normalization, only for the uncommon inputs
+
+    private static boolean isCompact(String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (isSeparator(c) || (c >= 'a' && c <= 'z')) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isSeparator(char c) {
+        return c == ' ' || c == '.' || c == '-' || c == '\t';
+    }
+
+    private static String compact(String s) {
+        StringBuilder sb = new StringBuilder(s.length());
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (!isSeparator(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString().toUpperCase(Locale.ROOT);
+    }
+
+    // --- helpers
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static boolean isLetter(char c) {
+        return c >= 'A' && c <= 'Z';
+    }
+
+    private static boolean digits(String n, int from, int to) {
+        for (int i = from; i < to; i++) {
+            if (!isDigit(n.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean allDigits(String n, int length) {
+        return n.length() == length && digits(n, 0, length);
+    }
+
+    private static int d(String n, int i) {
+        return n.charAt(i) - '0';
+    }
+
+    /**
+     * Sum of the digits of the given number multiplied by the weights, aligned from the given offset.
+     */
+    private static int weighted(String n, int offset, int... weights) {
+        int sum = 0;
+        for (int i = 0; i < weights.length; i++) {
+            sum += d(n, offset + i) * weights[i];
+        }
+        return sum;
+    }
+
+    private static int mod(String n, int from, int to, int modulus) {
+        int r = 0;
+        for (int i = from; i < to; i++) {
+            r = (r * 10 + d(n, i)) % modulus;
+        }
+        return r;
+    }
+
+    /**
+     * Luhn check of the digits [from, to), the last one being the check digit.
+     */
+    private static boolean luhn(String n, int from, int to) {
+        int sum = 0;
+        boolean dbl = false;
+        for (int i = to - 1; i >= from; i--) {
+            int v = d(n, i);
+            if (dbl) {
+                v *= 2;
+                if (v > 9) {
+                    v -= 9;
+                }
+            }
+            sum += v;
+            dbl = !dbl;
+        }
+        return sum % 10 == 0;
+    }
+
+    /**
+     * ISO 7064 MOD 11,10 of the digits [0, length), the last one being the check digit.
+     */
+    private static boolean mod1110(String n, int length) {
+        int p = 10;
+        for (int i = 0; i < length - 1; i++) {
+            int s = (d(n, i) + p) % 10;
+            if (s == 0) {
+                s = 10;
+            }
+            p = (2 * s) % 11;
+        }
+        int check = 11 - p;
+        return (check == 10 ? 0 : check) == d(n, length - 1);
+    }
+
+    // --- rules by country
+
+    private static final int[] WEIGHTS_AT = {1, 2, 1, 2, 1, 2, 1};
+
+    private static boolean at(String n) {
+        if (n.length() != 9 || n.charAt(0) != 'U' || !digits(n, 1, 9)) {
+            return false;
+        }
+        int sum = 0;
+        for (int i = 0; i < 7; i++) {
+            int v = d(n, i + 1) * WEIGHTS_AT[i];
+            sum += v > 9 ? v - 9 : v;
+        }
+        return (10 - (sum + 4) % 10) % 10 == d(n, 8);
+    }
+
+    private static boolean be(String n) {
+        if (!allDigits(n, 10) || n.charAt(0) > '1') {
+            return false;
+        }
+        return 97 - mod(n, 0, 8, 97) == d(n, 8) * 10 + d(n, 9);
+    }
+
+    private static final int[] WEIGHTS_BG_1 = {1, 2, 3, 4, 5, 6, 7, 8};
+    private static final int[] WEIGHTS_BG_2 = {3, 4, 5, 6, 7, 8, 9, 10};
+
+    private static boolean bg(String n) {
+        if (allDigits(n, 9)) {
+            int r = weighted(n, 0, WEIGHTS_BG_1) % 11;
+            if (r == 10) {
+                r = weighted(n, 0, WEIGHTS_BG_2) % 11;
+            }
+            return r % 10 == d(n, 8);
+        }
+        // personal numbers: several schemes, structure only
+        return allDigits(n, 10);
+    }
+
+    private static final int[] CY_ODD = {1, 0, 5, 7, 9, 13, 15, 17, 19, 21};
+
+    private static boolean cy(String n) {
+        if (n.length() != 9 || !digits(n, 0, 8) || !isLetter(n.charAt(8)) || n.charAt(0) == '2') {
+            return false;
+        }
+        int sum = 0;
+        for (int i = 0; i < 8; i++) {
+            sum += i % 2 == 0 ? CY_ODD[d(n, i)] : d(n, i);
+        }
+        return 'A' + sum % 26 == n.charAt(8);
+    }
+
+    private static final int[] WEIGHTS_CZ = {8, 7, 6, 5, 4, 3, 2};
+
+    private static boolean cz(String n) {
+        if (allDigits(n, 8)) {
+            int c = 11 - weighted(n, 0, WEIGHTS_CZ) % 11;
+            return c % 10 == d(n, 7);
+        }
+        // personal numbers, structure only
+        return allDigits(n, 9) || allDigits(n, 10);
+    }
+
+    private static boolean de(String n) {
+        return allDigits(n, 9) && n.charAt(0) != '0' && mod1110(n, 9);
+    }
+
+    private static final int[] WEIGHTS_DK = {2, 7, 6, 5, 4, 3, 2, 1};
+
+    private static boolean dk(String n) {
+        return allDigits(n, 8) && n.charAt(0) != '0' && weighted(n, 0, WEIGHTS_DK) % 11 == 0;
+    }
+
+    private static final int[] WEIGHTS_EE = {3, 7, 1, 3, 7, 1, 3, 7};
+
+    private static boolean ee(String n) {
+        if (!allDigits(n, 9) || n.charAt(0) != '1' || n.charAt(1) != '0') {
+            return false;
+        }
+        return (10 - weighted(n, 0, WEIGHTS_EE) % 10) % 10 == d(n, 8);
+    }
+
+    private static boolean el(String n) {
+        // the old numbers have 8 digits, as with a leading 0
+        int offset = n.length() == 8 ? 1 : 0;
+        if (n.length() + offset != 9 || !digits(n, 0, n.length())) {
+            return false;
+        }
+        int sum = 0;
+        for (int i = 0; i < 8 - offset; i++) {
+            sum += d(n, i) << (8 - offset - i);
+        }
+        return sum % 11 % 10 == d(n, 8 - offset);
+    }
+
+    private static final String DNI_LETTERS = "TRWAGMYFPDXBNJZSQVHLCKE";
+
+    private static boolean es(String n) {
+        if (n.length() != 9 || !digits(n, 1, 8)) {
+            return false;
+        }
+        char first = n.charAt(0);
+        char last = n.charAt(8);
+        if (isDigit(first)) {
+            // DNI: 8 digits and a letter
+            return isLetter(last) && DNI_LETTERS.charAt(mod(n, 0, 8, 23)) == last;
+        }
+        if (first == 'X' || first == 'Y' || first == 'Z') {
+            // NIE: the letter stands for a leading digit
+            int r = first - 'X';
+            for (int i = 1; i < 8; i++) {
+                r = (r * 10 + d(n, i)) % 23;
+            }
+            return isLetter(last) && DNI_LETTERS.charAt(r) == last;
+        }
+        if (first == 'K' || first == 'L' || first == 'M') {
+            return isLetter(last) && DNI_LETTERS.charAt(mod(n, 1, 8, 23)) == last;
+        }
+        if (!isLetter(first) || !(isLetter(last) || isDigit(last))) {
+            return false;
+        }
+        // CIF: the control is either a digit or a letter
+        int sum = 0;
+        for (int i = 1; i < 8; i++) {
+            int v = d(n, i);
+            if (i % 2 == 1) {
+                v *= 2;
+                v = v > 9 ? v - 9 : v;
+            }
+            sum += v;
+        }
+        int control = (10 - sum % 10) % 10;
+        return isDigit(last) ? d(n, 8) == control : "JABCDEFGHI".charAt(control) == last;
+    }
+
+    private static final int[] WEIGHTS_FI = {7, 9, 10, 5, 8, 4, 2};
+
+    private static boolean fi(String n) {
+        if (!allDigits(n, 8)) {
+            return false;
+        }
+        int r = weighted(n, 0, WEIGHTS_FI) % 11;
+        return r != 1 && (r == 0 ? 0 : 11 - r) == d(n, 7);
+    }
+
+    private static boolean fr(String n) {
+        if (n.length() != 11 || !digits(n, 2, 11)) {
+            return false;
+        }
+        char k1 = n.charAt(0);
+        char k2 = n.charAt(1);
+        if (isDigit(k1) && isDigit(k2)) {
+            return (12 + 3 * mod(n, 2, 11, 97)) % 97 == (k1 - '0') * 10 + (k2 - '0');
+        }
+        // the alphanumeric keys of the new numbers: structure only
+        return isFrKey(k1) && isFrKey(k2);
+    }
+
+    private static boolean isFrKey(char c) {
+        return isDigit(c) || (isLetter(c) && c != 'I' && c != 'O');
+    }
+
+    private static boolean hr(String n) {
+        return allDigits(n, 11) && mod1110(n, 11);
+    }
+
+    private static final int[] WEIGHTS_HU = {9, 7, 3, 1, 9, 7, 3};
+
+    private static boolean hu(String n) {
+        return allDigits(n, 8) && (10 - weighted(n, 0, WEIGHTS_HU) % 10) % 10 == d(n, 7);
+    }
+
+    private static boolean ie(String n) {
+        int length = n.length();
+        if (length != 8 && length != 9) {
+            return false;
+        }
+        int sum;
+        char check;
+        if (digits(n, 0, 7) && isLetter(n.charAt(7))) {
+            // 7 digits, the check letter, and an optional letter
+            sum = 0;
+            for (int i = 0; i < 7; i++) {
+                sum += d(n, i) * (8 - i);
+            }
+            check = n.charAt(7);
+            if (length == 9) {
+                char extra = n.charAt(8);
+                if (extra != 'W' && (extra < 'A' || extra > 'I')) {
+                    return false;
+                }
+                sum += extra == 'W' ? 0 : (extra - 'A' + 1) * 9;
+            }
+        } else if (length == 8 && isDigit(n.charAt(0)) && (isLetter(n.charAt(1)) || n.charAt(1) == '+' || n.charAt(1) == '*')
+                && digits(n, 2, 7) && isLetter(n.charAt(7))) {
+            // old format: the digits are "0" + the digits 3 to 7 + the first digit
+            sum = d(n, 0) * 2;
+            for (int i = 2; i < 7; i++) {
+                sum += d(n, i) * (9 - i);
+            }
+            check = n.charAt(7);
+        } else {
+            return false;
+        }
+        int r = sum % 23;
+        return (r == 0 ? 'W' : (char) ('A' + r - 1)) == check;
+    }
+
+    private static boolean it(String n) {
+        return allDigits(n, 11) && luhn(n, 0, 11);
+    }
+
+    private static boolean lt(String n) {
+        // legal entities have 9 digits, the temporary registrations 12: structure only
+        return allDigits(n, 9) || allDigits(n, 12);
+    }
+
+    private static boolean lu(String n) {
+        return allDigits(n, 8) && mod(n, 0, 6, 89) == d(n, 6) * 10 + d(n, 7);
+    }
+
+    private static boolean lv(String n) {
+        // the check of the personal numbers has changed over time: structure only
+        return allDigits(n, 11);
+    }
+
+    private static final int[] WEIGHTS_MT = {3, 4, 6, 7, 8, 9};
+
+    private static boolean mt(String n) {
+        if (!allDigits(n, 8) || n.charAt(0) == '0') {
+            return false;
+        }
+        return 37 - weighted(n, 0, WEIGHTS_MT) % 37 == d(n, 6) * 10 + d(n, 7);
+    }
+
+    private static final int[] WEIGHTS_NL = {9, 8, 7, 6, 5, 4, 3, 2};
+
+    private static boolean nl(String n) {
+        if (n.length() != 12 || !digits(n, 0, 9) || n.charAt(9) != 'B' || !digits(n, 10, 12)) {
+            return false;
+        }
+        // the numbers of the companies use the eleven test, the ones of the sole proprietors a mod 97 on "NL" + number
+        if ((weighted(n, 0, WEIGHTS_NL) - d(n, 8)) % 11 == 0) {
+            return true;
+        }
+        int r = 2321 % 97; // "NL" as N = 23, L = 21
+        for (int i = 0; i < 12; i++) {
+            char c = n.charAt(i);
+            r = isDigit(c) ? (r * 10 + (c - '0')) % 97 : (r * 100 + (c - 'A' + 10)) % 97;
+        }
+        return r == 1;
+    }
+
+    private static final int[] WEIGHTS_PL = {6, 5, 7, 2, 3, 4, 5, 6, 7};
+
+    private static boolean pl(String n) {
+        return allDigits(n, 10) && weighted(n, 0, WEIGHTS_PL) % 11 == d(n, 9);
+    }
+
+    private static final int[] WEIGHTS_PT = {9, 8, 7, 6, 5, 4, 3, 2};
+
+    private static boolean pt(String n) {
+        if (!allDigits(n, 9) || n.charAt(0) == '0') {
+            return false;
+        }
+        int c = 11 - weighted(n, 0, WEIGHTS_PT) % 11;
+        return (c > 9 ? 0 : c) == d(n, 8);
+    }
+
+    private static final int[] WEIGHTS_RO = {7, 5, 3, 2, 1, 7, 5, 3, 2};
+
+    private static boolean ro(String n) {
+        int length = n.length();
+        if (length < 2 || length > 10 || !digits(n, 0, length) || n.charAt(0) == '0') {
+            return false;
+        }
+        // the weights are aligned on the right
+        int sum = 0;
+        for (int i = 0; i < length - 1; i++) {
+            sum += d(n, i) * WEIGHTS_RO[10 - length + i];
+        }
+        int c = sum * 10 % 11;
+        return (c == 10 ? 0 : c) == d(n, length - 1);
+    }
+
+    private static boolean se(String n) {
+        return allDigits(n, 12) && n.charAt(10) == '0' && n.charAt(11) == '1' && luhn(n, 0, 10);
+    }
+
+    private static final int[] WEIGHTS_SI = {8, 7, 6, 5, 4, 3, 2};
+
+    private static boolean si(String n) {
+        if (!allDigits(n, 8) || n.charAt(0) == '0') {
+            return false;
+        }
+        int c = 11 - weighted(n, 0, WEIGHTS_SI) % 11;
+        return c != 11 && (c == 10 ? 0 : c) == d(n, 7);
+    }
+
+    private static boolean sk(String n) {
+        if (!allDigits(n, 10) || n.charAt(0) == '0') {
+            return false;
+        }
+        char third = n.charAt(2);
+        return (third == '2' || third == '3' || third == '4' || third == '7' || third == '8' || third == '9') && mod(n, 0, 10, 11) == 0;
+    }
+
+    private static boolean xi(String n) {
+        // GD: government departments, HA: health authorities
+        if (n.length() == 5 && (n.startsWith("GD") || n.startsWith("HA"))) {
+            return digits(n, 2, 5);
+        }
+        return allDigits(n, 9) || allDigits(n, 12);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+/**
+ * The protocol used by {@link EUVatChecker} for the checkVat operation, see {@link EUVatChecker#withTransport(VatTransport)}.
+ * <p>
+ * Both return the same {@link EUVatCheckResponse}: the errors of the REST api are reported as faults with the code
+ * "rest:Server" and the error (e.g. MS_UNAVAILABLE) as fault string, so {@link EUVatCheckResponse.Fault#getFaultType()}
+ * works the same way.
+ */
+public enum VatTransport {
+
+    /**
+     * The SOAP webservice, the default.
+     */
+    SOAP {
+        private final SoapRequestTemplate template = new SoapRequestTemplate("checkVat",
+                "urn:ec.europa.eu:taxud:vies:services:checkVat:types", "countryCode", "vatNumber");
+        private final SoapResponseExtractor extractor = new SoapResponseExtractor("checkVatResponse", "valid", "name", "address");
+
+        @Override
+        String endpoint() {
+            return EUVatChecker.ENDPOINT;
+        }
+
+        @Override
+        String render(String countryCode, String vatNumber) {
+            return template.render(countryCode, vatNumber);
+        }
+
+        @Override
+        ResponseExtractor extractor() {
+            return extractor;
+        }
+    },
+
+    /**
+     * The JSON REST api, see https://ec.europa.eu/taxation_customs/vies/#/technical-information . The responses are
+     * smaller and cheaper to parse than the SOAP ones.
+     */
+    REST {
+        private final JsonResponseExtractor extractor = new JsonResponseExtractor(
+                new String[]{"valid", "isValid"}, new String[]{"name"}, new String[]{"address"});
+
+        @Override
+        String endpoint() {
+            return "https://ec.europa.eu/taxation_customs/vies/rest-api/check-vat-number";
+        }
+
+        @Override
+        String render(String countryCode, String vatNumber) {
+            StringBuilder sb = new StringBuilder(48 + vatNumber.length());
+            sb.append("{\"countryCode\":");
+            JsonReader.appendString(sb, countryCode);
+            sb.append(",\"vatNumber\":");
+            JsonReader.appendString(sb, vatNumber);
+            return sb.append('}').toString();
+        }
+
+        @Override
+        ResponseExtractor extractor() {
+            return extractor;
+        }
+    };
+
+    abstract String endpoint();
+
+    /**
+     * @param countryCode the normalized country code
+     * @param vatNumber   the normalized vat number
+     * @return the request body
+     */
+    abstract String render(String countryCode, String vatNumber);
+
+    /**
+     * @return the extractor of [valid, name, address], or of [faultCode, faultString]
+     */
+    abstract ResponseExtractor extractor();
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The executor used by {@link EUVatChecker#withVirtualThreads()} and {@link EUTinChecker#withVirtualThreads()} for
+ * running the blocking calls: one virtual thread per task on Java 21 and later, see {@link #isAvailable()}.
+ * <p>
+ * This is the Java 11 variant: the jar is a multi-release jar, on Java 21 and later the variant in
+ * <code>META-INF/versions/21</code> is used instead. Here the tasks run on a cached pool of daemon platform threads,
+ * so the behaviour is the same, only the cost of the threads differs.
+ * <p>
+ * The library is virtual thread friendly: no lock is held while doing I/O (the persistent store uses
+ * {@link java.util.concurrent.locks.ReentrantReadWriteLock}), and the parsers are pooled by concurrency with
+ * {@link ResourcePool} instead of being kept in ThreadLocals.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if the tasks run on virtual threads
+     */
+    public static boolean isAvailable() {
+        return false;
+    }
+
+    /**
+     * @return the shared executor, running each task in its own thread
+     */
+    public static ExecutorService executor() {
+        return Holder.EXECUTOR;
+    }
+
+    private static final class Holder {
+        private static final AtomicInteger COUNT = new AtomicInteger();
+        static final ExecutorService EXECUTOR = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "vatchecker-blocking-" + COUNT.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
@@ -16,4 +16,5 @@
 module ch.digitalfondue.vatchecker {
     exports ch.digitalfondue.vatchecker;
     requires java.xml;
+    requires java.net.http;
 }
\ No newline at end of file
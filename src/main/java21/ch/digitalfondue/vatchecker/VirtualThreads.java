@@ -0,0 +1,50 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * The executor used by {@link EUVatChecker#withVirtualThreads()} and {@link EUTinChecker#withVirtualThreads()} for
+ * running the blocking calls: one virtual thread per task.
+ * <p>
+ * This is the Java 21 variant, packaged in <code>META-INF/versions/21</code> of the multi-release jar. It must keep
+ * the same public api as the Java 11 one in src/main/java.
+ */
+public final class VirtualThreads {
+
+    private VirtualThreads() {
+    }
+
+    /**
+     * @return true if the tasks run on virtual threads
+     */
+    public static boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * @return the shared executor, running each task in its own thread
+     */
+    public static ExecutorService executor() {
+        return Holder.EXECUTOR;
+    }
+
+    private static final class Holder {
+        static final ExecutorService EXECUTOR = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("vatchecker-virtual-", 0).factory());
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class AsyncCheckerTest {
+
+    @Test
+    public void testCheckAsync() {
+        StubFetcher fetcher = new StubFetcher(body -> StubFetcher.vatValid("IT", StubFetcher.param(body, "vatNumber"), "name", "address"));
+        EUVatChecker checker = new EUVatChecker(fetcher, (url, body) -> CompletableFuture.completedFuture(fetcher.apply(url, body)));
+        List<CompletableFuture<EUVatCheckResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            futures.add(checker.checkAsync("IT", Integer.toString(i)));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0])).join();
+        for (CompletableFuture<EUVatCheckResponse> f : futures) {
+            Assert.assertTrue(f.join().isValid());
+        }
+        Assert.assertEquals(100, fetcher.calls.get());
+    }
+
+    @Test
+    public void testCheckAsyncWithBlockingFetcher() {
+        EUTinChecker checker = new EUTinChecker(StubFetcher.always(StubFetcher.fault("SERVER_BUSY")));
+        EUTinCheckResponse resp = checker.checkAsync("BE", "1").join();
+        Assert.assertTrue(resp.isError());
+        Assert.assertEquals(EUTinCheckResponse.FaultType.SERVER_BUSY, resp.getFault().getFaultType());
+    }
+
+    @Test
+    public void testBlockingFetcherDoesNotRunInTheCommonPool() {
+        AtomicReference<Thread> thread = new AtomicReference<>();
+        StubFetcher fetcher = StubFetcher.always(StubFetcher.vatValid("IT", "1", "name", "address"));
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            thread.set(Thread.currentThread());
+            return fetcher.apply(url, body);
+        });
+        Assert.assertTrue(checker.checkAsync("IT", "1").join().isValid());
+        Assert.assertFalse(thread.get() instanceof ForkJoinWorkerThread);
+    }
+
+    @Test
+    public void testFetcherFailureIsPropagated() {
+        CompletableFuture<EUVatCheckResponse> f = EUVatChecker.doCheckAsync("IT", "1", (url, body) -> CompletableFuture.failedFuture(new IllegalStateException("boom")));
+        try {
+            f.join();
+            Assert.fail();
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void testDefaultAsyncFetcher() throws Exception {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            String body;
+            try (InputStream is = exchange.getRequestBody()) {
+                body = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+            }
+            byte[] resp = StubFetcher.tin("BE", StubFetcher.param(body, "tinNumber"), true, true).getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/xml;charset=UTF-8");
+            exchange.sendResponseHeaders(200, resp.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(resp);
+            }
+        });
+        server.start();
+        try {
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+            EUTinCheckResponse resp = EUTinChecker.doCheckAsync("BE", "00012511119", (ignored, body) -> Utils.doCallAsync(url, body)).join();
+            Assert.assertTrue(resp.isValidSyntax());
+            Assert.assertTrue(resp.isValidStructure());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testDefaultAsyncFetcherConnectionFailure() {
+        try {
+            Utils.doCallAsync("http://127.0.0.1:1/", "<a/>").join();
+            Assert.fail();
+        } catch (CompletionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+}
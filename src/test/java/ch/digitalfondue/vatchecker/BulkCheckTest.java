@@ -0,0 +1,120 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+public class BulkCheckTest {
+
+    private static final String[] COUNTRIES = {"IT", "DE", "FR", "NL"};
+
+    @Test
+    public void testConcurrencyLimitsAndCorrelation() {
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+        Map<String, AtomicInteger> inFlightPerCountry = new ConcurrentHashMap<>();
+        Map<String, Integer> maxPerCountry = new ConcurrentHashMap<>();
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        StubFetcher stub = new StubFetcher(body -> StubFetcher.vatValid(StubFetcher.param(body, "countryCode"), StubFetcher.param(body, "vatNumber"), "n" + StubFetcher.param(body, "vatNumber"), "a"));
+        BiFunction<String, String, CompletableFuture<InputStream>> asyncFetcher = (url, body) -> {
+            String country = StubFetcher.param(body, "countryCode");
+            int global = inFlight.incrementAndGet();
+            maxInFlight.accumulateAndGet(global, Math::max);
+            int local = inFlightPerCountry.computeIfAbsent(country, k -> new AtomicInteger()).incrementAndGet();
+            maxPerCountry.merge(country, local, Math::max);
+            CompletableFuture<InputStream> res = new CompletableFuture<>();
+            // DE is the slow member state
+            long latency = "DE".equals(country) ? 20 : 2;
+            scheduler.schedule(() -> {
+                inFlightPerCountry.get(country).decrementAndGet();
+                inFlight.decrementAndGet();
+                res.complete(stub.apply(url, body));
+            }, latency, TimeUnit.MILLISECONDS);
+            return res;
+        };
+        EUVatChecker checker = new EUVatChecker(stub, asyncFetcher);
+
+        List<VatId> ids = new ArrayList<>();
+        for (int i = 0; i < 400; i++) {
+            ids.add(VatId.of(COUNTRIES[i % COUNTRIES.length], Integer.toString(i)));
+        }
+        Map<VatId, EUVatCheckResponse> results = new ConcurrentHashMap<>();
+        try {
+            checker.checkAll(ids, 6, 2, results::put).get(30, TimeUnit.SECONDS);
+        } catch (InterruptedException | ExecutionException | TimeoutException e) {
+            throw new AssertionError(e);
+        } finally {
+            scheduler.shutdownNow();
+        }
+
+        Assert.assertEquals(ids.size(), results.size());
+        for (VatId id : ids) {
+            Assert.assertEquals("n" + id.getVatNumber(), results.get(id).getName());
+        }
+        Assert.assertTrue(maxInFlight.get() <= 6);
+        for (int max : maxPerCountry.values()) {
+            Assert.assertTrue(max <= 2);
+        }
+    }
+
+    @Test
+    public void testSynchronousCompletionOnLargeInput() {
+        StubFetcher stub = StubFetcher.always(StubFetcher.vatInvalid("IT", "1"));
+        EUVatChecker checker = new EUVatChecker(stub, (url, body) -> CompletableFuture.completedFuture(stub.apply(url, body)));
+        int count = 20_000;
+        Iterable<VatId> ids = () -> new Iterator<VatId>() {
+            int i = 0;
+
+            @Override
+            public boolean hasNext() {
+                return i < count;
+            }
+
+            @Override
+            public VatId next() {
+                return VatId.of(COUNTRIES[i % 2], Integer.toString(i++));
+            }
+        };
+        AtomicInteger received = new AtomicInteger();
+        checker.checkAll(ids, 4, 1, (id, resp) -> received.incrementAndGet()).join();
+        Assert.assertEquals(count, received.get());
+    }
+
+    @Test
+    public void testFailuresAreReportedPerItem() {
+        EUVatChecker checker = new EUVatChecker(StubFetcher.always(StubFetcher.vatInvalid("IT", "1")), (url, body) -> {
+            if (body.contains("<vatNumber>2</vatNumber>")) {
+                return CompletableFuture.failedFuture(new IllegalStateException("connection reset"));
+            }
+            return CompletableFuture.completedFuture(StubFetcher.always(StubFetcher.vatInvalid("IT", "1")).apply(url, body));
+        });
+        Map<VatId, EUVatCheckResponse> results = new ConcurrentHashMap<>();
+        checker.checkAll(Arrays.asList(VatId.of("IT", "1"), VatId.of("IT", "2"), VatId.of("IT", "3")), 2, 2, results::put).join();
+        Assert.assertEquals(3, results.size());
+        Assert.assertFalse(results.get(VatId.of("IT", "1")).isError());
+        EUVatCheckResponse failed = results.get(VatId.of("IT", "2"));
+        Assert.assertTrue(failed.isError());
+        Assert.assertEquals(EUVatCheckResponse.FaultType.OTHER, failed.getFault().getFaultType());
+        Assert.assertTrue(failed.getFault().getFault().contains("connection reset"));
+    }
+}
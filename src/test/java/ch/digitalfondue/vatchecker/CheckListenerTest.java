@@ -0,0 +1,160 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class CheckListenerTest {
+
+    @Test
+    public void testBlockingCall() {
+        List<CallMetrics> calls = new CopyOnWriteArrayList<>();
+        String payload = StubFetcher.vatValid("IT", "00950501007", "name", "address");
+        EUVatChecker checker = new EUVatChecker(StubFetcher.always(payload)).withListener(calls::add);
+        Assert.assertTrue(checker.check("it", "00950501007").isValid());
+        Assert.assertEquals(1, calls.size());
+        CallMetrics metrics = calls.get(0);
+        Assert.assertEquals("checkVat", metrics.getOperation());
+        Assert.assertEquals("IT", metrics.getCountryCode());
+        Assert.assertNull(metrics.getFaultType());
+        Assert.assertNull(metrics.getFailure());
+        // not known for a custom fetcher
+        Assert.assertEquals(-1, metrics.getConnectNanos());
+        Assert.assertEquals(-1, metrics.getFirstByteNanos());
+        Assert.assertTrue(metrics.getSerializeNanos() >= 0);
+        Assert.assertTrue(metrics.getFetchNanos() >= 0);
+        Assert.assertTrue(metrics.getParseNanos() >= 0);
+        Assert.assertTrue(metrics.getExtractNanos() >= 0);
+        Assert.assertTrue(metrics.getTotalNanos() >= metrics.getSerializeNanos() + metrics.getFetchNanos() + metrics.getParseNanos() + metrics.getExtractNanos());
+        Assert.assertTrue(metrics.getRequestBytes() > 0);
+        Assert.assertTrue(metrics.getResponseBytes() > 0 && metrics.getResponseBytes() <= payload.getBytes(StandardCharsets.UTF_8).length);
+    }
+
+    @Test
+    public void testAsyncFaults() {
+        List<CallMetrics> calls = new CopyOnWriteArrayList<>();
+        StubFetcher fetcher = StubFetcher.always(StubFetcher.fault("SERVER_BUSY"));
+        EUTinChecker checker = new EUTinChecker(fetcher, (url, body) -> CompletableFuture.completedFuture(fetcher.apply(url, body)))
+                .withRetry(RetryPolicy.defaultPolicy().withMaxAttempts(3).withBackoff(Duration.ofMillis(1), Duration.ofMillis(1), 1))
+                .withListener(calls::add);
+        Assert.assertTrue(checker.checkAsync("BE", "1").join().isError());
+        // each attempt is reported
+        Assert.assertEquals(3, calls.size());
+        for (CallMetrics metrics : calls) {
+            Assert.assertEquals("checkTin", metrics.getOperation());
+            Assert.assertEquals("SERVER_BUSY", metrics.getFaultType());
+        }
+    }
+
+    @Test
+    public void testFailure() {
+        List<CallMetrics> calls = new CopyOnWriteArrayList<>();
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            throw new IllegalStateException("boom");
+        }).withListener(calls::add);
+        try {
+            checker.check("IT", "1");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("boom", e.getMessage());
+        }
+        Assert.assertEquals(1, calls.size());
+        Assert.assertTrue(calls.get(0).getFailure() instanceof IllegalStateException);
+        Assert.assertNull(calls.get(0).getFaultType());
+    }
+
+    @Test
+    public void testListenersAndStatistics() {
+        CheckStatistics statistics = new CheckStatistics();
+        StubFetcher fetcher = new StubFetcher(body -> "DE".equals(StubFetcher.param(body, "countryCode")) ?
+                StubFetcher.fault("MS_UNAVAILABLE") : StubFetcher.vatValid("IT", "1", "name", "address"));
+        EUVatChecker checker = new EUVatChecker(fetcher)
+                .withListener(metrics -> {
+                    throw new IllegalStateException("ignored");
+                })
+                .withListener(statistics);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertFalse(checker.check("IT", "1").isError());
+        }
+        Assert.assertTrue(checker.check("DE", "1").isError());
+        Assert.assertEquals(11, statistics.getCalls());
+        Assert.assertEquals(0, statistics.getFailures());
+        Assert.assertEquals(Long.valueOf(10), statistics.getCallsByCountry().get("IT"));
+        Assert.assertEquals(Long.valueOf(1), statistics.getFaults().get("MS_UNAVAILABLE"));
+        Assert.assertEquals(11, statistics.getLatency(CheckStatistics.Phase.TOTAL).getCount());
+        Assert.assertEquals(0, statistics.getLatency(CheckStatistics.Phase.CONNECT).getCount());
+        Assert.assertTrue(statistics.getRequestBytes() > 0);
+        Assert.assertTrue(statistics.getResponseBytes() > 0);
+    }
+
+    @Test
+    public void testDefaultFetchers() throws Exception {
+        byte[] resp = StubFetcher.vatValid("IT", "1", "name", "address").getBytes(StandardCharsets.UTF_8);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            try (InputStream is = exchange.getRequestBody()) {
+                is.readAllBytes();
+            }
+            exchange.getResponseHeaders().add("Content-Type", "text/xml;charset=UTF-8");
+            exchange.sendResponseHeaders(200, resp.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(resp);
+            }
+        });
+        server.start();
+        try {
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+            HttpFetcher fetcher = new HttpFetcher(FetcherConfig.defaultConfig());
+            DeadlineAwareFetcher<InputStream> blocking = (ignored, document, deadline, metrics) -> fetcher.fetch(url, document, deadline, metrics);
+            DeadlineAwareFetcher<CompletableFuture<InputStream>> async = (ignored, document, deadline, metrics) -> fetcher.fetchAsync(url, document, deadline, metrics);
+            List<CallMetrics> calls = new CopyOnWriteArrayList<>();
+            EUVatChecker checker = new EUVatChecker(blocking, async).withListener(calls::add);
+
+            Assert.assertTrue(checker.check("IT", "1").isValid());
+            CallMetrics metrics = calls.get(0);
+            Assert.assertTrue(metrics.getConnectNanos() >= 0);
+            Assert.assertTrue(metrics.getFirstByteNanos() >= metrics.getConnectNanos());
+            Assert.assertTrue(metrics.getFetchNanos() >= metrics.getFirstByteNanos());
+            Assert.assertEquals(resp.length, metrics.getResponseBytes());
+
+            Assert.assertTrue(checker.checkAsync("IT", "1").join().isValid());
+            metrics = calls.get(1);
+            Assert.assertEquals(-1, metrics.getConnectNanos());
+            Assert.assertTrue(metrics.getFirstByteNanos() >= 0);
+            Assert.assertEquals(resp.length, metrics.getResponseBytes());
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    public void testUtf8Length() {
+        for (String s : new String[]{"", "abc", "àé", "€", "😀", "aè€😀z"}) {
+            Assert.assertEquals(s.getBytes(StandardCharsets.UTF_8).length, Utils.utf8Length(s));
+        }
+    }
+}
@@ -0,0 +1,282 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+public class CheckProcessorTest {
+
+    private static final String[] COUNTRIES = {"IT", "DE", "FR", "NL"};
+
+    @Test
+    public void testOrderedWithFaults() throws InterruptedException {
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+        try {
+            // every 7th number fails with a network error, every 5th with a fault of the service
+            StubFetcher stub = new StubFetcher(body -> {
+                String nr = StubFetcher.param(body, "vatNumber");
+                return Integer.parseInt(nr) % 5 == 0 ? StubFetcher.fault("MS_UNAVAILABLE") :
+                        StubFetcher.vatValid(StubFetcher.param(body, "countryCode"), nr, "n" + nr, "a");
+            });
+            BiFunction<String, String, CompletableFuture<InputStream>> async = (url, body) -> {
+                CompletableFuture<InputStream> res = new CompletableFuture<>();
+                boolean failure = Integer.parseInt(StubFetcher.param(body, "vatNumber")) % 7 == 0;
+                scheduler.schedule(() -> {
+                    if (failure) {
+                        res.completeExceptionally(new IllegalStateException("connection reset"));
+                    } else {
+                        res.complete(stub.apply(url, body));
+                    }
+                }, ThreadLocalRandom.current().nextInt(5), TimeUnit.MILLISECONDS);
+                return res;
+            };
+            List<VatId> ids = ids(200);
+            Flow.Processor<VatId, EUVatCheckResponse> processor = new EUVatChecker(stub, async).processor(8, 3, true);
+            IteratorPublisher<VatId> publisher = new IteratorPublisher<>(ids.iterator());
+            publisher.subscribe(processor);
+            CollectingSubscriber<EUVatCheckResponse> subscriber = new CollectingSubscriber<>(Long.MAX_VALUE);
+            processor.subscribe(subscriber);
+
+            Assert.assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+            Assert.assertNull(subscriber.error);
+            Assert.assertEquals(ids.size(), subscriber.items.size());
+            for (int i = 0; i < ids.size(); i++) {
+                EUVatCheckResponse response = subscriber.items.get(i);
+                if (i % 7 == 0) {
+                    Assert.assertEquals(EUVatCheckResponse.FaultType.OTHER, response.getFault().getFaultType());
+                } else if (i % 5 == 0) {
+                    Assert.assertEquals(EUVatCheckResponse.FaultType.MS_UNAVAILABLE, response.getFault().getFaultType());
+                } else {
+                    Assert.assertEquals("n" + i, response.getName());
+                }
+            }
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testBackpressureAndConcurrency() throws InterruptedException {
+        ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(4);
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        Map<String, AtomicInteger> inFlightPerCountry = new ConcurrentHashMap<>();
+        Map<String, Integer> maxPerCountry = new ConcurrentHashMap<>();
+        try {
+            StubFetcher stub = new StubFetcher(body -> StubFetcher.vatInvalid(StubFetcher.param(body, "countryCode"), StubFetcher.param(body, "vatNumber")));
+            BiFunction<String, String, CompletableFuture<InputStream>> async = (url, body) -> {
+                String country = StubFetcher.param(body, "countryCode");
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                int local = inFlightPerCountry.computeIfAbsent(country, k -> new AtomicInteger()).incrementAndGet();
+                maxPerCountry.merge(country, local, Math::max);
+                CompletableFuture<InputStream> res = new CompletableFuture<>();
+                scheduler.schedule(() -> {
+                    inFlightPerCountry.get(country).decrementAndGet();
+                    inFlight.decrementAndGet();
+                    res.complete(stub.apply(url, body));
+                }, 2, TimeUnit.MILLISECONDS);
+                return res;
+            };
+            Flow.Processor<VatId, EUVatCheckResponse> processor = new EUVatChecker(stub, async).processor(6, 2, false);
+            IteratorPublisher<VatId> publisher = new IteratorPublisher<>(ids(1000).iterator());
+            publisher.subscribe(processor);
+            CollectingSubscriber<EUVatCheckResponse> subscriber = new CollectingSubscriber<>(5);
+            processor.subscribe(subscriber);
+
+            // the subscriber wants only 5 responses: at most 2 * maxConcurrency are pulled from upstream
+            waitFor(() -> subscriber.items.size() == 5);
+            Thread.sleep(50);
+            Assert.assertEquals(5, subscriber.items.size());
+            Assert.assertTrue(publisher.requested.get() <= 5 + 12);
+            Assert.assertTrue(publisher.emitted.get() <= 5 + 12);
+
+            subscriber.subscription.request(Long.MAX_VALUE);
+            Assert.assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+            Assert.assertEquals(1000, subscriber.items.size());
+            Assert.assertTrue(maxInFlight.get() <= 6);
+            for (int max : maxPerCountry.values()) {
+                Assert.assertTrue(max <= 2);
+            }
+        } finally {
+            scheduler.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testTinProcessorAndUpstreamError() throws InterruptedException {
+        StubFetcher stub = new StubFetcher(body -> StubFetcher.tin(StubFetcher.param(body, "countryCode"), StubFetcher.param(body, "tinNumber"), true, true));
+        Flow.Processor<TinId, EUTinCheckResponse> processor = new EUTinChecker(stub).processor(4, 4, true);
+        List<TinId> tins = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            tins.add(TinId.of("BE", "0001251111" + i));
+        }
+        IteratorPublisher<TinId> publisher = new IteratorPublisher<>(tins.iterator());
+        publisher.failure = new IllegalStateException("upstream failure");
+        publisher.subscribe(processor);
+        CollectingSubscriber<EUTinCheckResponse> subscriber = new CollectingSubscriber<>(Long.MAX_VALUE);
+        processor.subscribe(subscriber);
+
+        Assert.assertTrue(subscriber.done.await(10, TimeUnit.SECONDS));
+        // the received items are emitted before the error
+        Assert.assertEquals(10, subscriber.items.size());
+        Assert.assertSame(publisher.failure, subscriber.error);
+        Assert.assertTrue(subscriber.items.get(0).isValidSyntax());
+    }
+
+    @Test
+    public void testInvalidRequestAndSecondSubscriber() throws InterruptedException {
+        StubFetcher stub = StubFetcher.always(StubFetcher.vatInvalid("IT", "1"));
+        Flow.Processor<VatId, EUVatCheckResponse> processor = new EUVatChecker(stub).processor(2, 2, false);
+        IteratorPublisher<VatId> publisher = new IteratorPublisher<>(ids(10).iterator());
+        publisher.subscribe(processor);
+        CollectingSubscriber<EUVatCheckResponse> subscriber = new CollectingSubscriber<>(0);
+        processor.subscribe(subscriber);
+
+        CollectingSubscriber<EUVatCheckResponse> second = new CollectingSubscriber<>(1);
+        processor.subscribe(second);
+        Assert.assertTrue(second.done.await(1, TimeUnit.SECONDS));
+        Assert.assertTrue(second.error instanceof IllegalStateException);
+
+        subscriber.subscription.request(0);
+        Assert.assertTrue(subscriber.done.await(1, TimeUnit.SECONDS));
+        Assert.assertTrue(subscriber.error instanceof IllegalArgumentException);
+        Assert.assertTrue(publisher.cancelled);
+    }
+
+    private static List<VatId> ids(int count) {
+        List<VatId> ids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            ids.add(VatId.of(COUNTRIES[i % COUNTRIES.length], Integer.toString(i)));
+        }
+        return ids;
+    }
+
+    private static void waitFor(java.util.function.BooleanSupplier condition) throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (!condition.getAsBoolean()) {
+            Assert.assertTrue(System.nanoTime() < end);
+            Thread.sleep(5);
+        }
+    }
+
+    /**
+     * Emits the items synchronously on request, then completes (or fails).
+     */
+    private static final class IteratorPublisher<T> implements Flow.Publisher<T> {
+        private final Iterator<T> items;
+        final AtomicLong requested = new AtomicLong();
+        final AtomicLong emitted = new AtomicLong();
+        volatile boolean cancelled;
+        Throwable failure;
+
+        IteratorPublisher(Iterator<T> items) {
+            this.items = items;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super T> subscriber) {
+            AtomicLong demand = new AtomicLong();
+            AtomicInteger wip = new AtomicInteger();
+            subscriber.onSubscribe(new Flow.Subscription() {
+                private boolean done;
+
+                @Override
+                public void request(long n) {
+                    requested.addAndGet(n);
+                    demand.addAndGet(n);
+                    if (wip.getAndIncrement() != 0) {
+                        return;
+                    }
+                    do {
+                        while (!done && !cancelled && demand.get() > 0 && items.hasNext()) {
+                            demand.decrementAndGet();
+                            emitted.incrementAndGet();
+                            subscriber.onNext(items.next());
+                        }
+                        if (!done && !cancelled && !items.hasNext()) {
+                            done = true;
+                            if (failure != null) {
+                                subscriber.onError(failure);
+                            } else {
+                                subscriber.onComplete();
+                            }
+                        }
+                    } while (wip.decrementAndGet() != 0);
+                }
+
+                @Override
+                public void cancel() {
+                    cancelled = true;
+                }
+            });
+        }
+    }
+
+    private static final class CollectingSubscriber<T> implements Flow.Subscriber<T> {
+        private final long initialRequest;
+        final List<T> items = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile Flow.Subscription subscription;
+        volatile Throwable error;
+
+        CollectingSubscriber(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (initialRequest > 0) {
+                subscription.request(initialRequest);
+            }
+        }
+
+        @Override
+        public void onNext(T item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+            done.countDown();
+        }
+
+        @Override
+        public void onComplete() {
+            done.countDown();
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class CircuitBreakerTest {
+
+    private final AtomicLong now = new AtomicLong();
+    // the payload returned for each country, can be changed during the test
+    private final Map<String, String> answers = new ConcurrentHashMap<>();
+    private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<>();
+
+    private final StubFetcher fetcher = new StubFetcher(body -> {
+        String country = StubFetcher.param(body, "countryCode");
+        calls.computeIfAbsent(country, k -> new AtomicInteger()).incrementAndGet();
+        return answers.get(country);
+    });
+
+    private int calls(String country) {
+        return calls.getOrDefault(country, new AtomicInteger()).get();
+    }
+
+    private CircuitBreaker breaker(int probes) {
+        return new CircuitBreaker(4, 4, 0.5, Duration.ofSeconds(30), probes, now::get);
+    }
+
+    @Test
+    public void testOpensPerCountry() {
+        answers.put("DE", StubFetcher.fault("MS_UNAVAILABLE"));
+        answers.put("IT", StubFetcher.vatValid("IT", "1", "name", "address"));
+        CircuitBreaker breaker = breaker(1);
+        EUVatChecker checker = new EUVatChecker(fetcher).withCircuitBreaker(breaker);
+
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals(EUVatCheckResponse.FaultType.MS_UNAVAILABLE, checker.check("DE", "1").getFault().getFaultType());
+            Assert.assertTrue(checker.check("IT", "1").isValid());
+        }
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState("DE"));
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState("IT"));
+
+        EUVatCheckResponse resp = checker.check("DE", "1");
+        Assert.assertTrue(resp.isError());
+        Assert.assertEquals(EUVatCheckResponse.FaultType.CIRCUIT_OPEN, resp.getFault().getFaultType());
+        Assert.assertEquals(4, calls("DE"));
+        Assert.assertTrue(checker.check("IT", "1").isValid());
+        Assert.assertEquals(5, calls("IT"));
+
+        Map<String, CircuitBreaker.State> states = breaker.getStates();
+        Assert.assertEquals(CircuitBreaker.State.OPEN, states.get("DE"));
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, states.get("IT"));
+    }
+
+    @Test
+    public void testOpenCircuitIsNotCached() {
+        answers.put("DE", StubFetcher.fault("MS_UNAVAILABLE"));
+        ResultCache<EUVatCheckResponse> cache = new ResultCache<>(100, Duration.ofHours(24), Duration.ofHours(1), Duration.ofHours(1), now::get);
+        EUVatChecker checker = new EUVatChecker(fetcher).withCache(cache).withCircuitBreaker(breaker(1));
+        for (int i = 0; i < 4; i++) {
+            checker.check("DE", String.valueOf(i));
+        }
+        Assert.assertEquals(EUVatCheckResponse.FaultType.CIRCUIT_OPEN, checker.check("DE", "9").getFault().getFaultType());
+        Assert.assertNull(cache.get(CheckKey.vat("DE", "9")));
+        Assert.assertEquals(4, cache.size());
+    }
+
+    @Test
+    public void testHalfOpenProbes() {
+        answers.put("DE", StubFetcher.fault("TIMEOUT"));
+        CircuitBreaker breaker = breaker(2);
+        EUVatChecker checker = new EUVatChecker(fetcher).withCircuitBreaker(breaker);
+        for (int i = 0; i < 4; i++) {
+            checker.check("DE", "1");
+        }
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState("DE"));
+
+        // a failing probe opens the circuit again
+        now.addAndGet(Duration.ofSeconds(31).toNanos());
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState("DE"));
+        checker.check("DE", "1");
+        Assert.assertEquals(5, calls("DE"));
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState("DE"));
+        Assert.assertEquals(EUVatCheckResponse.FaultType.CIRCUIT_OPEN, checker.check("DE", "1").getFault().getFaultType());
+
+        // two successful probes close it
+        now.addAndGet(Duration.ofSeconds(31).toNanos());
+        answers.put("DE", StubFetcher.vatValid("DE", "1", "name", "address"));
+        Assert.assertTrue(checker.check("DE", "1").isValid());
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState("DE"));
+        Assert.assertTrue(checker.check("DE", "1").isValid());
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState("DE"));
+        Assert.assertEquals(7, calls("DE"));
+    }
+
+    @Test
+    public void testOnlyProbesCountInHalfOpen() {
+        CircuitBreaker breaker = breaker(1);
+        // started while closed, completed while half-open
+        long slow = breaker.tryAcquire("DE");
+        Assert.assertEquals(CircuitBreaker.CALL, slow);
+        for (int i = 0; i < 4; i++) {
+            breaker.onResult("DE", breaker.tryAcquire("DE"), true);
+        }
+        Assert.assertEquals(CircuitBreaker.State.OPEN, breaker.getState(" de "));
+
+        now.addAndGet(Duration.ofSeconds(31).toNanos());
+        long probe = breaker.tryAcquire("DE");
+        Assert.assertTrue(probe > 0);
+        Assert.assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire("DE"));
+        breaker.onResult("DE", slow, false);
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState("de"));
+        Assert.assertEquals(CircuitBreaker.REJECTED, breaker.tryAcquire("DE"));
+
+        // a probe of a previous half-open state is ignored too
+        breaker.onResult("DE", probe, true);
+        now.addAndGet(Duration.ofSeconds(31).toNanos());
+        long next = breaker.tryAcquire("DE");
+        breaker.onResult("DE", probe, false);
+        Assert.assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState("DE"));
+        breaker.onResult("DE", next, false);
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState("DE"));
+    }
+
+    @Test
+    public void testInputFaultsAndInvalidNumbersAreNotFailures() {
+        answers.put("IT", StubFetcher.fault("INVALID_INPUT"));
+        answers.put("FR", StubFetcher.vatInvalid("FR", "1"));
+        CircuitBreaker breaker = breaker(1);
+        EUVatChecker checker = new EUVatChecker(fetcher).withCircuitBreaker(breaker);
+        for (int i = 0; i < 10; i++) {
+            checker.check("IT", "");
+            checker.check("FR", "1");
+        }
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState("IT"));
+        Assert.assertEquals(CircuitBreaker.State.CLOSED, breaker.getState("FR"));
+    }
+
+    @Test
+    public void testOpenCircuitStopsRetries() {
+        answers.put("DE", StubFetcher.fault("MS_UNAVAILABLE"));
+        CircuitBreaker breaker = breaker(1);
+        RetryPolicy retry = RetryPolicy.defaultPolicy().withMaxAttempts(10).withDeadline(Duration.ofHours(1))
+                .withTimer(new Timer() {
+                    @Override
+                    public long nanoTime() {
+                        return now.get();
+                    }
+
+                    @Override
+                    public CompletableFuture<Void> delay(long nanos) {
+                        return CompletableFuture.completedFuture(null);
+                    }
+                }, () -> 0.0);
+        EUVatChecker checker = new EUVatChecker(fetcher).withRetry(retry).withCircuitBreaker(breaker);
+        Assert.assertEquals(EUVatCheckResponse.FaultType.CIRCUIT_OPEN, checker.check("DE", "1").getFault().getFaultType());
+        Assert.assertEquals(4, calls("DE"));
+    }
+
+    @Test
+    public void testTin() {
+        StubFetcher tinFetcher = StubFetcher.always(StubFetcher.fault("SERVICE_UNAVAILABLE"));
+        CircuitBreaker breaker = breaker(1);
+        EUTinChecker checker = new EUTinChecker(tinFetcher).withCircuitBreaker(breaker);
+        for (int i = 0; i < 5; i++) {
+            checker.check("BE", "1");
+        }
+        Assert.assertEquals(4, tinFetcher.calls.get());
+        Assert.assertEquals(EUTinCheckResponse.FaultType.CIRCUIT_OPEN, checker.check("BE", "1").getFault().getFaultType());
+    }
+}
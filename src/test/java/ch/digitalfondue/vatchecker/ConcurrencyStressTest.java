@@ -0,0 +1,104 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.xml.stream.XMLInputFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.IntFunction;
+
+/**
+ * Correctness under concurrency. The throughput of the pooled parser factories against a new factory per call is
+ * compared by the concurrent benchmarks of SoapParsingBenchmark.
+ */
+public class ConcurrencyStressTest {
+
+    private static final int THREADS = 32;
+    private static final int CHECKS = 4000;
+
+    @Test
+    public void testParallelChecksReturnTheirOwnResult() throws Exception {
+        StubFetcher vatFetcher = new StubFetcher(body -> {
+            String nr = StubFetcher.param(body, "vatNumber");
+            return Integer.parseInt(nr) % 2 == 0 ? StubFetcher.vatValid("IT", nr, "company " + nr, "street " + nr) : StubFetcher.vatInvalid("IT", nr);
+        });
+        StubFetcher tinFetcher = new StubFetcher(body -> {
+            String nr = StubFetcher.param(body, "tinNumber");
+            return Integer.parseInt(nr) % 3 == 0 ? StubFetcher.fault("SERVER_BUSY") : StubFetcher.tin("BE", nr, true, Integer.parseInt(nr) % 3 == 1);
+        });
+        EUVatChecker vatChecker = new EUVatChecker(vatFetcher);
+        EUTinChecker tinChecker = new EUTinChecker(tinFetcher);
+
+        runInParallel(nr -> () -> {
+            if (nr % 2 == 0) {
+                EUVatCheckResponse resp = vatChecker.check("IT", Integer.toString(nr / 2));
+                boolean even = (nr / 2) % 2 == 0;
+                Assert.assertEquals(even, resp.isValid());
+                Assert.assertEquals(even ? "company " + nr / 2 : "---", resp.getName());
+            } else {
+                EUTinCheckResponse resp = tinChecker.check("BE", Integer.toString(nr));
+                Assert.assertEquals(nr % 3 == 0, resp.isError());
+                Assert.assertEquals(nr % 3 == 1, resp.isValidSyntax());
+            }
+            return null;
+        });
+        Assert.assertEquals(CHECKS / 2, vatFetcher.calls.get());
+        Assert.assertEquals(CHECKS / 2, tinFetcher.calls.get());
+    }
+
+    @Test
+    public void testParserFactoriesAreReused() throws Exception {
+        // a pool of its own: the shared one is used by the other tests running at the same time
+        ResourcePool<XMLInputFactory> factories = new ResourcePool<>(Utils::newXMLInputFactory, THREADS);
+        SoapResponseExtractor extractor = new SoapResponseExtractor(factories, "checkVatResponse", "valid", "name", "address");
+        StubFetcher fetcher = new StubFetcher(body -> {
+            String nr = StubFetcher.param(body, "vatNumber");
+            return StubFetcher.vatValid("IT", nr, "company " + nr, "street " + nr);
+        });
+        SoapRequestTemplate template = new SoapRequestTemplate("checkVat", "urn:ec.europa.eu:taxud:vies:services:checkVat:types", "countryCode", "vatNumber");
+
+        runInParallel(nr -> () -> {
+            Utils.ExtractionResult res = Utils.doCallAndExtract(template.render("IT", Integer.toString(nr)), "http://localhost/", fetcher, extractor);
+            Assert.assertEquals("company " + nr, res.extracted.get(1));
+            return null;
+        });
+        Assert.assertEquals(CHECKS, fetcher.calls.get());
+        // at most one factory per concurrent call is ever created
+        Assert.assertTrue(factories.created() <= THREADS);
+    }
+
+    private static void runInParallel(IntFunction<Callable<Void>> check) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>(CHECKS);
+            for (int i = 0; i < CHECKS; i++) {
+                futures.add(executor.submit(check.apply(i)));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,559 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Authenticator;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.PasswordAuthentication;
+import java.net.Proxy;
+import java.net.ProxySelector;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+public class ConnectionPoolTest {
+
+    @Test
+    public void testReuse() throws IOException {
+        try (VatStubServer stub = VatStubServer.start()) {
+            ConnectionPool pool = new ConnectionPool(5, Duration.ofSeconds(30));
+            FetcherConfig config = FetcherConfig.defaultConfig().withConnectionPool(pool);
+            EUVatChecker vatChecker = new EUVatChecker(stub.blocking(config), stub.async(config));
+            EUTinChecker tinChecker = new EUTinChecker(stub.blocking(config), stub.async(config));
+            for (int i = 0; i < 10; i++) {
+                Assert.assertTrue(vatChecker.check("IT", "00950501007").isValid());
+                Assert.assertFalse(tinChecker.check("BE", "00012511119").isError());
+            }
+            // the vat and tin checkers share the connection
+            Assert.assertEquals(1, stub.connections());
+            Assert.assertEquals(1, pool.getHandshakes());
+            Assert.assertEquals(19, pool.getReused());
+            Assert.assertEquals(0.95, pool.getReuseRatio(), 0.0001);
+            Assert.assertEquals(0, pool.getActive());
+            Assert.assertEquals(1, pool.getIdle());
+        }
+    }
+
+    @Test
+    public void testMaxConnectionsPerRoute() throws Exception {
+        try (VatStubServer stub = VatStubServer.start().withLatency(VatStubServer.fixed(50)).withQuota(3, 3)) {
+            ConnectionPool pool = new ConnectionPool(3, Duration.ofSeconds(30));
+            FetcherConfig config = FetcherConfig.defaultConfig().withConnectionPool(pool);
+            EUVatChecker checker = new EUVatChecker(stub.blocking(config), stub.async(config)).withVirtualThreads();
+            List<CompletableFuture<EUVatCheckResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 12; i++) {
+                responses.add(checker.checkAsync("IT", "00950501007"));
+            }
+            for (CompletableFuture<EUVatCheckResponse> response : responses) {
+                // no MS_MAX_CONCURRENT_REQ: at most 3 requests in flight
+                Assert.assertTrue(response.get(10, TimeUnit.SECONDS).isValid());
+            }
+            Assert.assertTrue(stub.connections() <= 3);
+            Assert.assertTrue(pool.getHandshakes() <= 3);
+            Assert.assertEquals(12, pool.getHandshakes() + pool.getReused());
+        }
+    }
+
+    @Test
+    public void testIdleEviction() throws IOException {
+        VirtualTimer timer = new VirtualTimer();
+        try (VatStubServer stub = VatStubServer.start()) {
+            ConnectionPool pool = new ConnectionPool(2, Duration.ofSeconds(1), timer);
+            FetcherConfig config = FetcherConfig.defaultConfig().withConnectionPool(pool);
+            EUVatChecker checker = new EUVatChecker(stub.blocking(config), stub.async(config));
+            Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+            Assert.assertEquals(1, pool.getIdle());
+
+            timer.now.addAndGet(TimeUnit.MILLISECONDS.toNanos(999));
+            Assert.assertEquals(1, pool.getIdle());
+            timer.now.addAndGet(TimeUnit.MILLISECONDS.toNanos(1));
+            Assert.assertEquals(0, pool.getIdle());
+
+            Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+            Assert.assertEquals(2, pool.getHandshakes());
+            Assert.assertEquals(0, pool.getReused());
+            Assert.assertEquals(2, stub.connections());
+        }
+    }
+
+    @Test
+    public void testKeepAliveTimeoutOfTheLastResponse() throws IOException {
+        VirtualTimer timer = new VirtualTimer();
+        AtomicInteger requests = new AtomicInteger();
+        String payload = StubFetcher.vatInvalid("IT", "1");
+        try (RawServer server = new RawServer(request -> response(200, requests.incrementAndGet() == 1 ? "Keep-Alive: timeout=1\r\n" : "", payload), true)) {
+            ConnectionPool pool = new ConnectionPool(2, Duration.ofSeconds(30), timer);
+            EUVatChecker checker = checker(FetcherConfig.defaultConfig().withConnectionPool(pool), server.url());
+            Assert.assertFalse(checker.check("IT", "1").isError());
+            timer.now.addAndGet(TimeUnit.MILLISECONDS.toNanos(400));
+            Assert.assertEquals(1, pool.getIdle());
+            Assert.assertFalse(checker.check("IT", "1").isError());
+            Assert.assertEquals(1, pool.getReused());
+            // the second response announced no timeout: only the idle timeout of the pool applies
+            timer.now.addAndGet(TimeUnit.SECONDS.toNanos(2));
+            Assert.assertEquals(1, pool.getIdle());
+            Assert.assertEquals(1, server.accepted.get());
+        }
+    }
+
+    @Test
+    public void testWithoutKeepAlive() throws IOException {
+        try (VatStubServer stub = VatStubServer.start()) {
+            ConnectionPool pool = new ConnectionPool(2, Duration.ofSeconds(30));
+            FetcherConfig config = FetcherConfig.defaultConfig().withConnectionPool(pool).withKeepAlive(false);
+            EUVatChecker checker = new EUVatChecker(stub.blocking(config), stub.async(config));
+            for (int i = 0; i < 3; i++) {
+                Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+            }
+            Assert.assertEquals(3, stub.connections());
+            Assert.assertEquals(3, pool.getHandshakes());
+            Assert.assertEquals(0, pool.getIdle());
+        }
+    }
+
+    @Test
+    public void testMoreChecksThanConnections() throws Exception {
+        try (VatStubServer stub = VatStubServer.start().withLatency(VatStubServer.fixed(100))) {
+            // the size of the shared pool, with waits much longer than the connect timeout
+            ConnectionPool pool = new ConnectionPool(20, Duration.ofSeconds(30));
+            FetcherConfig config = FetcherConfig.defaultConfig().withConnectionPool(pool).withConnectTimeout(Duration.ofMillis(50));
+            EUVatChecker checker = new EUVatChecker(stub.blocking(config), stub.async(config));
+            ExecutorService executor = Executors.newFixedThreadPool(60);
+            try {
+                List<Future<EUVatCheckResponse>> responses = new ArrayList<>();
+                for (int i = 0; i < 60; i++) {
+                    responses.add(executor.submit(() -> checker.check("IT", "00950501007")));
+                }
+                for (Future<EUVatCheckResponse> response : responses) {
+                    Assert.assertTrue(response.get(10, TimeUnit.SECONDS).isValid());
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            Assert.assertTrue(stub.connections() <= 20);
+        }
+    }
+
+    @Test
+    public void testWaitForAConnection() throws IOException {
+        try (RawServer server = new RawServer(request -> chunked(StubFetcher.vatInvalid("IT", "1")))) {
+            ConnectionPool pool = new ConnectionPool(1, Duration.ofSeconds(30));
+            HttpConnection.Route route = new HttpConnection.Route(new URL(server.url()), Proxy.NO_PROXY, null);
+            HttpConnection connection = pool.lease(route, 1000, TimeUnit.SECONDS.toNanos(1), Utils.NO_DEADLINE);
+            Assert.assertEquals(1, pool.getActive());
+            long start = System.nanoTime();
+            try {
+                pool.lease(route, 1000, TimeUnit.MILLISECONDS.toNanos(100), Utils.NO_DEADLINE);
+                Assert.fail();
+            } catch (SocketTimeoutException e) {
+                // expected, the only connection is in use
+                Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(100));
+            }
+            pool.release(connection, true);
+            Assert.assertEquals(0, pool.getActive());
+            Assert.assertEquals(1, pool.getIdle());
+            HttpConnection reused = pool.lease(route, 1000, TimeUnit.MILLISECONDS.toNanos(100), Utils.NO_DEADLINE);
+            Assert.assertSame(connection, reused);
+            pool.release(reused, false);
+            Assert.assertEquals(0, pool.getIdle());
+        }
+    }
+
+    @Test
+    public void testChunkedResponseAndStaleConnection() throws IOException {
+        // the server closes each connection after the response, without announcing it
+        try (RawServer server = new RawServer(request -> chunked(VALID))) {
+            ConnectionPool pool = new ConnectionPool(2, Duration.ofSeconds(30));
+            EUVatChecker checker = checker(FetcherConfig.defaultConfig().withConnectionPool(pool), server.url());
+            for (int i = 0; i < 3; i++) {
+                EUVatCheckResponse response = checker.check("IT", "00950501007");
+                Assert.assertTrue(response.isValid());
+                Assert.assertEquals("BANCA D'ITALIA", response.getName());
+            }
+            // the stale connections are retried on a new one
+            Assert.assertEquals(3, server.accepted.get());
+            Assert.assertEquals(3, pool.getHandshakes());
+            Assert.assertEquals(2, pool.getReused());
+        }
+    }
+
+    @Test
+    public void testTls() throws IOException {
+        try (VatStubServer stub = VatStubServer.startHttps()) {
+            ConnectionPool pool = new ConnectionPool(5, Duration.ofSeconds(30));
+            FetcherConfig config = FetcherConfig.defaultConfig().withConnectionPool(pool).withSslContext(VatStubServer.sslContext());
+            EUVatChecker checker = new EUVatChecker(stub.blocking(config), stub.async(config));
+            for (int i = 0; i < 10; i++) {
+                Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+            }
+            Assert.assertEquals(1, pool.getHandshakes());
+            Assert.assertEquals(9, pool.getReused());
+            Assert.assertTrue(checker.checkAsync("IT", "00950501007").join().isValid());
+            // the async fetcher has its own connection
+            Assert.assertEquals(2, stub.connections());
+        }
+    }
+
+    @Test
+    public void testUntrustedCertificate() throws IOException {
+        try (VatStubServer stub = VatStubServer.startHttps()) {
+            ConnectionPool pool = new ConnectionPool(5, Duration.ofSeconds(30));
+            FetcherConfig config = FetcherConfig.defaultConfig().withConnectionPool(pool);
+            EUVatChecker checker = new EUVatChecker(stub.blocking(config), stub.async(config));
+            assertFails(() -> checker.check("IT", "00950501007"), "PKIX path building failed");
+            Assert.assertEquals(0, pool.getHandshakes());
+            Assert.assertEquals(0, pool.getActive());
+            Assert.assertEquals(0, stub.requests.sum());
+        }
+    }
+
+    @Test
+    public void testProxyTunnel() throws IOException {
+        try (VatStubServer stub = VatStubServer.startHttps(); TunnelProxy proxy = new TunnelProxy(null)) {
+            ConnectionPool pool = new ConnectionPool(5, Duration.ofSeconds(30));
+            FetcherConfig config = FetcherConfig.defaultConfig().withConnectionPool(pool)
+                    .withSslContext(VatStubServer.sslContext())
+                    .withProxy(proxy.proxy());
+            EUVatChecker checker = new EUVatChecker(stub.blocking(config), stub.async(config));
+            for (int i = 0; i < 5; i++) {
+                Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+            }
+            Assert.assertEquals(1, proxy.tunnels.get());
+            Assert.assertEquals(1, pool.getHandshakes());
+            Assert.assertEquals(4, pool.getReused());
+        }
+    }
+
+    @Test
+    public void testDefaultProxySelector() throws IOException {
+        ProxySelector defaultSelector = ProxySelector.getDefault();
+        try (VatStubServer stub = VatStubServer.startHttps(); TunnelProxy proxy = new TunnelProxy(null)) {
+            // like with -Dhttps.proxyHost, the config has no explicit proxy
+            ProxySelector.setDefault(ProxySelector.of((InetSocketAddress) proxy.proxy().address()));
+            ConnectionPool pool = new ConnectionPool(5, Duration.ofSeconds(30));
+            FetcherConfig config = FetcherConfig.defaultConfig().withConnectionPool(pool).withSslContext(VatStubServer.sslContext());
+            EUVatChecker checker = new EUVatChecker(stub.blocking(config), stub.async(config));
+            Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+            Assert.assertEquals(1, proxy.tunnels.get());
+
+            // an explicit proxy wins
+            FetcherConfig direct = config.withProxy(Proxy.NO_PROXY);
+            EUVatChecker directChecker = new EUVatChecker(stub.blocking(direct), stub.async(direct));
+            Assert.assertTrue(directChecker.check("IT", "00950501007").isValid());
+            Assert.assertTrue(directChecker.checkAsync("IT", "00950501007").join().isValid());
+            Assert.assertEquals(1, proxy.tunnels.get());
+
+            Assert.assertTrue(checker.checkAsync("IT", "00950501007").join().isValid());
+            Assert.assertTrue(proxy.tunnels.get() >= 2);
+        } finally {
+            ProxySelector.setDefault(defaultSelector);
+        }
+    }
+
+    @Test
+    public void testProxyTunnelAuthentication() throws IOException {
+        try (VatStubServer stub = VatStubServer.startHttps(); TunnelProxy proxy = new TunnelProxy("user:secret")) {
+            ConnectionPool pool = new ConnectionPool(5, Duration.ofSeconds(30));
+            FetcherConfig config = FetcherConfig.defaultConfig().withConnectionPool(pool)
+                    .withSslContext(VatStubServer.sslContext())
+                    .withProxy(proxy.proxy());
+            EUVatChecker checker = new EUVatChecker(stub.blocking(config), stub.async(config));
+            assertFails(() -> checker.check("IT", "00950501007"), "no credentials");
+            Assert.assertEquals(0, proxy.tunnels.get());
+
+            Authenticator.setDefault(new ProxyAuthenticator("user", "secret"));
+            try {
+                for (int i = 0; i < 3; i++) {
+                    Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+                }
+                Assert.assertEquals(1, proxy.tunnels.get());
+                Assert.assertEquals(2, pool.getReused());
+            } finally {
+                Authenticator.setDefault(null);
+            }
+        }
+    }
+
+    @Test
+    public void testHttpProxyAuthentication() throws IOException {
+        String expected = "Proxy-Authorization: Basic " + Base64.getEncoder().encodeToString("user:secret".getBytes(StandardCharsets.UTF_8));
+        // acts as the proxy, the requests have an absolute uri
+        try (RawServer proxy = new RawServer(request -> {
+            if (!request.startsWith("POST http://vies.example:8080/service ")) {
+                return response(400, "", "");
+            }
+            return request.contains(expected) ? chunked(VALID) : response(407, "Proxy-Authenticate: Basic realm=\"stub\"\r\n", "");
+        })) {
+            ConnectionPool pool = new ConnectionPool(5, Duration.ofSeconds(30));
+            FetcherConfig config = FetcherConfig.defaultConfig().withConnectionPool(pool)
+                    .withProxy(new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", proxy.port())));
+            EUVatChecker checker = checker(config, "http://vies.example:8080/service");
+            assertFails(() -> checker.check("IT", "00950501007"), "no credentials");
+
+            Authenticator.setDefault(new ProxyAuthenticator("user", "secret"));
+            try {
+                Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+            } finally {
+                Authenticator.setDefault(null);
+            }
+        }
+    }
+
+    @Test
+    public void testRedirects() throws IOException {
+        try (RawServer server = new RawServer(request -> {
+            if (request.startsWith("POST /temporary ")) {
+                return response(307, "Location: /new\r\n", "");
+            } else if (request.startsWith("POST /found ")) {
+                return response(302, "Location: /new\r\n", "");
+            } else if (request.startsWith("POST /loop ")) {
+                return response(308, "Location: /loop\r\n", "");
+            }
+            return request.startsWith("POST /new ") ? chunked(VALID) : response(404, "", "");
+        })) {
+            FetcherConfig config = FetcherConfig.defaultConfig().withConnectionPool(new ConnectionPool(5, Duration.ofSeconds(30)));
+            Assert.assertTrue(checker(config, server.url() + "temporary").check("IT", "00950501007").isValid());
+            // a POST redirected with 302 would become a GET
+            assertFails(() -> checker(config, server.url() + "found").check("IT", "00950501007"), "only redirected with 307 and 308");
+            int accepted = server.accepted.get();
+            assertFails(() -> checker(config, server.url() + "loop").check("IT", "00950501007"), "response code: 308");
+            Assert.assertEquals(6, server.accepted.get() - accepted);
+        }
+    }
+
+    @Test
+    public void testErrorStatus() throws IOException {
+        try (RawServer server = new RawServer(request -> request.startsWith("POST /fault ") ?
+                response(500, "Content-Type: text/xml\r\n", StubFetcher.fault("MS_UNAVAILABLE")) : response(503, "", ""))) {
+            FetcherConfig config = FetcherConfig.defaultConfig().withConnectionPool(new ConnectionPool(5, Duration.ofSeconds(30)));
+            // the body of an error status is parsed
+            EUVatCheckResponse fault = checker(config, server.url() + "fault").check("IT", "00950501007");
+            Assert.assertEquals(EUVatCheckResponse.FaultType.MS_UNAVAILABLE, fault.getFault().getFaultType());
+            // without body, it's an error like with HttpURLConnection
+            assertFails(() -> checker(config, server.url() + "empty").check("IT", "00950501007"), "response code: 503");
+        }
+    }
+
+    private static final String VALID = StubFetcher.vatValid("IT", "00950501007", "BANCA D'ITALIA", "ROMA");
+
+    private static EUVatChecker checker(FetcherConfig config, String url) {
+        HttpFetcher fetcher = new HttpFetcher(config);
+        return new EUVatChecker((DeadlineAwareFetcher<InputStream>) (ignored, document, deadline, metrics) -> fetcher.fetch(url, document, deadline, metrics));
+    }
+
+    private static void assertFails(Runnable check, String message) {
+        try {
+            check.run();
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+
+    private static String response(int status, String headers, String body) {
+        return "HTTP/1.1 " + status + " Status\r\n" + headers + "Content-Length: " + body.getBytes(StandardCharsets.UTF_8).length + "\r\n\r\n" + body;
+    }
+
+    // in two chunks, the second one with an extension
+    private static String chunked(String body) {
+        int half = body.length() / 2;
+        String first = body.substring(0, half);
+        String second = body.substring(half);
+        return "HTTP/1.1 200 OK\r\nContent-Type: text/xml\r\nTransfer-Encoding: chunked\r\n\r\n"
+                + Integer.toHexString(first.getBytes(StandardCharsets.UTF_8).length) + "\r\n" + first
+                + "\r\n" + Integer.toHexString(second.getBytes(StandardCharsets.UTF_8).length) + ";ext=1\r\n" + second
+                + "\r\n0\r\n\r\n";
+    }
+
+    // the request line and the headers
+    private static String readHead(InputStream is) throws IOException {
+        StringBuilder head = new StringBuilder();
+        while (!head.toString().endsWith("\r\n\r\n")) {
+            int c = is.read();
+            if (c == -1) {
+                throw new IOException("closed");
+            }
+            head.append((char) c);
+        }
+        return head.toString();
+    }
+
+    private static void readBody(String head, InputStream is) throws IOException {
+        for (String header : head.split("\r\n")) {
+            if (header.toLowerCase().startsWith("content-length:")) {
+                is.readNBytes(Integer.parseInt(header.substring(15).trim()));
+            }
+        }
+    }
+
+    /**
+     * Answers a single request per connection, then closes it.
+     */
+    private static final class RawServer implements AutoCloseable {
+        private final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final AtomicInteger accepted = new AtomicInteger();
+
+        /**
+         * @param responder the raw response to the request line and headers
+         */
+        RawServer(Function<String, String> responder) throws IOException {
+            this(responder, false);
+        }
+
+        /**
+         * @param persistent if the connections serve multiple requests, otherwise they are closed after the first one
+         */
+        RawServer(Function<String, String> responder, boolean persistent) throws IOException {
+            Thread thread = new Thread(() -> {
+                while (!serverSocket.isClosed()) {
+                    try (Socket socket = serverSocket.accept()) {
+                        accepted.incrementAndGet();
+                        InputStream is = socket.getInputStream();
+                        OutputStream os = socket.getOutputStream();
+                        do {
+                            String head = readHead(is);
+                            readBody(head, is);
+                            os.write(responder.apply(head).getBytes(StandardCharsets.UTF_8));
+                            os.flush();
+                        } while (persistent);
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        int port() {
+            return serverSocket.getLocalPort();
+        }
+
+        String url() {
+            return "http://127.0.0.1:" + port() + "/";
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    /**
+     * A http proxy only supporting CONNECT, optionally requiring Basic credentials.
+     */
+    private static final class TunnelProxy implements AutoCloseable {
+        private final ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        final AtomicInteger tunnels = new AtomicInteger();
+
+        /**
+         * @param credentials user:password, null if not required
+         */
+        TunnelProxy(String credentials) throws IOException {
+            String authorization = credentials == null ? null : "Proxy-Authorization: Basic " + Base64.getEncoder().encodeToString(credentials.getBytes(StandardCharsets.UTF_8));
+            Thread thread = new Thread(() -> {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        Socket client = serverSocket.accept();
+                        Thread handler = new Thread(() -> handle(client, authorization));
+                        handler.setDaemon(true);
+                        handler.start();
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            });
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void handle(Socket client, String authorization) {
+            try (Socket c = client) {
+                InputStream is = c.getInputStream();
+                OutputStream os = c.getOutputStream();
+                String head = readHead(is);
+                if (authorization != null && !head.contains(authorization + "\r\n")) {
+                    os.write(response(407, "Proxy-Authenticate: Basic realm=\"stub\"\r\nConnection: close\r\n", "").getBytes(StandardCharsets.ISO_8859_1));
+                    os.flush();
+                    return;
+                }
+                // CONNECT host:port HTTP/1.1
+                String[] target = head.split(" ")[1].split(":");
+                try (Socket server = new Socket(target[0], Integer.parseInt(target[1]))) {
+                    tunnels.incrementAndGet();
+                    os.write("HTTP/1.1 200 Connection established\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                    os.flush();
+                    Thread upstream = new Thread(() -> {
+                        try {
+                            is.transferTo(server.getOutputStream());
+                        } catch (IOException e) {
+                            // closed
+                        }
+                    });
+                    upstream.setDaemon(true);
+                    upstream.start();
+                    server.getInputStream().transferTo(os);
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        }
+
+        Proxy proxy() {
+            return new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", serverSocket.getLocalPort()));
+        }
+
+        @Override
+        public void close() throws IOException {
+            serverSocket.close();
+        }
+    }
+
+    private static final class ProxyAuthenticator extends Authenticator {
+        private final String user;
+        private final String password;
+
+        ProxyAuthenticator(String user, String password) {
+            this.user = user;
+            this.password = password;
+        }
+
+        @Override
+        protected PasswordAuthentication getPasswordAuthentication() {
+            return getRequestorType() == RequestorType.PROXY ? new PasswordAuthentication(user, password.toCharArray()) : null;
+        }
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class EUVatApproxCheckTest {
+
+    private static final EUVatApproxCheckRequest REQUEST = EUVatApproxCheckRequest.of("it", "IT 00950501007")
+            .withTraderName("Banca d'Italia")
+            .withTraderCity("Roma")
+            .withRequester("gr", "EL 094014201");
+
+    @Test
+    public void testRequestAndResponse() {
+        List<String> bodies = new CopyOnWriteArrayList<>();
+        StubFetcher fetcher = new StubFetcher(body -> {
+            bodies.add(body);
+            return StubFetcher.vatApprox("IT", "00950501007", "WAPIAAAAX1234567", "1", "3");
+        });
+        EUVatApproxCheckResponse resp = EUVatChecker.doCheckApprox(REQUEST, fetcher);
+        Assert.assertFalse(resp.isError());
+        Assert.assertTrue(resp.isValid());
+        Assert.assertEquals("WAPIAAAAX1234567", resp.getRequestIdentifier());
+        Assert.assertEquals("2024-01-01+01:00", resp.getRequestDate());
+        Assert.assertEquals("BANCA D'ITALIA", resp.getTraderName());
+        Assert.assertEquals("VIA NAZIONALE 91 00184 ROMA RM", resp.getTraderAddress());
+        Assert.assertNull(resp.getTraderStreet());
+        Assert.assertEquals(EUVatApproxCheckResponse.Match.VALID, resp.getTraderNameMatch());
+        Assert.assertEquals(EUVatApproxCheckResponse.Match.NOT_PROCESSED, resp.getTraderCityMatch());
+        Assert.assertNull(resp.getTraderStreetMatch());
+
+        String body = bodies.get(0);
+        Assert.assertTrue(body.contains("<checkVatApprox xmlns=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">"));
+        Assert.assertEquals("IT", StubFetcher.param(body, "countryCode"));
+        Assert.assertEquals("00950501007", StubFetcher.param(body, "vatNumber"));
+        Assert.assertEquals("Banca d'Italia", StubFetcher.param(body, "traderName"));
+        Assert.assertTrue(body.contains("<traderStreet/>"));
+        Assert.assertEquals("EL", StubFetcher.param(body, "requesterCountryCode"));
+        Assert.assertEquals("094014201", StubFetcher.param(body, "requesterVatNumber"));
+    }
+
+    @Test
+    public void testFault() {
+        StubFetcher fetcher = StubFetcher.always(StubFetcher.fault("INVALID_REQUESTER_INFO"));
+        EUVatChecker checker = new EUVatChecker(fetcher).withRetry(RetryPolicy.defaultPolicy());
+        EUVatApproxCheckResponse resp = checker.checkApprox(REQUEST);
+        Assert.assertTrue(resp.isError());
+        Assert.assertEquals(EUVatCheckResponse.FaultType.INVALID_REQUESTER_INFO, resp.getFault().getFaultType());
+        // not transient
+        Assert.assertEquals(1, fetcher.calls.get());
+    }
+
+    @Test
+    public void testCallStages() {
+        StubFetcher fetcher = new StubFetcher(body -> StubFetcher.vatApprox("IT", "00950501007", "WAPIAAAAX1234567", "1", "1"));
+        ResultCache<EUVatCheckResponse> cache = new ResultCache<>(10, Duration.ofHours(1), Duration.ofHours(1), Duration.ZERO);
+        EUVatChecker checker = new EUVatChecker(fetcher, (url, body) -> CompletableFuture.completedFuture(fetcher.apply(url, body)))
+                .withCache(cache)
+                .withFormatValidation()
+                .withRateLimiter(new RateLimiter(1000, 1000, 1, Duration.ofSeconds(1)));
+
+        Assert.assertFalse(checker.checkApprox(REQUEST).isError());
+        // never cached
+        Assert.assertFalse(checker.checkApproxAsync(REQUEST).join().isError());
+        Assert.assertEquals(2, fetcher.calls.get());
+        Assert.assertEquals(0, cache.size());
+
+        EUVatApproxCheckResponse invalid = checker.checkApprox(EUVatApproxCheckRequest.of("IT", "00950501008"));
+        Assert.assertEquals(EUVatCheckResponse.FaultType.INVALID_FORMAT, invalid.getFault().getFaultType());
+        Assert.assertEquals(2, fetcher.calls.get());
+    }
+
+    @Test
+    public void testListener() {
+        List<CallMetrics> calls = new CopyOnWriteArrayList<>();
+        StubFetcher fetcher = StubFetcher.always(StubFetcher.vatApprox("IT", "00950501007", "WAPIAAAAX1234567", "2", "2"));
+        EUVatChecker checker = new EUVatChecker(fetcher).withListener(calls::add);
+        Assert.assertEquals(EUVatApproxCheckResponse.Match.INVALID, checker.checkApprox(REQUEST).getTraderNameMatch());
+        Assert.assertEquals("checkVatApprox", calls.get(0).getOperation());
+        Assert.assertTrue(calls.get(0).getExtractNanos() >= 0);
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class FetcherTimeoutTest {
+
+    private final CountDownLatch release = new CountDownLatch(1);
+    private ExecutorService executor;
+    private HttpServer server;
+    private String url;
+
+    @Before
+    public void startServer() throws IOException {
+        executor = Executors.newCachedThreadPool();
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.setExecutor(executor);
+        // never answers
+        server.createContext("/stall", exchange -> {
+            try (InputStream is = exchange.getRequestBody()) {
+                is.readAllBytes();
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                exchange.close();
+            }
+        });
+        // send the headers, then a byte every 50ms: only the overall deadline can stop it
+        server.createContext("/trickle", exchange -> {
+            try (InputStream is = exchange.getRequestBody()) {
+                is.readAllBytes();
+            }
+            exchange.sendResponseHeaders(200, 0);
+            try (OutputStream os = exchange.getResponseBody()) {
+                while (!release.await(50, TimeUnit.MILLISECONDS)) {
+                    os.write(' ');
+                    os.flush();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (IOException e) {
+                // client gone
+            }
+        });
+        server.start();
+        url = "http://127.0.0.1:" + server.getAddress().getPort();
+    }
+
+    @After
+    public void stopServer() {
+        release.countDown();
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private DeadlineAwareFetcher<InputStream> blocking(FetcherConfig config, String path) {
+        HttpFetcher fetcher = new HttpFetcher(config);
+        return (ignored, document, deadline, metrics) -> fetcher.fetch(url + path, document, deadline, metrics);
+    }
+
+    private DeadlineAwareFetcher<CompletableFuture<InputStream>> async(FetcherConfig config, String path) {
+        HttpFetcher fetcher = new HttpFetcher(config);
+        return (ignored, document, deadline, metrics) -> fetcher.fetchAsync(url + path, document, deadline, metrics);
+    }
+
+    private static void assertTimeout(EUVatCheckResponse resp) {
+        Assert.assertTrue(resp.isError());
+        Assert.assertEquals(Utils.CLIENT_FAULT_CODE, resp.getFault().getFaultCode());
+        Assert.assertEquals(EUVatCheckResponse.FaultType.TIMEOUT, resp.getFault().getFaultType());
+    }
+
+    @Test
+    public void testReadTimeout() {
+        FetcherConfig config = FetcherConfig.defaultConfig().withReadTimeout(Duration.ofMillis(200));
+        assertTimeout(EUVatChecker.doCheck("IT", "00950501007", blocking(config, "/stall")));
+        assertTimeout(EUVatChecker.doCheckAsync("IT", "00950501007", async(config, "/stall")).join());
+    }
+
+    @Test
+    public void testRequestTimeout() {
+        FetcherConfig config = FetcherConfig.defaultConfig().withRequestTimeout(Duration.ofMillis(300));
+        long start = System.nanoTime();
+        assertTimeout(EUVatChecker.doCheck("IT", "00950501007", blocking(config, "/trickle")));
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void testTinTimeout() {
+        FetcherConfig config = FetcherConfig.defaultConfig().withReadTimeout(Duration.ofMillis(200));
+        EUTinCheckResponse resp = EUTinChecker.doCheck("BE", "00012511119", blocking(config, "/stall"));
+        Assert.assertTrue(resp.isError());
+        Assert.assertEquals(EUTinCheckResponse.FaultType.TIMEOUT, resp.getFault().getFaultType());
+    }
+
+    @Test
+    public void testPerCallDeadline() {
+        FetcherConfig config = FetcherConfig.defaultConfig();
+        EUVatChecker checker = new EUVatChecker(blocking(config, "/trickle"), async(config, "/stall"));
+        long start = System.nanoTime();
+        assertTimeout(checker.check("IT", "00950501007", Duration.ofMillis(300)));
+        assertTimeout(checker.checkAsync("IT", "00950501007", Duration.ofMillis(300)).join());
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+
+    @Test
+    public void testPerCallDeadlineBoundsRetries() {
+        FetcherConfig config = FetcherConfig.defaultConfig();
+        EUVatChecker checker = new EUVatChecker(blocking(config, "/stall"), async(config, "/stall"))
+                .withRetry(RetryPolicy.defaultPolicy().withMaxAttempts(10).withBackoff(Duration.ofMillis(100), Duration.ofMillis(100), 1));
+        long start = System.nanoTime();
+        assertTimeout(checker.checkAsync("IT", "00950501007", Duration.ofMillis(300)).join());
+        assertTimeout(checker.check("IT", "00950501007", Duration.ofMillis(300)));
+        Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(2));
+    }
+
+    @Test
+    public void testPerCallDeadlineWithCustomAsyncFetcher() {
+        EUVatChecker checker = new EUVatChecker(StubFetcher.always(StubFetcher.vatInvalid("IT", "1")), (u, b) -> new CompletableFuture<>());
+        assertTimeout(checker.checkAsync("IT", "00950501007", Duration.ofMillis(100)).join());
+    }
+}
@@ -0,0 +1,204 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+public class HedgingTest {
+
+    private static final String VALID = StubFetcher.vatValid("IT", "00950501007", "name", "address");
+
+    private static Hedging fixedDelay(long millis) {
+        return new Hedging(95, Duration.ofMillis(millis), Duration.ofMillis(millis));
+    }
+
+    @Test
+    public void testDelayIsLearnedFromTheRecentLatencies() {
+        Hedging hedging = new Hedging(90, Duration.ofMillis(5), Duration.ofMillis(500));
+        Assert.assertEquals(Duration.ofMillis(500), hedging.getDelay());
+        for (int i = 1; i <= 100; i++) {
+            hedging.record(TimeUnit.MILLISECONDS.toNanos(i));
+        }
+        Assert.assertEquals(Duration.ofMillis(87), hedging.getDelay()); // p90 of the 96 first
+        // only the last 256 latencies count
+        for (int i = 0; i < 256; i++) {
+            hedging.record(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+        Assert.assertEquals(Duration.ofMillis(5), hedging.getDelay());
+        for (int i = 0; i < 256; i++) {
+            hedging.record(TimeUnit.SECONDS.toNanos(10));
+        }
+        Assert.assertEquals(Duration.ofMillis(500), hedging.getDelay());
+    }
+
+    @Test
+    public void testSlowCallIsHedgedAndCancelled() {
+        List<CompletableFuture<InputStream>> requests = new CopyOnWriteArrayList<>();
+        BiFunction<String, String, CompletableFuture<InputStream>> fetcher = (url, body) -> {
+            // the first one never answers
+            CompletableFuture<InputStream> res = requests.isEmpty() ? new CompletableFuture<>() : StubFetcher.always(VALID).withLatency(b -> 1).apply(url, body);
+            requests.add(res);
+            return res;
+        };
+        Hedging hedging = fixedDelay(20);
+        EUVatChecker checker = new EUVatChecker(StubFetcher.always(VALID), fetcher).withHedging(hedging);
+        long start = System.nanoTime();
+        Assert.assertTrue(checker.checkAsync("IT", "00950501007").orTimeout(5, TimeUnit.SECONDS).join().isValid());
+        Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(20));
+        Assert.assertEquals(2, requests.size());
+        Assert.assertEquals(1, hedging.getHedges());
+        Assert.assertEquals(1, hedging.getHedgeWins());
+    }
+
+    @Test
+    public void testLoserIsCancelled() throws Exception {
+        CompletableFuture<EUVatCheckResponse> never = new CompletableFuture<>();
+        AtomicInteger calls = new AtomicInteger();
+        Hedging hedging = fixedDelay(10);
+        CheckPipeline<EUVatCheckResponse> pipeline = new CheckPipeline<>(EUVatChecker.KIND).withHedging(hedging);
+        EUVatCheckResponse valid = new EUVatCheckResponse(true, "name", "address", false, null);
+        EUVatCheckResponse res = pipeline.run("IT", "1", (c, n) -> calls.incrementAndGet() == 1 ? never : CompletableFuture.completedFuture(valid))
+                .get(5, TimeUnit.SECONDS);
+        Assert.assertSame(valid, res);
+        Assert.assertTrue(never.isCancelled());
+    }
+
+    @Test
+    public void testFastCallIsNotHedged() {
+        StubFetcher stub = StubFetcher.always(VALID);
+        Hedging hedging = fixedDelay(500);
+        EUVatChecker checker = new EUVatChecker(stub, stub.withLatency(b -> 1)).withHedging(hedging);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertTrue(checker.checkAsync("IT", "00950501007").join().isValid());
+        }
+        Assert.assertEquals(5, stub.calls.get());
+        Assert.assertEquals(0, hedging.getHedges());
+        // the blocking api is never hedged
+        Assert.assertTrue(new EUVatChecker(stub).withHedging(fixedDelay(0)).check("IT", "00950501007").isValid());
+        Assert.assertEquals(6, stub.calls.get());
+    }
+
+    @Test
+    public void testTransientFaultOfTheHedgeDoesNotWin() {
+        AtomicInteger requests = new AtomicInteger();
+        StubFetcher valid = StubFetcher.always(VALID);
+        StubFetcher fault = StubFetcher.always(StubFetcher.fault("MS_MAX_CONCURRENT_REQ"));
+        BiFunction<String, String, CompletableFuture<InputStream>> fetcher = (url, body) -> requests.incrementAndGet() == 1 ?
+                valid.withLatency(b -> 100).apply(url, body) : fault.withLatency(b -> 1).apply(url, body);
+        Hedging hedging = fixedDelay(10);
+        EUVatCheckResponse resp = new EUVatChecker(valid, fetcher).withHedging(hedging).checkAsync("IT", "00950501007").join();
+        Assert.assertTrue(resp.isValid());
+        Assert.assertEquals(1, fault.calls.get());
+        Assert.assertEquals(1, hedging.getHedges());
+        Assert.assertEquals(0, hedging.getHedgeWins());
+    }
+
+    @Test
+    public void testBothFailReturnsTheFirstResponse() {
+        AtomicInteger requests = new AtomicInteger();
+        StubFetcher stub = new StubFetcher(body -> StubFetcher.fault(body.contains("first") ? "MS_UNAVAILABLE" : "MS_MAX_CONCURRENT_REQ"));
+        Hedging hedging = fixedDelay(10);
+        // the first request is slower, but its fault is returned
+        BiFunction<String, String, CompletableFuture<InputStream>> fetcher = (url, body) -> requests.incrementAndGet() == 1 ?
+                stub.withLatency(b -> 60).apply(url, "first") : stub.withLatency(b -> 1).apply(url, body);
+        EUVatCheckResponse resp = new EUVatChecker(stub, fetcher).withHedging(hedging).checkAsync("IT", "00950501007").join();
+        Assert.assertEquals(EUVatCheckResponse.FaultType.MS_UNAVAILABLE, resp.getFault().getFaultType());
+        Assert.assertEquals(2, requests.get());
+    }
+
+    @Test
+    public void testHedgesRespectTheRateLimiter() {
+        StubFetcher stub = StubFetcher.always(VALID);
+        Hedging hedging = fixedDelay(10);
+        // the first call takes the only permit of the second
+        RateLimiter rateLimiter = new RateLimiter(1, 1, 1, Duration.ofSeconds(5));
+        EUVatChecker checker = new EUVatChecker(stub, stub.withLatency(b -> 60)).withHedging(hedging).withRateLimiter(rateLimiter);
+        Assert.assertTrue(checker.checkAsync("IT", "00950501007").join().isValid());
+        Assert.assertEquals(1, stub.calls.get());
+        Assert.assertEquals(0, hedging.getHedges());
+        Assert.assertEquals(1, hedging.getSkippedHedges());
+    }
+
+    @Test
+    public void testHedgesInFlightAndBudgetAreBounded() {
+        StubFetcher stub = StubFetcher.always(VALID);
+        Hedging hedging = new Hedging(95, Duration.ofMillis(10), Duration.ofMillis(10), 2, 0.1);
+        EUVatChecker checker = new EUVatChecker(stub, stub.withLatency(b -> 100)).withHedging(hedging);
+        List<CompletableFuture<EUVatCheckResponse>> responses = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            responses.add(checker.checkAsync("IT", "0095050100" + i));
+        }
+        responses.forEach(f -> Assert.assertTrue(f.join().isValid()));
+        Assert.assertEquals(2, hedging.getHedges());
+        Assert.assertEquals(6, hedging.getSkippedHedges());
+
+        // the burst of 10 hedges is then refilled by 10% of the calls
+        Hedging budget = new Hedging(95, Duration.ofMillis(10), Duration.ofMillis(10), 100, 0.1);
+        checker = new EUVatChecker(stub, stub.withLatency(b -> 60)).withHedging(budget);
+        responses.clear();
+        for (int i = 0; i < 30; i++) {
+            responses.add(checker.checkAsync("IT", String.format("%011d", i)));
+        }
+        responses.forEach(f -> Assert.assertTrue(f.join().isValid()));
+        Assert.assertEquals(10, budget.getHedges());
+        Assert.assertEquals(20, budget.getSkippedHedges());
+    }
+
+    @Test
+    public void testTailLatencyIsCut() {
+        // one number out of 10 is slow the first time it's requested, like a stuck member state backend
+        ConcurrentHashMap<String, Boolean> seen = new ConcurrentHashMap<>();
+        StubFetcher stub = StubFetcher.always(VALID);
+        BiFunction<String, String, CompletableFuture<InputStream>> fetcher = stub.withLatency(body -> {
+            String nr = StubFetcher.param(body, "vatNumber");
+            boolean first = seen.putIfAbsent(nr, Boolean.TRUE) == null;
+            return first && Long.parseLong(nr) % 10 == 0 ? 1000 : 2;
+        });
+        Hedging hedging = new Hedging(80, Duration.ofMillis(20), Duration.ofMillis(100), 10, 0.2);
+        EUVatChecker checker = new EUVatChecker(stub, fetcher).withHedging(hedging);
+        long max = 0;
+        for (int batch = 0; batch < 10; batch++) {
+            List<CompletableFuture<Long>> latencies = new ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                long start = System.nanoTime();
+                latencies.add(checker.checkAsync("IT", String.format("%011d", batch * 10 + i))
+                        .thenApply(resp -> {
+                            Assert.assertTrue(resp.isValid());
+                            return System.nanoTime() - start;
+                        }));
+            }
+            for (CompletableFuture<Long> latency : latencies) {
+                max = Math.max(max, latency.join());
+            }
+        }
+        // without hedging, the max would be 1s
+        Assert.assertTrue("max latency " + TimeUnit.NANOSECONDS.toMillis(max), max < TimeUnit.MILLISECONDS.toNanos(500));
+        Assert.assertTrue(hedging.getHedgeWins() >= 10);
+        Assert.assertEquals(Duration.ofMillis(20), hedging.getDelay());
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class JsonReaderTest {
+
+    @Test
+    public void testObject() throws IOException {
+        JsonReader json = json(" {\"a\" : \"x\", \"b\":true,\"c\":null, \"d\":-1.5e3 }\n");
+        json.beginObject();
+        Assert.assertEquals("a", json.nextName());
+        Assert.assertEquals("x", json.nextString());
+        Assert.assertEquals("b", json.nextName());
+        Assert.assertTrue(json.nextBoolean());
+        Assert.assertEquals("c", json.nextName());
+        Assert.assertEquals(JsonReader.Token.NULL, json.peek());
+        json.nextNull();
+        Assert.assertEquals("d", json.nextName());
+        Assert.assertEquals(JsonReader.Token.NUMBER, json.peek());
+        Assert.assertEquals("-1.5e3", json.nextString());
+        Assert.assertFalse(json.hasNext());
+        json.endObject();
+        Assert.assertEquals(JsonReader.Token.END_DOCUMENT, json.peek());
+    }
+
+    @Test
+    public void testEscapes() throws IOException {
+        JsonReader json = json("[\"a\\\"b\\\\c\\/d\\n\\t\\u00e8\\uD83D\\uDE00\", \"\"]");
+        json.beginArray();
+        Assert.assertEquals("a\"b\\c/d\n\t\u00e8\uD83D\uDE00", json.nextString());
+        Assert.assertEquals("", json.nextString());
+        json.endArray();
+    }
+
+    @Test
+    public void testSkipValue() throws IOException {
+        JsonReader json = json("{\"skip\":{\"a\":[1,2,{\"b\":[]}],\"c\":\"}\"},\"keep\":\"v\"}");
+        json.beginObject();
+        Assert.assertEquals("skip", json.nextName());
+        json.skipValue();
+        Assert.assertEquals("keep", json.nextName());
+        Assert.assertEquals("v", json.nextString());
+        json.endObject();
+    }
+
+    @Test
+    public void testStringsAcrossBufferBoundaries() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            sb.append(i % 100 == 0 ? "\\u0041" : i % 7 == 0 ? "\u00e8" : i % 11 == 0 ? "\uD83D\uDE00" : "x");
+        }
+        String expected = sb.toString().replace("\\u0041", "A");
+        // a stream returning a few bytes at a time, splitting the multi bytes sequences
+        InputStream slow = new ByteArrayInputStream(("[\"" + sb + "\",12345]").getBytes(StandardCharsets.UTF_8)) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 7));
+            }
+        };
+        JsonReader json = new JsonReader(slow);
+        json.beginArray();
+        Assert.assertEquals(expected, json.nextString());
+        Assert.assertEquals("12345", json.nextString());
+        json.endArray();
+    }
+
+    @Test
+    public void testUtf8() throws IOException {
+        JsonReader json = json("{\"name\":\"Caf\u00e9 M\u00fcller \u20ac \uD83D\uDE00\",\"\u00e8\":1}");
+        json.beginObject();
+        Assert.assertEquals("name", json.nextName());
+        Assert.assertEquals("Caf\u00e9 M\u00fcller \u20ac \uD83D\uDE00", json.nextString());
+        Assert.assertEquals("\u00e8", json.nextName());
+        Assert.assertEquals("1", json.nextString());
+        json.endObject();
+    }
+
+    @Test
+    public void testMalformed() {
+        assertMalformed("{\"a\" \"b\"}");
+        assertMalformed("{\"a\":\"b\",}");
+        assertMalformed("[1 2]");
+        assertMalformed("{\"a\":01}");
+        assertMalformed("{\"a\":tru}");
+        assertMalformed("{\"a\":\"unterminated");
+        assertMalformed("{\"a\":\"\\x\"}");
+        assertMalformed("{} {}");
+        assertMalformed("");
+    }
+
+    private static void assertMalformed(String document) {
+        try {
+            JsonReader json = json(document);
+            json.skipValue();
+            json.peek();
+            Assert.fail("expected a failure for " + document);
+        } catch (IOException e) {
+            Assert.assertTrue(e instanceof JsonReader.MalformedJsonException);
+        }
+    }
+
+    @Test
+    public void testAppendString() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        String value = "a\"b\\c\nd\u0001\u00e8";
+        JsonReader.appendString(sb, value);
+        Assert.assertEquals("\"a\\\"b\\\\c\\nd\\u0001\u00e8\"", sb.toString());
+        Assert.assertEquals(value, json(sb.toString()).nextString());
+    }
+
+    private static JsonReader json(String document) {
+        return new JsonReader(new ByteArrayInputStream(document.getBytes(StandardCharsets.UTF_8)));
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void testBuckets() {
+        Assert.assertEquals(0, LatencyHistogram.index(0));
+        Assert.assertEquals(127, LatencyHistogram.index(127));
+        Assert.assertEquals(128, LatencyHistogram.index(128));
+        Assert.assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.index(Long.MAX_VALUE));
+        for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+            long low = LatencyHistogram.lowestValue(i);
+            long high = LatencyHistogram.highestValue(i);
+            Assert.assertEquals(i, LatencyHistogram.index(low));
+            Assert.assertEquals(i, LatencyHistogram.index(high));
+            Assert.assertTrue((double) (high - low) / Math.max(1, low) < 1.0 / 63);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Assert.assertEquals(0, histogram.snapshot().getValueAtPercentile(99));
+        Random random = new Random(42);
+        List<Long> values = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            // a long tail, between 1µs and ~1s
+            long v = (long) (1000 * Math.exp(random.nextDouble() * 14));
+            values.add(v);
+            histogram.record(v);
+        }
+        values.sort(null);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(values.size(), snapshot.getCount());
+        Assert.assertEquals((long) values.get(0), snapshot.getMin());
+        Assert.assertEquals((long) values.get(values.size() - 1), snapshot.getMax());
+        Assert.assertEquals(values.stream().mapToLong(Long::longValue).average().getAsDouble(), snapshot.getMean(), 1);
+        for (double p : new double[]{10, 50, 90, 99, 99.9}) {
+            long expected = values.get((int) Math.ceil(p / 100 * values.size()) - 1);
+            long actual = snapshot.getValueAtPercentile(p);
+            Assert.assertTrue(p + ": " + expected + " " + actual, actual >= expected && actual <= expected * 1.016);
+        }
+        Assert.assertEquals(snapshot.getMax(), snapshot.getValueAtPercentile(100));
+        Assert.assertTrue(snapshot.getValueAtPercentile(0) <= snapshot.getMin() * 1.016);
+    }
+
+    @Test
+    public void testConcurrentRecording() throws InterruptedException {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread(() -> {
+                for (int i = 0; i < 10_000; i++) {
+                    histogram.record(i);
+                }
+            });
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        Assert.assertEquals(40_000, snapshot.getCount());
+        Assert.assertEquals(0, snapshot.getMin());
+        Assert.assertEquals(9_999, snapshot.getMax());
+        Assert.assertEquals(4_999.5, snapshot.getMean(), 0.001);
+    }
+
+    @Test
+    public void testNegativeValues() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        histogram.record(-5);
+        Assert.assertEquals(0, histogram.snapshot().getMax());
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Function;
+import java.util.function.IntFunction;
+
+/**
+ * An open loop load generator: the checks are started at a fixed rate whatever the response times, and the latency
+ * of each check is counted from the time it should have started, so a stall of the client is not hidden (no
+ * coordinated omission).
+ * <p>
+ * To drive the blocking api, the call can run the check in an executor.
+ */
+final class LoadGenerator {
+
+    private LoadGenerator() {
+    }
+
+    static final class Report {
+        final long sent;
+        final long completed;
+        final long exceptions;
+        final long dropped;
+        final Map<String, Long> faults;
+        final LatencyHistogram.Snapshot latency;
+        final Duration elapsed;
+
+        Report(long sent, long completed, long exceptions, long dropped, Map<String, Long> faults, LatencyHistogram.Snapshot latency, Duration elapsed) {
+            this.sent = sent;
+            this.completed = completed;
+            this.exceptions = exceptions;
+            this.dropped = dropped;
+            this.faults = faults;
+            this.latency = latency;
+            this.elapsed = elapsed;
+        }
+
+        /**
+         * @return the completed checks per second, including the faults and the exceptions
+         */
+        double throughput() {
+            return (completed + exceptions) / (elapsed.toNanos() / 1e9);
+        }
+
+        long faults(String faultType) {
+            return faults.getOrDefault(faultType, 0L);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("sent=%d completed=%d exceptions=%d dropped=%d throughput=%.1f/s p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms faults=%s",
+                    sent, completed, exceptions, dropped, throughput(),
+                    millis(latency.getValueAtPercentile(50)), millis(latency.getValueAtPercentile(99)),
+                    millis(latency.getValueAtPercentile(99.9)), millis(latency.getMax()), faults);
+        }
+
+        private static double millis(long nanos) {
+            return nanos / 1e6;
+        }
+    }
+
+    /**
+     * @param ratePerSecond  the target rate of checks
+     * @param duration       for how long the checks are started
+     * @param maxOutstanding the maximum number of checks in flight, the checks over it are dropped and counted
+     * @param check          start the check number i
+     * @param faultType      the fault type of a response, null if successful
+     * @return the report, once all the checks have completed
+     */
+    static <R> Report run(double ratePerSecond, Duration duration, int maxOutstanding, IntFunction<CompletableFuture<R>> check, Function<R, String> faultType) {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond);
+        long total = duration.toNanos() / interval;
+        LatencyHistogram histogram = new LatencyHistogram();
+        LongAdder completed = new LongAdder();
+        LongAdder exceptions = new LongAdder();
+        ConcurrentHashMap<String, LongAdder> faults = new ConcurrentHashMap<>();
+        Semaphore outstanding = new Semaphore(maxOutstanding);
+        AtomicLong lastCompletion = new AtomicLong();
+        long dropped = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < total; i++) {
+            long intended = start + i * interval;
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            if (!outstanding.tryAcquire()) {
+                dropped++;
+                continue;
+            }
+            CompletableFuture<R> res;
+            try {
+                res = check.apply(i);
+            } catch (RuntimeException e) {
+                res = CompletableFuture.failedFuture(e);
+            }
+            res.whenComplete((response, throwable) -> {
+                long now = System.nanoTime();
+                histogram.record(now - intended);
+                lastCompletion.accumulateAndGet(now, Math::max);
+                if (throwable != null) {
+                    exceptions.increment();
+                } else {
+                    completed.increment();
+                    String fault = faultType.apply(response);
+                    if (fault != null) {
+                        faults.computeIfAbsent(fault, k -> new LongAdder()).increment();
+                    }
+                }
+                outstanding.release();
+            });
+        }
+        outstanding.acquireUninterruptibly(maxOutstanding);
+        Map<String, Long> faultCounts = new TreeMap<>();
+        faults.forEach((k, v) -> faultCounts.put(k, v.sum()));
+        long end = Math.max(lastCompletion.get(), start + 1);
+        return new Report(total - dropped, completed.sum(), exceptions.sum(), dropped, faultCounts, histogram.snapshot(), Duration.ofNanos(end - start));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class NormalizationTest {
+
+    @Test
+    public void testVatVariants() {
+        CheckKey expected = CheckKey.vat("IT", "00950501007");
+        for (String nr : new String[]{"00950501007", "IT00950501007", "IT IT00950501007", "it 009.505.010-07", " 00950501007 "}) {
+            Assert.assertEquals(nr, expected, CheckKey.vat("IT", nr));
+        }
+        Assert.assertEquals(expected, CheckKey.vat(" it ", "00950501007"));
+    }
+
+    @Test
+    public void testGreece() {
+        CheckKey expected = CheckKey.vat("EL", "094014201");
+        Assert.assertEquals(expected, CheckKey.vat("GR", "094014201"));
+        Assert.assertEquals(expected, CheckKey.vat("gr", "GR094014201"));
+        Assert.assertEquals(expected, CheckKey.vat("EL", "EL 094 014 201"));
+        Assert.assertEquals("EL", CheckKey.tin("GR", "1").countryCode);
+    }
+
+    @Test
+    public void testFrenchKeyIsNotAPrefix() {
+        // "FR" can be the key of a number
+        Assert.assertEquals("FR303265045", CheckKey.vat("FR", "FR303265045").number);
+        Assert.assertEquals("40303265045", CheckKey.vat("FR", "FR40303265045").number);
+        Assert.assertEquals("FR303265045", CheckKey.vat("FR", "FRFR303265045").number);
+    }
+
+    @Test
+    public void testTinKeepsThePrefix() {
+        Assert.assertEquals("00012511119", CheckKey.tin("be", "000.125-111.19").number);
+        Assert.assertEquals("BE123", CheckKey.tin("BE", "BE123").number);
+    }
+
+    @Test
+    public void testNoAllocationWhenCanonical() {
+        String nr = "00950501007";
+        Assert.assertSame(nr, CheckKey.vatNumber("IT", nr));
+        Assert.assertSame(nr, CheckKey.number(nr));
+        // the known country codes are interned
+        Assert.assertSame(CheckKey.countryCode("IT"), CheckKey.countryCode(new String("it")));
+    }
+
+    @Test
+    public void testVatId() {
+        Assert.assertEquals(VatId.of("EL", "094014201"), VatId.normalized("gr", "EL 094.014.201"));
+        Assert.assertEquals(VatId.of("EL", "094014201").hashCode(), VatId.normalized("gr", "EL 094.014.201").hashCode());
+    }
+
+    @Test
+    public void testVariantsShareTheCache() {
+        AtomicReference<String> lastBody = new AtomicReference<>();
+        StubFetcher fetcher = new StubFetcher(body -> {
+            lastBody.set(body);
+            return StubFetcher.vatValid("IT", "00950501007", "BANCA D'ITALIA", "ROMA");
+        });
+        EUVatChecker checker = new EUVatChecker(fetcher).withCache(new ResultCache<>(100, Duration.ofHours(1), Duration.ofHours(1), Duration.ofSeconds(1)));
+        Assert.assertTrue(checker.check("it", "IT 009 505 010 07").isValid());
+        Assert.assertEquals("IT", StubFetcher.param(lastBody.get(), "countryCode"));
+        Assert.assertEquals("00950501007", StubFetcher.param(lastBody.get(), "vatNumber"));
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertTrue(checker.checkAsync("IT", "IT00950501007").join().isValid());
+        Assert.assertEquals(1, fetcher.calls.get());
+    }
+
+    @Test
+    public void testStaticCheckIsNormalized() {
+        AtomicReference<String> lastBody = new AtomicReference<>();
+        EUTinChecker.doCheck("be", "000.125.111-19", new StubFetcher(body -> {
+            lastBody.set(body);
+            return StubFetcher.tin("BE", "00012511119", true, true);
+        }));
+        Assert.assertEquals("BE", StubFetcher.param(lastBody.get(), "countryCode"));
+        Assert.assertEquals("00012511119", StubFetcher.param(lastBody.get(), "tinNumber"));
+    }
+}
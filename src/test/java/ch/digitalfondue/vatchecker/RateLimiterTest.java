@@ -0,0 +1,214 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+public class RateLimiterTest {
+
+    private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void testTokenBucket() {
+        VirtualTimer timer = new VirtualTimer();
+        RateLimiter limiter = new RateLimiter(1000, 10, 1, Duration.ofMillis(250), timer);
+        Assert.assertEquals(0, limiter.reserve("IT"));
+        Assert.assertEquals(SECOND / 10, limiter.reserve("IT"));
+        Assert.assertEquals(2 * SECOND / 10, limiter.reserve("IT"));
+        // would wait 300ms
+        Assert.assertEquals(-1, limiter.reserve("IT"));
+        // another country has its own bucket, only the global one applies
+        Assert.assertEquals(3 * SECOND / 1000, limiter.reserve("DE"));
+        timer.now.addAndGet(SECOND);
+        Assert.assertEquals(0, limiter.reserve("IT"));
+    }
+
+    @Test
+    public void testBurst() {
+        VirtualTimer timer = new VirtualTimer();
+        RateLimiter limiter = new RateLimiter(1000, 10, 5, Duration.ZERO, timer);
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals(0, limiter.reserve("IT"));
+        }
+        Assert.assertEquals(-1, limiter.reserve("IT"));
+    }
+
+    @Test
+    public void testGlobalBucket() {
+        VirtualTimer timer = new VirtualTimer();
+        RateLimiter limiter = new RateLimiter(2, 100, 2, Duration.ZERO, timer);
+        Assert.assertEquals(0, limiter.reserve("IT"));
+        Assert.assertEquals(0, limiter.reserve("DE"));
+        Assert.assertEquals(-1, limiter.reserve("FR"));
+        timer.now.addAndGet(SECOND / 2);
+        Assert.assertEquals(0, limiter.reserve("FR"));
+    }
+
+    @Test
+    public void testAdaptiveRate() {
+        VirtualTimer timer = new VirtualTimer();
+        RateLimiter limiter = new RateLimiter(100, 10, 1, Duration.ofSeconds(1), timer);
+        limiter.onResult("IT", "MS_MAX_CONCURRENT_REQ");
+        Assert.assertEquals(5, limiter.getRate("IT"), 0.001);
+        // at most once per second
+        limiter.onResult("IT", "MS_MAX_CONCURRENT_REQ");
+        limiter.onResult("IT", null);
+        Assert.assertEquals(5, limiter.getRate("IT"), 0.001);
+        Assert.assertEquals(10, limiter.getRate("DE"), 0.001);
+        Assert.assertEquals(100, limiter.getGlobalRate(), 0.001);
+
+        limiter.onResult("IT", "GLOBAL_MAX_CONCURRENT_REQ");
+        Assert.assertEquals(50, limiter.getGlobalRate(), 0.001);
+
+        timer.now.addAndGet(SECOND);
+        limiter.onResult("IT", null);
+        Assert.assertEquals(5.5, limiter.getRate("IT"), 0.001);
+        Assert.assertEquals(55, limiter.getGlobalRate(), 0.001);
+        for (int i = 0; i < 20; i++) {
+            timer.now.addAndGet(SECOND);
+            limiter.onResult("IT", null);
+        }
+        Assert.assertEquals(10, limiter.getRate("IT"), 0.001);
+        Assert.assertEquals(100, limiter.getGlobalRate(), 0.001);
+    }
+
+    /**
+     * A stub of VIES allowing at most <code>quota</code> calls per second for each country.
+     */
+    private static class QuotaFetcher extends StubFetcher {
+        QuotaFetcher(VirtualTimer timer, int quota) {
+            super(new java.util.function.Function<String, String>() {
+                private final Map<String, Deque<Long>> calls = new HashMap<>();
+
+                @Override
+                public synchronized String apply(String body) {
+                    String cc = param(body, "countryCode");
+                    long now = timer.nanoTime();
+                    Deque<Long> window = calls.computeIfAbsent(cc, k -> new ArrayDeque<>());
+                    while (!window.isEmpty() && now - window.peekFirst() >= SECOND) {
+                        window.pollFirst();
+                    }
+                    if (window.size() >= quota) {
+                        return fault("MS_MAX_CONCURRENT_REQ");
+                    }
+                    window.addLast(now);
+                    return vatValid(cc, param(body, "vatNumber"), "name", "address");
+                }
+            });
+        }
+    }
+
+    private static int faults(EUVatChecker checker, int checks) {
+        int faults = 0;
+        for (int i = 0; i < checks; i++) {
+            EUVatCheckResponse resp = checker.checkAsync(i % 2 == 0 ? "IT" : "DE", Integer.toString(i)).join();
+            if (resp.isError()) {
+                Assert.assertEquals(EUVatCheckResponse.FaultType.MS_MAX_CONCURRENT_REQ, resp.getFault().getFaultType());
+                faults++;
+            }
+        }
+        return faults;
+    }
+
+    @Test
+    public void testSimulationAgainstQuota() {
+        int checks = 2000;
+
+        // configured just below the quota, to leave room for the jitter added by the global bucket: no faults at all
+        VirtualTimer timer = new VirtualTimer();
+        QuotaFetcher fetcher = new QuotaFetcher(timer, 20);
+        EUVatChecker checker = new EUVatChecker(fetcher, (url, body) -> CompletableFuture.completedFuture(fetcher.apply(url, body)))
+                .withRateLimiter(new RateLimiter(1000, 19, 1, Duration.ofSeconds(10), timer));
+        Assert.assertEquals(0, faults(checker, checks));
+        Assert.assertEquals(checks, fetcher.calls.get());
+        // 1000 checks per country at 19/s
+        Assert.assertEquals(53, TimeUnit.NANOSECONDS.toSeconds(timer.now.get()), 1);
+
+        // configured way above the quota: the rate adapts, most of the checks succeed
+        VirtualTimer adaptiveTimer = new VirtualTimer();
+        QuotaFetcher adaptiveFetcher = new QuotaFetcher(adaptiveTimer, 20);
+        RateLimiter adaptive = new RateLimiter(1000, 200, 1, Duration.ofSeconds(10), adaptiveTimer);
+        EUVatChecker adaptiveChecker = new EUVatChecker(adaptiveFetcher, (url, body) -> CompletableFuture.completedFuture(adaptiveFetcher.apply(url, body)))
+                .withRateLimiter(adaptive);
+        int faults = faults(adaptiveChecker, checks);
+        Assert.assertTrue("faults: " + faults, faults < checks / 4);
+        Assert.assertTrue(adaptive.getRate("IT") < 200);
+
+        // without a limiter almost every call beyond the first second of quota fails
+        QuotaFetcher unlimitedFetcher = new QuotaFetcher(new VirtualTimer(), 20);
+        EUVatChecker unlimitedChecker = new EUVatChecker(unlimitedFetcher, (url, body) -> CompletableFuture.completedFuture(unlimitedFetcher.apply(url, body)));
+        Assert.assertEquals(checks - 40, faults(unlimitedChecker, checks));
+    }
+
+    @Test
+    public void testRejectedCall() {
+        VirtualTimer timer = new VirtualTimer();
+        StubFetcher fetcher = StubFetcher.always(StubFetcher.vatValid("IT", "1", "name", "address"));
+        EUVatChecker checker = new EUVatChecker(fetcher).withRateLimiter(new RateLimiter(1000, 1, 1, Duration.ZERO, timer));
+        Assert.assertFalse(checker.check("IT", "1").isError());
+        EUVatCheckResponse resp = checker.check("IT", "2");
+        Assert.assertEquals(EUVatCheckResponse.FaultType.RATE_LIMITED, resp.getFault().getFaultType());
+        Assert.assertEquals(Utils.CLIENT_FAULT_CODE, resp.getFault().getFaultCode());
+        Assert.assertEquals(1, fetcher.calls.get());
+    }
+
+    @Test
+    public void testRejectedCallIsNotCached() {
+        VirtualTimer timer = new VirtualTimer();
+        StubFetcher fetcher = StubFetcher.always(StubFetcher.vatValid("IT", "1", "name", "address"));
+        ResultCache<EUVatCheckResponse> cache = new ResultCache<>(100, Duration.ofHours(24), Duration.ofHours(1), Duration.ofHours(1), timer::nanoTime);
+        EUVatChecker checker = new EUVatChecker(fetcher).withCache(cache).withRateLimiter(new RateLimiter(1000, 1, 1, Duration.ZERO, timer));
+        Assert.assertFalse(checker.check("IT", "1").isError());
+        Assert.assertEquals(EUVatCheckResponse.FaultType.RATE_LIMITED, checker.check("IT", "2").getFault().getFaultType());
+        Assert.assertEquals(1, cache.size());
+        timer.now.addAndGet(SECOND);
+        Assert.assertFalse(checker.check("IT", "2").isError());
+        Assert.assertEquals(2, fetcher.calls.get());
+    }
+
+    @Test
+    public void testReserveWithDeadline() {
+        VirtualTimer timer = new VirtualTimer();
+        RateLimiter limiter = new RateLimiter(1000, 10, 1, Duration.ofSeconds(30), timer);
+        Assert.assertEquals(0, limiter.reserve("IT", Utils.NO_DEADLINE));
+        // the next permit is in 100ms
+        Assert.assertEquals(RateLimiter.DEADLINE_EXCEEDED, limiter.reserve("IT", Utils.deadlineAfter(Duration.ofMillis(50))));
+        // no permit was taken
+        Assert.assertEquals(SECOND / 10, limiter.reserve("IT", Utils.deadlineAfter(Duration.ofSeconds(1))));
+    }
+
+    @Test
+    public void testBlockingCheckWithDeadline() {
+        StubFetcher fetcher = StubFetcher.always(StubFetcher.vatValid("IT", "1", "name", "address"));
+        EUVatChecker checker = new EUVatChecker(fetcher).withRateLimiter(new RateLimiter(1000, 1, 1, Duration.ofSeconds(30)));
+        Assert.assertFalse(checker.check("IT", "1").isError());
+        long start = System.nanoTime();
+        // the next permit is in a second: no waiting for it
+        EUVatCheckResponse resp = checker.check("IT", "2", Duration.ofMillis(100));
+        Assert.assertTrue(System.nanoTime() - start < SECOND / 2);
+        Assert.assertEquals(EUVatCheckResponse.FaultType.TIMEOUT, resp.getFault().getFaultType());
+        Assert.assertEquals(1, fetcher.calls.get());
+    }
+}
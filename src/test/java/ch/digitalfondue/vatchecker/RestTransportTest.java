@@ -0,0 +1,126 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import com.sun.net.httpserver.HttpServer;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+public class RestTransportTest {
+
+    @Test
+    public void testValid() {
+        List<String> requests = new CopyOnWriteArrayList<>();
+        StubFetcher fetcher = new StubFetcher(body -> {
+            requests.add(body);
+            return StubFetcher.restValid("IT", "00950501007", "BANCA D'ITALIA", "VIA NAZIONALE 91 \\n00184 ROMA RM\\n");
+        });
+        EUVatChecker checker = new EUVatChecker(fetcher).withTransport(VatTransport.REST);
+        EUVatCheckResponse resp = checker.check("it", "IT 00950501007");
+        Assert.assertTrue(resp.isValid());
+        Assert.assertFalse(resp.isError());
+        Assert.assertEquals("BANCA D'ITALIA", resp.getName());
+        Assert.assertEquals("VIA NAZIONALE 91 \n00184 ROMA RM\n", resp.getAddress());
+        Assert.assertEquals("{\"countryCode\":\"IT\",\"vatNumber\":\"00950501007\"}", requests.get(0));
+
+        Assert.assertTrue(checker.checkAsync("IT", "00950501007").join().isValid());
+    }
+
+    @Test
+    public void testInvalid() {
+        EUVatChecker checker = new EUVatChecker(StubFetcher.always(StubFetcher.restInvalid("IT", "00950501006"))).withTransport(VatTransport.REST);
+        EUVatCheckResponse resp = checker.check("IT", "00950501006");
+        Assert.assertFalse(resp.isValid());
+        Assert.assertFalse(resp.isError());
+        Assert.assertEquals("---", resp.getName());
+    }
+
+    @Test
+    public void testErrors() {
+        EUVatChecker checker = new EUVatChecker(StubFetcher.always(StubFetcher.restError("MS_MAX_CONCURRENT_REQ"))).withTransport(VatTransport.REST);
+        EUVatCheckResponse resp = checker.check("IT", "00950501007");
+        Assert.assertTrue(resp.isError());
+        Assert.assertEquals(JsonResponseExtractor.FAULT_CODE, resp.getFault().getFaultCode());
+        Assert.assertEquals(EUVatCheckResponse.FaultType.MS_MAX_CONCURRENT_REQ, resp.getFault().getFaultType());
+
+        // the shape of the per member state api
+        String userError = "{\"isValid\":false,\"requestDate\":\"2024-01-01T10:00:00.000Z\",\"userError\":\"MS_UNAVAILABLE\",\"name\":\"---\",\"address\":\"---\"}";
+        resp = new EUVatChecker(StubFetcher.always(userError)).withTransport(VatTransport.REST).check("DE", "123456789");
+        Assert.assertTrue(resp.isError());
+        Assert.assertEquals(EUVatCheckResponse.FaultType.MS_UNAVAILABLE, resp.getFault().getFaultType());
+
+        String valid = "{\"isValid\":true,\"userError\":\"VALID\",\"name\":\"n\",\"address\":null,\"viesApproximate\":{\"name\":\"---\"}}";
+        resp = new EUVatChecker(StubFetcher.always(valid)).withTransport(VatTransport.REST).check("DE", "123456789");
+        Assert.assertTrue(resp.isValid());
+        Assert.assertEquals("n", resp.getName());
+        Assert.assertNull(resp.getAddress());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testMalformedResponse() {
+        new EUVatChecker(StubFetcher.always("<html>")).withTransport(VatTransport.REST).check("IT", "00950501007");
+    }
+
+    @Test
+    public void testRequestEscaping() {
+        Assert.assertEquals("{\"countryCode\":\"IT\",\"vatNumber\":\"1\\\"2\"}", VatTransport.REST.render("IT", "1\"2"));
+        Assert.assertTrue(VatTransport.SOAP.render("IT", "1").startsWith("<"));
+    }
+
+    @Test
+    public void testDefaultFetchers() throws Exception {
+        List<String> contentTypes = new CopyOnWriteArrayList<>();
+        byte[] error = StubFetcher.restError("SERVICE_UNAVAILABLE").getBytes(StandardCharsets.UTF_8);
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/", exchange -> {
+            try (InputStream is = exchange.getRequestBody()) {
+                is.readAllBytes();
+            }
+            contentTypes.add(exchange.getRequestHeaders().getFirst("Content-Type"));
+            exchange.getResponseHeaders().add("Content-Type", "application/json");
+            // the errors come with an error status
+            exchange.sendResponseHeaders(500, error.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(error);
+            }
+        });
+        server.start();
+        try {
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+            HttpFetcher fetcher = new HttpFetcher(FetcherConfig.defaultConfig());
+            DeadlineAwareFetcher<InputStream> blocking = (ignored, document, deadline, metrics) -> fetcher.fetch(url, document, deadline, metrics);
+            DeadlineAwareFetcher<CompletableFuture<InputStream>> async = (ignored, document, deadline, metrics) -> fetcher.fetchAsync(url, document, deadline, metrics);
+            EUVatChecker checker = new EUVatChecker(blocking, async).withTransport(VatTransport.REST);
+
+            EUVatCheckResponse resp = checker.check("IT", "1");
+            Assert.assertEquals(EUVatCheckResponse.FaultType.SERVICE_UNAVAILABLE, resp.getFault().getFaultType());
+            resp = checker.checkAsync("IT", "1").join();
+            Assert.assertEquals(EUVatCheckResponse.FaultType.SERVICE_UNAVAILABLE, resp.getFault().getFaultType());
+            Assert.assertEquals(2, contentTypes.size());
+            Assert.assertTrue(contentTypes.stream().allMatch("application/json"::equals));
+        } finally {
+            server.stop(0);
+        }
+    }
+}
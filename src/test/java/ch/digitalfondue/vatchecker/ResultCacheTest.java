@@ -0,0 +1,141 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ResultCacheTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private ResultCache<EUVatCheckResponse> cache(int maxEntries) {
+        return new ResultCache<>(maxEntries, Duration.ofHours(24), Duration.ofHours(1), Duration.ZERO, now::get);
+    }
+
+    private static StubFetcher vies() {
+        return new StubFetcher(body -> {
+            String nr = StubFetcher.param(body, "vatNumber");
+            switch (nr) {
+                case "BUSY":
+                    return StubFetcher.fault("MS_UNAVAILABLE");
+                case "":
+                    return StubFetcher.fault("INVALID_INPUT");
+                case "00950501000":
+                    return StubFetcher.vatInvalid("IT", nr);
+                default:
+                    return StubFetcher.vatValid("IT", nr, "BANCA D'ITALIA", "VIA NAZIONALE 91");
+            }
+        });
+    }
+
+    @Test
+    public void testValidResultIsCachedUntilExpiration() {
+        StubFetcher fetcher = vies();
+        ResultCache<EUVatCheckResponse> cache = cache(100);
+        EUVatChecker checker = new EUVatChecker(fetcher).withCache(cache);
+
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertTrue(checker.check("it", " 00950501007 ").isValid());
+        Assert.assertEquals(1, fetcher.calls.get());
+        Assert.assertEquals(1, cache.getHits());
+        Assert.assertEquals(1, cache.getMisses());
+
+        now.addAndGet(Duration.ofHours(23).toNanos());
+        checker.check("IT", "00950501007");
+        Assert.assertEquals(1, fetcher.calls.get());
+
+        now.addAndGet(Duration.ofHours(2).toNanos());
+        checker.check("IT", "00950501007");
+        Assert.assertEquals(2, fetcher.calls.get());
+    }
+
+    @Test
+    public void testNegativeCaching() {
+        StubFetcher fetcher = vies();
+        EUVatChecker checker = new EUVatChecker(fetcher).withCache(cache(100));
+
+        Assert.assertFalse(checker.check("IT", "00950501000").isValid());
+        Assert.assertTrue(checker.check("IT", "").isError());
+        checker.check("IT", "00950501000");
+        checker.check("IT", "");
+        Assert.assertEquals(2, fetcher.calls.get());
+
+        now.addAndGet(Duration.ofMinutes(61).toNanos());
+        checker.check("IT", "00950501000");
+        checker.check("IT", "");
+        Assert.assertEquals(4, fetcher.calls.get());
+    }
+
+    @Test
+    public void testTransientFaultsAreNotCached() {
+        StubFetcher fetcher = vies();
+        EUVatChecker checker = new EUVatChecker(fetcher).withCache(cache(100));
+        for (int i = 0; i < 3; i++) {
+            EUVatCheckResponse resp = checker.check("IT", "BUSY");
+            Assert.assertEquals(EUVatCheckResponse.FaultType.MS_UNAVAILABLE, resp.getFault().getFaultType());
+        }
+        Assert.assertEquals(3, fetcher.calls.get());
+    }
+
+    @Test
+    public void testTransientFaultsCanBeCachedBriefly() {
+        StubFetcher fetcher = vies();
+        ResultCache<EUVatCheckResponse> cache = new ResultCache<>(100, Duration.ofHours(24), Duration.ofHours(1), Duration.ofSeconds(5), now::get);
+        EUVatChecker checker = new EUVatChecker(fetcher).withCache(cache);
+        checker.check("IT", "BUSY");
+        checker.check("IT", "BUSY");
+        Assert.assertEquals(1, fetcher.calls.get());
+        now.addAndGet(Duration.ofSeconds(6).toNanos());
+        checker.check("IT", "BUSY");
+        Assert.assertEquals(2, fetcher.calls.get());
+    }
+
+    @Test
+    public void testEviction() {
+        ResultCache<EUVatCheckResponse> cache = cache(32);
+        EUVatChecker checker = new EUVatChecker(vies()).withCache(cache);
+        for (int i = 0; i < 100; i++) {
+            checker.check("IT", Integer.toString(i));
+        }
+        Assert.assertEquals(32, cache.size());
+        Assert.assertEquals(100 - 32, cache.getEvictions());
+        cache.clear();
+        Assert.assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testAsyncUsesTheCache() {
+        StubFetcher fetcher = vies();
+        EUVatChecker checker = new EUVatChecker(fetcher, (url, body) -> CompletableFuture.completedFuture(fetcher.apply(url, body))).withCache(cache(10));
+        Assert.assertTrue(checker.checkAsync("IT", "00950501007").join().isValid());
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertEquals(1, fetcher.calls.get());
+    }
+
+    @Test
+    public void testTinCache() {
+        StubFetcher fetcher = StubFetcher.always(StubFetcher.tin("BE", "00012511119", true, true));
+        EUTinChecker checker = new EUTinChecker(fetcher).withCache(new ResultCache<>(10, Duration.ofHours(1), Duration.ofHours(1), Duration.ZERO));
+        checker.check("BE", "00012511119");
+        Assert.assertTrue(checker.check("BE", "00012511119").isValidSyntax());
+        Assert.assertEquals(1, fetcher.calls.get());
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class ResultStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicLong now = new AtomicLong(1_700_000_000_000L);
+
+    private ResultStore open(Path dir) {
+        return new ResultStore(dir, Duration.ofDays(30), Duration.ofDays(1), now::get);
+    }
+
+    private static EUVatCheckResponse vat(boolean valid, String name, String address) {
+        return new EUVatCheckResponse(valid, name, address, false, null);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        try (ResultStore store = open(dir)) {
+            store.put(EUVatChecker.KIND, CheckKey.vat("IT", "00950501007"), vat(true, "BANCA D'ITALIA", "VIA NAZIONALE 91\n00184 ROMA"));
+            store.put(EUVatChecker.KIND, CheckKey.vat("IT", "00950501006"), vat(false, null, null));
+            store.put(EUTinChecker.KIND, CheckKey.tin("IT", "00950501007"), new EUTinCheckResponse(true, false, false, null));
+
+            EUVatCheckResponse valid = store.get(EUVatChecker.KIND, CheckKey.vat("IT", "00950501007"));
+            Assert.assertTrue(valid.isValid());
+            Assert.assertEquals("BANCA D'ITALIA", valid.getName());
+            Assert.assertEquals("VIA NAZIONALE 91\n00184 ROMA", valid.getAddress());
+            EUVatCheckResponse invalid = store.get(EUVatChecker.KIND, CheckKey.vat("IT", "00950501006"));
+            Assert.assertFalse(invalid.isValid());
+            Assert.assertNull(invalid.getName());
+            // same country code and number, different kind
+            EUTinCheckResponse tin = store.get(EUTinChecker.KIND, CheckKey.tin("IT", "00950501007"));
+            Assert.assertTrue(tin.isValidSyntax());
+            Assert.assertFalse(tin.isValidStructure());
+            Assert.assertNull(store.get(EUTinChecker.KIND, CheckKey.tin("IT", "00950501006")));
+            Assert.assertEquals(3, store.size());
+        }
+    }
+
+    @Test
+    public void testErrorsAreNotStored() throws IOException {
+        StubFetcher fetcher = StubFetcher.always(StubFetcher.fault("MS_UNAVAILABLE"));
+        try (ResultStore store = open(folder.newFolder().toPath())) {
+            Assert.assertTrue(new EUVatChecker(fetcher).withStore(store).check("IT", "1").isError());
+            Assert.assertNull(store.get(EUVatChecker.KIND, CheckKey.vat("IT", "1")));
+            Assert.assertEquals(0, store.size());
+        }
+    }
+
+    @Test
+    public void testOpenedOnlyOnce() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        try (ResultStore store = open(dir)) {
+            store.put(EUVatChecker.KIND, CheckKey.vat("IT", "1"), vat(true, "n", "a"));
+            try {
+                open(dir);
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                Assert.assertTrue(e.getMessage().contains("already open"));
+            }
+            Assert.assertNotNull(store.get(EUVatChecker.KIND, CheckKey.vat("IT", "1")));
+        }
+        try (ResultStore store = open(dir)) {
+            Assert.assertEquals(1, store.size());
+        }
+    }
+
+    @Test
+    public void testStoreFailuresDoNotFailTheChecks() throws IOException {
+        StubFetcher fetcher = StubFetcher.always(StubFetcher.vatValid("IT", "00950501007", "BANCA D'ITALIA", "ROMA"));
+        ResultStore store = open(folder.newFolder().toPath());
+        EUVatChecker checker = new EUVatChecker(fetcher).withStore(store);
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        // the files are closed under the store, like after an I/O error: each read fails and is a miss, each write
+        // fails and is skipped
+        store.closeQuietly();
+        Assert.assertTrue(checker.check("IT", "00950501007").isValid());
+        Assert.assertTrue(checker.checkAsync("IT", "00950501007").join().isValid());
+        Assert.assertEquals(3, fetcher.calls.get());
+        Assert.assertEquals(4, store.getErrors());
+    }
+
+    @Test
+    public void testLatestWins() throws IOException {
+        try (ResultStore store = open(folder.newFolder().toPath())) {
+            store.put(EUVatChecker.KIND, CheckKey.vat("IT", "1"), vat(true, "old", "a"));
+            store.put(EUVatChecker.KIND, CheckKey.vat("IT", "1"), vat(true, "new", "a"));
+            Assert.assertEquals("new", store.get(EUVatChecker.KIND, CheckKey.vat("IT", "1")).getName());
+            Assert.assertEquals(1, store.size());
+        }
+    }
+
+    @Test
+    public void testTtl() throws IOException {
+        try (ResultStore store = open(folder.newFolder().toPath())) {
+            store.put(EUVatChecker.KIND, CheckKey.vat("IT", "1"), vat(true, "n", "a"));
+            store.put(EUVatChecker.KIND, CheckKey.vat("IT", "2"), vat(false, null, null));
+            now.addAndGet(Duration.ofDays(2).toMillis());
+            Assert.assertNotNull(store.get(EUVatChecker.KIND, CheckKey.vat("IT", "1")));
+            Assert.assertNull(store.get(EUVatChecker.KIND, CheckKey.vat("IT", "2")));
+            now.addAndGet(Duration.ofDays(30).toMillis());
+            Assert.assertNull(store.get(EUVatChecker.KIND, CheckKey.vat("IT", "1")));
+        }
+    }
+
+    @Test
+    public void testReopenAndGrow() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        try (ResultStore store = open(dir)) {
+            for (int i = 0; i < 10_000; i++) {
+                store.put(EUVatChecker.KIND, CheckKey.vat("DE", Integer.toString(i)), vat(i % 2 == 0, "n" + i, "a"));
+            }
+        }
+        try (ResultStore store = open(dir)) {
+            Assert.assertEquals(10_000, store.size());
+            for (int i = 0; i < 10_000; i++) {
+                EUVatCheckResponse resp = store.get(EUVatChecker.KIND, CheckKey.vat("DE", Integer.toString(i)));
+                Assert.assertEquals(i % 2 == 0, resp.isValid());
+                Assert.assertEquals("n" + i, resp.getName());
+            }
+        }
+    }
+
+    @Test
+    public void testRecoveryAfterCrash() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        ResultStore crashed = open(dir);
+        crashed.put(EUVatChecker.KIND, CheckKey.vat("IT", "1"), vat(true, "one", "a"));
+        crashed.put(EUVatChecker.KIND, CheckKey.vat("IT", "2"), vat(true, "two", "a"));
+        crashed.flush();
+        // the process dies: the index is not clean. Simulate a torn write at the end of the log
+        crashed.closeQuietly();
+        try (FileChannel log = FileChannel.open(dir.resolve("results.log"), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            log.write(ByteBuffer.wrap(new byte[]{0, 0, 0, 40, 1, 2, 3, 4, 1, 1}));
+        }
+        long sizeWithGarbage = Files.size(dir.resolve("results.log"));
+
+        try (ResultStore store = open(dir)) {
+            Assert.assertEquals(2, store.size());
+            Assert.assertEquals("one", store.get(EUVatChecker.KIND, CheckKey.vat("IT", "1")).getName());
+            Assert.assertEquals("two", store.get(EUVatChecker.KIND, CheckKey.vat("IT", "2")).getName());
+            Assert.assertEquals(sizeWithGarbage - 10, Files.size(dir.resolve("results.log")));
+            // appends after the recovered part
+            store.put(EUVatChecker.KIND, CheckKey.vat("IT", "3"), vat(true, "three", "a"));
+        }
+        try (ResultStore store = open(dir)) {
+            Assert.assertEquals("three", store.get(EUVatChecker.KIND, CheckKey.vat("IT", "3")).getName());
+        }
+    }
+
+    @Test
+    public void testCorruptedRecord() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        try (ResultStore store = open(dir)) {
+            store.put(EUVatChecker.KIND, CheckKey.vat("IT", "1"), vat(true, "one", "a"));
+            store.put(EUVatChecker.KIND, CheckKey.vat("IT", "2"), vat(true, "two", "a"));
+        }
+        // flip a byte of the last record and mark the index as not clean
+        Path log = dir.resolve("results.log");
+        byte[] bytes = Files.readAllBytes(log);
+        bytes[bytes.length - 2] ^= 0x55;
+        Files.write(log, bytes);
+        Files.delete(dir.resolve("results.idx"));
+
+        try (ResultStore store = open(dir)) {
+            Assert.assertEquals("one", store.get(EUVatChecker.KIND, CheckKey.vat("IT", "1")).getName());
+            Assert.assertNull(store.get(EUVatChecker.KIND, CheckKey.vat("IT", "2")));
+        }
+    }
+
+    @Test
+    public void testCompact() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        try (ResultStore store = open(dir)) {
+            for (int i = 0; i < 100; i++) {
+                store.put(EUVatChecker.KIND, CheckKey.vat("IT", "1"), vat(true, "n" + i, "a"));
+            }
+            store.put(EUVatChecker.KIND, CheckKey.vat("IT", "2"), vat(false, null, null));
+            long before = Files.size(dir.resolve("results.log"));
+            now.addAndGet(Duration.ofDays(2).toMillis());
+            store.compact();
+            Assert.assertTrue(Files.size(dir.resolve("results.log")) * 50 < before);
+            Assert.assertEquals(1, store.size());
+            Assert.assertEquals("n99", store.get(EUVatChecker.KIND, CheckKey.vat("IT", "1")).getName());
+            Assert.assertNull(store.get(EUVatChecker.KIND, CheckKey.vat("IT", "2")));
+        }
+        try (ResultStore store = open(dir)) {
+            Assert.assertEquals("n99", store.get(EUVatChecker.KIND, CheckKey.vat("IT", "1")).getName());
+        }
+    }
+
+    @Test
+    public void testFailedCompactionKeepsTheStoreUsable() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        try (ResultStore store = open(dir)) {
+            store.put(EUVatChecker.KIND, CheckKey.vat("IT", "1"), vat(true, "one", "a"));
+            // the open log is unlinked, and the compacted one cannot be moved in its place
+            Files.delete(dir.resolve("results.log"));
+            Files.createFile(Files.createDirectory(dir.resolve("results.log")).resolve("obstacle"));
+            try {
+                store.compact();
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            Assert.assertFalse(Files.exists(dir.resolve("results.log.compact")));
+            Assert.assertEquals("one", store.get(EUVatChecker.KIND, CheckKey.vat("IT", "1")).getName());
+            store.put(EUVatChecker.KIND, CheckKey.vat("IT", "2"), vat(true, "two", "a"));
+            Assert.assertEquals("two", store.get(EUVatChecker.KIND, CheckKey.vat("IT", "2")).getName());
+        }
+    }
+
+    @Test
+    public void testWarmRestart() throws IOException {
+        Path dir = folder.newFolder().toPath();
+        StubFetcher fetcher = StubFetcher.always(StubFetcher.vatValid("IT", "00950501007", "BANCA D'ITALIA", "ROMA"));
+        try (ResultStore store = open(dir)) {
+            Assert.assertTrue(new EUVatChecker(fetcher).withStore(store).check("IT", "00950501007").isValid());
+        }
+        try (ResultStore store = open(dir)) {
+            EUVatChecker checker = new EUVatChecker(fetcher).withStore(store);
+            Assert.assertEquals("BANCA D'ITALIA", checker.check("IT", "00950501007").getName());
+            Assert.assertEquals("BANCA D'ITALIA", checker.checkAsync("it", "IT00950501007").join().getName());
+        }
+        Assert.assertEquals(1, fetcher.calls.get());
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiFunction;
+
+public class RetryPolicyTest {
+
+    // answer each call with the next scripted payload, or throw if the script entry is an exception
+    private static class ScriptedFetcher implements BiFunction<String, String, InputStream> {
+        private final Deque<Object> script;
+        int calls;
+
+        ScriptedFetcher(Object... script) {
+            this.script = new ArrayDeque<>(Arrays.asList(script));
+        }
+
+        @Override
+        public synchronized InputStream apply(String url, String body) {
+            calls++;
+            Object next = script.size() > 1 ? script.poll() : script.peek();
+            if (next instanceof RuntimeException) {
+                throw (RuntimeException) next;
+            }
+            return StubFetcher.always((String) next).apply(url, body);
+        }
+    }
+
+    private final VirtualTimer timer = new VirtualTimer();
+
+    private RetryPolicy policy() {
+        return RetryPolicy.defaultPolicy().withJitter(0).withTimer(timer, () -> 0.5);
+    }
+
+    private static final String VALID = StubFetcher.vatValid("IT", "00950501007", "name", "address");
+
+    @Test
+    public void testTransientFaultsAreRetriedWithExponentialBackoff() {
+        ScriptedFetcher fetcher = new ScriptedFetcher(StubFetcher.fault("MS_UNAVAILABLE"), StubFetcher.fault("TIMEOUT"), VALID);
+        EUVatChecker checker = new EUVatChecker(fetcher).withRetry(policy());
+        EUVatCheckResponse resp = checker.check("IT", "00950501007");
+        Assert.assertTrue(resp.isValid());
+        Assert.assertEquals(3, fetcher.calls);
+        Assert.assertEquals(Arrays.asList(500L, 1000L), timer.delays);
+    }
+
+    @Test
+    public void testLastFaultIsReturnedWhenAttemptsAreExhausted() {
+        ScriptedFetcher fetcher = new ScriptedFetcher(StubFetcher.fault("GLOBAL_MAX_CONCURRENT_REQ"));
+        EUVatChecker checker = new EUVatChecker(fetcher).withRetry(policy().withMaxAttempts(5).withBackoff(Duration.ofMillis(100), Duration.ofMillis(300), 2));
+        EUVatCheckResponse resp = checker.check("IT", "1");
+        Assert.assertEquals(EUVatCheckResponse.FaultType.GLOBAL_MAX_CONCURRENT_REQ, resp.getFault().getFaultType());
+        Assert.assertEquals(5, fetcher.calls);
+        Assert.assertEquals(Arrays.asList(100L, 200L, 300L, 300L), timer.delays);
+    }
+
+    @Test
+    public void testTerminalFaultsAndValidResponsesAreNotRetried() {
+        ScriptedFetcher fetcher = new ScriptedFetcher(StubFetcher.fault("INVALID_INPUT"));
+        EUVatChecker checker = new EUVatChecker(fetcher).withRetry(policy());
+        Assert.assertEquals(EUVatCheckResponse.FaultType.INVALID_INPUT, checker.check("IT", "").getFault().getFaultType());
+        Assert.assertEquals(1, fetcher.calls);
+
+        ScriptedFetcher invalid = new ScriptedFetcher(StubFetcher.vatInvalid("IT", "1"));
+        Assert.assertFalse(new EUVatChecker(invalid).withRetry(policy()).check("IT", "1").isValid());
+        Assert.assertEquals(1, invalid.calls);
+        Assert.assertTrue(timer.delays.isEmpty());
+    }
+
+    @Test
+    public void testDeadline() {
+        ScriptedFetcher fetcher = new ScriptedFetcher(StubFetcher.fault("MS_UNAVAILABLE"));
+        EUVatChecker checker = new EUVatChecker(fetcher).withRetry(policy().withMaxAttempts(10).withDeadline(Duration.ofMillis(2000)));
+        checker.check("IT", "1");
+        // 500 + 1000 fits, 500 + 1000 + 2000 does not
+        Assert.assertEquals(3, fetcher.calls);
+        Assert.assertEquals(Arrays.asList(500L, 1000L), timer.delays);
+    }
+
+    @Test
+    public void testExceptions() {
+        ScriptedFetcher fetcher = new ScriptedFetcher(new IllegalStateException("connection reset"), VALID);
+        Assert.assertTrue(new EUVatChecker(fetcher).withRetry(policy()).check("IT", "1").isValid());
+        Assert.assertEquals(2, fetcher.calls);
+
+        ScriptedFetcher failing = new ScriptedFetcher(new IllegalStateException("connection reset"), VALID);
+        try {
+            new EUVatChecker(failing).withRetry(policy().withRetryOnException(false)).check("IT", "1");
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            Assert.assertEquals("connection reset", e.getMessage());
+        }
+        Assert.assertEquals(1, failing.calls);
+    }
+
+    @Test
+    public void testCustomRetryableFaults() {
+        ScriptedFetcher fetcher = new ScriptedFetcher(StubFetcher.fault("MS_UNAVAILABLE"), VALID);
+        EUVatChecker checker = new EUVatChecker(fetcher).withRetry(policy().withRetryableFaults(EUVatCheckResponse.FaultType.TIMEOUT));
+        Assert.assertTrue(checker.check("IT", "1").isError());
+        Assert.assertEquals(1, fetcher.calls);
+    }
+
+    @Test
+    public void testJitter() {
+        RetryPolicy policy = RetryPolicy.defaultPolicy().withJitter(0.5).withTimer(timer, () -> 1.0);
+        Assert.assertEquals(Duration.ofMillis(250).toNanos(), policy.backoff(1));
+        Assert.assertEquals(Duration.ofMillis(500).toNanos(), RetryPolicy.defaultPolicy().withJitter(0.5).withTimer(timer, () -> 0.0).backoff(1));
+    }
+
+    @Test
+    public void testTin() {
+        ScriptedFetcher fetcher = new ScriptedFetcher(StubFetcher.fault("SERVER_BUSY"), StubFetcher.tin("BE", "1", true, true));
+        EUTinChecker checker = new EUTinChecker(fetcher).withRetry(policy());
+        Assert.assertTrue(checker.check("BE", "1").isValidSyntax());
+        Assert.assertEquals(2, fetcher.calls);
+    }
+
+    @Test
+    public void testAsyncUsesTheSharedScheduler() {
+        ScriptedFetcher fetcher = new ScriptedFetcher(StubFetcher.fault("MS_UNAVAILABLE"), StubFetcher.fault("MS_UNAVAILABLE"), VALID);
+        EUVatChecker checker = new EUVatChecker(fetcher, (url, body) -> CompletableFuture.completedFuture(fetcher.apply(url, body)))
+                .withRetry(RetryPolicy.defaultPolicy().withBackoff(Duration.ofMillis(20), Duration.ofMillis(20), 1));
+        CompletableFuture<EUVatCheckResponse> resp = checker.checkAsync("IT", "1");
+        // the first attempt completed synchronously, the retry is scheduled
+        Assert.assertFalse(resp.isDone());
+        Assert.assertTrue(resp.join().isValid());
+        Assert.assertEquals(3, fetcher.calls);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class SingleFlightTest {
+
+    // the fetcher calls stay pending until the test completes them
+    private final Map<String, CompletableFuture<InputStream>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger calls = new AtomicInteger();
+
+    private EUVatChecker checker() {
+        return new EUVatChecker(StubFetcher.always(""), (url, body) -> {
+            calls.incrementAndGet();
+            return pending.computeIfAbsent(StubFetcher.param(body, "vatNumber"), k -> new CompletableFuture<>());
+        }).withRequestCoalescing();
+    }
+
+    private void complete(String vatNumber) {
+        pending.remove(vatNumber).complete(StubFetcher.always(StubFetcher.vatValid("IT", vatNumber, "name", "address")).apply("", ""));
+    }
+
+    @Test
+    public void testConcurrentIdenticalChecksAreCoalesced() {
+        EUVatChecker checker = checker();
+        List<CompletableFuture<EUVatCheckResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(checker.checkAsync(i % 2 == 0 ? "IT" : "it", "00950501007"));
+        }
+        futures.add(checker.checkAsync("IT", "OTHER"));
+        Assert.assertEquals(2, calls.get());
+
+        complete("00950501007");
+        complete("OTHER");
+        EUVatCheckResponse first = futures.get(0).join();
+        for (CompletableFuture<EUVatCheckResponse> f : futures.subList(0, 50)) {
+            Assert.assertSame(first, f.join());
+        }
+
+        // once completed, a new check does a new call
+        checker.checkAsync("IT", "00950501007");
+        Assert.assertEquals(3, calls.get());
+    }
+
+    @Test
+    public void testExceptionIsPropagatedToAllWaiters() {
+        EUVatChecker checker = checker();
+        CompletableFuture<EUVatCheckResponse> f1 = checker.checkAsync("IT", "1");
+        CompletableFuture<EUVatCheckResponse> f2 = checker.checkAsync("IT", "1");
+        pending.remove("1").completeExceptionally(new IllegalStateException("boom"));
+        for (CompletableFuture<EUVatCheckResponse> f : Arrays.asList(f1, f2)) {
+            try {
+                f.join();
+                Assert.fail();
+            } catch (CompletionException e) {
+                Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+            }
+        }
+        Assert.assertEquals(1, calls.get());
+    }
+
+    @Test
+    public void testCancellingAWaiterDoesNotAffectTheOthers() {
+        EUVatChecker checker = checker();
+        CompletableFuture<EUVatCheckResponse> f1 = checker.checkAsync("IT", "1");
+        CompletableFuture<EUVatCheckResponse> f2 = checker.checkAsync("IT", "1");
+        Assert.assertTrue(f1.cancel(true));
+        complete("1");
+        Assert.assertTrue(f1.isCancelled());
+        Assert.assertTrue(f2.join().isValid());
+    }
+
+    @Test
+    public void testBlockingChecksAreCoalesced() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger blockingCalls = new AtomicInteger();
+        StubFetcher stub = StubFetcher.always(StubFetcher.vatValid("IT", "1", "name", "address"));
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            blockingCalls.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return stub.apply(url, body);
+        }).withRequestCoalescing();
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<EUVatCheckResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> checker.check("IT", "1")));
+            }
+            // wait until the leader is in the fetcher
+            while (blockingCalls.get() == 0) {
+                Thread.sleep(1);
+            }
+            Thread.sleep(300);
+            release.countDown();
+            for (Future<EUVatCheckResponse> f : futures) {
+                Assert.assertTrue(f.get(10, TimeUnit.SECONDS).isValid());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, blockingCalls.get());
+    }
+
+    @Test
+    public void testBlockingFollowerDeadline() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger blockingCalls = new AtomicInteger();
+        StubFetcher stub = StubFetcher.always(StubFetcher.vatValid("IT", "1", "name", "address"));
+        EUVatChecker checker = new EUVatChecker((url, body) -> {
+            blockingCalls.incrementAndGet();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException(e);
+            }
+            return stub.apply(url, body);
+        }).withRequestCoalescing();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<EUVatCheckResponse> leader = executor.submit(() -> checker.check("IT", "1"));
+            while (blockingCalls.get() == 0) {
+                Thread.sleep(1);
+            }
+            long start = System.nanoTime();
+            // the leader has no deadline, the follower is not held by it
+            EUVatCheckResponse follower = checker.check("IT", "1", Duration.ofMillis(100));
+            Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+            Assert.assertEquals(EUVatCheckResponse.FaultType.TIMEOUT, follower.getFault().getFaultType());
+            release.countDown();
+            Assert.assertTrue(leader.get(10, TimeUnit.SECONDS).isValid());
+        } finally {
+            executor.shutdownNow();
+        }
+        Assert.assertEquals(1, blockingCalls.get());
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+
+public class SoapRequestTemplateTest {
+
+    private static final String VAT_TEMPLATE = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
+            "<soapenv:Header/>" +
+            "<soapenv:Body>" +
+            "<checkVat xmlns=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">" +
+            "<countryCode></countryCode><vatNumber></vatNumber>" +
+            "</checkVat>" +
+            "</soapenv:Body>" +
+            "</soapenv:Envelope>";
+
+    private static final String TIN_TEMPLATE = "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\">" +
+            "<soapenv:Header/>" +
+            "<soapenv:Body>" +
+            "<checkTin xmlns=\"urn:ec.europa.eu:taxud:tin:services:checkTin:types\">" +
+            "<countryCode></countryCode><tinNumber></tinNumber>" +
+            "</checkTin>" +
+            "</soapenv:Body>" +
+            "</soapenv:Envelope>";
+
+    private static final String[] VALUES = {
+            "00950501007",
+            "",
+            "IT",
+            "a&b<c>d",
+            "\"quoted\" 'single'",
+            "line\r\nbreak\ttab",
+            "éàü €",
+            "😀 emoji",
+            "control\u0001\u001f\u007f\u0085\u009f\u00a0",
+            "   spaces   ",
+            "]]>"
+    };
+
+    @Test
+    public void testVatEquivalence() throws Exception {
+        SoapRequestTemplate template = new SoapRequestTemplate("checkVat",
+                "urn:ec.europa.eu:taxud:vies:services:checkVat:types", "countryCode", "vatNumber");
+        for (String country : new String[]{"IT", "", "E&L"}) {
+            for (String value : VALUES) {
+                assertSameBytes(legacy(VAT_TEMPLATE, "countryCode", country, "vatNumber", value), template.render(country, value));
+            }
+        }
+    }
+
+    @Test
+    public void testTinEquivalence() throws Exception {
+        SoapRequestTemplate template = new SoapRequestTemplate("checkTin",
+                "urn:ec.europa.eu:taxud:tin:services:checkTin:types", "countryCode", "tinNumber");
+        for (String value : VALUES) {
+            assertSameBytes(legacy(TIN_TEMPLATE, "countryCode", "BE", "tinNumber", value), template.render("BE", value));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongParameterCount() {
+        new SoapRequestTemplate("checkVat", "urn:test", "countryCode", "vatNumber").render("IT");
+    }
+
+    private static void assertSameBytes(String expected, String actual) {
+        Assert.assertArrayEquals(expected.getBytes(StandardCharsets.UTF_8), actual.getBytes(StandardCharsets.UTF_8));
+    }
+
+    // the DOM copy + Transformer serialization that was used before the precompiled template
+    private static String legacy(String template, String name1, String value1, String name2, String value2) throws Exception {
+        DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
+        dbFactory.setNamespaceAware(true);
+        Document doc = dbFactory.newDocumentBuilder().parse(new InputSource(new StringReader(template)));
+        doc.getElementsByTagName(name1).item(0).setTextContent(value1);
+        doc.getElementsByTagName(name2).item(0).setTextContent(value2);
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        StringWriter sw = new StringWriter();
+        transformer.transform(new DOMSource(doc), new StreamResult(sw));
+        return sw.toString();
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+
+public class SoapResponseExtractorTest {
+
+    @Test
+    public void testVatValid() {
+        EUVatCheckResponse resp = EUVatChecker.doCheck("IT", "00950501007",
+                StubFetcher.always(StubFetcher.vatValid("IT", "00950501007", "BANCA D&apos;ITALIA", "VIA NAZIONALE 91 \n00184 ROMA RM\n")));
+        Assert.assertEquals(true, resp.isValid());
+        Assert.assertEquals("BANCA D'ITALIA", resp.getName());
+        Assert.assertEquals("VIA NAZIONALE 91 \n00184 ROMA RM\n", resp.getAddress());
+        Assert.assertEquals(false, resp.isError());
+        Assert.assertNull(resp.getFault());
+    }
+
+    @Test
+    public void testVatInvalid() {
+        EUVatCheckResponse resp = EUVatChecker.doCheck("IT", "00950501000", StubFetcher.always(StubFetcher.vatInvalid("IT", "00950501000")));
+        Assert.assertEquals(false, resp.isValid());
+        Assert.assertEquals("---", resp.getName());
+        Assert.assertEquals("---", resp.getAddress());
+        Assert.assertEquals(false, resp.isError());
+    }
+
+    @Test
+    public void testVatFault() {
+        EUVatCheckResponse resp = EUVatChecker.doCheck("IT", "", StubFetcher.always(StubFetcher.fault("INVALID_INPUT")));
+        Assert.assertEquals(false, resp.isValid());
+        Assert.assertNull(resp.getName());
+        Assert.assertTrue(resp.isError());
+        Assert.assertEquals(EUVatCheckResponse.FaultType.INVALID_INPUT, resp.getFault().getFaultType());
+        Assert.assertTrue(resp.getFault().getFaultCode().endsWith(":Server"));
+    }
+
+    @Test
+    public void testTin() {
+        EUTinCheckResponse resp = EUTinChecker.doCheck("BE", "00012511118", StubFetcher.always(StubFetcher.tin("BE", "00012511118", true, false)));
+        Assert.assertEquals(true, resp.isValidStructure());
+        Assert.assertEquals(false, resp.isValidSyntax());
+        Assert.assertEquals(false, resp.isError());
+    }
+
+    @Test
+    public void testTinFault() {
+        EUTinCheckResponse resp = EUTinChecker.doCheck("US", "1", StubFetcher.always(StubFetcher.fault("SERVER_BUSY")));
+        Assert.assertTrue(resp.isError());
+        Assert.assertEquals(EUTinCheckResponse.FaultType.SERVER_BUSY, resp.getFault().getFaultType());
+    }
+
+    @Test
+    public void testCDataAndNestedElementsAreHandled() {
+        String payload = "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\"><s:Body>" +
+                "<r:checkVatResponse xmlns:r=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">" +
+                "<r:extra><r:name>ignored</r:name></r:extra>" +
+                "<r:valid>true</r:valid><r:name><![CDATA[A & B]]> SA</r:name>" +
+                "</r:checkVatResponse></s:Body></s:Envelope>";
+        EUVatCheckResponse resp = EUVatChecker.doCheck("IT", "1", StubFetcher.always(payload));
+        Assert.assertTrue(resp.isValid());
+        Assert.assertEquals("A & B SA", resp.getName());
+        Assert.assertNull(resp.getAddress());
+    }
+
+    @Test
+    public void testUnknownDocument() {
+        EUVatCheckResponse resp = EUVatChecker.doCheck("IT", "1", StubFetcher.always("<html><body>gateway error</body></html>"));
+        Assert.assertTrue(resp.isError());
+        Assert.assertNull(resp.getFault());
+    }
+
+    @Test
+    public void testExternalEntitiesAreNotResolved() {
+        String payload = "<?xml version=\"1.0\"?><!DOCTYPE foo [<!ENTITY xxe SYSTEM \"file:///etc/passwd\">]>" +
+                "<s:Envelope xmlns:s=\"http://schemas.xmlsoap.org/soap/envelope/\"><s:Body>" +
+                "<checkVatResponse><valid>true</valid><name>&xxe;</name></checkVatResponse></s:Body></s:Envelope>";
+        try {
+            EUVatCheckResponse resp = EUVatChecker.doCheck("IT", "1", StubFetcher.always(payload));
+            Assert.assertTrue(resp.getName() == null || !resp.getName().contains("root:"));
+        } catch (IllegalStateException e) {
+            // rejecting the document is fine too
+        }
+    }
+
+    @Test
+    public void testEncodingFromTheXmlDeclaration() {
+        String name = "CAF\u00c9 M\u00dcLLER \u00e8";
+        String payload = StubFetcher.vatValid("DE", "123456789", name, "STRASSE 1");
+        Assert.assertEquals(name, checkEncoded("<?xml version=\"1.0\" encoding=\"ISO-8859-1\"?>" + payload, StandardCharsets.ISO_8859_1).getName());
+        Assert.assertEquals(name, checkEncoded("<?xml version=\"1.0\" encoding=\"UTF-8\"?>" + payload, StandardCharsets.UTF_8).getName());
+        // UTF-8 without declaration
+        Assert.assertEquals(name, checkEncoded(payload, StandardCharsets.UTF_8).getName());
+        // the byte order mark is written by the UTF-16 encoder
+        Assert.assertEquals(name, checkEncoded("<?xml version=\"1.0\" encoding=\"UTF-16\"?>" + payload, StandardCharsets.UTF_16).getName());
+    }
+
+    private static EUVatCheckResponse checkEncoded(String payload, Charset charset) {
+        byte[] bytes = payload.getBytes(charset);
+        return EUVatChecker.doCheck("DE", "123456789", (url, body) -> new ByteArrayInputStream(bytes));
+    }
+}
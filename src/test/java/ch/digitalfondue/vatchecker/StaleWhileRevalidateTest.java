@@ -0,0 +1,167 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+public class StaleWhileRevalidateTest {
+
+    private final AtomicLong now = new AtomicLong();
+    // the reply of the stub service
+    private final AtomicReference<String> name = new AtomicReference<>("FIRST");
+    private final AtomicReference<String> fault = new AtomicReference<>();
+    private final StubFetcher fetcher = new StubFetcher(body -> fault.get() != null ?
+            StubFetcher.fault(fault.get()) :
+            StubFetcher.vatValid("IT", StubFetcher.param(body, "vatNumber"), name.get(), "address"));
+    private final ResultCache<EUVatCheckResponse> cache = new ResultCache<>(100, Duration.ofHours(24), Duration.ofHours(1), Duration.ofMinutes(1), now::get);
+
+    private EUVatChecker checker(StaleWhileRevalidate staleWhileRevalidate) {
+        return new EUVatChecker(fetcher).withCache(cache).withStaleWhileRevalidate(staleWhileRevalidate);
+    }
+
+    @Test
+    public void testServeStaleAndRefresh() {
+        StaleWhileRevalidate swr = new StaleWhileRevalidate(Duration.ofHours(24), 4, Runnable::run);
+        EUVatChecker checker = checker(swr);
+        Assert.assertEquals("FIRST", checker.check("IT", "1").getName());
+
+        name.set("SECOND");
+        now.addAndGet(Duration.ofHours(25).toNanos());
+        // the stale result is served, while refreshed
+        Assert.assertEquals("FIRST", checker.check("IT", "1").getName());
+        Assert.assertEquals(2, fetcher.calls.get());
+        Assert.assertEquals("SECOND", checker.check("IT", "1").getName());
+        Assert.assertEquals(2, fetcher.calls.get());
+        Assert.assertEquals(1, swr.getStaleHits());
+        Assert.assertEquals(1, swr.getRefreshes());
+        Assert.assertEquals(0, swr.getInFlight());
+
+        // too old
+        name.set("THIRD");
+        now.addAndGet(Duration.ofHours(49).toNanos());
+        Assert.assertEquals("THIRD", checker.check("IT", "1").getName());
+        Assert.assertEquals(3, fetcher.calls.get());
+    }
+
+    @Test
+    public void testTransientFaultKeepsStaleResult() {
+        StaleWhileRevalidate swr = new StaleWhileRevalidate(Duration.ofHours(24), 4, Runnable::run);
+        EUVatChecker checker = checker(swr);
+        checker.check("IT", "1");
+
+        now.addAndGet(Duration.ofHours(25).toNanos());
+        fault.set("MS_UNAVAILABLE");
+        Assert.assertEquals("FIRST", checker.check("IT", "1").getName());
+        Assert.assertEquals("FIRST", checker.check("IT", "1").getName());
+        Assert.assertEquals(3, fetcher.calls.get());
+        Assert.assertEquals(2, swr.getKeptStale());
+
+        // a fault about the input replaces it
+        fault.set("INVALID_INPUT");
+        Assert.assertEquals("FIRST", checker.check("IT", "1").getName());
+        Assert.assertEquals(EUVatCheckResponse.FaultType.INVALID_INPUT, checker.check("IT", "1").getFault().getFaultType());
+        Assert.assertEquals(2, swr.getKeptStale());
+    }
+
+    @Test
+    public void testRejectedRefreshKeepsStaleResult() {
+        StaleWhileRevalidate swr = new StaleWhileRevalidate(Duration.ofHours(24), 1, command -> {
+            throw new RejectedExecutionException("saturated");
+        });
+        EUVatChecker checker = checker(swr);
+        checker.check("IT", "1");
+
+        now.addAndGet(Duration.ofHours(25).toNanos());
+        Assert.assertEquals("FIRST", checker.check("IT", "1").getName());
+        Assert.assertEquals("FIRST", checker.check("IT", "1").getName());
+        Assert.assertEquals(1, fetcher.calls.get());
+        Assert.assertEquals(2, swr.getRefreshes());
+        Assert.assertEquals(2, swr.getKeptStale());
+        Assert.assertEquals(0, swr.getInFlight());
+    }
+
+    @Test
+    public void testExpiredTransientFaultIsNotServed() {
+        StaleWhileRevalidate swr = new StaleWhileRevalidate(Duration.ofHours(24), 4, Runnable::run);
+        EUVatChecker checker = checker(swr);
+        fault.set("MS_UNAVAILABLE");
+        Assert.assertTrue(checker.check("IT", "1").isError());
+
+        now.addAndGet(Duration.ofMinutes(2).toNanos());
+        fault.set(null);
+        Assert.assertEquals("FIRST", checker.check("IT", "1").getName());
+        Assert.assertEquals(0, swr.getStaleHits());
+    }
+
+    @Test
+    public void testBoundedRefreshes() {
+        List<Runnable> pending = new ArrayList<>();
+        StaleWhileRevalidate swr = new StaleWhileRevalidate(Duration.ofHours(24), 2, pending::add);
+        EUVatChecker checker = checker(swr);
+        for (int i = 0; i < 4; i++) {
+            checker.check("IT", Integer.toString(i));
+        }
+        now.addAndGet(Duration.ofHours(25).toNanos());
+        name.set("SECOND");
+
+        // a single refresh for a given number
+        checker.check("IT", "0");
+        checker.check("IT", "0");
+        checker.check("IT", "1");
+        checker.check("IT", "2");
+        checker.check("IT", "3");
+        Assert.assertEquals(2, pending.size());
+        Assert.assertEquals(2, swr.getInFlight());
+        Assert.assertEquals(2, swr.getRefreshes());
+        Assert.assertEquals(2, swr.getSkippedRefreshes());
+        Assert.assertEquals(5, swr.getStaleHits());
+
+        pending.forEach(Runnable::run);
+        Assert.assertEquals(0, swr.getInFlight());
+        Assert.assertEquals("SECOND", checker.check("IT", "0").getName());
+        Assert.assertEquals("SECOND", checker.check("IT", "1").getName());
+        // the skipped ones are refreshed by a later check
+        Assert.assertEquals("FIRST", checker.check("IT", "2").getName());
+        Assert.assertEquals(1, swr.getInFlight());
+        Assert.assertEquals(3, swr.getRefreshes());
+    }
+
+    @Test
+    public void testAsyncRefresh() {
+        StaleWhileRevalidate swr = new StaleWhileRevalidate(Duration.ofHours(24), 4);
+        EUVatChecker checker = new EUVatChecker(fetcher, (url, body) -> CompletableFuture.supplyAsync(() -> fetcher.apply(url, body)))
+                .withCache(cache)
+                .withStaleWhileRevalidate(swr);
+        Assert.assertEquals("FIRST", checker.checkAsync("IT", "1").join().getName());
+        name.set("SECOND");
+        now.addAndGet(Duration.ofHours(25).toNanos());
+        Assert.assertEquals("FIRST", checker.checkAsync("IT", "1").join().getName());
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (swr.getInFlight() > 0 && System.nanoTime() < deadline) {
+            Thread.yield();
+        }
+        Assert.assertEquals("SECOND", checker.checkAsync("IT", "1").join().getName());
+    }
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.ToLongFunction;
+
+/**
+ * A documentFetcher that answers with canned VIES/TIN payloads, so tests don't need the live EU services.
+ */
+class StubFetcher implements BiFunction<String, String, InputStream> {
+
+    private final Function<String, String> responder;
+    final AtomicInteger calls = new AtomicInteger();
+
+    StubFetcher(Function<String, String> responder) {
+        this.responder = responder;
+    }
+
+    static StubFetcher always(String payload) {
+        return new StubFetcher(body -> payload);
+    }
+
+    @Override
+    public InputStream apply(String url, String body) {
+        calls.incrementAndGet();
+        return new ByteArrayInputStream(responder.apply(body).getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * An async fetcher answering after a latency, e.g. drawn from a distribution.
+     *
+     * @param latencyMillis the latency of the response to the given request body, in milliseconds
+     */
+    BiFunction<String, String, CompletableFuture<InputStream>> withLatency(ToLongFunction<String> latencyMillis) {
+        return (url, body) -> CompletableFuture.supplyAsync(() -> apply(url, body),
+                CompletableFuture.delayedExecutor(latencyMillis.applyAsLong(body), TimeUnit.MILLISECONDS));
+    }
+
+    /**
+     * @return the text content of the first element with the given name in the request body
+     */
+    static String param(String body, String name) {
+        int start = body.indexOf("<" + name + ">");
+        if (start < 0) {
+            return "";
+        }
+        start += name.length() + 2;
+        return body.substring(start, body.indexOf("</" + name + ">", start));
+    }
+
+    static String vatValid(String countryCode, String vatNumber, String name, String address) {
+        return envelope("<ns2:checkVatResponse xmlns:ns2=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">" +
+                "<ns2:countryCode>" + countryCode + "</ns2:countryCode>" +
+                "<ns2:vatNumber>" + vatNumber + "</ns2:vatNumber>" +
+                "<ns2:requestDate>2024-01-01+01:00</ns2:requestDate>" +
+                "<ns2:valid>true</ns2:valid>" +
+                "<ns2:name>" + name + "</ns2:name>" +
+                "<ns2:address>" + address + "</ns2:address>" +
+                "</ns2:checkVatResponse>");
+    }
+
+    static String vatInvalid(String countryCode, String vatNumber) {
+        return envelope("<ns2:checkVatResponse xmlns:ns2=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">" +
+                "<ns2:countryCode>" + countryCode + "</ns2:countryCode>" +
+                "<ns2:vatNumber>" + vatNumber + "</ns2:vatNumber>" +
+                "<ns2:requestDate>2024-01-01+01:00</ns2:requestDate>" +
+                "<ns2:valid>false</ns2:valid>" +
+                "<ns2:name>---</ns2:name>" +
+                "<ns2:address>---</ns2:address>" +
+                "</ns2:checkVatResponse>");
+    }
+
+    static String vatApprox(String countryCode, String vatNumber, String requestIdentifier, String nameMatch, String cityMatch) {
+        return envelope("<ns2:checkVatApproxResponse xmlns:ns2=\"urn:ec.europa.eu:taxud:vies:services:checkVat:types\">" +
+                "<ns2:countryCode>" + countryCode + "</ns2:countryCode>" +
+                "<ns2:vatNumber>" + vatNumber + "</ns2:vatNumber>" +
+                "<ns2:requestDate>2024-01-01+01:00</ns2:requestDate>" +
+                "<ns2:valid>true</ns2:valid>" +
+                "<ns2:traderName>BANCA D'ITALIA</ns2:traderName>" +
+                "<ns2:traderCompanyType>---</ns2:traderCompanyType>" +
+                "<ns2:traderAddress>VIA NAZIONALE 91 00184 ROMA RM</ns2:traderAddress>" +
+                "<ns2:traderNameMatch>" + nameMatch + "</ns2:traderNameMatch>" +
+                "<ns2:traderCityMatch>" + cityMatch + "</ns2:traderCityMatch>" +
+                "<ns2:requestIdentifier>" + requestIdentifier + "</ns2:requestIdentifier>" +
+                "</ns2:checkVatApproxResponse>");
+    }
+
+    static String tin(String countryCode, String tinNumber, boolean validStructure, boolean validSyntax) {
+        return envelope("<checkTinResponse xmlns=\"urn:ec.europa.eu:taxud:tin:services:checkTin:types\">" +
+                "<countryCode>" + countryCode + "</countryCode>" +
+                "<tinNumber>" + tinNumber + "</tinNumber>" +
+                "<requestDate>2024-01-01+01:00</requestDate>" +
+                "<validStructure>" + validStructure + "</validStructure>" +
+                "<validSyntax>" + validSyntax + "</validSyntax>" +
+                "</checkTinResponse>");
+    }
+
+    static String fault(String faultString) {
+        return envelope("<env:Fault><faultcode>env:Server</faultcode><faultstring>" + faultString + "</faultstring></env:Fault>");
+    }
+
+    // the payloads of the REST api, the strings are not escaped
+
+    static String restValid(String countryCode, String vatNumber, String name, String address) {
+        return "{\"countryCode\":\"" + countryCode + "\",\"vatNumber\":\"" + vatNumber + "\"," +
+                "\"requestDate\":\"2024-01-01T10:00:00.000Z\",\"valid\":true,\"requestIdentifier\":\"\"," +
+                "\"name\":\"" + name + "\",\"address\":\"" + address + "\"," +
+                "\"traderName\":\"---\",\"traderStreet\":\"---\",\"traderPostalCode\":\"---\",\"traderCity\":\"---\"," +
+                "\"traderCompanyType\":\"---\",\"traderNameMatch\":\"NOT_PROCESSED\",\"traderStreetMatch\":\"NOT_PROCESSED\"," +
+                "\"traderPostalCodeMatch\":\"NOT_PROCESSED\",\"traderCityMatch\":\"NOT_PROCESSED\",\"traderCompanyTypeMatch\":\"NOT_PROCESSED\"}";
+    }
+
+    static String restInvalid(String countryCode, String vatNumber) {
+        return "{\"countryCode\":\"" + countryCode + "\",\"vatNumber\":\"" + vatNumber + "\"," +
+                "\"requestDate\":\"2024-01-01T10:00:00.000Z\",\"valid\":false,\"requestIdentifier\":\"\"," +
+                "\"name\":\"---\",\"address\":\"---\"}";
+    }
+
+    static String restError(String error) {
+        return "{\"actionSucceed\":false,\"errorWrappers\":[{\"error\":\"" + error + "\",\"message\":null}]}";
+    }
+
+    private static String envelope(String body) {
+        return "<env:Envelope xmlns:env=\"http://schemas.xmlsoap.org/soap/envelope/\"><env:Header/><env:Body>" + body + "</env:Body></env:Envelope>";
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The contract of {@link EUVatCheckerTest} and {@link EUTinCheckerTest}, against {@link VatStubServer}, and short
+ * load runs with {@link LoadGenerator}.
+ */
+public class StubServerTest {
+
+    private static VatStubServer server;
+
+    @BeforeClass
+    public static void startServer() throws IOException {
+        server = VatStubServer.start();
+    }
+
+    @AfterClass
+    public static void stopServer() {
+        server.close();
+    }
+
+    @Test
+    public void testVatContract() {
+        for (EUVatChecker checker : new EUVatChecker[]{server.vatChecker(), server.vatChecker().withTransport(VatTransport.REST)}) {
+            EUVatCheckResponse resp = checker.check("IT", "00950501007");
+            Assert.assertTrue(resp.isValid());
+            Assert.assertEquals("BANCA D'ITALIA", resp.getName());
+            Assert.assertEquals("VIA NAZIONALE 91 \n00184 ROMA RM\n", resp.getAddress());
+            Assert.assertNull(resp.getFault());
+
+            resp = checker.checkAsync("IT", "00950501000").join();
+            Assert.assertFalse(resp.isValid());
+            Assert.assertFalse(resp.isError());
+            Assert.assertEquals("---", resp.getName());
+
+            resp = checker.check("IT", "");
+            Assert.assertTrue(resp.isError());
+            Assert.assertEquals(EUVatCheckResponse.FaultType.INVALID_INPUT, resp.getFault().getFaultType());
+
+            resp = checker.check("AB", "009505010075353");
+            Assert.assertTrue(resp.isError());
+            Assert.assertEquals(EUVatCheckResponse.FaultType.INVALID_INPUT, resp.getFault().getFaultType());
+        }
+    }
+
+    @Test
+    public void testTinContract() {
+        EUTinChecker checker = server.tinChecker();
+        EUTinCheckResponse resp = checker.check("BE", "00012511119");
+        Assert.assertTrue(resp.isValidStructure());
+        Assert.assertTrue(resp.isValidSyntax());
+
+        resp = checker.checkAsync("BE", "00012511118").join();
+        Assert.assertTrue(resp.isValidStructure());
+        Assert.assertFalse(resp.isValidSyntax());
+
+        resp = checker.check("BE", "000125111189874");
+        Assert.assertFalse(resp.isValidStructure());
+        Assert.assertFalse(resp.isValidSyntax());
+        Assert.assertFalse(resp.isError());
+
+        resp = checker.check("US", "000125111189874");
+        Assert.assertTrue(resp.isError());
+        Assert.assertEquals(EUTinCheckResponse.FaultType.INVALID_INPUT, resp.getFault().getFaultType());
+    }
+
+    @Test
+    public void testFaultInjection() throws IOException {
+        try (VatStubServer stub = VatStubServer.start()) {
+            stub.withFault(VatStubServer.Fault.MS_MAX_CONCURRENT_REQ, 1.0);
+            Assert.assertEquals(EUVatCheckResponse.FaultType.MS_MAX_CONCURRENT_REQ, stub.vatChecker().check("IT", "00950501007").getFault().getFaultType());
+            Assert.assertEquals(EUTinCheckResponse.FaultType.SERVER_BUSY, stub.tinChecker().check("BE", "00012511119").getFault().getFaultType());
+
+            stub.withFault(VatStubServer.Fault.MS_MAX_CONCURRENT_REQ, 0).withFault(VatStubServer.Fault.TIMEOUT, 1.0);
+            Assert.assertEquals(EUVatCheckResponse.FaultType.TIMEOUT, stub.vatChecker().checkAsync("IT", "00950501007").join().getFault().getFaultType());
+
+            stub.withFault(VatStubServer.Fault.TIMEOUT, 0).withFault(VatStubServer.Fault.MALFORMED, 1.0);
+            try {
+                stub.vatChecker().check("IT", "00950501007");
+                Assert.fail();
+            } catch (IllegalStateException e) {
+                // expected, the response is truncated
+            }
+
+            stub.withFault(VatStubServer.Fault.MALFORMED, 0).withFault(VatStubServer.Fault.STALL, 1.0);
+            FetcherConfig config = FetcherConfig.defaultConfig().withReadTimeout(Duration.ofMillis(100));
+            EUVatChecker checker = new EUVatChecker(stub.blocking(config), stub.async(config));
+            Assert.assertEquals(EUVatCheckResponse.FaultType.TIMEOUT, checker.check("IT", "00950501007").getFault().getFaultType());
+            Assert.assertEquals(1, stub.faults("STALL"));
+        }
+    }
+
+    @Test
+    public void testQuota() throws IOException {
+        try (VatStubServer stub = VatStubServer.start()) {
+            // the rejected requests hold their slot too: the result doesn't depend on the arrival order when a single
+            // quota applies
+            stub.withLatency(VatStubServer.fixed(100)).withQuota(3, 2);
+            EUVatChecker checker = stub.vatChecker();
+            List<CompletableFuture<EUVatCheckResponse>> responses = new ArrayList<>();
+            for (int i = 0; i < 2; i++) {
+                responses.add(checker.checkAsync("IT", "00950501007"));
+                responses.add(checker.checkAsync("DE", "123456788"));
+                responses.add(checker.checkAsync("FR", "40303265045"));
+            }
+            long ok = responses.stream().map(CompletableFuture::join).filter(r -> !r.isError()).count();
+            Assert.assertEquals(3, ok);
+            Assert.assertEquals(3, stub.faults("GLOBAL_MAX_CONCURRENT_REQ"));
+
+            stub.withQuota(10, 2);
+            responses.clear();
+            for (int i = 0; i < 3; i++) {
+                responses.add(checker.checkAsync("IT", "00950501007"));
+            }
+            ok = responses.stream().map(CompletableFuture::join).filter(r -> !r.isError()).count();
+            Assert.assertEquals(2, ok);
+            Assert.assertEquals(1, stub.faults("MS_MAX_CONCURRENT_REQ"));
+        }
+    }
+
+    @Test
+    public void testLoadGenerator() throws IOException {
+        try (VatStubServer stub = VatStubServer.start()) {
+            stub.withLatency(VatStubServer.logNormal(5, 0.5));
+            EUVatChecker checker = stub.vatChecker();
+            LoadGenerator.Report report = LoadGenerator.run(200, Duration.ofSeconds(1), 200,
+                    i -> checker.checkAsync("IT", "00950501007"), EUVatChecker.KIND::faultType);
+            Assert.assertEquals(200, report.sent);
+            Assert.assertEquals(200, report.completed);
+            Assert.assertTrue(report.toString(), report.faults.isEmpty());
+            Assert.assertTrue(report.toString(), report.throughput() > 100);
+            Assert.assertTrue(report.toString(), report.latency.getValueAtPercentile(50) >= Duration.ofMillis(2).toNanos());
+            Assert.assertEquals(200, stub.requests.sum());
+        }
+    }
+
+    @Test
+    public void testRateLimiterKeepsTheLoadWithinTheQuota() throws IOException {
+        try (VatStubServer stub = VatStubServer.start()) {
+            // at most 4 concurrent requests of 20ms: about 200 per second
+            stub.withLatency(VatStubServer.fixed(20)).withQuota(Integer.MAX_VALUE, 4);
+            EUVatChecker checker = stub.vatChecker();
+            LoadGenerator.Report unlimited = LoadGenerator.run(400, Duration.ofMillis(500), 400,
+                    i -> checker.checkAsync("IT", "00950501007"), EUVatChecker.KIND::faultType);
+            Assert.assertTrue(unlimited.toString(), unlimited.faults("MS_MAX_CONCURRENT_REQ") > 0);
+
+            EUVatChecker limited = checker.withRateLimiter(new RateLimiter(1000, 100));
+            LoadGenerator.Report report = LoadGenerator.run(100, Duration.ofMillis(500), 400,
+                    i -> limited.checkAsync("IT", "00950501007"), EUVatChecker.KIND::faultType);
+            Assert.assertTrue(report.toString(), report.faults.isEmpty());
+            Assert.assertEquals(report.sent, report.completed);
+        }
+    }
+}
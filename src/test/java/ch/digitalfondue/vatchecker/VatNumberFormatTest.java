@@ -0,0 +1,94 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class VatNumberFormatTest {
+
+    // published numbers of companies and administrations
+    private static final String[] VALID = {
+            "ATU13585627", "BE0417497106", "BE0776091951", "BG175074752", "CY10259033P", "CZ25123891", "DE136695976",
+            "DK13585628", "EE100931558", "EL094014201", "ESA28015865", "ESB58378431", "ESX2482300W", "ES12345678Z",
+            "FI20774740", "FR40303265045", "HR33392005961", "HU12892312", "IE6388047V", "IE8Z49289F", "IE3628739L",
+            "IT00950501007", "LU15027442", "MT11679112", "NL004495445B01", "PL5260001246", "PT501964843",
+            "RO18547290", "SE556188840401", "SI50223054", "SK2022749619"
+    };
+
+    @Test
+    public void testValid() {
+        for (String vat : VALID) {
+            Assert.assertTrue(vat, VatNumberFormat.isValid(vat.substring(0, 2), vat.substring(2)));
+        }
+    }
+
+    @Test
+    public void testWrongCheckDigit() {
+        for (String vat : VALID) {
+            String number = vat.substring(2);
+            // change the last digit of the number, in NL the last digits are the branch number
+            int last = -1;
+            for (int i = 0; i < (vat.startsWith("NL") ? 9 : number.length()); i++) {
+                if (Character.isDigit(number.charAt(i))) {
+                    last = i;
+                }
+            }
+            char c = number.charAt(last);
+            String changed = number.substring(0, last) + (char) (c == '9' ? '0' : c + 1) + number.substring(last + 1);
+            Assert.assertFalse(vat + " -> " + changed, VatNumberFormat.isValid(vat.substring(0, 2), changed));
+        }
+    }
+
+    @Test
+    public void testStructure() {
+        Assert.assertFalse(VatNumberFormat.isValid("IT", "0095050100"));
+        Assert.assertFalse(VatNumberFormat.isValid("IT", "009505010071"));
+        Assert.assertFalse(VatNumberFormat.isValid("DE", "036695976"));
+        Assert.assertFalse(VatNumberFormat.isValid("AT", "13585627"));
+        Assert.assertFalse(VatNumberFormat.isValid("NL", "004495445C01"));
+        Assert.assertFalse(VatNumberFormat.isValid("IT", ""));
+        Assert.assertFalse(VatNumberFormat.isValid("IT", null));
+    }
+
+    @Test
+    public void testSeparatorsAndCase() {
+        Assert.assertTrue(VatNumberFormat.isValid("it", "009 505 010 07"));
+        Assert.assertTrue(VatNumberFormat.isValid("BE", "0417.497.106"));
+        Assert.assertTrue(VatNumberFormat.isValid("AT", "u13585627"));
+    }
+
+    @Test
+    public void testUnknownRulesAreAccepted() {
+        Assert.assertTrue(VatNumberFormat.isValid("XX", "123"));
+        Assert.assertTrue(VatNumberFormat.isValid("LT", "119511515"));
+        Assert.assertTrue(VatNumberFormat.isValid("XI", "GD001"));
+    }
+
+    @Test
+    public void testCheckerSkipsTheRemoteCall() {
+        StubFetcher fetcher = StubFetcher.always(StubFetcher.vatInvalid("IT", "00950501006"));
+        EUVatChecker checker = new EUVatChecker(fetcher).withFormatValidation();
+        EUVatCheckResponse resp = checker.check("IT", "00950501006");
+        Assert.assertTrue(resp.isError());
+        Assert.assertEquals(EUVatCheckResponse.FaultType.INVALID_FORMAT, resp.getFault().getFaultType());
+        Assert.assertEquals(EUVatCheckResponse.FaultType.INVALID_FORMAT, checker.checkAsync("IT", "00950501006").join().getFault().getFaultType());
+        Assert.assertEquals(0, fetcher.calls.get());
+
+        Assert.assertFalse(checker.check("IT", "00950501007").isError());
+        Assert.assertEquals(1, fetcher.calls.get());
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManagerFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * An in-process server speaking the checkVat and checkTin SOAP contracts (and the REST checkVat one), for testing
+ * without the EU services.
+ * <p>
+ * The answers are computed offline: a vat number is valid if it passes {@link VatNumberFormat}, a Belgian TIN is checked
+ * with its check digits, the other TINs only need to be alphanumeric. The unknown country codes and the empty numbers
+ * are answered with INVALID_INPUT.
+ * <p>
+ * The latency of the responses follows a configurable distribution, without blocking a thread while waiting. Faults
+ * can be injected with a probability, and concurrency quotas return GLOBAL_MAX_CONCURRENT_REQ / MS_MAX_CONCURRENT_REQ
+ * (SERVER_BUSY for the TIN service) like VIES does.
+ * <p>
+ * {@link #startHttps()} serves over TLS with the self-signed certificate of stub-keystore.p12, for 127.0.0.1 and
+ * localhost, trusted by {@link #sslContext()}.
+ */
+final class VatStubServer implements AutoCloseable {
+
+    enum Fault {
+        MS_MAX_CONCURRENT_REQ,
+        SERVICE_UNAVAILABLE,
+        /**
+         * The TIMEOUT fault returned by VIES when a member state did not answer in time.
+         */
+        TIMEOUT,
+        /**
+         * A truncated response.
+         */
+        MALFORMED,
+        /**
+         * No response at all, until the server is closed: the client times out.
+         */
+        STALL
+    }
+
+    private static final Set<String> MEMBER_STATES = new HashSet<>(Arrays.asList("AT", "BE", "BG", "CY", "CZ", "DE",
+            "DK", "EE", "EL", "ES", "FI", "FR", "HR", "HU", "IE", "IT", "LT", "LU", "LV", "MT", "NL", "PL", "PT", "RO",
+            "SE", "SI", "SK", "XI"));
+
+    private static final char[] KEYSTORE_PASSWORD = "changeit".toCharArray();
+
+    private final HttpServer server;
+    private final ExecutorService executor = Executors.newFixedThreadPool(4);
+    private final ScheduledExecutorService scheduler = Executors.newScheduledThreadPool(2);
+    private final Set<HttpExchange> stalled = ConcurrentHashMap.newKeySet();
+
+    private volatile LongSupplier latencyMillis = () -> 0;
+    private volatile Map<Fault, Double> faults = new EnumMap<>(Fault.class);
+    private volatile int maxConcurrent = Integer.MAX_VALUE;
+    private volatile int maxConcurrentPerCountry = Integer.MAX_VALUE;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final ConcurrentHashMap<String, AtomicInteger> inFlightByCountry = new ConcurrentHashMap<>();
+    final LongAdder requests = new LongAdder();
+    // the client side address of each connection
+    private final Set<InetSocketAddress> connections = ConcurrentHashMap.newKeySet();
+    final ConcurrentHashMap<String, LongAdder> faultCounts = new ConcurrentHashMap<>();
+
+    private VatStubServer(boolean https) throws IOException {
+        InetSocketAddress address = new InetSocketAddress("127.0.0.1", 0);
+        if (https) {
+            HttpsServer httpsServer = HttpsServer.create(address, 1024);
+            httpsServer.setHttpsConfigurator(new HttpsConfigurator(sslContext()));
+            server = httpsServer;
+        } else {
+            server = HttpServer.create(address, 1024);
+        }
+        server.createContext("/", this::handle);
+        server.setExecutor(executor);
+    }
+
+    static VatStubServer start() throws IOException {
+        VatStubServer stub = new VatStubServer(false);
+        stub.server.start();
+        return stub;
+    }
+
+    static VatStubServer startHttps() throws IOException {
+        VatStubServer stub = new VatStubServer(true);
+        stub.server.start();
+        return stub;
+    }
+
+    /**
+     * @return a context with the key of the https stub, trusting only its certificate
+     */
+    static SSLContext sslContext() throws IOException {
+        try (InputStream is = VatStubServer.class.getResourceAsStream("/stub-keystore.p12")) {
+            KeyStore keyStore = KeyStore.getInstance("PKCS12");
+            keyStore.load(is, KEYSTORE_PASSWORD);
+            KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+            keyManagers.init(keyStore, KEYSTORE_PASSWORD);
+            TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+            trustManagers.init(keyStore);
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers.getKeyManagers(), trustManagers.getTrustManagers(), null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            throw new IOException(e);
+        }
+    }
+
+    String url() {
+        return (server instanceof HttpsServer ? "https" : "http") + "://127.0.0.1:" + server.getAddress().getPort() + "/";
+    }
+
+    /**
+     * @param latencyMillis the latency of each response, e.g. {@link #logNormal(double, double)}
+     */
+    VatStubServer withLatency(LongSupplier latencyMillis) {
+        this.latencyMillis = latencyMillis;
+        return this;
+    }
+
+    /**
+     * @param probability the probability, between 0 and 1, that a request is answered with the fault
+     */
+    VatStubServer withFault(Fault fault, double probability) {
+        Map<Fault, Double> copy = new EnumMap<>(faults);
+        copy.put(fault, probability);
+        faults = copy;
+        return this;
+    }
+
+    /**
+     * @param maxConcurrent           the maximum number of requests being answered, GLOBAL_MAX_CONCURRENT_REQ after that
+     * @param maxConcurrentPerCountry the same for a given country, MS_MAX_CONCURRENT_REQ after that
+     */
+    VatStubServer withQuota(int maxConcurrent, int maxConcurrentPerCountry) {
+        this.maxConcurrent = maxConcurrent;
+        this.maxConcurrentPerCountry = maxConcurrentPerCountry;
+        return this;
+    }
+
+    /**
+     * @return the number of connections that sent at least a request
+     */
+    int connections() {
+        return connections.size();
+    }
+
+    long faults(String faultType) {
+        LongAdder count = faultCounts.get(faultType);
+        return count != null ? count.sum() : 0;
+    }
+
+    /**
+     * The default fetchers of the library, sending everything to this server.
+     */
+    DeadlineAwareFetcher<InputStream> blocking(FetcherConfig config) {
+        HttpFetcher fetcher = new HttpFetcher(config);
+        String url = url();
+        return (ignored, document, deadline, metrics) -> fetcher.fetch(url, document, deadline, metrics);
+    }
+
+    DeadlineAwareFetcher<CompletableFuture<InputStream>> async(FetcherConfig config) {
+        HttpFetcher fetcher = new HttpFetcher(config);
+        String url = url();
+        return (ignored, document, deadline, metrics) -> fetcher.fetchAsync(url, document, deadline, metrics);
+    }
+
+    EUVatChecker vatChecker() {
+        FetcherConfig config = FetcherConfig.defaultConfig();
+        return new EUVatChecker(blocking(config), async(config));
+    }
+
+    EUTinChecker tinChecker() {
+        FetcherConfig config = FetcherConfig.defaultConfig();
+        return new EUTinChecker(blocking(config), async(config));
+    }
+
+    static LongSupplier fixed(long millis) {
+        return () -> millis;
+    }
+
+    static LongSupplier uniform(long minMillis, long maxMillis) {
+        return () -> ThreadLocalRandom.current().nextLong(minMillis, maxMillis + 1);
+    }
+
+    /**
+     * A long tailed distribution, like the latencies of VIES.
+     *
+     * @param medianMillis the median
+     * @param sigma        the spread, e.g. 1.0 gives a p99 about 10 times the median
+     */
+    static LongSupplier logNormal(double medianMillis, double sigma) {
+        return () -> Math.round(medianMillis * Math.exp(sigma * ThreadLocalRandom.current().nextGaussian()));
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        requests.increment();
+        connections.add(exchange.getRemoteAddress());
+        String body;
+        try (InputStream is = exchange.getRequestBody()) {
+            body = new String(is.readAllBytes(), StandardCharsets.UTF_8);
+        }
+        Request request = Request.parse(body);
+        String country = request.countryCode;
+        boolean acquiredGlobal = inFlight.incrementAndGet() <= maxConcurrent;
+        AtomicInteger countryCount = inFlightByCountry.computeIfAbsent(country, k -> new AtomicInteger());
+        boolean acquiredCountry = countryCount.incrementAndGet() <= maxConcurrentPerCountry;
+
+        Fault fault = pickFault();
+        String response;
+        if (!acquiredGlobal) {
+            response = fault(request, request.tin ? "SERVER_BUSY" : "GLOBAL_MAX_CONCURRENT_REQ");
+        } else if (!acquiredCountry) {
+            response = fault(request, request.tin ? "SERVER_BUSY" : "MS_MAX_CONCURRENT_REQ");
+        } else if (fault == Fault.STALL) {
+            count("STALL");
+            stalled.add(exchange);
+            release(countryCount);
+            return;
+        } else if (fault == Fault.MALFORMED) {
+            count("MALFORMED");
+            String valid = answer(request);
+            response = valid.substring(0, valid.length() / 2);
+        } else if (fault != null) {
+            response = fault(request, request.tin && fault == Fault.MS_MAX_CONCURRENT_REQ ? "SERVER_BUSY" : fault.name());
+        } else {
+            response = answer(request);
+        }
+        long latency = Math.max(0, latencyMillis.getAsLong());
+        // the slot is released before answering, a client may send its next request as soon as it has the response
+        Runnable send = () -> {
+            release(countryCount);
+            send(exchange, response);
+        };
+        if (latency == 0) {
+            send.run();
+        } else {
+            scheduler.schedule(send, latency, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void release(AtomicInteger countryCount) {
+        inFlight.decrementAndGet();
+        countryCount.decrementAndGet();
+    }
+
+    private Fault pickFault() {
+        double r = ThreadLocalRandom.current().nextDouble();
+        for (Map.Entry<Fault, Double> e : faults.entrySet()) {
+            r -= e.getValue();
+            if (r < 0) {
+                return e.getKey();
+            }
+        }
+        return null;
+    }
+
+    private String fault(Request request, String faultType) {
+        count(faultType);
+        return request.rest ? StubFetcher.restError(faultType) : StubFetcher.fault(faultType);
+    }
+
+    private void count(String faultType) {
+        faultCounts.computeIfAbsent(faultType, k -> new LongAdder()).increment();
+    }
+
+    private String answer(Request request) {
+        if (!MEMBER_STATES.contains(request.countryCode) || request.number.isEmpty()) {
+            return fault(request, "INVALID_INPUT");
+        }
+        if (request.tin) {
+            boolean structure = tinStructure(request.countryCode, request.number);
+            return StubFetcher.tin(request.countryCode, request.number, structure, structure && tinSyntax(request.countryCode, request.number));
+        }
+        boolean valid = VatNumberFormat.isValid(request.countryCode, request.number);
+        if (!valid) {
+            return request.rest ? StubFetcher.restInvalid(request.countryCode, request.number) : StubFetcher.vatInvalid(request.countryCode, request.number);
+        }
+        boolean known = "IT".equals(request.countryCode) && "00950501007".equals(request.number);
+        String name = known ? "BANCA D'ITALIA" : "COMPANY " + request.number;
+        String address = known ? "VIA NAZIONALE 91 \n00184 ROMA RM\n" : "---";
+        if (request.rest) {
+            return StubFetcher.restValid(request.countryCode, request.number, name.replace("\"", "\\\""), address.replace("\n", "\\n"));
+        }
+        return StubFetcher.vatValid(request.countryCode, request.number, name.replace("'", "&apos;"), address);
+    }
+
+    private static boolean tinStructure(String countryCode, String tin) {
+        if ("BE".equals(countryCode)) {
+            return tin.length() == 11 && tin.chars().allMatch(Character::isDigit);
+        }
+        return tin.chars().allMatch(Character::isLetterOrDigit);
+    }
+
+    // the Belgian national number: 97 - (the first 9 digits mod 97), prefixed with 2 for the births after 2000
+    private static boolean tinSyntax(String countryCode, String tin) {
+        if (!"BE".equals(countryCode)) {
+            return true;
+        }
+        long base = Long.parseLong(tin.substring(0, 9));
+        int check = Integer.parseInt(tin.substring(9));
+        return check == 97 - base % 97 || check == 97 - (2_000_000_000L + base) % 97;
+    }
+
+    private static void send(HttpExchange exchange, String response) {
+        try {
+            byte[] bytes = response.getBytes(StandardCharsets.UTF_8);
+            boolean json = response.startsWith("{");
+            exchange.getResponseHeaders().add("Content-Type", json ? "application/json" : "text/xml;charset=UTF-8");
+            // like VIES, the faults come with a server error status
+            boolean fault = json ? response.contains("errorWrappers") : response.contains(":Fault>");
+            exchange.sendResponseHeaders(fault ? 500 : 200, bytes.length);
+            try (OutputStream os = exchange.getResponseBody()) {
+                os.write(bytes);
+            }
+        } catch (IOException e) {
+            // the client went away
+        } finally {
+            exchange.close();
+        }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        stalled.forEach(HttpExchange::close);
+        scheduler.shutdownNow();
+        executor.shutdownNow();
+    }
+
+    private static final class Request {
+        final boolean tin;
+        final boolean rest;
+        final String countryCode;
+        final String number;
+
+        private Request(boolean tin, boolean rest, String countryCode, String number) {
+            this.tin = tin;
+            this.rest = rest;
+            this.countryCode = countryCode;
+            this.number = number;
+        }
+
+        static Request parse(String body) throws IOException {
+            if (body.startsWith("{")) {
+                String countryCode = "";
+                String number = "";
+                JsonReader json = new JsonReader(new ByteArrayInputStream(body.getBytes(StandardCharsets.UTF_8)));
+                json.beginObject();
+                while (json.hasNext()) {
+                    String name = json.nextName();
+                    if ("countryCode".equals(name)) {
+                        countryCode = json.nextString();
+                    } else if ("vatNumber".equals(name)) {
+                        number = json.nextString();
+                    } else {
+                        json.skipValue();
+                    }
+                }
+                return new Request(false, true, countryCode, number);
+            }
+            boolean tin = body.contains("<checkTin ");
+            return new Request(tin, false, StubFetcher.param(body, "countryCode"), StubFetcher.param(body, tin ? "tinNumber" : "vatNumber"));
+        }
+    }
+}
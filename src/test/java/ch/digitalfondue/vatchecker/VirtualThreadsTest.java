@@ -0,0 +1,113 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiFunction;
+
+public class VirtualThreadsTest {
+
+    @Test
+    public void testAvailability() {
+        // from target/classes the Java 11 variant is always used, the Java 21 one only from the multi-release jar
+        if (VirtualThreads.isAvailable()) {
+            Assert.assertTrue(Runtime.version().feature() >= 21);
+        }
+        Assert.assertSame(VirtualThreads.executor(), VirtualThreads.executor());
+    }
+
+    @Test
+    public void testBlockingFetcherIsNotBoundByThePoolSize() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        Map<String, Boolean> threadNames = new ConcurrentHashMap<>();
+        StubFetcher stub = new StubFetcher(body -> StubFetcher.vatValid(StubFetcher.param(body, "countryCode"), StubFetcher.param(body, "vatNumber"), "n" + StubFetcher.param(body, "vatNumber"), "a"));
+        BiFunction<String, String, InputStream> blocking = (url, body) -> {
+            threadNames.put(Thread.currentThread().getName(), Boolean.TRUE);
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } finally {
+                inFlight.decrementAndGet();
+            }
+            return stub.apply(url, body);
+        };
+        EUVatChecker checker = new EUVatChecker(blocking).withVirtualThreads();
+
+        List<VatId> ids = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            ids.add(VatId.of("IT", Integer.toString(i)));
+        }
+        Map<VatId, EUVatCheckResponse> results = new ConcurrentHashMap<>();
+        checker.checkAll(ids, 100, 100, results::put).get(30, TimeUnit.SECONDS);
+
+        Assert.assertEquals(ids.size(), results.size());
+        for (VatId id : ids) {
+            Assert.assertEquals("n" + id.getVatNumber(), results.get(id).getName());
+        }
+        // with the common pool, at most its parallelism would be in flight
+        Assert.assertTrue(maxInFlight.get() >= Math.max(50, ForkJoinPool.getCommonPoolParallelism() + 1));
+        for (String name : threadNames.keySet()) {
+            Assert.assertTrue(name, name.startsWith("vatchecker-"));
+        }
+    }
+
+    @Test
+    public void testDeadlineIsPropagatedToTheDefaultFetchers() {
+        AtomicLong seenDeadline = new AtomicLong();
+        StubFetcher stub = StubFetcher.always(StubFetcher.vatInvalid("IT", "1"));
+        DeadlineAwareFetcher<InputStream> fetcher = (url, body, deadline, metrics) -> {
+            seenDeadline.set(deadline);
+            return stub.apply(url, body);
+        };
+        BiFunction<String, String, CompletableFuture<InputStream>> async = Utils.toAsync(fetcher, VirtualThreads.executor());
+        Assert.assertTrue(async instanceof DeadlineAwareFetcher);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        Utils.join(Utils.withDeadlineAsync(async, deadline).apply("url", "body"));
+        Assert.assertEquals(deadline, seenDeadline.get());
+    }
+
+    @Test
+    public void testTinCheckerAgainstStubServer() throws Exception {
+        try (VatStubServer server = VatStubServer.start().withLatency(VatStubServer.fixed(20))) {
+            EUTinChecker checker = server.tinChecker().withVirtualThreads();
+            List<CompletableFuture<EUTinCheckResponse>> futures = new ArrayList<>();
+            for (int i = 0; i < 20; i++) {
+                futures.add(checker.checkAsync("NL", "12345678" + (i % 10)));
+            }
+            for (CompletableFuture<EUTinCheckResponse> future : futures) {
+                EUTinCheckResponse response = future.get(10, TimeUnit.SECONDS);
+                Assert.assertFalse(response.isError());
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright © 2018-2024 digitalfondue (info@digitalfondue.ch)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ch.digitalfondue.vatchecker;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A virtual clock: the delays complete immediately, advancing the time.
+ */
+class VirtualTimer implements Timer {
+    final AtomicLong now = new AtomicLong();
+    final List<Long> delays = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public long nanoTime() {
+        return now.get();
+    }
+
+    @Override
+    public CompletableFuture<Void> delay(long nanos) {
+        delays.add(TimeUnit.NANOSECONDS.toMillis(nanos));
+        now.addAndGet(nanos);
+        return CompletableFuture.completedFuture(null);
+    }
+}